@@ -137,6 +137,9 @@ public class EntryPoint {
 		}
 		else if(execname.equalsIgnoreCase("MeanDiff")){
 			return new MeanDiff(newArgs);
+		}
+		else if(execname.equalsIgnoreCase("MergeShards")){
+			return new MergeShards(newArgs);
 		}/*
 		else if(execname.equalsIgnoreCase("MESD")){
 			return new blah(newArgs);
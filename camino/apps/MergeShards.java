@@ -0,0 +1,174 @@
+package apps;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.logging.Logger;
+
+import misc.LoggedException;
+import numerics.MTRandom;
+
+import simulation.SimulationParams;
+import simulation.measurement.AgnosticScan;
+import simulation.measurement.SignalSums;
+import tools.CL_Initializer;
+
+import data.OutputManager;
+
+
+/**
+ * <dl>
+ *
+ * <dt>Purpose:
+ *
+ * <dd>Merges the shards of a simulation into a single set of signals.
+ *
+ * <dt>Description:
+ *
+ * <dd>A large simulation can be split across several processes by
+ * running datasynth with -shard and -partialfile. Every shard is run
+ * with the same -seed, so they all simulate the same substrate, but each
+ * moves its own walkers with its own random numbers. Each writes out its
+ * signal sums over walkers. This command adds the sums from any number of
+ * shards together and reads out the signals as the simulation would
+ * have done for the combined walkers, including noise (-snr, -seed)
+ * and compartmental output (-compartmentsignal). Shards can be added
+ * later to reduce Monte Carlo error.
+ *
+ * Merging a single shard 0 with the seed it was run with gives the
+ * same output as the shard itself.
+ *
+ * </dl>
+ *
+ */
+public class MergeShards extends Executable {
+
+	// logging object
+	private static final Logger logger= Logger.getLogger("apps.MergeShards");
+
+	/** partial signal files to merge */
+	private String[] shardFiles;
+
+
+	/**
+	 * constructor, passed commandline args
+	 *
+	 * @param args
+	 */
+	public MergeShards(String[] args){
+		super(args);
+	}
+
+
+	public void initDefaultVals() {
+		shardFiles= null;
+	}
+
+	public void initVariables() {
+
+	}
+
+	/**
+	 * parses the list of shard files. noise, seed, number of voxels and
+	 * compartmental output are the usual datasynth options.
+	 */
+	public void initOptions(String[] args) {
+
+        // The output defaults to float type, as with SyntheticData
+        OutputManager.outputDataType = "float";
+
+        // Parse the command line arguments
+        CL_Initializer.CL_init(args);
+
+        for (int i = 0; i < args.length; i++) {
+        	if (args[i].equals("-shardfiles")) {
+        		int t = 0;
+        		while (t + i + 1 < args.length && !args[t + i + 1].startsWith("-")) {
+        			t++;
+        		}
+        		shardFiles = new String[t];
+        		System.arraycopy(args, i + 1, shardFiles, 0, t);
+        		CL_Initializer.markAsParsed(i, t + 1);
+        	}
+        }
+
+        CL_Initializer.checkParsing(args);
+
+        if (shardFiles == null || shardFiles.length == 0) {
+        	throw new LoggedException("no shard files specified. use -shardfiles <file> [<file> ...]");
+        }
+    }
+
+
+	/**
+	 * reads and adds up the shards, then outputs one set of signals per
+	 * voxel. each voxel is a different noise realisation, as in
+	 * SyntheticData.
+	 *
+	 * @param om OutputManager object for readout.
+	 */
+	public void execute(OutputManager om) {
+
+		SignalSums sums= null;
+
+		// shard index -> file it came from. the same shard twice would count its walkers twice
+		HashMap<Integer, String> shards= new HashMap<Integer, String>();
+		int[] header= new int[2];
+		
+		// seed shared by the shards, so they have the same substrate
+		int seed= 0;
+
+		for (int f = 0; f < shardFiles.length; f++) {
+			SignalSums shardSums;
+
+			try {
+				DataInputStream in= new DataInputStream(new BufferedInputStream(new FileInputStream(shardFiles[f])));
+
+				shardSums= SignalSums.read(in, header);
+
+				in.close();
+			}
+			catch (IOException ioe) {
+				throw new LoggedException(ioe);
+			}
+
+			String previous= shards.put(header[0], shardFiles[f]);
+			if (previous != null) {
+				throw new LoggedException("shard "+header[0]+" is in both "+previous+" and "+shardFiles[f]);
+			}
+
+			if (f == 0) {
+				seed= header[1];
+			}
+			else if (header[1] != seed) {
+				throw new LoggedException("shard "+header[0]+" in "+shardFiles[f]+" was run with seed "+header[1]
+						+" but "+shardFiles[0]+" with seed "+seed+". shards must share a seed to simulate the same substrate");
+			}
+
+			logger.info("shard "+header[0]+" (seed "+header[1]+"): "+shardSums.getNumWalkers()+" walkers from "+shardFiles[f]);
+
+			if (sums == null) {
+				sums= shardSums;
+			}
+			else {
+				sums.add(shardSums);
+			}
+		}
+
+		logger.info("merged "+shardFiles.length+" shards, "+sums.getNumWalkers()+" walkers, "+sums.numMeas+" measurements");
+
+		MTRandom twister= AgnosticScan.getNoiseGenerator(CL_Initializer.seed);
+
+		// one voxel unless asked for more
+		int numVoxels= (CL_Initializer.numVoxels > 0) ? CL_Initializer.numVoxels : 1;
+
+		for (int v = 0; v < numVoxels; v++) {
+			om.output(sums.getSignals(twister, CL_Initializer.SNR, SimulationParams.sim_compartmentSignal));
+		}
+
+		om.close();
+	}
+
+}
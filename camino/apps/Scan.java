@@ -4,11 +4,10 @@ import imaging.SimulableScheme;
 
 import java.util.logging.Logger;
 
-import misc.LoggedException;
-
 import simulation.SimulationParams;
-import simulation.measurement.AgnosticScan;
+import simulation.TrajectoryReader;
 import simulation.measurement.ScanFactory;
+import simulation.measurement.TrajectoryScan;
 import simulation.geometry.substrates.Substrate;
 import simulation.geometry.substrates.SubstrateFactory;
 import simulation.geometry.substrates.SubstrateFactory.SubstrateType;
@@ -27,6 +26,11 @@ import data.OutputManager;
  * This takes a trajfile and a chemefile and generates noise-free
  * signals.
  * 
+ * Any number of further schemes can be given with -schemefiles. They
+ * are all synthesised in a single pass over the trajfile, and their 
+ * signals are output one scheme after another. -phasefile writes the
+ * final phase of every walker to a file, one line per measurement. 
+ * 
  * @author Matt Hall (matt.hall@ucl.ac.uk)
  *
  */
@@ -37,6 +41,9 @@ public class Scan extends Executable {
 	// logging object
 	private static final Logger logger= Logger.getLogger("apps.Scan");
 
+	/** file to write walker phases to (null for none) */
+	private String phaseFile;
+
 	/**
 	 * constructor, passed commandline args
 	 * 
@@ -47,11 +54,8 @@ public class Scan extends Executable {
 	}
 	
 	
-	/** 
-	 * nothing to do here
-	 */
 	public void initDefaultVals() {
-
+		phaseFile= null;
 	}
 
 	/** 
@@ -80,6 +84,13 @@ public class Scan extends Executable {
         // Parse the command line arguments
         CL_Initializer.CL_init(args);
         
+        for (int i = 0; i < args.length; i++) {
+        	if (args[i].equals("-phasefile")) {
+        		phaseFile = args[i + 1];
+        		CL_Initializer.markAsParsed(i, 2);
+        	}
+        }
+        
         CL_Initializer.checkParsing(args);
         
         CL_Initializer.initImagingScheme();
@@ -105,45 +116,30 @@ public class Scan extends Executable {
 	
 	
 	/** 
-	 * executes the command. Gets the scheme object, checks for compatibility. Then
-	 * gets the trajfile, creates an agnostic scan object and gets the signals. The 
+	 * executes the command. Gets the scheme objects, checks for compatibility. Then
+	 * opens the trajfile and gets the signals for all the schemes in one pass. The 
 	 * output manager then reads out.
 	 * 
-	 * Main data synthesis functionality is contained in AgnosticScan (@see AgnosticScan,
-	 * {@link AgnosticScan}).
+	 * Main data synthesis functionality is contained in TrajectoryScan (@see TrajectoryScan,
+	 * {@link TrajectoryScan}).
 	 * 
 	 * @param om OutputManager object for readout.
 	 */
 	public void execute(OutputManager om) {
-			
-		try{
-			SimulableScheme simScheme= (SimulableScheme)CL_Initializer.imPars;
-		}
-		catch(ClassCastException cce){
-			logger.severe("The scheme file provided doesn't contain enough information to generate measurements from simulation");
-        	logger.severe("Simulation-based data synthesis requires gradent strength, pulse durations and timings to be specified");
-        	logger.severe("Compatible scheme file formats include STEJSKALTANNER, TRSE, and genwave");
-        	
-			throw new LoggedException("Specified schemefile is not compatible with data synthesis from simulation. Scheme must be Simulable");
-		}
 		
-		SimulableScheme scheme= (SimulableScheme)CL_Initializer.imPars;
+		SimulableScheme[] schemes= CL_Initializer.getSimulableSchemes();
 		
 		String trajfile= SimulationParams.trajFile;
 		
-		logger.info("Synthesising measurements from "+trajfile+" using "+CL_Initializer.schemeFile);
-
-		AgnosticScan scan;
-		if (this.substrate == null) {
-			scan = new AgnosticScan(scheme, trajfile);
-			}
-		else {
-			scan= new AgnosticScan(scheme, trajfile, this.substrate);
-		}
+		logger.info("Synthesising measurements from "+trajfile+" using "+schemes.length+" schemes");
+
+		TrajectoryScan scan= new TrajectoryScan(schemes, this.substrate);
 		
-		double[] signals= scan.getSignalsFromTrajectories();
+		double[][] signals= scan.getSignals(new TrajectoryReader(trajfile), SimulationParams.sim_threads, phaseFile);
 		
-		om.output(signals);
+		for (int s = 0; s < signals.length; s++) {
+			om.output(signals[s]);
+		}
 
 		om.close();
 	}
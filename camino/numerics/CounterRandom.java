@@ -0,0 +1,175 @@
+package numerics;
+
+/**
+ * <dl>
+ * <dt>Purpose: Counter-based pseudo random number generator.
+ * <BR><BR>
+ *
+ * <dt>Description:
+ * <dd> Each deviate is a hash of a key and a counter, rather than the
+ * next state of a sequence. The key is derived from a seed and a pair
+ * of stream indices, so any stream can be picked up at any point without
+ * generating the numbers that came before it, and there is no shared
+ * state to lock.
+ * <p>
+ * In the simulation the stream indices are the walker and the timestep,
+ * so the random numbers a walker sees in a step depend only on the seed,
+ * the walker and the step. Walks are then the same however the walkers
+ * are split between threads and whatever order they are visited in.
+ * <p>
+ * The hash is the 64-bit finaliser used by SplitMix64 (Steele, Lea and
+ * Flood, "Fast splittable pseudorandom number generators", OOPSLA 2014),
+ * the generator behind java.util.SplittableRandom. Keys are hashed twice
+ * so that neighbouring walkers and timesteps get unrelated streams.
+ * <p>
+ * Instances are not thread safe, but they are cheap and hold no state
+ * beyond the current key and counter, so each thread keeps its own.
+ *
+ * </dl>
+ *
+ */
+public final class CounterRandom {
+
+    /** odd constant used to space out keys and counters (2^64 / golden ratio) */
+    private static final long GOLDEN_GAMMA= 0x9e3779b97f4a7c15L;
+
+    /** 2^-53, scales 53 random bits onto [0,1) */
+    private static final double DOUBLE_UNIT= 0x1.0p-53;
+
+    /** hashed seed */
+    private final long seed;
+
+    /** key of the current stream */
+    private long key;
+
+    /** number of deviates drawn from the current stream */
+    private long counter;
+
+
+    /**
+     * constructor. the generator starts on stream (0, 0).
+     *
+     * @param seed the seed
+     */
+    public CounterRandom(long seed){
+
+        this.seed= mix64(seed);
+
+        setStream(0L, 0L);
+    }
+
+
+    /**
+     * moves to the start of the stream for a pair of indices.
+     *
+     * @param stream first index (walker)
+     * @param substream second index (timestep)
+     */
+    public void setStream(long stream, long substream){
+
+        key= streamKey(seed, stream, substream);
+        counter= 0L;
+    }
+
+
+    /**
+     * @return next uniform deviate on [0,1) in the current stream
+     */
+    public double nextDouble(){
+
+        return toDouble(mix64(key+GOLDEN_GAMMA*(++counter)));
+    }
+
+
+    /**
+     * fills an array with consecutive deviates from the current stream.
+     * gives the same numbers as calling nextDouble() n times.
+     *
+     * @param u array to fill
+     * @param off index of first element to fill
+     * @param n number of deviates
+     */
+    public void nextDoubles(double[] u, int off, int n){
+
+        final long k= key;
+        final long c= counter;
+
+        for(int i=0; i<n; i++){
+            u[off+i]= toDouble(mix64(k+GOLDEN_GAMMA*(c+i+1)));
+        }
+
+        counter= c+n;
+    }
+
+
+    /**
+     * @return number of deviates drawn from the current stream
+     */
+    public long getCounter(){
+        return counter;
+    }
+
+
+    /**
+     * returns a single deviate from any stream without constructing a
+     * generator. uniform(seed, s, t, n) is the n-th deviate (counting
+     * from 1) that a generator with the given seed returns after
+     * setStream(s, t).
+     *
+     * @param seed the seed
+     * @param stream first index
+     * @param substream second index
+     * @param n position in stream, counting from 1
+     *
+     * @return uniform deviate on [0,1)
+     */
+    public static double uniform(long seed, long stream, long substream, long n){
+
+        return toDouble(mix64(streamKey(mix64(seed), stream, substream)+GOLDEN_GAMMA*n));
+    }
+
+
+    /**
+     * key for a stream
+     *
+     * @param seed hashed seed
+     * @param stream first index
+     * @param substream second index
+     *
+     * @return the stream's key
+     */
+    private static long streamKey(long seed, long stream, long substream){
+
+        long k= mix64(seed+GOLDEN_GAMMA*(stream+1));
+
+        return mix64(k+GOLDEN_GAMMA*(substream+1));
+    }
+
+
+    /**
+     * SplitMix64 finaliser (variant 13 of Stafford's mixers)
+     *
+     * @param z value to mix
+     *
+     * @return mixed value
+     */
+    private static long mix64(long z){
+
+        z= (z^(z>>>30))*0xbf58476d1ce4e5b9L;
+        z= (z^(z>>>27))*0x94d049bb133111ebL;
+
+        return z^(z>>>31);
+    }
+
+
+    /**
+     * @param bits 64 random bits
+     *
+     * @return the top 53 bits as a double on [0,1)
+     */
+    private static double toDouble(long bits){
+
+        return (bits>>>11)*DOUBLE_UNIT;
+    }
+
+}
@@ -27,6 +27,9 @@
 
 package numerics;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Random;
 
 /**
@@ -114,6 +117,10 @@ public class MTRandom extends Random {
 	// Temporary buffer used during setSeed(long)
 	private transient int[] ibuf;
 
+	// Second gaussian from the last pair, as in java.util.Random
+	private transient double nextNextGaussian;
+	private transient boolean haveNextNextGaussian;
+
 	/**
 	 * The default constructor for an instance of MTRandom.  This invokes
 	 * the no-argument constructor for java.util.Random which will result
@@ -201,6 +208,7 @@ public class MTRandom extends Random {
 		// have been initialised at this point, not even if the code
 		// were placed at the declaration of the member variable.
 		if (mt == null) mt = new int[N];
+		haveNextNextGaussian = false;
 
 		// ---- Begin Mersenne Twister Algorithm ----
 		mt[0] = seed;
@@ -353,6 +361,63 @@ public class MTRandom extends Random {
 		return (y >>> (32-bits));
 	}
 
+	/**
+	 * Gaussian deviates by the polar method of java.util.Random, with
+	 * the spare deviate kept here rather than in the superclass so that
+	 * it is part of the state saved by writeState().
+	 * 
+	 * @return The next gaussian deviate, mean 0 and standard deviation 1.
+	 */
+	public synchronized double nextGaussian() {
+		if (haveNextNextGaussian) {
+			haveNextNextGaussian = false;
+			return nextNextGaussian;
+		}
+		double v1, v2, s;
+		do {
+			v1 = 2 * nextDouble() - 1;
+			v2 = 2 * nextDouble() - 1;
+			s = v1 * v1 + v2 * v2;
+		} while (s >= 1 || s == 0);
+		double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s)/s);
+		nextNextGaussian = v2 * multiplier;
+		haveNextNextGaussian = true;
+		return v1 * multiplier;
+	}
+
+	/**
+	 * Writes the current state of the generator, so that the sequence
+	 * can be picked up again exactly where it left off by readState().
+	 * 
+	 * @param out The output to write the state to.
+	 * @throws IOException if the state can't be written.
+	 */
+	public final synchronized void writeState(DataOutput out) throws IOException {
+		for (int i = 0; i < N; i++) {
+			out.writeInt(mt[i]);
+		}
+		out.writeInt(mti);
+		out.writeBoolean(haveNextNextGaussian);
+		out.writeDouble(nextNextGaussian);
+	}
+
+	/**
+	 * Restores a state written by writeState().  The generator then
+	 * produces the same sequence as the one whose state was written.
+	 * 
+	 * @param in The input to read the state from.
+	 * @throws IOException if the state can't be read.
+	 */
+	public final synchronized void readState(DataInput in) throws IOException {
+		for (int i = 0; i < N; i++) {
+			mt[i] = in.readInt();
+		}
+		mti = in.readInt();
+		if (mti < 0 || mti > N) throw new IOException("Invalid generator state");
+		haveNextNextGaussian = in.readBoolean();
+		nextNextGaussian = in.readDouble();
+	}
+
 	// This is a fairly obscure little code section to pack a
 	// byte[] into an int[] in little endian ordering.  
 
@@ -7,15 +7,23 @@
 package simulation;
 
 import imaging.RectGradSteTanScheme;
+import imaging.RectQuadraticGradSteTanScheme;
 import imaging.SimulableScheme;
 
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
-import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
+import numerics.CounterRandom;
 import numerics.MTRandom;
 
 import misc.LoggedException;
@@ -24,6 +32,7 @@ import simulation.dynamics.StepGenerator;
 import simulation.dynamics.StepGeneratorFactory;
 import simulation.dynamics.Walker;
 import simulation.dynamics.WalkerFactory;
+import simulation.dynamics.WalkerPool;
 import simulation.dynamics.StepGeneratorFactory.StepType;
 import simulation.dynamics.exceptions.StepRejectedException;
 import simulation.geometry.elements.Cylinder;
@@ -32,9 +41,13 @@ import simulation.geometry.substrates.CylinderSubstrate;
 import simulation.geometry.substrates.SquashyInflammationSubstrate;
 import simulation.geometry.substrates.Substrate;
 import simulation.geometry.substrates.SubstrateFactory;
+import simulation.geometry.substrates.SubstrateFactory.SubstrateType;
+import simulation.measurement.QuadraticGradientScan;
+import simulation.measurement.ScanBank;
 import simulation.measurement.ScanFactory;
 import simulation.measurement.StatisticsModule;
 import simulation.measurement.StatisticsModuleFactory;
+import simulation.measurement.StatisticsModuleFactory.StatsModuleType;
 import simulation.measurement.SyntheticScan;
 import tools.CL_Initializer;
 
@@ -68,10 +81,13 @@ public class DiffusionSimulation implements DataSource {
     
     /** the membrane transition probability */
     private final double p;
+    
+    /** interval between checks of walkers' compartment labels (zero for none) */
+    private final int compartmentCheck= SimulationParams.sim_compartment_check;
 
     /** random number generator */
     //private final MTRandom twister = new MTRandom((1321839371<<32)|(129375817));
-    private MTRandom twister = new MTRandom(CL_Initializer.seed+189);
+    private MTRandom twister = new MTRandom(CL_Initializer.walkerSeed()+189);
     
     /** diffusion simulation parameters */
     private final SimulationParams simParams;
@@ -79,9 +95,27 @@ public class DiffusionSimulation implements DataSource {
     /** synthetc scan parameters */
     private SyntheticScan synthScan;
        
-    /** array of walkers */
+    /** array of walkers (null if walkers are kept in a pool) */
     private final Walker[] walker;
     
+    /** pool of walker state (null if walkers are separate objects) */
+    private final WalkerPool pool;
+    
+    /** total number of walkers in the simulation */
+    private final int totalWalkers;
+    
+    /** number of walkers initialised and run at once */
+    private final int batchSize;
+    
+    /** index of the first walker in the current batch */
+    private int batchStart=0;
+    
+    /** number of walkers in the current batch */
+    private int numWalkers;
+    
+    /** cursor for serial access to walkers in the pool */
+    private Walker cursor= null;
+    
     /** diffusion substrate */
     private Substrate substrate;
     
@@ -100,6 +134,9 @@ public class DiffusionSimulation implements DataSource {
     /** flag indicating if we want a separate simulation for each voxel or  not */
     private final boolean separateRuns = SimulationParams.sim_separate_runs;
     
+    /** number of threads to update walkers with (zero for original serial loop) */
+    private final int threads= SimulationParams.sim_threads;
+    
     /** number of timesteps in simulation */
     private final int tmax;
     
@@ -119,7 +156,7 @@ public class DiffusionSimulation implements DataSource {
     private final int onlyRun= SimulationParams.sim_onlyRun;
     
     /** file writer for trajectories */
-    private final DataOutputStream trajWriter;
+    private final TrajectoryWriter trajWriter;
     
     /** file writer for statistical measures of dynamics */
     private final DataOutputStream statsWriter;
@@ -127,9 +164,12 @@ public class DiffusionSimulation implements DataSource {
     /** statistics module */
     private final StatisticsModule statsMod;
     
-	/** file reader capable of getting one line 
-	 *  at a time for the walker initialisation by file */
-	BufferedReader posReader;
+	/** file of initial positions, read a batch at a time for the 
+	 *  walker initialisation by file */
+	private InitialPositionFile posFile;
+    
+    /** most candidate positions tried for a walker in one compartment */
+    private static final int MAX_PLACEMENT_TRIES= 1<<24;
     
     
     /** debug file writers */
@@ -138,6 +178,20 @@ public class DiffusionSimulation implements DataSource {
     
     public DiffusionSimulation(SimulationParams simParams, SimulableScheme imParams){
         
+        this(simParams, new SimulableScheme[] {imParams});
+    }
+    
+    /**
+     * constructor for several schemes synthesised from the same walkers.
+     * phases for every scheme are accumulated as the walkers move and
+     * each voxel's signals come out scheme by scheme. the simulation's
+     * timestep must cover the longest scheme.
+     * 
+     * @param simParams simulation parameters
+     * @param schemes acquisition schemes
+     */
+    public DiffusionSimulation(SimulationParams simParams, SimulableScheme[] schemes){
+        
         this.simParams=simParams;
 
         this.stepGenerator=StepGeneratorFactory.getStepGenerator(simParams);
@@ -150,9 +204,25 @@ public class DiffusionSimulation implements DataSource {
     
         this.p=simParams.getP();
                
-        this.walker=new Walker[simParams.getN_walkers()];
+        this.totalWalkers=simParams.getN_walkers();
+        
+        this.batchSize=getBatchSize(schemes);
         
-        this.synthScan=ScanFactory.getMeasurementModule(simParams, imParams, substrate, walker);
+        this.numWalkers=batchSize;
+        
+        boolean pooled= usePool(schemes);
+        
+        this.walker=pooled?null:new Walker[batchSize];
+        
+        this.synthScan=ScanFactory.getMeasurementModule(simParams, schemes, substrate, walker);
+        
+        if(pooled){
+        	this.pool= new WalkerPool(batchSize, synthScan.getNumMeasurements());
+        	synthScan.setWalkerPool(pool);
+        }
+        else{
+        	this.pool= null;
+        }
 
         this.tmax=simParams.getTmax();
         
@@ -168,13 +238,18 @@ public class DiffusionSimulation implements DataSource {
             
             FileOutputStream fos=null;
             try{
-               fos = new FileOutputStream(SimulationParams.sim_statsfile);
+               fos = openStatsFile();
             }
             catch(Exception e){
                 throw new LoggedException(e);
             }
             
-            statsMod= StatisticsModuleFactory.getStatsModule(walker, synthScan.getNumMeasurements());
+            if(pool!=null){
+            	statsMod= StatisticsModuleFactory.getStatsModule(pool, synthScan.getNumMeasurements());
+            }
+            else{
+            	statsMod= StatisticsModuleFactory.getStatsModule(walker, synthScan.getNumMeasurements());
+            }
             statsWriter= new DataOutputStream(new BufferedOutputStream(fos));
         }
         else{
@@ -182,8 +257,8 @@ public class DiffusionSimulation implements DataSource {
             statsWriter= null;
         }
         
-        logger.info("running simulation: "+walker.length+" walkers, "+simParams.getTmax()+" timesteps, p= "+p);
-        logger.info("dynamics duration "+imParams.getDuration());
+        logger.info("running simulation: "+totalWalkers+" walkers, "+simParams.getTmax()+" timesteps, p= "+p);
+        logger.info("dynamics duration "+getDuration(schemes));
     }
 
     
@@ -201,7 +276,20 @@ public class DiffusionSimulation implements DataSource {
     
         this.p=simParams.getP();
                
-        this.walker=new Walker[simParams.getN_walkers()];
+        this.totalWalkers=simParams.getN_walkers();
+        
+        this.batchSize=getBatchSize(null);
+        
+        this.numWalkers=batchSize;
+        
+        if(usePool(null)){
+        	this.walker=null;
+        	this.pool=new WalkerPool(numWalkers, 0);
+        }
+        else{
+        	this.walker=new Walker[numWalkers];
+        	this.pool=null;
+        }
         
         this.synthScan=null;
 
@@ -211,24 +299,8 @@ public class DiffusionSimulation implements DataSource {
         
         this.duration= SimulationParams.duration;
         
-        /** initalise file output -- data output writer wrapped round a
-         * 							 buffered stream, wrapped round a file stream!
-         */
-        try{
-        	FileOutputStream fstream = null;
-        	try{
-        		String fname= SimulationParams.trajFile;
-        		fstream= new FileOutputStream(fname);
-        	}
-        	catch(Exception e){
-        		throw new LoggedException(e);
-        	}
-        	
-        	this.trajWriter= new DataOutputStream(new BufferedOutputStream(fstream, simParams.buffsize));
-        }
-        catch(Exception ioe){
-        	throw new LoggedException(ioe);
-        }
+        // initialise trajectory output. the header is written straight away
+        this.trajWriter= new TrajectoryWriter(SimulationParams.trajFile, totalWalkers, tmax, dt);
     
         
         
@@ -236,14 +308,19 @@ public class DiffusionSimulation implements DataSource {
             
             FileOutputStream fos;
             try{
-                fos = new FileOutputStream(SimulationParams.sim_statsfile);
+                fos = openStatsFile();
             }
             catch(Exception e){
                 throw new LoggedException(e);
             }
             
             statsWriter= new DataOutputStream(new BufferedOutputStream(fos));
-            statsMod= StatisticsModuleFactory.getStatsModule(walker);
+            if(pool!=null){
+            	statsMod= StatisticsModuleFactory.getStatsModule(pool, 3);
+            }
+            else{
+            	statsMod= StatisticsModuleFactory.getStatsModule(walker);
+            }
             
         }
         else{
@@ -253,7 +330,7 @@ public class DiffusionSimulation implements DataSource {
         
         
         
-        logger.info("running simulation: "+walker.length+" walkers, "+simParams.getTmax()+" timesteps, p= "+p);
+        logger.info("running simulation: "+totalWalkers+" walkers, "+simParams.getTmax()+" timesteps, p= "+p);
         logger.info("no scheme used, trajectories created instead. duration= "+duration);
     }
     
@@ -266,6 +343,8 @@ public class DiffusionSimulation implements DataSource {
      */
     public DiffusionSimulation(SimulationParams simParams, SimulableScheme imParams, Substrate substrate){
         
+        SimulableScheme[] schemes= new SimulableScheme[] {imParams};
+        
         this.simParams=simParams;
 
         this.stepGenerator=StepGeneratorFactory.getStepGenerator(simParams);
@@ -278,9 +357,25 @@ public class DiffusionSimulation implements DataSource {
     
         this.p=simParams.getP();
                
-        this.walker=new Walker[simParams.getN_walkers()];
+        this.totalWalkers=simParams.getN_walkers();
+        
+        this.batchSize=getBatchSize(schemes);
+        
+        this.numWalkers=batchSize;
+        
+        boolean pooled= usePool(schemes);
+        
+        this.walker=pooled?null:new Walker[batchSize];
         
-        this.synthScan=ScanFactory.getMeasurementModule(simParams, imParams, substrate, walker);
+        this.synthScan=ScanFactory.getMeasurementModule(simParams, schemes, substrate, walker);
+        
+        if(pooled){
+        	this.pool= new WalkerPool(batchSize, synthScan.getNumMeasurements());
+        	synthScan.setWalkerPool(pool);
+        }
+        else{
+        	this.pool= null;
+        }
 
         this.tmax=simParams.getTmax();
         
@@ -298,13 +393,18 @@ public class DiffusionSimulation implements DataSource {
             
             FileOutputStream fos=null;
             try{
-               fos = new FileOutputStream(SimulationParams.sim_statsfile);
+               fos = openStatsFile();
             }
             catch(Exception e){
                 throw new LoggedException(e);
             }
             
-            statsMod= StatisticsModuleFactory.getStatsModule(walker, synthScan.getNumMeasurements());
+            if(pool!=null){
+            	statsMod= StatisticsModuleFactory.getStatsModule(pool, synthScan.getNumMeasurements());
+            }
+            else{
+            	statsMod= StatisticsModuleFactory.getStatsModule(walker, synthScan.getNumMeasurements());
+            }
             statsWriter= new DataOutputStream(new BufferedOutputStream(fos));
         }
         else{
@@ -312,18 +412,38 @@ public class DiffusionSimulation implements DataSource {
             statsWriter= null;
         }
         
-        logger.info("running simulation: "+walker.length+" walkers, "+simParams.getTmax()+" timesteps, p= "+p);
+        logger.info("running simulation: "+totalWalkers+" walkers, "+simParams.getTmax()+" timesteps, p= "+p);
         logger.info("dynamics duration "+imParams.getDuration());
     }
 
     
     /** 
-     * sets all walkers in initial conditions
+     * sets all walkers in initial conditions. if walkers are run in
+     * batches, this sets up the first batch.
      */
     public void initialiseWalkers(){	
 
+    	batchStart=0;
+    	numWalkers=Math.min(batchSize, totalWalkers);
+    	
+    	initialiseBatch();
+    }
+    
+    
+    /**
+     * sets the walkers in the current batch in initial conditions. 
+     * random positions are drawn in walker order, so each walker starts
+     * in the same place whatever the batch size.
+     */
+    private void initialiseBatch(){
+    	
     	logger.info("initialising spins...");
     	
+    	if(pool!=null){
+    		pool.clear();
+    		cursor= pool.getCursor(stepGenerator, substrate, synthScan);
+    	}
+    	
         if(simParams.getInitialConditions()==SimulationParams.SPIKE){
             // initially delta-peaked at centre of substrate
             double midway=substrate.getPeakCoord();
@@ -335,9 +455,9 @@ public class DiffusionSimulation implements DataSource {
                 midPoint[i]=midway;
             }
             
-            for(int i=0; i<walker.length; i++){
+            for(int i=0; i<numWalkers; i++){
                 //walker[i]=new Walker(midPoint, stepGenerator, substrate, synthScan, trajWriter);
-                walker[i]= WalkerFactory.getWalker(midPoint, stepGenerator, substrate, synthScan, trajWriter, simParams);
+                setWalker(i, midPoint);
             }
         }
         else if(simParams.getInitialConditions()==SimulationParams.UNIFORM){
@@ -347,7 +467,7 @@ public class DiffusionSimulation implements DataSource {
             double[] bottomLeft= new double[]{Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
             double[] topRight= new double[]{0.0, 0.0, 0.0};
             
-            for(int i=0; i<walker.length; i++){
+            for(int i=0; i<numWalkers; i++){
                 double[] r0= new double[D];
 
                 do{
@@ -370,73 +490,17 @@ public class DiffusionSimulation implements DataSource {
                 
                 
                 //walker[i]= new Walker(r0, stepGenerator, substrate, synthScan, trajWriter);
-                walker[i]= WalkerFactory.getWalker(r0, stepGenerator, substrate, synthScan, trajWriter, simParams);
+                setWalker(i, r0);
             }
         }
         else if(simParams.getInitialConditions()==SimulationParams.INTRACELLULAR){
-            // initially uniformly distributed across substrate
-            double[] substrateSize=substrate.getSubstrateSize();
-            
-            boolean extracellular=true;
-            
-            double[] bottomLeft= new double[]{Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
-            double[] topRight= new double[]{0.0, 0.0, 0.0};
-            
-        	for(int i=0; i<walker.length; i++){
-        	    extracellular=true;
-        	    
-        		while(extracellular){
-            		double[] r0= new double[D];
-            		for(int j=0; j<D; j++){
-            			r0[j]= twister.nextDouble()*substrateSize[j];
-                    
-            			// get top right and bottom left corners of enveloping cube
-            			if(r0[j]<bottomLeft[j]){
-            				bottomLeft[j]=r0[j];
-            			}
-            			if(r0[j]>topRight[j]){
-            				topRight[j]=r0[j];
-            			}
-            		}
-            		//walker[i]= new Walker(r0, stepGenerator, substrate, synthScan, trajWriter);
-                    walker[i]= WalkerFactory.getWalker(r0, stepGenerator, substrate, synthScan, trajWriter, simParams);
-
-            		
-            		extracellular=!substrate.intracellular(walker[i]);
-            	}
-            }
+            // uniformly distributed inside cells. each walker has its own
+            // stream, so positions don't depend on the number of threads
+            placeInCompartment(true);
         }
         else if(simParams.getInitialConditions()==SimulationParams.EXTRACELLULAR){
-            // initially uniformly distributed across substrate
-            double[] substrateSize=substrate.getSubstrateSize();
-            boolean intracellular=true;
-            
-            double[] bottomLeft= new double[]{Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
-            double[] topRight= new double[]{0.0, 0.0, 0.0};
-            
-            for(int i=0; i<walker.length; i++){
-                intracellular=true;
-                
-            	while(intracellular){
-	                double[] r0= new double[D];
-	                for(int j=0; j<D; j++){
-	                    r0[j]= twister.nextDouble()*substrateSize[j];
-	                    
-	                    // get top right and bottom left corners of envloping cube
-	                    if(r0[j]<bottomLeft[j]){
-	                    	bottomLeft[j]=r0[j];
-	                    }
-	                    if(r0[j]>topRight[j]){
-	                    	topRight[j]=r0[j];
-	                    }
-	                }
-	                
-	                //walker[i]= new Walker(r0, stepGenerator, substrate, synthScan, trajWriter);
-	                walker[i]= WalkerFactory.getWalker(r0, stepGenerator, substrate, synthScan, trajWriter, simParams);
-
-	                intracellular=substrate.intracellular(walker[i]);
-	            }
-            }
+            // uniformly distributed outside cells, as above
+            placeInCompartment(false);
             
             FileWriter walkerPos= null;
             
@@ -444,11 +508,13 @@ public class DiffusionSimulation implements DataSource {
             logger.info("writing initial walker positions");
             try{
                 
-                walkerPos= new FileWriter("walkerPos-extra.csv");
+                // later batches add to the file
+                walkerPos= new FileWriter("walkerPos-extra.csv", batchStart>0);
                 
-                for(int i=0; i<walker.length; i++){
+                for(int i=0; i<numWalkers; i++){
                     
-                    walkerPos.write(walker[i].r[0]+","+walker[i].r[1]+"\n");
+                    Walker w= getWalker(i);
+                    walkerPos.write(w.r[0]+","+w.r[1]+"\n");
                 }
                 
                 walkerPos.flush();
@@ -464,76 +530,72 @@ public class DiffusionSimulation implements DataSource {
             
         }
         else if(simParams.getInitialConditions()==SimulationParams.FILE) {
-        		logger.info("reading initial walker positions from file");
-        		if (!CL_Initializer.brownianSimulation) {
-        			logger.warning("walker intialisation by file is designed for use with a mesh substrate.");
-        		}
-        		
-        		//Open input position file
-        		try{
-        			posReader = new BufferedReader(new FileReader(SimulationParams.initFile));
-			}
-			catch(IOException ioe){
-				throw new LoggedException(ioe);
-			}
         		
-        		String line;
-        		int noSpins = 0;
-        		//Read first line to get number of spins
-        		try {
-        			line = posReader.readLine();
-        			noSpins = Integer.parseInt(line);
-        		}
-        		catch(IOException ioe){
-    				throw new LoggedException(ioe);
-    			}
-        		//Check number of spins in file matches with supplied to -walker option
-        		if (noSpins != walker.length) {
-        			logger.severe("Number of walkers in intifile should match number supplied to -walker option");
-        			throw new LoggedException("Expected "+walker.length+" spins from -walker option but intialisation file has "+noSpins+" spin position.");
+        		// the file is opened for the first batch and read a batch at a time
+        		if(batchStart==0){
+        			logger.info("reading initial walker positions from file");
+        			if (!CL_Initializer.brownianSimulation) {
+        				logger.warning("walker intialisation by file is designed for use with a mesh substrate.");
+        			}
+        			
+        			posFile= new InitialPositionFile(SimulationParams.initFile);
+        			
+        			int noSpins= posFile.getNumWalkers();
+        			
+        			if(SimulationParams.sim_shard>=0){
+        				// each shard starts from its own slice of the file
+        				long sliceEnd= (long)(SimulationParams.sim_shard+1)*totalWalkers;
+        				
+        				if(noSpins<sliceEnd){
+        					throw new LoggedException("shard "+SimulationParams.sim_shard+" needs walkers "+(sliceEnd-totalWalkers)+" to "
+        							+(sliceEnd-1)+" from the intialisation file but it has "+noSpins+" spin positions.");
+        				}
+        				
+        				posFile.skip(SimulationParams.sim_shard*totalWalkers);
+        			}
+        			else if (noSpins != totalWalkers) {
+        				//Check number of spins in file matches with supplied to -walker option
+        				logger.severe("Number of walkers in intifile should match number supplied to -walker option");
+        				throw new LoggedException("Expected "+totalWalkers+" spins from -walker option but intialisation file has "+noSpins+" spin position.");
+        			}
         		}
         		
+        		double[] pos= new double[numWalkers*D];
         		
-        		for(int i = 0; i < walker.length; i++) {
-        			double[] r0 = new double[D];
-        			//Read a line, separated by spaces and create a walker with each new position
-        			try {
-        				line = posReader.readLine();
-        				StringTokenizer tokeniser = new StringTokenizer(line, " ");
-
-        				for(int j=0; j<D; j++){
-        					String nextToken=tokeniser.nextToken();
-        					r0[j]=Double.parseDouble(nextToken);
-        					r0[j] -= substrate.substrateBottomLeft[j]; //subtract the bottom left coordinate to bring into agreement with mesh.
-        				}
-        				
-        				walker[i] = WalkerFactory.getWalker(r0, stepGenerator, substrate, synthScan, trajWriter, simParams);
-        			
-        			} 
-        			catch(IOException ioe){
-        				throw new LoggedException(ioe);
+        		posFile.read(numWalkers, pos);
+        		
+        		double[] r0 = new double[D];
+        		for(int i = 0; i < numWalkers; i++) {
+        			for(int j=0; j<D; j++){
+        				r0[j]= pos[i*D+j] - substrate.substrateBottomLeft[j]; //subtract the bottom left coordinate to bring into agreement with mesh.
         			}
+        			
+        			setWalker(i, r0);
         		}
         		
         		
-        		try{
-        			posReader.close();
-			}
-			catch(IOException ioe){
-				throw new LoggedException(ioe);
-			}
+        		// done with the file after the last batch
+        		if(batchStart+numWalkers==totalWalkers){
+        			posFile.close();
+        			posFile= null;
+        		}
         		
         }
         else if(simParams.getInitialConditions()==SimulationParams.SPECIAL){
 
         	double[] substrateSize= substrate.getSubstrateSize();
         	
-        	for(int i=2; i<walker.length; i++){
+        	for(int i=2; i<numWalkers; i++){
                 double[] r0= new double[D];
             	for(int j=0; j<D; j++){
             		r0[j]= twister.nextDouble()*substrateSize[j];
                     
-            		walker[i]= new Walker(r0, stepGenerator, substrate, synthScan, trajWriter);
+            		if(pool!=null){
+            			pool.setPosition(i, r0);
+            		}
+            		else{
+            			walker[i]= new Walker(r0, stepGenerator, substrate, synthScan);
+            		}
             	}
         	}
 
@@ -545,6 +607,23 @@ public class DiffusionSimulation implements DataSource {
             throw new LoggedException(errMess);
         }
         
+        // give each walker its own random stream if updating in parallel.
+        // streams are keyed by walker and timestep, not by thread
+        if(threads>0){
+        	long streamSeed= CL_Initializer.walkerSeed()+293;
+        	
+        	if(pool!=null){
+        		pool.setRandomSeed(streamSeed);
+        	}
+        	else{
+        		for(int i=0; i<numWalkers; i++){
+        			if(walker[i]!=null){
+        				walker[i].setRandomStream(new CounterRandom(streamSeed));
+        			}
+        		}
+        	}
+        }
+        
         logger.info("done.");
                 
     }
@@ -556,8 +635,6 @@ public class DiffusionSimulation implements DataSource {
      */
     public void runMainLoop(){
           	
-    	boolean[] isIntra= new boolean[walker.length];
-        
     	substrate.init();        
     	
     	// write cylinders file if specified
@@ -604,21 +681,14 @@ public class DiffusionSimulation implements DataSource {
     	
     	
     	if((onlyRun==-1)||(calls==onlyRun)){
-    	    for(int i=0; i<walker.length; i++){
-    	        isIntra[i]=substrate.intracellular(walker[i]);
+    	    if(batchSize<totalWalkers){
+    	    	runBatches();
+    	    	reportSafeSteps();
+    	    	return;
     	    }
-
-    	    // write initial information to traj file
-            if(trajWriter!=null){
-                try {
-                    trajWriter.writeDouble(dt*(double)tmax);
-                    trajWriter.writeDouble((double)simParams.getN_walkers());
-                    trajWriter.writeDouble((double)tmax);
-                } catch (IOException ioe) {
-                    throw new LoggedException(ioe);
-                }
-			}
-            if(statsWriter!=null){
+    	    
+            if((statsWriter!=null)&&(SimulationParams.sim_resumeFile==null)){
+                // a resumed simulation's stats file already has its header
                 try {
                     statsWriter.writeDouble(dt*(double)tmax);
                     statsWriter.writeDouble((double)simParams.getN_walkers());
@@ -628,88 +698,15 @@ public class DiffusionSimulation implements DataSource {
                 }
 			}
         
-            int when=0;
-            int who=42;
-            boolean report=false;
+            runWalkers();
             
-            for(int t=0; t<tmax; t++){
-                if((t%100)==0){
-                	System.err.print("\r"+100.0*(double)t/(double)(simParams.getTmax())+"%     ");
-                }
-                
-                for(int i=0; i<simParams.getN_walkers(); i++){
-    
-                	report= false;
-					/*if(t==when){
-						if(i==who){
-							System.err.println("catch clause reached");
-							report= true;
-							double[] pos= new double[D];
-							substrate.getSubstrateCoords(walker[i].r, new double[]{0.0, 0.0, 0.0}, pos);
-							System.err.println("** pos: "+pos[0]+","+pos[1]+","+pos[2]);
-							double size[]= substrate.getSubstrateSize();
-							System.err.println("** size: "+size[0]+","+size[1]+","+size[2]);
-							
-						}
-					}*/
-                    	
-                	if(p==0.0){
-                		if(substrate.intracellular(walker[i])!=isIntra[i]){            		
-                			logger.severe("walker pos: "+walker[i].r[0]+"  "+walker[i].r[1]+"  "+walker[i].r[2]);
-                			
-                			throw new LoggedException("t= "+t+" i= "+i+" has crossed. isIntra="+isIntra[i]);
-                		}
-                	}
-                	
-                	//System.err.println("t="+t+", i="+i);
-                	walker[i].update(t*dt, t, i, report);
-                }
-                
-                // stats measures if we're generating them
-                if(statsMod!=null){
-                    double[] stats= statsMod.getRuntimeStats(t*this.dt);
-                    try{
-                        statsWriter.writeDouble(t*dt);
-                        for(int i=0; i<stats.length; i++){
-                            statsWriter.writeDouble(stats[i]);
-                        }
-                    }
-                    catch(IOException ioe){
-                        throw new LoggedException(ioe);
-                    }
-                }
-                
-                
-                // get the scan to do its thing...
-                if(synthScan!=null){
-                	synthScan.update(t);
-                }
-            }
+            reportSafeSteps();
             
             // write the final walker positions to traj file
             if(trajWriter!=null){
-            	for(int i=0; i<simParams.getN_walkers(); i++){
-            		try{
-            			trajWriter.writeDouble(tmax*dt);
-    	        			trajWriter.writeDouble(i);
-    	        		for(int j=0; j<D; j++){
-    	        			trajWriter.writeDouble(walker[i].r[j]);
-    	        		}
-    	        	}
-    	        	catch(IOException ioe){
-    	        		throw new LoggedException(ioe);
-    	        	}
-            	}
-            
-            
-    	        //flush and close the file writer
-    	        try{
-    	        	trajWriter.flush();
-    	        	trajWriter.close();
-    	        }
-    	        catch(IOException ioe){
-    	        	throw new LoggedException(ioe);
-    	        }
+            	trajWriter.writeFrame(tmax, pool, walker);
+            	
+    	        trajWriter.close();
             }
             
             if(statsMod!=null){
@@ -756,60 +753,923 @@ public class DiffusionSimulation implements DataSource {
     
     
     
-    /** 
-     * initialises a simulation and runs the main loop before
-     * constructing a 
-     * @see data.DataSource#nextVoxel()
+    /**
+     * logs how many steps skipped the barrier checks because they stayed
+     * inside their walker's safe radius. nothing is logged if walkers 
+     * don't have safe radii on this substrate.
      */
-    public double[] nextVoxel() throws DataSourceException {
-        
-        double[] S=null;
+    private void reportSafeSteps(){
+    	
+    	long safeSteps= substrate.getSafeSteps();
+    	long steps= safeSteps+substrate.getTestedSteps();
+    	
+    	if(steps>0){
+    		logger.info("safe radius: "+safeSteps+" of "+steps+" steps ("+
+    				(100.0*safeSteps/steps)+"%) skipped barrier checks");
+    	}
+    }
+    
+    
+    /**
+     * labels the compartment of each walker in the current batch and runs
+     * them through all timesteps.
+     */
+    private void runWalkers(){
+    	
+    	// label each walker's compartment. the substrate keeps the labels up to date from here on
+    	for(int i=0; i<numWalkers; i++){
+    		Walker w= getWalker(i);
+    		
+    		w.intracellular=substrate.intracellular(w);
+    		
+    		if(pool!=null){
+    			cursor.store();
+    		}
+    	}
+    	
+    	int numThreads= getNumThreads();
+    	
+    	if(useWalkerMajor()){
+    		runWalkerMajorLoop(numThreads);
+    	}
+    	else{
+    		runTimeMajorLoop(numThreads);
+    	}
+    }
+    
+    
+    /**
+     * runs the walkers in batches. each batch is initialised, run through
+     * all timesteps and added to the scan's running signal sums before 
+     * the next is started, so only one batch of walkers exists at a time.
+     * the first batch has already been initialised.
+     * 
+     * Initial positions are drawn in walker order and per-walker random
+     * streams (-threads) are keyed by a walker's index in the whole 
+     * simulation, so with per-walker streams the signals are identical 
+     * to running all walkers at once. Otherwise the shared random 
+     * sequence is used in a different order, which gives a different but
+     * equivalent realisation.
+     */
+    private void runBatches(){
+    	
+    	int numBatches= (int)(((long)totalWalkers+batchSize-1)/batchSize);
+    	
+    	logger.info("running "+totalWalkers+" walkers in "+numBatches+" batches of up to "+batchSize);
+    	
+    	synthScan.resetSignalSums();
+    	
+    	for(int b=0; b<numBatches; b++){
+    		if(b>0){
+    			batchStart= b*batchSize;
+    			numWalkers= Math.min(batchSize, totalWalkers-batchStart);
+    			
+    			initialiseBatch();
+    		}
+    		
+    		logger.info("batch "+(b+1)+" of "+numBatches+": walkers "+batchStart+" to "+(batchStart+numWalkers-1));
+    		
+    		runWalkers();
+    		
+    		synthScan.accumulateSignals(numWalkers);
+    	}
+    }
+    
+    
+    /**
+     * the original time-major main loop. all walkers are updated at each
+     * timestep before moving on to the next, with runtime stats and scan
+     * updates in between.
+     * 
+     * @param numThreads number of threads to update walkers on
+     */
+    private void runTimeMajorLoop(int numThreads){
+    	
+    	int tStart= 0;
+    	
+    	SimulationCheckpoint checkpoint= null;
+    	
+    	if(canCheckpoint()){
+    		if(SimulationParams.sim_resumeFile!=null){
+    			tStart= SimulationCheckpoint.restore(SimulationParams.sim_resumeFile, tmax, CL_Initializer.walkerSeed(), 
+    					pool, walker, synthScan.getNumMeasurements(), getCheckpointTwisters());
+    		}
+    		
+    		if(SimulationParams.sim_checkpointFile!=null){
+    			checkpoint= new SimulationCheckpoint(SimulationParams.sim_checkpointFile, 
+    					SimulationParams.sim_checkpointInterval, numWalkers, synthScan.getNumMeasurements());
+    		}
+    	}
+    	
+        // set up worker threads if we're updating in parallel
+        ExecutorService executor= null;
+        List<WalkerBlock> blocks= null;
         
-        if(!separateRuns){
-        	// run the simulation once. subsequent voxels
-        	// are different noise realisations of the 
-        	// simulation data.
-        	
-        	if(voxel==0){
-        		initialiseWalkers();
-        		long startTime = System.nanoTime();
-        		runMainLoop();
-        		long endTime = System.nanoTime();
-        		double duration = (endTime - startTime)  / 1e9;  //divide by 1000000 to get milliseconds.
-        		System.err.println("\nduration = " + duration + "s");
-        	}
-        }
-        else{
-        	// run a separate simulation for each voxel
+        if(numThreads>1){
+        	logger.info("updating walkers on "+numThreads+" threads");
         	
-        	stepGenerator= StepGeneratorFactory.getStepGenerator(simParams);
-        	initialiseWalkers();
-    	    System.err.println("onlyrun= "+onlyRun+" calls= "+calls);
-    	    runMainLoop();
+        	substrate.setParallelTraversal(true);
+        	executor= Executors.newFixedThreadPool(numThreads);
         	
-        	CL_Initializer.seed=twister.nextInt();
-        	twister=new MTRandom(CL_Initializer.seed+189);
+        	blocks= new ArrayList<WalkerBlock>(numThreads);
+        	for(int b=0; b<numThreads; b++){
+        		int start= (int)(((long)b*numWalkers)/numThreads);
+        		int end= (int)(((long)(b+1)*numWalkers)/numThreads);
+        		
+        		blocks.add(new WalkerBlock(start, end));
+        	}
         }
         
-        
-        /**
-         * debug code. spin out directional mean squared disp
-         */
-        /*
-        int N=50;
-        double[] netDisp= new double[D];
-        double[] n= new double[D];
-        
-        FileWriter msdWriter;
         try{
-            msdWriter= new FileWriter("angular_msd.csv");
-        }
-        catch(IOException ioe){
-            throw new RuntimeException(ioe);
-        }
-        for(int t=0; t<N; t++){
-            double theta= 2.0*t*Math.PI/N;
-            
+            for(int t=tStart; t<tmax; t++){
+                if((checkpoint!=null)&&(t>tStart)&&checkpoint.due(t)){
+                	saveCheckpoint(checkpoint, t);
+                }
+                
+                if((t%100)==0){
+                	System.err.print("\r"+100.0*(double)t/(double)(simParams.getTmax())+"%     ");
+                }
+                
+                // positions at the start of the timestep
+                if((trajWriter!=null)&&trajWriter.records(t)){
+                	trajWriter.writeFrame(t, pool, walker);
+                }
+                
+                if(executor==null){
+                	updateWalkers(t, 0, numWalkers, cursor);
+                }
+                else{
+                	updateWalkersParallel(executor, blocks, t);
+                }
+                
+                // stats measures if we're generating them
+                if(statsMod!=null){
+                    double[] stats= statsMod.getRuntimeStats(t*this.dt);
+                    try{
+                        statsWriter.writeDouble(t*dt);
+                        for(int i=0; i<stats.length; i++){
+                            statsWriter.writeDouble(stats[i]);
+                        }
+                    }
+                    catch(IOException ioe){
+                        throw new LoggedException(ioe);
+                    }
+                }
+                
+                
+                // get the scan to do its thing...
+                if(synthScan!=null){
+                	synthScan.update(t);
+                }
+            }
+        }
+        finally{
+        	if(executor!=null){
+        		executor.shutdownNow();
+        		substrate.setParallelTraversal(false);
+        	}
+        	if(checkpoint!=null){
+        		checkpoint.close();
+        	}
+        }
+    }
+    
+    
+    /**
+     * checks whether this simulation can be checkpointed and resumed. 
+     * This needs all walkers at once in the time-major loop (which 
+     * getBatchSize() and useWalkerMajor() see to) and no state outside
+     * the walkers, substrate and step generator. If it can't, resuming is 
+     * an error and checkpointing is switched off with a warning.
+     * 
+     * @return true if checkpoints can be written or resumed from
+     */
+    private boolean canCheckpoint(){
+    	
+    	if((SimulationParams.sim_checkpointFile==null)&&(SimulationParams.sim_resumeFile==null)){
+    		return false;
+    	}
+    	
+    	String reason= null;
+    	
+    	if(synthScan==null){
+    		reason= "trajectory output";
+    	}
+    	else if((synthScan instanceof QuadraticGradientScan)||
+    			((synthScan instanceof ScanBank)&&((ScanBank)synthScan).hasQuadraticGradients())){
+    		reason= "quadratic gradient scans";
+    	}
+    	else if(SimulationParams.sim_geomType==SubstrateType.CYL_1_STICKY){
+    		reason= "sticky walkers";
+    	}
+    	else if(separateRuns){
+    		reason= "separate runs for each voxel";
+    	}
+    	else if(batchSize<totalWalkers){
+    		reason= "walker batches";
+    	}
+    	
+    	if(reason==null){
+    		return true;
+    	}
+    	
+    	if(SimulationParams.sim_resumeFile!=null){
+    		throw new LoggedException("simulations with "+reason+" can't be resumed from a checkpoint");
+    	}
+    	
+    	logger.warning("simulations with "+reason+" can't be checkpointed. no checkpoints will be written.");
+    	
+    	return false;
+    }
+    
+    
+    /**
+     * @return the shared random number generators the main loop draws 
+     *         from, in the order they're saved in a checkpoint
+     */
+    private MTRandom[] getCheckpointTwisters(){
+    	
+    	return new MTRandom[]{stepGenerator.getTwister(), substrate.getTwister()};
+    }
+    
+    
+    /**
+     * takes a checkpoint before a timestep. runtime stats written so far
+     * are flushed to file so that the checkpoint can record how much of 
+     * the file belongs to it.
+     * 
+     * @param checkpoint the checkpoint writer
+     * @param t index of the next timestep
+     */
+    private void saveCheckpoint(SimulationCheckpoint checkpoint, int t){
+    	
+    	long statsLength= -1L;
+    	
+    	if(statsWriter!=null){
+    		try{
+    			statsWriter.flush();
+    		}
+    		catch(IOException ioe){
+    			throw new LoggedException(ioe);
+    		}
+    		statsLength= new File(SimulationParams.sim_statsfile).length();
+    	}
+    	
+    	checkpoint.save(t, tmax, CL_Initializer.walkerSeed(), pool, walker, getCheckpointTwisters(), statsLength);
+    }
+    
+    
+    /**
+     * opens the runtime stats file. If the simulation is being resumed,
+     * the stats written after the checkpoint are cut off and the rest of
+     * the run is appended.
+     * 
+     * @return output stream for the stats file
+     */
+    private static FileOutputStream openStatsFile() throws IOException{
+    	
+    	if(SimulationParams.sim_resumeFile==null){
+    		return new FileOutputStream(SimulationParams.sim_statsfile);
+    	}
+    	
+    	long length= SimulationCheckpoint.readStatsLength(SimulationParams.sim_resumeFile);
+    	
+    	if(length<0){
+    		throw new LoggedException("checkpoint "+SimulationParams.sim_resumeFile+" has no runtime stats");
+    	}
+    	
+    	RandomAccessFile statsFile= new RandomAccessFile(SimulationParams.sim_statsfile, "rw");
+    	try{
+    		if(statsFile.length()<length){
+    			throw new LoggedException("stats file "+SimulationParams.sim_statsfile+
+    					" is shorter than when checkpoint "+SimulationParams.sim_resumeFile+" was taken");
+    		}
+    		statsFile.setLength(length);
+    	}
+    	finally{
+    		statsFile.close();
+    	}
+    	
+    	return new FileOutputStream(SimulationParams.sim_statsfile, true);
+    }
+    
+    
+    /**
+     * updates a contiguous block of walkers by a single timestep.
+     * 
+     * @param t timestep index
+     * @param start index of first walker in block
+     * @param end index after last walker in block
+     * @param cursor cursor to update pooled walkers through (null if not pooled)
+     */
+    private void updateWalkers(int t, int start, int end, Walker cursor){
+    	
+        int when=0;
+        int who=42;
+        boolean report=false;
+        
+        if(cursor!=null){
+        	// phases for the whole block at once
+        	cursor.accumulatePoolPhases(t*dt, t, start, end);
+        }
+        
+        for(int i=start; i<end; i++){
+        	
+        	Walker w= (cursor!=null)?cursor.bind(i):walker[i];
+        	
+        	report= false;
+			/*if(t==when){
+				if(i==who){
+					System.err.println("catch clause reached");
+					report= true;
+					double[] pos= new double[D];
+					substrate.getSubstrateCoords(w.r, new double[]{0.0, 0.0, 0.0}, pos);
+					System.err.println("** pos: "+pos[0]+","+pos[1]+","+pos[2]);
+					double size[]= substrate.getSubstrateSize();
+					System.err.println("** size: "+size[0]+","+size[1]+","+size[2]);
+					
+				}
+			}*/
+            	
+        	// optional check of the compartment label against the substrate
+        	if((compartmentCheck>0)&&(t%compartmentCheck==0)){
+        		if(substrate.intracellular(w)!=w.intracellular){            		
+        			logger.severe("walker pos: "+w.r[0]+"  "+w.r[1]+"  "+w.r[2]);
+        			
+        			throw new LoggedException("t= "+t+" i= "+i+" is in the wrong compartment. intracellular label="+w.intracellular);
+        		}
+        	}
+        	
+        	//System.err.println("t="+t+", i="+i);
+        	// random streams are keyed by the walker's index in the whole simulation
+        	w.update(t*dt, t, batchStart+i, report);
+        	
+        	if(cursor!=null){
+        		cursor.store();
+        	}
+        }
+    }
+    
+    
+    /**
+     * updates all walkers by a single timestep, one block of walkers 
+     * per thread. returns when all blocks are done.
+     * 
+     * @param executor thread pool
+     * @param blocks walker blocks, one per thread
+     * @param t timestep index
+     */
+    private void updateWalkersParallel(ExecutorService executor, List<WalkerBlock> blocks, int t){
+    	
+    	for(int b=0; b<blocks.size(); b++){
+    		blocks.get(b).t= t;
+    	}
+    	
+    	invokeAll(executor, blocks);
+    }
+    
+    
+    /**
+     * hands a list of tasks to the executor and waits for them all to 
+     * finish. exceptions thrown on worker threads are rethrown here.
+     * 
+     * @param executor thread pool
+     * @param tasks the tasks to run
+     */
+    private static void invokeAll(ExecutorService executor, List<? extends Callable<Object>> tasks){
+    	
+    	try{
+    		List<Future<Object>> results= executor.invokeAll(tasks);
+    		
+    		for(int b=0; b<results.size(); b++){
+    			results.get(b).get();
+    		}
+    	}
+    	catch(InterruptedException ie){
+    		throw new LoggedException(ie);
+    	}
+    	catch(ExecutionException ee){
+    		if(ee.getCause() instanceof RuntimeException){
+    			throw (RuntimeException)ee.getCause();
+    		}
+    		throw new LoggedException(ee.getCause());
+    	}
+    }
+    
+    
+    /**
+     * checks if walker-major mode has been asked for and can be used. 
+     * Walkers only evolve independently if nothing needs to see all of 
+     * them at each timestep, so no runtime stats or trajectories. Scans 
+     * are passive -- they only read each walker's accumulated phase -- so
+     * they make no difference to the order.
+     * 
+     * @return true if the walker-major loop should be used
+     */
+    private boolean useWalkerMajor(){
+    	
+    	if(!SimulationParams.sim_walker_major){
+    		return false;
+    	}
+    	
+    	if(statsMod!=null){
+    		logger.warning("walker-major mode can't be used with runtime statistics. using time-major loop.");
+    		return false;
+    	}
+    	
+    	if(trajWriter!=null){
+    		logger.warning("walker-major mode can't be used with trajectory output. using time-major loop.");
+    		return false;
+    	}
+    	
+    	if((SimulationParams.sim_checkpointFile!=null)||(SimulationParams.sim_resumeFile!=null)){
+    		logger.warning("walker-major mode can't be checkpointed. using time-major loop.");
+    		return false;
+    	}
+    	
+    	return true;
+    }
+    
+    
+    /**
+     * walker-major main loop. walkers are split into small tiles and each 
+     * tile is run through all timesteps before the next is started, so 
+     * that the walkers' state and the part of the substrate they're 
+     * exploring stay in cache. Tiles are independent and are farmed out to
+     * worker threads if there's more than one.
+     * 
+     * With per-walker random streams (-threads) the results are identical
+     * to the time-major loop. Otherwise the shared random sequence is 
+     * used in a different order, which gives a different but equivalent 
+     * realisation.
+     * 
+     * @param numThreads number of threads to update tiles on
+     */
+    private void runWalkerMajorLoop(int numThreads){
+    	
+    	int tileSize= SimulationParams.sim_walker_tile;
+    	int numTiles= (numWalkers+tileSize-1)/tileSize;
+    	
+    	logger.info("walker-major loop: "+numTiles+" tiles of up to "+tileSize+" walkers on "+numThreads+" threads");
+    	
+    	List<WalkerTile> tiles= new ArrayList<WalkerTile>(numTiles);
+    	for(int b=0; b<numTiles; b++){
+    		int start= b*tileSize;
+    		int end= Math.min(start+tileSize, numWalkers);
+    		
+    		tiles.add(new WalkerTile(start, end));
+    	}
+    	
+    	if(numThreads>1){
+    		substrate.setParallelTraversal(true);
+    		ExecutorService executor= Executors.newFixedThreadPool(numThreads);
+    		
+    		try{
+    			invokeAll(executor, tiles);
+    		}
+    		finally{
+    			executor.shutdownNow();
+    			substrate.setParallelTraversal(false);
+    		}
+    	}
+    	else{
+    		for(int b=0; b<numTiles; b++){
+    			System.err.print("\r"+100.0*(double)b/(double)numTiles+"%     ");
+    			
+    			tiles.get(b).call();
+    		}
+    	}
+    	
+    	// scan updates are kept in step, even though they come at the end
+    	if(synthScan!=null){
+    		for(int t=0; t<tmax; t++){
+    			synthScan.update(t);
+    		}
+    	}
+    }
+    
+    
+    /**
+     * works out how many walkers to run at once. Batches are only used
+     * if there's a scan to add up their signals as they go. Trajectories
+     * and runtime stats need every walker at each timestep, and quadratic
+     * gradient scans read all walkers at the end.
+     * 
+     * @param schemes the acquisition schemes (null if there aren't any)
+     * 
+     * @return number of walkers in a batch
+     */
+    private int getBatchSize(SimulableScheme[] schemes){
+    	
+    	int batch= SimulationParams.sim_walker_batch;
+    	
+    	if((batch<=0)||(batch>=totalWalkers)){
+    		return totalWalkers;
+    	}
+    	
+    	if(schemes==null){
+    		logger.warning("walker batches can't be used with trajectory output. running all walkers at once.");
+    		return totalWalkers;
+    	}
+    	
+    	if(SimulationParams.sim_statsfile!=null){
+    		logger.warning("walker batches can't be used with runtime statistics. running all walkers at once.");
+    		return totalWalkers;
+    	}
+    	
+    	if(hasQuadraticGradients(schemes)){
+    		logger.warning("quadratic gradient scans need all walkers at once. walker batches not used.");
+    		return totalWalkers;
+    	}
+    	
+    	if(simParams.getInitialConditions()==SimulationParams.SPECIAL){
+    		logger.warning("special initial conditions can't be batched. running all walkers at once.");
+    		return totalWalkers;
+    	}
+    	
+    	if((SimulationParams.sim_checkpointFile!=null)||(SimulationParams.sim_resumeFile!=null)){
+    		logger.warning("walker batches can't be checkpointed. running all walkers at once.");
+    		return totalWalkers;
+    	}
+    	
+    	return batch;
+    }
+    
+    
+    /**
+     * checks if walkers can be kept in a pool. sticky walkers carry extra
+     * state of their own, and quadratic gradient scans keep their own 
+     * per-walker arrays, so these need walker objects.
+     * 
+     * @param schemes the acquisition schemes (null if there aren't any)
+     * 
+     * @return true if walkers should be kept in a pool
+     */
+    private boolean usePool(SimulableScheme[] schemes){
+    	
+    	if(!SimulationParams.sim_walker_pool){
+    		return false;
+    	}
+    	
+    	if(SimulationParams.sim_geomType==SubstrateType.CYL_1_STICKY){
+    		logger.warning("sticky walkers can't be kept in a walker pool. using walker objects.");
+    		return false;
+    	}
+    	
+    	if((SimulationParams.sim_statsfile!=null)&&(SimulationParams.sim_StatsModType==StatsModuleType.STICKY_STATS)){
+    		logger.warning("sticky stats need walker objects. walker pool not used.");
+    		return false;
+    	}
+    	
+    	if(hasQuadraticGradients(schemes)){
+    		logger.warning("quadratic gradient scans need walker objects. walker pool not used.");
+    		return false;
+    	}
+    	
+    	return true;
+    }
+    
+    
+    /**
+     * @param schemes the acquisition schemes (null if there aren't any)
+     * 
+     * @return true if any of the schemes has quadratic gradients
+     */
+    private static boolean hasQuadraticGradients(SimulableScheme[] schemes){
+    	
+    	if(schemes!=null){
+    		for(int s=0; s<schemes.length; s++){
+    			if(schemes[s] instanceof RectQuadraticGradSteTanScheme){
+    				return true;
+    			}
+    		}
+    	}
+    	
+    	return false;
+    }
+    
+    
+    /**
+     * @param schemes the acquisition schemes
+     * 
+     * @return duration of the longest scheme
+     */
+    private static double getDuration(SimulableScheme[] schemes){
+    	
+    	double duration= 0.0;
+    	
+    	for(int s=0; s<schemes.length; s++){
+    		duration= Math.max(duration, schemes[s].getDuration());
+    	}
+    	
+    	return duration;
+    }
+    
+    
+    /**
+     * places the walkers in the current batch uniformly in one 
+     * compartment by rejection sampling. Each walker's candidates come 
+     * from its own counter-based stream, keyed by the walker's index in
+     * the whole simulation, so the positions are the same whatever the 
+     * number of threads or batch size. Candidates are tested on several
+     * threads if the substrate can be shared between them.
+     * 
+     * @param inside true to place walkers inside cells, false outside
+     */
+    private void placeInCompartment(final boolean inside){
+        
+        final double[] pos= new double[numWalkers*D];
+        
+        int numThreads= 1;
+        if((threads>1)&&substrate.supportsParallelTraversal()){
+            numThreads= Math.min(threads, Math.max(numWalkers, 1));
+        }
+        
+        List<Callable<Object>> blocks= new ArrayList<Callable<Object>>(numThreads);
+        for(int b=0; b<numThreads; b++){
+            final int start= (int)(((long)b*numWalkers)/numThreads);
+            final int end= (int)(((long)(b+1)*numWalkers)/numThreads);
+            
+            blocks.add(new Callable<Object>(){
+                public Object call(){
+                    placeInCompartment(inside, start, end, pos);
+                    
+                    return null;
+                }
+            });
+        }
+        
+        if(numThreads>1){
+            logger.info("placing walkers on "+numThreads+" threads");
+            
+            substrate.setParallelTraversal(true);
+            ExecutorService executor= Executors.newFixedThreadPool(numThreads);
+            
+            try{
+                invokeAll(executor, blocks);
+            }
+            finally{
+                executor.shutdownNow();
+                substrate.setParallelTraversal(false);
+            }
+        }
+        else{
+            placeInCompartment(inside, 0, numWalkers, pos);
+        }
+        
+        double[] r0= new double[D];
+        for(int i=0; i<numWalkers; i++){
+            for(int j=0; j<D; j++){
+                r0[j]= pos[i*D+j];
+            }
+            
+            setWalker(i, r0);
+        }
+    }
+    
+    
+    /**
+     * draws positions for a range of walkers in one compartment.
+     * 
+     * @param inside true to place walkers inside cells, false outside
+     * @param start index of first walker in the batch
+     * @param end index after last walker
+     * @param pos array of positions, D entries per walker
+     */
+    private void placeInCompartment(boolean inside, int start, int end, double[] pos){
+        
+        final double[] substrateSize= substrate.getSubstrateSize();
+        
+        // a lone walker to test candidates with
+        final Walker probe= new WalkerPool(1, 0).getCursor(stepGenerator, substrate, null).bind(0);
+        
+        final CounterRandom random= new CounterRandom(CL_Initializer.walkerSeed()+571);
+        
+        for(int i=start; i<end; i++){
+            random.setStream(batchStart+i, 0);
+            
+            int tries= 0;
+            do{
+                if(++tries>MAX_PLACEMENT_TRIES){
+                    throw new LoggedException("no "+(inside?"intra":"extra")+"cellular position found for walker "
+                            +(batchStart+i)+" after "+MAX_PLACEMENT_TRIES+" tries");
+                }
+                
+                for(int j=0; j<D; j++){
+                    probe.r[j]= random.nextDouble()*substrateSize[j];
+                }
+            }
+            while(substrate.intracellular(probe)!=inside);
+            
+            for(int j=0; j<D; j++){
+                pos[i*D+j]= probe.r[j];
+            }
+        }
+    }
+    
+    
+    /**
+     * places a walker at its initial position, either by constructing
+     * a walker object or setting its position in the pool.
+     * 
+     * @param i walker index
+     * @param r0 initial position
+     */
+    private void setWalker(int i, double[] r0){
+    	
+    	if(pool!=null){
+    		pool.setPosition(i, r0);
+    	}
+    	else{
+    		walker[i]= WalkerFactory.getWalker(r0, stepGenerator, substrate, synthScan, simParams);
+    	}
+    }
+    
+    
+    /**
+     * fetches a walker. pooled walkers are read through the serial 
+     * cursor, so the returned walker is only valid until the next call
+     * and changes to it aren't kept.
+     * 
+     * @param i walker index
+     * 
+     * @return the walker
+     */
+    private Walker getWalker(int i){
+    	
+    	if(pool!=null){
+    		return cursor.bind(i);
+    	}
+    	
+    	return walker[i];
+    }
+    
+    
+    /**
+     * @return a new cursor onto the walker pool, or null if walkers are 
+     *         separate objects
+     */
+    private Walker newCursor(){
+    	
+    	if(pool==null){
+    		return null;
+    	}
+    	
+    	return pool.getCursor(stepGenerator, substrate, synthScan);
+    }
+    
+    
+    /**
+     * works out how many threads the main loop can actually use. walkers
+     * are only updated in parallel if the substrate and step generator can
+     * be shared between threads and no trajectories are being written.
+     * Otherwise we fall back to a single thread, which still uses the
+     * per-walker random streams and so gives the same results.
+     * 
+     * @return number of threads to update walkers on
+     */
+    private int getNumThreads(){
+    	
+    	if(threads<=1){
+    		return 1;
+    	}
+    	
+    	if(!substrate.supportsParallelTraversal()){
+    		logger.warning("substrate "+simParams.getGeometryType()+" cannot be shared between threads. walkers will be updated on a single thread.");
+    		return 1;
+    	}
+    	
+    	if(stepGenerator.getType()!=StepType.FIXEDLENGTH){
+    		logger.warning("step generator "+stepGenerator.getType()+" cannot be shared between threads. walkers will be updated on a single thread.");
+    		return 1;
+    	}
+    	
+    	return Math.min(threads, Math.max(numWalkers, 1));
+    }
+    
+    
+    /**
+     * a contiguous block of walkers to be updated on a worker thread. 
+     * the timestep is set before each block is handed to the executor.
+     */
+    private final class WalkerBlock implements Callable<Object>{
+    	
+    	/** index of first walker */
+    	private final int start;
+    	
+    	/** index after last walker */
+    	private final int end;
+    	
+    	/** this thread's cursor onto the walker pool, if there is one */
+    	private final Walker cursor;
+    	
+    	/** current timestep */
+    	private int t;
+    	
+    	WalkerBlock(int start, int end){
+    		this.start= start;
+    		this.end= end;
+    		this.cursor= newCursor();
+    	}
+    	
+    	public Object call(){
+    		updateWalkers(t, start, end, cursor);
+    		
+    		return null;
+    	}
+    }
+    
+    
+    /**
+     * a tile of walkers to be run through every timestep in walker-major
+     * mode.
+     */
+    private final class WalkerTile implements Callable<Object>{
+    	
+    	/** index of first walker */
+    	private final int start;
+    	
+    	/** index after last walker */
+    	private final int end;
+    	
+    	WalkerTile(int start, int end){
+    		this.start= start;
+    		this.end= end;
+    	}
+    	
+    	public Object call(){
+    		Walker cursor= newCursor();
+    		
+    		for(int t=0; t<tmax; t++){
+    			updateWalkers(t, start, end, cursor);
+    		}
+    		
+    		return null;
+    	}
+    }
+    
+    
+    /** 
+     * initialises a simulation and runs the main loop before
+     * constructing a 
+     * @see data.DataSource#nextVoxel()
+     */
+    public double[] nextVoxel() throws DataSourceException {
+        
+        double[] S=null;
+        
+        if(!separateRuns){
+        	// run the simulation once. subsequent voxels
+        	// are different noise realisations of the 
+        	// simulation data.
+        	
+        	if(voxel==0){
+        		initialiseWalkers();
+        		long startTime = System.nanoTime();
+        		runMainLoop();
+        		long endTime = System.nanoTime();
+        		double duration = (endTime - startTime)  / 1e9;  //divide by 1000000 to get milliseconds.
+        		System.err.println("\nduration = " + duration + "s");
+        		
+        		if(SimulationParams.sim_partialFile!=null){
+        			writePartialSignals(SimulationParams.sim_partialFile);
+        		}
+        	}
+        }
+        else{
+        	// run a separate simulation for each voxel
+        	if(SimulationParams.sim_partialFile!=null){
+        		throw new LoggedException("partial signal files can't be written with a separate simulation for each voxel");
+        	}
+        	
+        	stepGenerator= StepGeneratorFactory.getStepGenerator(simParams);
+        	initialiseWalkers();
+    	    System.err.println("onlyrun= "+onlyRun+" calls= "+calls);
+    	    runMainLoop();
+        	
+        	CL_Initializer.seed=twister.nextInt();
+        	twister=new MTRandom(CL_Initializer.walkerSeed()+189);
+        }
+        
+        
+        /**
+         * debug code. spin out directional mean squared disp
+         */
+        /*
+        int N=50;
+        double[] netDisp= new double[D];
+        double[] n= new double[D];
+        
+        FileWriter msdWriter;
+        try{
+            msdWriter= new FileWriter("angular_msd.csv");
+        }
+        catch(IOException ioe){
+            throw new RuntimeException(ioe);
+        }
+        for(int t=0; t<N; t++){
+            double theta= 2.0*t*Math.PI/N;
+            
             n[0]=Math.cos(theta);
             n[1]= 0.0;
             n[2]=Math.sin(theta);
@@ -820,7 +1680,7 @@ public class DiffusionSimulation implements DataSource {
             int msdCount1=0;
             int msdCount2=0;
             
-            for(int i=0; i<walker.length; i++){
+            for(int i=0; i<numWalkers; i++){
                 double dp=0.0;
                 for(int j=0; j<D; j++){
                     netDisp[j]= walker[i].r[j]-walker[i].r0[j];
@@ -918,6 +1778,36 @@ public class DiffusionSimulation implements DataSource {
         
     }
 
+    /**
+     * writes the scan's signal sums to a partial signal file, so that 
+     * this simulation can be merged with other shards of the same 
+     * simulation by the MergeShards command.
+     * 
+     * @param fname name of file to write
+     */
+    private void writePartialSignals(String fname){
+    	
+    	if(synthScan==null){
+    		throw new LoggedException("partial signal files need a scheme to generate signals with");
+    	}
+    	
+    	int shard= Math.max(SimulationParams.sim_shard, 0);
+    	
+    	logger.info("writing signal sums for shard "+shard+" to "+fname);
+    	
+    	try{
+    		DataOutputStream out= new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname)));
+    		
+    		synthScan.getSignalSums().write(out, shard, CL_Initializer.seed);
+    		
+    		out.close();
+    	}
+    	catch(IOException ioe){
+    		throw new LoggedException(ioe);
+    	}
+    }
+    
+    
     /** 
      * @see data.DataSource#more()
      */
@@ -940,9 +1830,9 @@ public class DiffusionSimulation implements DataSource {
         
         double meanSquareDisp=0.0;
         
-        for(int i=0; i<walker.length; i++){
+        for(int i=0; i<numWalkers; i++){
             
-            double disp[]=walker[i].getDisplacement();
+            double disp[]=getWalker(i).getDisplacement();
             double squareDisp=0.0;
             
             for(int j=0; j<D; j++){
@@ -955,7 +1845,7 @@ public class DiffusionSimulation implements DataSource {
             
         }
         
-        meanSquareDisp/=walker.length;
+        meanSquareDisp/=numWalkers;
         
         return meanSquareDisp;
         
@@ -963,10 +1853,15 @@ public class DiffusionSimulation implements DataSource {
     }
     
     /**
-     * @return the array of walker in the simulation
+     * @return the array of walker in the simulation. if walkers are run
+     *         in batches this holds the last batch.
      */
     public final Walker[] getWalkers(){
     	
+    	if(pool!=null){
+    		throw new LoggedException("walkers are kept in a pool, there is no walker array");
+    	}
+    	
     	if(walker==null){
     		throw new LoggedException("attempt to retreive un-initialised walker array");
     	}
@@ -974,6 +1869,13 @@ public class DiffusionSimulation implements DataSource {
     	return walker;
     }
     
+    /**
+     * @return the walker pool, or null if walkers are separate objects
+     */
+    public final WalkerPool getWalkerPool(){
+    	return pool;
+    }
+    
     
     /**
      * 
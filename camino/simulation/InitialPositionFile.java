@@ -0,0 +1,451 @@
+package simulation;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.StringTokenizer;
+import java.util.logging.Logger;
+
+import misc.LoggedException;
+
+/**
+ * reads initial walker positions for -initial file, a batch of walkers
+ * at a time. Two formats are understood and told apart by the start of
+ * the file.
+ *
+ * The text format has the number of walkers on the first line and then
+ * x y z for one walker per line.
+ *
+ * The binary format has a header
+ * <pre>
+ *   long   MAGIC ("CAMINIT1")
+ *   int    VERSION
+ *   int    flags (FLOAT32)
+ *   long   number of walkers
+ * </pre>
+ * followed by x, y, z for each walker as doubles or, with FLOAT32,
+ * floats. Everything is big-endian. Positions are read straight out of
+ * the memory-mapped file, so there's no parsing and nothing is copied
+ * until the walkers are placed. write() makes these files, and main()
+ * converts a text file.
+ *
+ */
+public final class InitialPositionFile {
+
+    /** logging object */
+    private static final Logger logger= Logger.getLogger("simulation.InitialPositionFile");
+
+    /** identifies a binary initial position file ("CAMINIT1") */
+    public static final long MAGIC= 0x43414d494e495431L;
+
+    /** binary format version */
+    public static final int VERSION= 1;
+
+    /** flag for positions stored as floats */
+    public static final int FLOAT32= 1;
+
+    /** length of the binary header in bytes */
+    private static final int HEADER_BYTES= 24;
+
+    /** largest part of a binary file to map at once */
+    private static final int SEGMENT_BYTES= 1<<30;
+
+    /** dimensionality of space */
+    private static final int D= DiffusionSimulation.D;
+
+    /** name of the file */
+    private final String fname;
+
+    /** binary format? */
+    private final boolean binary;
+
+    /** positions as floats? */
+    private final boolean single;
+
+    /** number of walkers in the file */
+    private final int numWalkers;
+
+    /** reader for the text format (null if binary) */
+    private final BufferedReader textReader;
+
+    /** channel onto a binary file (null if text) */
+    private final FileChannel channel;
+
+    /** stream the channel comes from (null if text) */
+    private final FileInputStream fis;
+
+    /** index of the next walker to be read */
+    private int next= 0;
+
+
+    /**
+     * opens a file of initial positions and reads its header
+     *
+     * @param fname name of the file
+     */
+    public InitialPositionFile(String fname){
+
+        this.fname= fname;
+
+        try{
+            FileInputStream in= new FileInputStream(fname);
+            FileChannel ch= in.getChannel();
+
+            long magic= 0L;
+
+            if(ch.size()>=HEADER_BYTES){
+                magic= read(ch, 0, 8).getLong();
+            }
+
+            if(magic==MAGIC){
+                ByteBuffer header= read(ch, 8, HEADER_BYTES-8);
+
+                int version= header.getInt();
+                if(version!=VERSION){
+                    throw new LoggedException("initial position file version "+version+
+                            " not supported (expected "+VERSION+")");
+                }
+
+                int flags= header.getInt();
+                long n= header.getLong();
+
+                binary= true;
+                single= (flags&FLOAT32)!=0;
+
+                if((n<0)||(n>Integer.MAX_VALUE)||(HEADER_BYTES+n*D*(single?4:8)>ch.size())){
+                    throw new LoggedException("corrupt header in initial position file "+fname);
+                }
+
+                numWalkers= (int)n;
+                fis= in;
+                channel= ch;
+                textReader= null;
+            }
+            else{
+                in.close();
+
+                binary= false;
+                single= false;
+                fis= null;
+                channel= null;
+
+                textReader= new BufferedReader(new FileReader(fname));
+
+                // first line is the number of walkers
+                String line= textReader.readLine();
+                if(line==null){
+                    throw new LoggedException("initial position file "+fname+" is empty");
+                }
+
+                numWalkers= Integer.parseInt(line.trim());
+            }
+        }
+        catch(IOException ioe){
+            throw new LoggedException(ioe);
+        }
+
+        logger.info("initial positions for "+numWalkers+" walkers in "+(binary?(single?"float32":"float64"):"text")+" file "+fname);
+    }
+
+
+    /**
+     * @return number of walkers in the file
+     */
+    public int getNumWalkers(){
+        return numWalkers;
+    }
+
+
+    /**
+     * @return true if the file is in the binary format
+     */
+    public boolean isBinary(){
+        return binary;
+    }
+
+
+    /**
+     * reads the positions of the next n walkers.
+     *
+     * @param n number of walkers to read
+     * @param pos array to read into, D entries per walker
+     */
+    public void read(int n, double[] pos){
+
+        if(next+n>numWalkers){
+            throw new LoggedException("attempt to read past walker "+numWalkers+" in initial position file "+fname);
+        }
+
+        try{
+            if(binary){
+                readBinary(n, pos);
+            }
+            else{
+                readText(n, pos);
+            }
+        }
+        catch(IOException ioe){
+            throw new LoggedException(ioe);
+        }
+
+        next+= n;
+    }
+
+
+    /**
+     * reads positions out of the mapped binary file, a segment at a time
+     *
+     * @param n number of walkers to read
+     * @param pos array to read into
+     */
+    private void readBinary(int n, double[] pos) throws IOException{
+
+        final int stride= D*(single?4:8);
+        final int perSegment= Math.max(SEGMENT_BYTES/stride, 1);
+
+        for(int start=0; start<n; start+=perSegment){
+            int count= Math.min(perSegment, n-start);
+
+            ByteBuffer segment= channel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_BYTES+(long)(next+start)*stride, (long)count*stride);
+
+            final int off= start*D;
+
+            if(single){
+                for(int k=0; k<count*D; k++){
+                    pos[off+k]= segment.getFloat(4*k);
+                }
+            }
+            else{
+                for(int k=0; k<count*D; k++){
+                    pos[off+k]= segment.getDouble(8*k);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * skips over the next n walkers without reading their positions.
+     *
+     * @param n number of walkers to skip
+     */
+    public void skip(int n){
+
+        if(next+n>numWalkers){
+            throw new LoggedException("attempt to skip past walker "+numWalkers+" in initial position file "+fname);
+        }
+
+        // binary positions are found from the walker index
+        if(!binary){
+            try{
+                for(int i=0; i<n; i++){
+                    if(textReader.readLine()==null){
+                        throw new EOFException("unexpected end of initial position file "+fname+
+                                " after "+(next+i)+" walkers");
+                    }
+                }
+            }
+            catch(IOException ioe){
+                throw new LoggedException(ioe);
+            }
+        }
+
+        next+= n;
+    }
+
+
+    /**
+     * reads positions from the text file, one walker per line
+     *
+     * @param n number of walkers to read
+     * @param pos array to read into
+     */
+    private void readText(int n, double[] pos) throws IOException{
+
+        for(int i=0; i<n; i++){
+            String line= textReader.readLine();
+
+            if(line==null){
+                throw new EOFException("unexpected end of initial position file "+fname+
+                        " after "+(next+i)+" walkers");
+            }
+
+            StringTokenizer tokeniser= new StringTokenizer(line);
+
+            for(int j=0; j<D; j++){
+                pos[i*D+j]= Double.parseDouble(tokeniser.nextToken());
+            }
+        }
+    }
+
+
+    /**
+     * closes the file
+     */
+    public void close(){
+
+        try{
+            if(binary){
+                channel.close();
+                fis.close();
+            }
+            else{
+                textReader.close();
+            }
+        }
+        catch(IOException ioe){
+            throw new LoggedException(ioe);
+        }
+    }
+
+
+    /**
+     * writes a binary initial position file
+     *
+     * @param fname name of the file
+     * @param pos positions, D entries per walker
+     * @param numWalkers number of walkers
+     * @param single write floats instead of doubles?
+     */
+    public static void write(String fname, double[] pos, int numWalkers, boolean single){
+
+        try{
+            FileOutputStream out= new FileOutputStream(fname);
+            FileChannel ch= out.getChannel();
+
+            ByteBuffer header= ByteBuffer.allocate(HEADER_BYTES);
+            header.putLong(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(single?FLOAT32:0);
+            header.putLong(numWalkers);
+            header.flip();
+
+            writeFully(ch, header);
+
+            // positions go out through a fixed-size buffer
+            final int size= single?4:8;
+            ByteBuffer buf= ByteBuffer.allocate(Math.max(1<<20, D*size));
+
+            for(int k=0; k<numWalkers*D; k++){
+                if(buf.remaining()<size){
+                    buf.flip();
+                    writeFully(ch, buf);
+                    buf.clear();
+                }
+
+                if(single){
+                    buf.putFloat((float)pos[k]);
+                }
+                else{
+                    buf.putDouble(pos[k]);
+                }
+            }
+
+            buf.flip();
+            writeFully(ch, buf);
+
+            ch.close();
+            out.close();
+        }
+        catch(IOException ioe){
+            throw new LoggedException(ioe);
+        }
+    }
+
+
+    /**
+     * writes the whole of a buffer to a channel
+     *
+     * @param ch channel
+     * @param buf buffer
+     */
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException{
+
+        while(buf.hasRemaining()){
+            ch.write(buf);
+        }
+    }
+
+
+    /**
+     * reads part of a file into a new buffer
+     *
+     * @param ch channel onto the file
+     * @param offset position in file
+     * @param length number of bytes
+     *
+     * @return buffer ready to read
+     */
+    private static ByteBuffer read(FileChannel ch, long offset, int length) throws IOException{
+
+        ByteBuffer buf= ByteBuffer.allocate(length);
+
+        while(buf.hasRemaining()){
+            if(ch.read(buf, offset+buf.position())<0){
+                throw new EOFException("unexpected end of initial position file");
+            }
+        }
+
+        buf.flip();
+
+        return buf;
+    }
+
+
+    /**
+     * converts a text initial position file into the binary format and
+     * times reading both.
+     *
+     * usage: InitialPositionFile [text file] [binary file] [float]
+     *
+     * @param args text file, binary file and "float" for float32
+     */
+    public static void main(String[] args){
+
+        if(args.length<2){
+            System.err.println("usage: InitialPositionFile [text file] [binary file] [float]");
+            return;
+        }
+
+        boolean single= (args.length>2)&&args[2].equalsIgnoreCase("float");
+
+        long t0= System.nanoTime();
+
+        InitialPositionFile text= new InitialPositionFile(args[0]);
+        int n= text.getNumWalkers();
+        double[] pos= new double[n*D];
+        text.read(n, pos);
+        text.close();
+
+        long t1= System.nanoTime();
+
+        write(args[1], pos, n, single);
+
+        long t2= System.nanoTime();
+
+        InitialPositionFile bin= new InitialPositionFile(args[1]);
+        double[] binPos= new double[n*D];
+        bin.read(n, binPos);
+        bin.close();
+
+        long t3= System.nanoTime();
+
+        // floats can only match to single precision
+        double maxErr= 0.0;
+        for(int k=0; k<n*D; k++){
+            maxErr= Math.max(maxErr, Math.abs(binPos[k]-pos[k])/Math.max(Math.abs(pos[k]), Double.MIN_NORMAL));
+        }
+
+        System.err.println(n+" walkers");
+        System.err.println("text read:   "+(t1-t0)/1E6+" ms");
+        System.err.println("binary write: "+(t2-t1)/1E6+" ms");
+        System.err.println("binary read: "+(t3-t2)/1E6+" ms");
+        System.err.println("max relative difference: "+maxErr);
+    }
+}
@@ -0,0 +1,445 @@
+package simulation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import misc.LoggedException;
+import numerics.MTRandom;
+
+import simulation.dynamics.Walker;
+import simulation.dynamics.WalkerPool;
+
+/**
+ * periodic snapshots of a running simulation, so that a long run that
+ * is interrupted can be resumed from the last snapshot rather than from
+ * the beginning.
+ *
+ * A checkpoint holds the timestep to carry on from, the state of every
+ * walker (positions, initial positions, phases, log magnetisations,
+ * reflection state, compartment labels and the time it last queried
+ * the scan), the state of the shared random number generators and the
+ * length of the runtime stats file at that point. Per-walker random
+ * streams (-threads) are keyed by walker and timestep, so they don't
+ * need saving. Resuming from a checkpoint gives exactly the same
+ * signals as an uninterrupted run.
+ *
+ * The state is copied on the simulation thread, which is quick, and
+ * written to file on a background thread while the simulation carries
+ * on. The file is written alongside the old one and renamed over it
+ * when it's complete, so there's always a whole checkpoint on disk.
+ *
+ */
+public final class SimulationCheckpoint {
+
+    /** logging object */
+    private static final Logger logger= Logger.getLogger("simulation.SimulationCheckpoint");
+
+    /** identifies a checkpoint file */
+    private static final int MAGIC= 0x43504b54;
+
+    /** checkpoint file format version */
+    private static final int VERSION= 1;
+
+    /** name of checkpoint file */
+    private final String fname;
+
+    /** number of timesteps between checkpoints */
+    private final int interval;
+
+    /** copy of the walkers' state being written */
+    private final WalkerPool snapshot;
+
+    /** state of the shared random number generators being written */
+    private final ByteArrayOutputStream twisterState= new ByteArrayOutputStream();
+
+    /** background thread that writes checkpoints */
+    private final ExecutorService writer;
+
+    /** checkpoint currently being written, if any */
+    private Future<?> pending= null;
+
+
+    /**
+     * constructor. allocates space for a copy of the walkers.
+     *
+     * @param fname name of checkpoint file
+     * @param interval number of timesteps between checkpoints
+     * @param numWalkers number of walkers
+     * @param numMeas number of measurements
+     */
+    public SimulationCheckpoint(String fname, int interval, int numWalkers, int numMeas){
+
+        this.fname= fname;
+        this.interval= interval;
+
+        this.snapshot= new WalkerPool(numWalkers, numMeas);
+
+        this.writer= Executors.newSingleThreadExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r){
+                Thread thread= new Thread(r, "checkpoint writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        logger.info("checkpointing to "+fname+" every "+interval+" timesteps");
+    }
+
+
+    /**
+     * @param t index of the next timestep to run
+     *
+     * @return true if a checkpoint should be taken before timestep t
+     */
+    public boolean due(int t){
+        return (t>0)&&(t%interval==0);
+    }
+
+
+    /**
+     * takes a checkpoint before the given timestep and starts writing it
+     * to file. If the last checkpoint is still being written, this waits
+     * for it to finish first. Walkers are either in a pool or an array
+     * of walker objects.
+     *
+     * @param t index of the next timestep to run
+     * @param tmax total number of timesteps
+     * @param seed random seed of the simulation
+     * @param pool walker pool (null if walkers are objects)
+     * @param walker walker objects (null if walkers are pooled)
+     * @param twisters shared random number generators
+     * @param statsLength length of the runtime stats file in bytes (-1 if none)
+     */
+    public void save(final int t, final int tmax, final int seed, WalkerPool pool, Walker[] walker,
+            MTRandom[] twisters, final long statsLength){
+
+        waitForWriter();
+
+        if(pool!=null){
+            snapshot.copyFrom(pool);
+        }
+        else{
+            for(int i=0; i<snapshot.N; i++){
+                walker[i].saveState(snapshot, i);
+            }
+        }
+
+        twisterState.reset();
+        try{
+            DataOutputStream out= new DataOutputStream(twisterState);
+
+            out.writeInt(twisters.length);
+            for(int i=0; i<twisters.length; i++){
+                twisters[i].writeState(out);
+            }
+            out.flush();
+        }
+        catch(IOException ioe){
+            throw new LoggedException(ioe);
+        }
+
+        pending= writer.submit(new Runnable(){
+            public void run(){
+                try{
+                    write(t, tmax, seed, statsLength);
+                }
+                catch(IOException ioe){
+                    throw new LoggedException(ioe);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * waits for the last checkpoint to be written and stops the writer
+     * thread.
+     */
+    public void close(){
+
+        try{
+            waitForWriter();
+        }
+        finally{
+            writer.shutdown();
+        }
+    }
+
+
+    /**
+     * waits for the checkpoint being written, if there is one. an error
+     * while writing it is rethrown here.
+     */
+    private void waitForWriter(){
+
+        if(pending==null){
+            return;
+        }
+
+        try{
+            pending.get();
+        }
+        catch(InterruptedException ie){
+            throw new LoggedException(ie);
+        }
+        catch(ExecutionException ee){
+            throw new LoggedException(ee.getCause());
+        }
+        finally{
+            pending= null;
+        }
+    }
+
+
+    /**
+     * writes the current snapshot to a temporary file, syncs it to disk
+     * and renames it over the checkpoint file.
+     */
+    private void write(int t, int tmax, int seed, long statsLength) throws IOException{
+
+        File tmpFile= new File(fname+".tmp");
+
+        FileOutputStream fos= new FileOutputStream(tmpFile);
+        DataOutputStream out= new DataOutputStream(new BufferedOutputStream(fos, 1<<16));
+
+        try{
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.N);
+            out.writeInt(snapshot.numMeas);
+            out.writeInt(tmax);
+            out.writeInt(seed);
+            out.writeInt(t);
+            out.writeLong(statsLength);
+
+            twisterState.writeTo(out);
+
+            writePool(out, snapshot);
+
+            out.flush();
+            fos.getFD().sync();
+        }
+        finally{
+            out.close();
+        }
+
+        File file= new File(fname);
+
+        if(!tmpFile.renameTo(file)){
+            // some platforms won't rename over an existing file
+            file.delete();
+            if(!tmpFile.renameTo(file)){
+                throw new IOException("couldn't rename "+tmpFile+" to "+file);
+            }
+        }
+
+        logger.info("checkpoint written before timestep "+t);
+    }
+
+
+    /**
+     * restores a simulation from a checkpoint file. The walkers, which
+     * are either in a pool or an array of walker objects, and the shared
+     * random number generators are set to their state at the checkpoint.
+     * The checkpoint must come from a simulation with the same number of
+     * walkers, measurements, timesteps and random seed.
+     *
+     * @param fname name of checkpoint file
+     * @param tmax total number of timesteps
+     * @param seed random seed of the simulation
+     * @param pool walker pool (null if walkers are objects)
+     * @param walker walker objects (null if walkers are pooled)
+     * @param numMeas number of measurements
+     * @param twisters shared random number generators
+     *
+     * @return index of the timestep to carry on from
+     */
+    public static int restore(String fname, int tmax, int seed, WalkerPool pool, Walker[] walker,
+            int numMeas, MTRandom[] twisters){
+
+        int numWalkers= (pool!=null)?pool.N:walker.length;
+
+        try{
+            DataInputStream in= new DataInputStream(new BufferedInputStream(new FileInputStream(fname), 1<<16));
+
+            try{
+                int t= readHeader(in, fname, numWalkers, numMeas, tmax, seed);
+
+                // stats length, handled when the stats file is opened
+                in.readLong();
+
+                int numTwisters= in.readInt();
+                if(numTwisters!=twisters.length){
+                    throw new LoggedException("checkpoint "+fname+" has "+numTwisters+
+                            " random number generators, simulation has "+twisters.length);
+                }
+                for(int i=0; i<twisters.length; i++){
+                    twisters[i].readState(in);
+                }
+
+                if(pool!=null){
+                    readPool(in, pool);
+                }
+                else{
+                    WalkerPool state= new WalkerPool(numWalkers, numMeas);
+
+                    readPool(in, state);
+
+                    for(int i=0; i<numWalkers; i++){
+                        walker[i].loadState(state, i);
+                    }
+                }
+
+                logger.info("resuming from "+fname+" at timestep "+t+" of "+tmax);
+
+                return t;
+            }
+            finally{
+                in.close();
+            }
+        }
+        catch(IOException ioe){
+            throw new LoggedException(ioe);
+        }
+    }
+
+
+    /**
+     * reads the length the runtime stats file had when a checkpoint was
+     * taken, so that stats written after it can be discarded.
+     *
+     * @param fname name of checkpoint file
+     *
+     * @return length of stats file in bytes, or -1 if the simulation had
+     *         no runtime stats
+     */
+    public static long readStatsLength(String fname){
+
+        try{
+            DataInputStream in= new DataInputStream(new BufferedInputStream(new FileInputStream(fname)));
+
+            try{
+                readHeader(in, fname, -1, -1, -1, 0);
+
+                return in.readLong();
+            }
+            finally{
+                in.close();
+            }
+        }
+        catch(IOException ioe){
+            throw new LoggedException(ioe);
+        }
+    }
+
+
+    /**
+     * reads and checks a checkpoint header against the simulation.
+     * negative sizes aren't checked.
+     *
+     * @return index of the timestep to carry on from
+     */
+    private static int readHeader(DataInputStream in, String fname, int numWalkers, int numMeas,
+            int tmax, int seed) throws IOException{
+
+        if(in.readInt()!=MAGIC){
+            throw new LoggedException(fname+" is not a checkpoint file");
+        }
+
+        int version= in.readInt();
+        if(version!=VERSION){
+            throw new LoggedException("checkpoint file version "+version+
+                    " not supported (expected "+VERSION+")");
+        }
+
+        int N= in.readInt();
+        int M= in.readInt();
+        int T= in.readInt();
+        int S= in.readInt();
+
+        if(numWalkers>=0){
+            if((N!=numWalkers)||(M!=numMeas)||(T!=tmax)){
+                throw new LoggedException("checkpoint "+fname+" is for "+N+" walkers, "+M+
+                        " measurements and "+T+" timesteps, simulation has "+numWalkers+
+                        " walkers, "+numMeas+" measurements and "+tmax+" timesteps");
+            }
+            if(S!=seed){
+                throw new LoggedException("checkpoint "+fname+" was run with seed "+S+
+                        ", simulation has seed "+seed);
+            }
+        }
+
+        return in.readInt();
+    }
+
+
+    /**
+     * writes the state of every walker in a pool
+     */
+    private static void writePool(DataOutputStream out, WalkerPool pool) throws IOException{
+
+        writeArray(out, pool.r);
+        writeArray(out, pool.r0);
+        writeArray(out, pool.dPhi);
+        writeArray(out, pool.logM);
+        writeArray(out, pool.reflectionVec);
+        for(int i=0; i<pool.N; i++){
+            out.writeInt(pool.reflectionCount[i]);
+        }
+        for(int i=0; i<pool.N; i++){
+            out.writeBoolean(pool.intracellular[i]);
+        }
+        writeArray(out, pool.tLast);
+    }
+
+
+    /**
+     * reads the state of every walker into a pool
+     */
+    private static void readPool(DataInputStream in, WalkerPool pool) throws IOException{
+
+        readArray(in, pool.r);
+        readArray(in, pool.r0);
+        readArray(in, pool.dPhi);
+        readArray(in, pool.logM);
+        readArray(in, pool.reflectionVec);
+        for(int i=0; i<pool.N; i++){
+            pool.reflectionCount[i]= in.readInt();
+        }
+        for(int i=0; i<pool.N; i++){
+            pool.intracellular[i]= in.readBoolean();
+        }
+        readArray(in, pool.tLast);
+
+        // safe radii aren't saved. they're found again after the first step
+        Arrays.fill(pool.safeRadius, 0.0);
+    }
+
+
+    private static void writeArray(DataOutputStream out, double[] a) throws IOException{
+        for(int i=0; i<a.length; i++){
+            out.writeDouble(a[i]);
+        }
+    }
+
+
+    private static void readArray(DataInputStream in, double[] a) throws IOException{
+        for(int i=0; i<a.length; i++){
+            a[i]= in.readDouble();
+        }
+    }
+}
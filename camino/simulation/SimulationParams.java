@@ -73,7 +73,8 @@ public class SimulationParams {
     public static int sim_initial= SimulationParams.UNIFORM;
 	
     /**
-	 * Name of the walker initialisation file.
+	 * Name of the walker initialisation file, in text or binary
+	 * format (see InitialPositionFile).
 	 */
 	public static String initFile = null;
     
@@ -173,6 +174,12 @@ public class SimulationParams {
      * cylinder packing 
      */
     public static int sim_cyl_pack = ParallelCylinderSubstrate.HEX;
+    
+    /**
+     * pack distributed radius cylinders by growing them all together
+     * instead of placing them one at a time
+     */
+    public static boolean sim_cyl_dist_grow = false;
 
     /**
      * number of cylinders along a side of square distributed 
@@ -249,6 +256,29 @@ public class SimulationParams {
      */
     public static String sim_plyfile=null;
     
+    /**
+     * names of the PLY files placed on instanced mesh substrates. if
+     * null, sim_plyfile is used.
+     */
+    public static String[] sim_plyfiles=null;
+    
+    /**
+     * name of the file of mesh placements on instanced mesh substrates
+     */
+    public static String sim_instance_file=null;
+    
+    /**
+     * find candidate triangles on mesh substrates with a bounding volume
+     * hierarchy rather than the regular subvoxel grid
+     */
+    public static boolean sim_mesh_bvh= false;
+    
+    /**
+     * directory for cached preprocessed mesh substrates. if null,
+     * meshes are not cached
+     */
+    public static String sim_mesh_cache= null;
+    
     /**
      * name of cylinders file to write
      */
@@ -403,6 +433,21 @@ public class SimulationParams {
     /** are we generating trajectories? */
     public static boolean trajectories=false;
     
+    /** write trajectories in the old five-doubles-per-walker format */
+    public static boolean sim_trajLegacy= false;
+    
+    /** write trajectory positions as floats rather than doubles */
+    public static boolean sim_trajFloat= false;
+    
+    /** write trajectories in deflated blocks */
+    public static boolean sim_trajCompress= false;
+    
+    /** number of timesteps between trajectory frames */
+    public static int sim_trajDecimation= 1;
+    
+    /** record the trajectory of every this many walkers */
+    public static int sim_trajWalkerStride= 1;
+    
     /** flag to read out cylinder info */
     public static boolean substrateInfo= false;
     
@@ -415,6 +460,88 @@ public class SimulationParams {
     /** type of boundary condition to use */
     public static int sim_boundary = SimulationParams.BOUNDARY_DEFAULT;
     
+    /** 
+     * number of threads to update walkers with. zero means the original
+     * serial loop. any positive value gives each walker its own random
+     * stream, keyed by walker and timestep, so results do not depend on 
+     * the number of threads or the order walkers are updated in.
+     */
+    public static int sim_threads= 0;
+    
+    /** 
+     * run each tile of walkers through all timesteps before moving on to 
+     * the next tile, rather than updating all walkers at each timestep
+     */
+    public static boolean sim_walker_major= false;
+    
+    /** number of walkers in a tile in walker-major mode */
+    public static int sim_walker_tile= 16;
+    
+    /** 
+     * number of walkers to initialise and run at once. walkers are run
+     * in batches of this size and their signals added up as they go, so
+     * memory doesn't grow with the total number of walkers. zero means
+     * all walkers at once.
+     */
+    public static int sim_walker_batch= 0;
+    
+    /** 
+     * index of this process's shard of a simulation that is split across
+     * several processes. -1 if the simulation isn't sharded. each shard 
+     * moves its own walkers with its own seed, in the same substrate.
+     */
+    public static int sim_shard= -1;
+    
+    /** 
+     * name of file to write the simulation's signal sums to, so that 
+     * they can be merged with other shards. null for none.
+     */
+    public static String sim_partialFile= null;
+    
+    /** 
+     * name of file to checkpoint the simulation to, so that it can be
+     * resumed if it's interrupted. null for no checkpoints.
+     */
+    public static String sim_checkpointFile= null;
+    
+    /** number of timesteps between checkpoints */
+    public static int sim_checkpointInterval= 1000;
+    
+    /** 
+     * name of checkpoint file to resume a simulation from. null to 
+     * start from the beginning.
+     */
+    public static String sim_resumeFile= null;
+    
+    /** 
+     * keep walker positions and phases in a single pool of primitive 
+     * arrays rather than one object per walker
+     */
+    public static boolean sim_walker_pool= false;
+    
+    /** 
+     * interval in timesteps at which walkers' compartment labels are 
+     * checked against the substrate's intracellular() test. zero means
+     * never. the labels are normally maintained as walkers cross 
+     * membranes, so this is a consistency check and is expensive.
+     */
+    public static int sim_compartment_check= 0;
+    
+    /**
+     * skip the barrier checks for steps that keep a walker closer to
+     * where it last measured its distance to the nearest barrier than
+     * that distance, on substrates that can measure it. This doesn't 
+     * change the results, only how long they take.
+     */
+    public static boolean sim_safe_radius= true;
+    
+    /**
+     * check steps against cylinders that are all parallel to the z-axis 
+     * with a 2D index over the cylinders instead of the general barrier 
+     * check. This doesn't change the results, only how long they take.
+     */
+    public static boolean sim_cylinder_index= true;
+    
     
     
     public SimulationParams(int N_walkers, int tmax, double p, 
@@ -0,0 +1,502 @@
+package simulation;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import misc.LoggedException;
+
+/**
+ * reads walker trajectories from files written by TrajectoryWriter in
+ * either the current or the legacy format. The format is recognised
+ * from the start of the file.
+ *
+ * Frames come in blocks. Uncompressed files are memory-mapped a segment
+ * of whole frames at a time, compressed files are inflated a block at a
+ * time. Positions in a block are read with absolute gets, so any number
+ * of threads can read different walkers from the same block at once.
+ * readFrame() gives the frames one at a time for simple callers.
+ *
+ * @see TrajectoryWriter
+ *
+ */
+public final class TrajectoryReader {
+
+    /** dimensionality of space */
+    private static final int D= DiffusionSimulation.D;
+
+    /** largest segment of an uncompressed file to map at once */
+    private static final int SEGMENT_BYTES= 1<<30;
+
+    /** name of trajectory file */
+    private final String fname;
+
+    /** legacy format? */
+    private final boolean legacy;
+
+    /** positions as floats? */
+    private final boolean single;
+
+    /** frames in deflated blocks? */
+    private final boolean compress;
+
+    /** number of timesteps in the simulation */
+    private final int tmax;
+
+    /** duration of a timestep */
+    private final double dt;
+
+    /** number of walkers in the simulation */
+    private final int totalWalkers;
+
+    /** timesteps between frames */
+    private final int decimation;
+
+    /** indices of the walkers in the file */
+    private final int[] recorded;
+
+    /** bytes in a frame */
+    private final int frameBytes;
+
+    /** length of header in bytes */
+    private final int headerBytes;
+
+    /** file being read */
+    private final FileInputStream fis;
+
+    /** channel onto the file */
+    private final FileChannel channel;
+
+    /** position in file of the next block */
+    private long position;
+
+    /** block of frames being returned by readFrame() */
+    private ByteBuffer block= null;
+
+    /** next frame in block to be returned by readFrame() */
+    private int blockFrame= 0;
+
+    /** space for compressed blocks */
+    private ByteBuffer deflated= ByteBuffer.allocate(0);
+
+    /** decompressor */
+    private final Inflater inflater;
+
+    /** time of the last frame read */
+    private double time;
+
+
+    /**
+     * opens a trajectory file and reads its header
+     *
+     * @param fname name of trajectory file
+     */
+    public TrajectoryReader(String fname){
+
+        this.fname= fname;
+
+        try{
+            this.fis= new FileInputStream(fname);
+            this.channel= fis.getChannel();
+
+            ByteBuffer in= read(0, 8);
+
+            long magic= in.getLong();
+
+            if(magic==TrajectoryWriter.MAGIC){
+                in= read(8, 32);
+
+                int version= in.getInt();
+                if(version!=TrajectoryWriter.VERSION){
+                    throw new LoggedException("trajectory file version "+version+
+                            " not supported (expected "+TrajectoryWriter.VERSION+")");
+                }
+
+                int flags= in.getInt();
+
+                legacy= false;
+                single= (flags&TrajectoryWriter.FLOAT32)!=0;
+                compress= (flags&TrajectoryWriter.COMPRESSED)!=0;
+
+                tmax= in.getInt();
+                dt= in.getDouble();
+                totalWalkers= in.getInt();
+                decimation= in.getInt();
+
+                recorded= new int[in.getInt()];
+
+                in= read(40, 4L*recorded.length);
+                for(int k=0; k<recorded.length; k++){
+                    recorded[k]= in.getInt();
+                }
+
+                frameBytes= 4+D*(single?4:8)*recorded.length;
+                headerBytes= 40+4*recorded.length;
+            }
+            else{
+                // legacy header is three doubles, starting with the duration
+                double duration= Double.longBitsToDouble(magic);
+
+                in= read(8, 16);
+
+                legacy= true;
+                single= false;
+                compress= false;
+
+                totalWalkers= (int)in.getDouble();
+                tmax= (int)in.getDouble();
+                dt= duration/tmax;
+                decimation= 1;
+
+                recorded= new int[totalWalkers];
+                for(int k=0; k<recorded.length; k++){
+                    recorded[k]= k;
+                }
+
+                frameBytes= 5*8*recorded.length;
+                headerBytes= 24;
+            }
+        }
+        catch(IOException ioe){
+            throw new LoggedException(ioe);
+        }
+
+        this.position= headerBytes;
+        this.inflater= compress?new Inflater():null;
+    }
+
+
+    /**
+     * @return number of walkers in the file
+     */
+    public int getNumWalkers(){
+        return recorded.length;
+    }
+
+
+    /**
+     * @return index in the simulation of each walker in the file
+     */
+    public int[] getWalkerIndices(){
+        return recorded.clone();
+    }
+
+
+    /**
+     * @return number of walkers in the simulation
+     */
+    public int getTotalWalkers(){
+        return totalWalkers;
+    }
+
+
+    /**
+     * @return number of timesteps in the simulation
+     */
+    public int getTmax(){
+        return tmax;
+    }
+
+
+    /**
+     * @return duration of a timestep
+     */
+    public double getDt(){
+        return dt;
+    }
+
+
+    /**
+     * @return timesteps between frames
+     */
+    public int getDecimation(){
+        return decimation;
+    }
+
+
+    /**
+     * @return time of the last frame read by readFrame()
+     */
+    public double getTime(){
+        return time;
+    }
+
+
+    /**
+     * reads the next block of whole frames. the block is read-only and
+     * is only valid until the reader is closed or rewound.
+     *
+     * @return the block, or null at the end of the file
+     */
+    public ByteBuffer nextBlock(){
+
+        try{
+            return compress?inflateBlock():mapSegment();
+        }
+        catch(IOException ioe){
+            throw new LoggedException(ioe);
+        }
+    }
+
+
+    /**
+     * @param block block of frames from nextBlock()
+     *
+     * @return number of frames in the block
+     */
+    public int getNumFrames(ByteBuffer block){
+        return block.limit()/frameBytes;
+    }
+
+
+    /**
+     * @param block block of frames from nextBlock()
+     * @param f index of frame in block
+     *
+     * @return timestep index of the frame
+     */
+    public int getTimestep(ByteBuffer block, int f){
+
+        if(legacy){
+            return (int)Math.round(getTime(block, f)/dt);
+        }
+
+        return block.getInt(f*frameBytes);
+    }
+
+
+    /**
+     * @param block block of frames from nextBlock()
+     * @param f index of frame in block
+     *
+     * @return time of the frame
+     */
+    public double getTime(ByteBuffer block, int f){
+
+        if(legacy){
+            return block.getDouble(f*frameBytes);
+        }
+
+        return block.getInt(f*frameBytes)*dt;
+    }
+
+
+    /**
+     * reads the positions of a range of walkers from a frame. positions
+     * are stored walker by walker, so the position of the k-th walker in
+     * the file is r[D*(k-start)] to r[D*(k-start)+D-1]. safe to call from
+     * several threads at once.
+     *
+     * @param block block of frames from nextBlock()
+     * @param f index of frame in block
+     * @param start index in file of first walker
+     * @param end index after last walker
+     * @param r space for positions, at least D*(end-start)
+     */
+    public void getPositions(ByteBuffer block, int f, int start, int end, double[] r){
+
+        int offset= f*frameBytes;
+
+        if(legacy){
+            for(int k=start; k<end; k++){
+                int p= offset+40*k;
+
+                if(block.getDouble(p+8)!=k){
+                    throw new LoggedException("traj file reader and contents are out of sync. aborting.");
+                }
+
+                for(int j=0; j<D; j++){
+                    r[D*(k-start)+j]= block.getDouble(p+16+8*j);
+                }
+            }
+        }
+        else if(single){
+            int p= offset+4+4*D*start;
+            for(int k=0; k<D*(end-start); k++){
+                r[k]= block.getFloat(p+4*k);
+            }
+        }
+        else{
+            int p= offset+4+8*D*start;
+            for(int k=0; k<D*(end-start); k++){
+                r[k]= block.getDouble(p+8*k);
+            }
+        }
+    }
+
+
+    /**
+     * reads the next frame. positions are stored walker by walker, so
+     * the position of the k-th walker in the file is r[D*k] to r[D*k+D-1].
+     *
+     * @param r space for positions, D times the number of walkers
+     *
+     * @return timestep index of the frame, or -1 at the end of the file
+     */
+    public int readFrame(double[] r){
+
+        if((block==null)||(blockFrame==getNumFrames(block))){
+            block= nextBlock();
+            blockFrame= 0;
+
+            if(block==null){
+                return -1;
+            }
+        }
+
+        int f= blockFrame++;
+
+        getPositions(block, f, 0, recorded.length, r);
+
+        time= getTime(block, f);
+
+        return getTimestep(block, f);
+    }
+
+
+    /**
+     * goes back to the first frame
+     */
+    public void rewind(){
+
+        position= headerBytes;
+        block= null;
+        blockFrame= 0;
+    }
+
+
+    /**
+     * closes the file
+     */
+    public void close(){
+
+        try{
+            fis.close();
+        }
+        catch(IOException ioe){
+            throw new LoggedException(ioe);
+        }
+
+        if(inflater!=null){
+            inflater.end();
+        }
+    }
+
+
+    /**
+     * reads bytes from the file into a new buffer
+     *
+     * @param offset position in file
+     * @param length number of bytes
+     *
+     * @return buffer containing the bytes, ready to get from
+     */
+    private ByteBuffer read(long offset, long length) throws IOException{
+
+        if(length>Integer.MAX_VALUE){
+            throw new LoggedException("corrupt header in trajectory file "+fname);
+        }
+
+        ByteBuffer buf= ByteBuffer.allocate((int)length);
+
+        while(buf.hasRemaining()){
+            if(channel.read(buf, offset+buf.position())<0){
+                throw new EOFException("unexpected end of trajectory file "+fname);
+            }
+        }
+
+        buf.flip();
+
+        return buf;
+    }
+
+
+    /**
+     * maps the next segment of whole frames of an uncompressed file.
+     * a partial frame at the end of the file (from a simulation that
+     * was stopped while writing) is ignored.
+     *
+     * @return the segment, or null at the end of the file
+     */
+    private ByteBuffer mapSegment() throws IOException{
+
+        long frames= (channel.size()-position)/frameBytes;
+
+        if(frames<=0){
+            return null;
+        }
+
+        frames= Math.min(frames, Math.max(SEGMENT_BYTES/frameBytes, 1));
+
+        long length= frames*frameBytes;
+
+        ByteBuffer segment= channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+        position+= length;
+
+        return segment;
+    }
+
+
+    /**
+     * reads and inflates the next block of a compressed file
+     *
+     * @return the block, or null at the end of the file
+     */
+    private ByteBuffer inflateBlock() throws IOException{
+
+        if(channel.size()-position<12){
+            return null;
+        }
+
+        ByteBuffer blockHeader= read(position, 12);
+
+        int frames= blockHeader.getInt();
+        int rawLength= blockHeader.getInt();
+        int length= blockHeader.getInt();
+
+        if((frames<=0)||(rawLength!=frames*frameBytes)||(length<0)){
+            throw new LoggedException("corrupt block in trajectory file "+fname);
+        }
+
+        if(channel.size()-position-12<length){
+            // block that was being written when the simulation stopped
+            return null;
+        }
+
+        if(deflated.capacity()<length){
+            deflated= ByteBuffer.allocate(length);
+        }
+        deflated.clear();
+        deflated.limit(length);
+        while(deflated.hasRemaining()){
+            channel.read(deflated, position+12+deflated.position());
+        }
+
+        position+= 12+length;
+
+        // a new buffer each time, as a block can be in use while the next is read
+        byte[] raw= new byte[rawLength];
+
+        inflater.reset();
+        inflater.setInput(deflated.array(), 0, length);
+        try{
+            int n= 0;
+            while((n<rawLength)&&!inflater.finished()&&!inflater.needsInput()){
+                n+= inflater.inflate(raw, n, rawLength-n);
+            }
+            if(n!=rawLength){
+                throw new LoggedException("corrupt block in trajectory file "+fname);
+            }
+        }
+        catch(DataFormatException dfe){
+            throw new LoggedException(dfe);
+        }
+
+        return ByteBuffer.wrap(raw).asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,446 @@
+package simulation;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import misc.LoggedException;
+
+import simulation.dynamics.Walker;
+import simulation.dynamics.WalkerPool;
+
+/**
+ * writes walker trajectories to file. Positions are written a timestep
+ * at a time (a frame), from all walkers at once, into large buffers that
+ * are handed to a background thread and written through a file channel
+ * while the simulation carries on.
+ *
+ * The trajectory file starts with a header that describes its layout:
+ * <pre>
+ *   long   MAGIC ("CAMTRAJ1")
+ *   int    VERSION
+ *   int    flags (FLOAT32, COMPRESSED)
+ *   int    number of timesteps in the simulation
+ *   double duration of a timestep
+ *   int    number of walkers in the simulation
+ *   int    decimation (frames are written every this many timesteps)
+ *   int    number of walkers recorded
+ *   int[]  index of each recorded walker in the simulation
+ * </pre>
+ * followed by frames. Each frame is the timestep index as an int and
+ * then x, y, z for each recorded walker, as doubles or, with FLOAT32,
+ * floats. There's a frame for every timestep that's a multiple of the
+ * decimation, then one for the final positions at the end of the last
+ * timestep. With COMPRESSED the frames are grouped into deflated blocks,
+ * each of which starts with the number of frames, the raw length and
+ * the compressed length, as ints. Everything is big-endian.
+ *
+ * The legacy format, five doubles (t, walker index, x, y, z) for every
+ * walker at every timestep after a header of duration, number of walkers
+ * and number of timesteps, can still be written for older readers. It
+ * doesn't support any of the options.
+ *
+ * @see TrajectoryReader
+ *
+ */
+public final class TrajectoryWriter {
+
+    /** logging object */
+    private static final Logger logger= Logger.getLogger("simulation.TrajectoryWriter");
+
+    /** identifies a trajectory file ("CAMTRAJ1") */
+    public static final long MAGIC= 0x43414d5452414a31L;
+
+    /** trajectory file format version */
+    public static final int VERSION= 1;
+
+    /** flag for positions stored as floats */
+    public static final int FLOAT32= 1;
+
+    /** flag for frames stored in deflated blocks */
+    public static final int COMPRESSED= 2;
+
+    /** minimum size of a buffer of frames */
+    private static final int BUFFER_BYTES= 1<<23;
+
+    /** number of buffers, so the simulation can fill one while others are written */
+    private static final int NUM_BUFFERS= 3;
+
+    /** dimensionality of space */
+    private static final int D= DiffusionSimulation.D;
+
+    /** output file */
+    private final FileOutputStream fos;
+
+    /** output channel */
+    private final FileChannel channel;
+
+    /** legacy format? */
+    private final boolean legacy;
+
+    /** positions as floats? */
+    private final boolean single;
+
+    /** deflate blocks of frames? */
+    private final boolean compress;
+
+    /** timesteps between frames */
+    private final int decimation;
+
+    /** indices of walkers that are recorded */
+    private final int[] recorded;
+
+    /** duration of a timestep */
+    private final double dt;
+
+    /** bytes in a frame */
+    private final int frameBytes;
+
+    /** number of frames in the current buffer */
+    private int bufferFrames= 0;
+
+    /** buffer being filled */
+    private ByteBuffer current;
+
+    /** buffers free to be filled */
+    private final BlockingQueue<ByteBuffer> free;
+
+    /** background thread that writes buffers */
+    private final ExecutorService writer;
+
+    /** compressor (only used on the writer thread) */
+    private final Deflater deflater;
+
+    /** space for compressed blocks (only used on the writer thread) */
+    private byte[] deflated;
+
+    /** first error on the writer thread */
+    private volatile Throwable error= null;
+
+
+    /**
+     * opens a trajectory file and writes the header. the layout options
+     * come from SimulationParams.
+     *
+     * @param fname name of trajectory file
+     * @param numWalkers number of walkers in the simulation
+     * @param tmax number of timesteps
+     * @param dt duration of a timestep
+     */
+    public TrajectoryWriter(String fname, int numWalkers, int tmax, double dt){
+
+        this.legacy= SimulationParams.sim_trajLegacy;
+        this.single= SimulationParams.sim_trajFloat;
+        this.compress= SimulationParams.sim_trajCompress;
+        this.decimation= SimulationParams.sim_trajDecimation;
+        this.dt= dt;
+
+        int stride= SimulationParams.sim_trajWalkerStride;
+
+        if(legacy&&(single||compress||(decimation!=1)||(stride!=1))){
+            throw new LoggedException("legacy trajectory files can't be written in single precision, "+
+                    "compressed, decimated or with a sample of walkers");
+        }
+
+        this.recorded= new int[(numWalkers+stride-1)/stride];
+        for(int k=0; k<recorded.length; k++){
+            recorded[k]= k*stride;
+        }
+
+        long bytes;
+        if(legacy){
+            bytes= 5L*8*recorded.length;
+        }
+        else{
+            bytes= 4L+(long)D*(single?4:8)*recorded.length;
+        }
+        if(bytes>Integer.MAX_VALUE-8){
+            throw new LoggedException("a trajectory frame of "+recorded.length+
+                    " walkers is too large. use a sample of walkers");
+        }
+        this.frameBytes= (int)bytes;
+
+        int capacity= Math.max(BUFFER_BYTES, frameBytes);
+        capacity-= capacity%frameBytes;
+
+        this.free= new ArrayBlockingQueue<ByteBuffer>(NUM_BUFFERS);
+        for(int b=0; b<NUM_BUFFERS; b++){
+            // the deflater needs a backing array
+            free.add(compress?ByteBuffer.allocate(capacity):ByteBuffer.allocateDirect(capacity));
+        }
+
+        this.deflater= compress?new Deflater(Deflater.BEST_SPEED):null;
+
+        try{
+            this.fos= new FileOutputStream(fname);
+            this.channel= fos.getChannel();
+
+            writeHeader(numWalkers, tmax);
+        }
+        catch(IOException ioe){
+            throw new LoggedException(ioe);
+        }
+
+        this.writer= Executors.newSingleThreadExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r){
+                Thread thread= new Thread(r, "trajectory writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        this.current= free.poll();
+
+        logger.info("writing trajectories of "+recorded.length+" of "+numWalkers+" walkers to "+fname+
+                (legacy?" (legacy format)":"")+(single?" in single precision":"")+
+                ((decimation>1)?" every "+decimation+" timesteps":"")+(compress?", compressed":""));
+    }
+
+
+    /**
+     * @param t timestep index
+     *
+     * @return true if positions at the start of timestep t are recorded
+     */
+    public boolean records(int t){
+        return t%decimation==0;
+    }
+
+
+    /**
+     * writes the positions of the recorded walkers at the start of a
+     * timestep, or at the end of the simulation if t is the number of
+     * timesteps. Walkers are either in a pool or an array of walker
+     * objects.
+     *
+     * @param t timestep index
+     * @param pool walker pool (null if walkers are objects)
+     * @param walker walker objects (null if walkers are pooled)
+     */
+    public void writeFrame(int t, WalkerPool pool, Walker[] walker){
+
+        if(current.remaining()<frameBytes){
+            submit();
+        }
+
+        ByteBuffer buf= current;
+
+        if(legacy){
+            double time= t*dt;
+
+            for(int k=0; k<recorded.length; k++){
+                int i= recorded[k];
+
+                buf.putDouble(time);
+                buf.putDouble(i);
+                for(int j=0; j<D; j++){
+                    buf.putDouble((pool!=null)?pool.r[j*pool.N+i]:walker[i].r[j]);
+                }
+            }
+        }
+        else{
+            buf.putInt(t);
+
+            for(int k=0; k<recorded.length; k++){
+                int i= recorded[k];
+
+                for(int j=0; j<D; j++){
+                    double x= (pool!=null)?pool.r[j*pool.N+i]:walker[i].r[j];
+
+                    if(single){
+                        buf.putFloat((float)x);
+                    }
+                    else{
+                        buf.putDouble(x);
+                    }
+                }
+            }
+        }
+
+        bufferFrames++;
+    }
+
+
+    /**
+     * writes any frames still buffered, waits for the writer thread to
+     * finish and closes the file.
+     */
+    public void close(){
+
+        if(bufferFrames>0){
+            submit();
+        }
+
+        writer.shutdown();
+
+        try{
+            while(!writer.awaitTermination(1, TimeUnit.MINUTES)){
+                logger.info("waiting for trajectories to be written");
+            }
+
+            checkError();
+
+            channel.force(false);
+            fos.close();
+        }
+        catch(InterruptedException ie){
+            throw new LoggedException(ie);
+        }
+        catch(IOException ioe){
+            throw new LoggedException(ioe);
+        }
+
+        if(deflater!=null){
+            deflater.end();
+        }
+    }
+
+
+    /**
+     * hands the current buffer to the writer thread and takes a free one,
+     * waiting for one to come back if the writer is behind.
+     */
+    private void submit(){
+
+        checkError();
+
+        final ByteBuffer full= current;
+        final int frames= bufferFrames;
+
+        full.flip();
+
+        writer.execute(new Runnable(){
+            public void run(){
+                try{
+                    if(error==null){
+                        write(full, frames);
+                    }
+                }
+                catch(Throwable t){
+                    error= t;
+                }
+                finally{
+                    full.clear();
+                    free.add(full);
+                }
+            }
+        });
+
+        try{
+            current= free.take();
+        }
+        catch(InterruptedException ie){
+            throw new LoggedException(ie);
+        }
+
+        bufferFrames= 0;
+
+        checkError();
+    }
+
+
+    /**
+     * rethrows an error from the writer thread on the simulation thread
+     */
+    private void checkError(){
+
+        if(error!=null){
+            throw new LoggedException(error);
+        }
+    }
+
+
+    /**
+     * writes a buffer of frames, compressing it first if required.
+     * called on the writer thread.
+     */
+    private void write(ByteBuffer buf, int frames) throws IOException{
+
+        if(!compress){
+            writeFully(buf);
+            return;
+        }
+
+        int rawLength= buf.remaining();
+
+        deflater.reset();
+        deflater.setInput(buf.array(), buf.arrayOffset()+buf.position(), rawLength);
+        deflater.finish();
+
+        if((deflated==null)||(deflated.length<rawLength+64)){
+            deflated= new byte[rawLength+(rawLength>>3)+64];
+        }
+
+        int length= 0;
+        while(!deflater.finished()){
+            if(length==deflated.length){
+                byte[] bigger= new byte[2*deflated.length];
+                System.arraycopy(deflated, 0, bigger, 0, length);
+                deflated= bigger;
+            }
+            length+= deflater.deflate(deflated, length, deflated.length-length);
+        }
+
+        ByteBuffer blockHeader= ByteBuffer.allocate(12);
+        blockHeader.putInt(frames);
+        blockHeader.putInt(rawLength);
+        blockHeader.putInt(length);
+        blockHeader.flip();
+
+        writeFully(blockHeader);
+        writeFully(ByteBuffer.wrap(deflated, 0, length));
+    }
+
+
+    /**
+     * writes the header in the layout described above.
+     */
+    private void writeHeader(int numWalkers, int tmax) throws IOException{
+
+        ByteBuffer header;
+
+        if(legacy){
+            header= ByteBuffer.allocate(24);
+
+            header.putDouble(dt*(double)tmax);
+            header.putDouble((double)numWalkers);
+            header.putDouble((double)tmax);
+        }
+        else{
+            header= ByteBuffer.allocate(40+4*recorded.length);
+
+            header.putLong(MAGIC);
+            header.putInt(VERSION);
+            header.putInt((single?FLOAT32:0)|(compress?COMPRESSED:0));
+            header.putInt(tmax);
+            header.putDouble(dt);
+            header.putInt(numWalkers);
+            header.putInt(decimation);
+            header.putInt(recorded.length);
+            for(int k=0; k<recorded.length; k++){
+                header.putInt(recorded[k]);
+            }
+        }
+
+        header.flip();
+
+        writeFully(header);
+    }
+
+
+    private void writeFully(ByteBuffer buf) throws IOException{
+
+        while(buf.hasRemaining()){
+            channel.write(buf);
+        }
+    }
+}
@@ -45,7 +45,7 @@ public class CylindricalSurfaceStepGenerator implements StepGenerator {
     /**
      * random number generator
      */
-    private final MTRandom stepTwister = new MTRandom(CL_Initializer.seed+1273);
+    private final MTRandom stepTwister = new MTRandom(CL_Initializer.walkerSeed()+1273);
     
     /**
      * test constructor. takes only step length
@@ -200,6 +200,13 @@ public class CylindricalSurfaceStepGenerator implements StepGenerator {
         this.cylinder= cylinder;
     }
     
+    /**
+     * @return the generator's own twister
+     */
+    public final MTRandom getTwister(){
+        return stepTwister;
+    }
+    
     /**
      * @see simulation.dynamics.StepGenerator#getType()
      * 
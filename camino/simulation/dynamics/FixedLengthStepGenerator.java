@@ -6,6 +6,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.logging.Logger;
 
+import numerics.CounterRandom;
 import numerics.MTRandom;
 
 import simulation.DiffusionSimulation;
@@ -27,7 +28,7 @@ public class FixedLengthStepGenerator implements StepGenerator {
     
     /** random number generator */
     //private MTRandom stepTwister=new MTRandom((1227293371<<32)|(126345811));
-    MTRandom stepTwister=new MTRandom(CL_Initializer.seed+17);
+    MTRandom stepTwister=new MTRandom(CL_Initializer.walkerSeed()+17);
     
     /** logging object */
     private final Logger logger=Logger.getLogger(this.getClass().getName());
@@ -65,8 +66,13 @@ public class FixedLengthStepGenerator implements StepGenerator {
      * @return vector containing new step
      */
     public double[] getStep(Walker walker) {
+        
+        // walkers with their own random stream also have their own step space
+        final CounterRandom random= (walker!=null)?walker.random:null;
+        final double[] step= (random!=null)?walker.step:this.step;
+        
         if(D==1){
-            if(stepTwister.nextDouble()<0.5){
+            if(nextDouble(random)<0.5){
                 step[0]=-length;
             }
             else{
@@ -74,14 +80,14 @@ public class FixedLengthStepGenerator implements StepGenerator {
             }
         }
         else if(D==2){
-            double theta= 2.0*Math.PI*stepTwister.nextDouble();
+            double theta= 2.0*Math.PI*nextDouble(random);
             
             step[0]=length*Math.cos(theta);
             step[1]=length*Math.sin(theta);
         }
         else if(D==3){
-            double theta= 2.0*Math.PI*stepTwister.nextDouble();
-            double cosPhi = 2.0*stepTwister.nextDouble()-1.0;
+            double theta= 2.0*Math.PI*nextDouble(random);
+            double cosPhi = 2.0*nextDouble(random)-1.0;
             
             double cosTh= Math.cos(theta);
             double sinTh= Math.sin(theta);
@@ -102,6 +108,29 @@ public class FixedLengthStepGenerator implements StepGenerator {
         return step;
     }
 
+    /**
+     * draws a uniform deviate from the walker's stream if it has one,
+     * otherwise from the generator's own twister.
+     * 
+     * @param random walker random stream or null
+     * 
+     * @return uniform deviate on [0,1)
+     */
+    private final double nextDouble(CounterRandom random){
+        if(random!=null){
+            return random.nextDouble();
+        }
+        
+        return stepTwister.nextDouble();
+    }
+    
+    /**
+     * @return the generator's own twister
+     */
+    public final MTRandom getTwister(){
+        return stepTwister;
+    }
+    
     /** 
      * tells the width of the cloning border.
      * in this case this is the just the 
@@ -2,6 +2,7 @@ package simulation.dynamics;
 
 import java.util.logging.Logger;
 
+import numerics.CounterRandom;
 import numerics.MTRandom;
 
 import simulation.DiffusionSimulation;
@@ -36,7 +37,7 @@ public class SpatiallyVaryingStepGenerator implements StepGenerator {
 	private final Substrate substrate;
 	
 	/** random number generator */
-	private final MTRandom stepTwister=new MTRandom(CL_Initializer.seed+17);
+	private final MTRandom stepTwister=new MTRandom(CL_Initializer.walkerSeed()+17);
 	
 	/** space to store next step */
 	private final double[] step= new double[D];
@@ -74,8 +75,12 @@ public class SpatiallyVaryingStepGenerator implements StepGenerator {
 		
 		double length=Math.sqrt(6.0*diff/simParams.getDt());
 		
+        // walkers with their own random stream also have their own step space
+        final CounterRandom random= walker.random;
+        final double[] step= (random!=null)?walker.step:this.step;
+		
         if(D==1){
-            if(stepTwister.nextDouble()<0.5){
+            if(nextDouble(random)<0.5){
                 step[0]=-length;
             }
             else{
@@ -83,14 +88,14 @@ public class SpatiallyVaryingStepGenerator implements StepGenerator {
             }
         }
         else if(D==2){
-            double theta= 2.0*Math.PI*stepTwister.nextDouble();
+            double theta= 2.0*Math.PI*nextDouble(random);
             
             step[0]=length*Math.cos(theta);
             step[1]=length*Math.sin(theta);
         }
         else if(D==3){
-            double theta= 2.0*Math.PI*stepTwister.nextDouble();
-            double cosPhi = 2.0*stepTwister.nextDouble()-1.0;
+            double theta= 2.0*Math.PI*nextDouble(random);
+            double cosPhi = 2.0*nextDouble(random)-1.0;
             
             double cosTh= Math.cos(theta);
             double sinTh= Math.sin(theta);
@@ -111,6 +116,29 @@ public class SpatiallyVaryingStepGenerator implements StepGenerator {
         return step;
 	}
 
+    /**
+     * draws a uniform deviate from the walker's stream if it has one,
+     * otherwise from the generator's own twister.
+     * 
+     * @param random walker random stream or null
+     * 
+     * @return uniform deviate on [0,1)
+     */
+    private final double nextDouble(CounterRandom random){
+        if(random!=null){
+            return random.nextDouble();
+        }
+        
+        return stepTwister.nextDouble();
+    }
+    
+    /**
+     * @return the generator's own twister
+     */
+    public final MTRandom getTwister(){
+        return stepTwister;
+    }
+
 	/**
 	 * returns the type code of the generator
 	 * 
@@ -6,6 +6,7 @@
  */
 package simulation.dynamics;
 
+import numerics.MTRandom;
 import simulation.dynamics.StepGeneratorFactory.StepType;
 
 /**
@@ -43,4 +44,10 @@ public interface StepGenerator {
      * get the sze of a walker for steps of this kind 
      */
      public double getWalkerRadius();
+     
+     /**
+      * get the generator's own random number generator, which is used
+      * for walkers that don't have their own random streams
+      */
+     public MTRandom getTwister();
 }
@@ -41,7 +41,7 @@ public class StickAndDiffuse extends ElasticReflector {
         this.p_stick= SimulationParams.sim_p_stick;
         this.p_unstick= SimulationParams.sim_p_unstick;
         
-        this.surfaceTwister= new MTRandom(CL_Initializer.seed+475620);
+        this.surfaceTwister= new MTRandom(CL_Initializer.walkerSeed()+475620);
         
         this.substrate=(StickyCylinderSubstrate)substrate;
         
@@ -72,7 +72,7 @@ public class StickAndDiffuse extends ElasticReflector {
             // not if we've just hit the cell boundary
             if(!substrate.intersectsBoundary){
 
-                double p= surfaceTwister.nextDouble();
+                double p= (walker.random!=null)?walker.random.nextDouble():surfaceTwister.nextDouble();
                 if(p<p_stick){
                     // if in here, we're sticking. mark our current compartment
                     ((StickyWalker)walker).wasExtracellular= !substrate.intracellular(walker);
@@ -103,7 +103,7 @@ public class StickAndDiffuse extends ElasticReflector {
             }
             
             // check if the walker will leave the surface
-            double p= surfaceTwister.nextDouble();
+            double p= (walker.random!=null)?walker.random.nextDouble():surfaceTwister.nextDouble();
         
             if(p<p_unstick){
                 // free the walker
@@ -1,6 +1,5 @@
 package simulation.dynamics;
 
-import java.io.DataOutputStream;
 import java.util.logging.Logger;
 
 import misc.LoggedException;
@@ -49,7 +48,7 @@ public class StickyWalker extends Walker {
     private final double p_unstick;
 
     /** random number generator for unsticking */
-    private static MTRandom surfaceTwister= new MTRandom(CL_Initializer.seed+27834);
+    private static MTRandom surfaceTwister= new MTRandom(CL_Initializer.walkerSeed()+27834);
     
     /** flag to say whether the spin was initially extracellular or intracellular */
     public boolean wasExtracellular;
@@ -75,13 +74,12 @@ public class StickyWalker extends Walker {
      * @param surfaceStepGen step gen for when bound on the surface
      * @param substrate substrate we're diffusing in
      * @param scan measurement module
-     * @param trajWriter trajectories writer if present
      * @param free flag saying if we're stuck to a surface or not
      */
     public StickyWalker(double[] r0, StepGenerator freeStepGen, StepGenerator surfaceStepGen,
-            Substrate substrate, SyntheticScan scan, DataOutputStream trajWriter, 
+            Substrate substrate, SyntheticScan scan, 
             boolean free, double p_unstick) {
-        super(r0, freeStepGen, substrate, scan, trajWriter);
+        super(r0, freeStepGen, substrate, scan);
 
         this.surfaceStepGen= surfaceStepGen;
         
@@ -152,6 +150,8 @@ public class StickyWalker extends Walker {
             substrate.amend(this, step, t, n, false, null);
             
             makeStep(step);
+            
+            updateCompartment();
         }        
     }
     
@@ -7,17 +7,20 @@
 package simulation.dynamics;
 
 
-import java.io.DataOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.logging.Logger;
 
 import misc.LoggedException;
+import numerics.CounterRandom;
 
 import simulation.DiffusionSimulation;
+import simulation.SimulationParams;
 import simulation.geometry.substrates.StickyCylinderSubstrate;
 import simulation.geometry.substrates.Substrate;
+import simulation.geometry.substrates.TraversalContext;
 import simulation.measurement.AgnosticScan;
+import simulation.measurement.GradientImpulseTable;
 import simulation.measurement.SyntheticScan;
 
 
@@ -62,8 +65,8 @@ public class Walker {
     /** scan object */
     private final SyntheticScan scan;
     
-    /** trajectory output stream (if used) */
-    protected final DataOutputStream trajWriter;
+    /** scan's compiled gradient impulses (null if not available) */
+    private final GradientImpulseTable impulses;
     
     /** space to store phase shifts in each scan direction */
     public final double[] dPhi;
@@ -83,10 +86,65 @@ public class Walker {
     /** counter of reflections*/
     public int reflectionCount= 0;
     
+    /** 
+     * compartment label: true if the walker is intracellular. set once 
+     * the walkers are placed, and kept up to date by the substrate as 
+     * the walker passes through membranes.
+     */
+    public boolean intracellular= false;
+    
+    /** 
+     * set by the substrate when the last step passed through membranes
+     * and the compartment has to be looked up again
+     */
+    public boolean compartmentStale= false;
+    
+    /** 
+     * independent random stream for this walker. null unless the walker
+     * is being updated concurrently with others, in which case it replaces
+     * the shared generators in the step generator and substrate. the
+     * stream is keyed by walker and timestep, and is moved to the right
+     * place at the start of each update.
+     */
+    public CounterRandom random= null;
+    
+    /** 
+     * pool this walker is a cursor for. null for a free-standing walker 
+     * that holds its own state.
+     */
+    private final WalkerPool pool;
+    
+    /** index of the walker in the pool this cursor is bound to */
+    private int index=-1;
+    
+    /** tiled phase accumulator for pooled walkers (created on first use) */
+    private PhaseAccumulator accumulator=null;
+    
+    /** 
+     * timestep whose phases have already been accumulated for a range of
+     * pooled walkers (-1 if none) and the range itself
+     */
+    private int accumulatedStep=-1, accumulatedStart, accumulatedEnd;
+    
+    /** 
+     * skip barrier checks for steps that stay inside the safe radius? 
+     * only if the substrate can give safe radii.
+     */
+    private final boolean useSafeRadius;
+    
+    /** position the safe radius was last found at */
+    private final double[] safeCentre;
+    
+    /** 
+     * distance the walker can move from safeCentre without meeting a 
+     * barrier. zero until the first barrier check.
+     */
+    private double safeRadius=0.0;
+    
     /** public constructor. takes an array of initial coords 
      * @param r0 initial coords array
      */
-    public Walker(double[] r0, StepGenerator stepGen, Substrate substrate, SyntheticScan scan, DataOutputStream trajWriter){
+    public Walker(double[] r0, StepGenerator stepGen, Substrate substrate, SyntheticScan scan){
         
         if(r0.length!=DiffusionSimulation.D){
             logger.severe("dimension mismatch in Walker initialisation");
@@ -101,11 +159,15 @@ public class Walker {
         
         this.R=stepGen.getWalkerRadius();
         
+        this.pool=null;
+        
         this.stepGen=stepGen;
         this.substrate=substrate;
         this.scan=scan;
+        this.impulses=(scan!=null)?scan.getImpulseTable():null;
         
-        this.trajWriter= trajWriter;
+        this.useSafeRadius=SimulationParams.sim_safe_radius&&(substrate!=null)&&substrate.hasSafeRadius();
+        this.safeCentre=new double[D];
 
         if(scan!=null){
         	int numMeas= scan.getNumMeasurements();
@@ -135,6 +197,65 @@ public class Walker {
         
     }
     
+    /**
+     * constructs a cursor onto a walker pool. the cursor has its own 
+     * position and step arrays but its phases and magnetisations live 
+     * in the pool. it must be bound to a walker before it's used.
+     * 
+     * @see WalkerPool#getCursor(StepGenerator, Substrate, SyntheticScan)
+     */
+    Walker(WalkerPool pool, StepGenerator stepGen, Substrate substrate, SyntheticScan scan){
+        
+        this.D=DiffusionSimulation.D;
+        this.r0=new double[D];
+        this.r=new double[D];
+        this.step=new double[D];
+        this.reflectionVec=new double[D];
+        
+        this.R=(stepGen!=null)?stepGen.getWalkerRadius():0.0;
+        
+        this.pool=pool;
+        
+        this.stepGen=stepGen;
+        this.substrate=substrate;
+        this.scan=scan;
+        this.impulses=(scan!=null)?scan.getImpulseTable():null;
+        
+        this.useSafeRadius=SimulationParams.sim_safe_radius&&(substrate!=null)&&substrate.hasSafeRadius();
+        this.safeCentre=new double[D];
+        
+        this.dPhi=null;
+        this.M=null;
+    }
+    
+    /**
+     * constructs a bare walker with space for phases in the given number 
+     * of measurements. used to measure the size of the object layout.
+     * 
+     * @param r0 initial position
+     * @param numMeas number of measurements
+     */
+    Walker(double[] r0, int numMeas){
+        
+        this.D=r0.length;
+        this.r0=r0.clone();
+        this.r=r0.clone();
+        this.reflectionVec=new double[D];
+        
+        this.R=0.0;
+        this.pool=null;
+        this.stepGen=null;
+        this.substrate=null;
+        this.scan=null;
+        this.impulses=null;
+        
+        this.useSafeRadius=false;
+        this.safeCentre=null;
+        
+        this.dPhi=new double[numMeas];
+        this.M=new double[numMeas];
+    }
+    
     /**
      * initialises a walker without a step generator. this is for testing
      * purposes only and WILL NOT WORK FOR A FULL SIMULATION.
@@ -144,7 +265,7 @@ public class Walker {
      */
     public Walker(double[] r0){
 
-    	this(r0, null, null, null, null);
+    	this(r0, null, null, null);
 
     	logger.warning("walker intantiated without step generator, substrate or scan.\nfull simulation update NOT POSSIBLE.");
     	
@@ -159,7 +280,7 @@ public class Walker {
      */
     public Walker(double[] r0, Substrate substrate){
 
-        this(r0, null, substrate, null, null);
+        this(r0, null, substrate, null);
 
     }
     
@@ -172,40 +293,110 @@ public class Walker {
      */
     public Walker(double[] r0, StepGenerator stepGen){
 
-        this(r0, stepGen, null, null, null);
+        this(r0, stepGen, null, null);
 
     }
     
     
     
+    /**
+     * gives this walker its own random stream and step vector so that
+     * its updates don't depend on any other walker. This means that walkers
+     * can be updated in any order, or on different threads, and the 
+     * trajectory of each will be the same.
+     * 
+     * @param random the walker's random number generator
+     */
+    public final void setRandomStream(CounterRandom random){
+        this.random= random;
+        this.step= new double[D];
+    }
+    
+    
+    /**
+     * binds this cursor to a walker in its pool, copying the walker's
+     * position into the cursor. changes aren't seen by the pool
+     * until store() is called.
+     * 
+     * @param i index of walker in pool
+     * 
+     * @return this cursor
+     */
+    public final Walker bind(int i){
+        
+        final int N= pool.N;
+        
+        for(int j=0; j<D; j++){
+            r[j]=pool.r[j*N+i];
+            r0[j]=pool.r0[j*N+i];
+            reflectionVec[j]=pool.reflectionVec[j*N+i];
+        }
+        reflectionCount=pool.reflectionCount[i];
+        intracellular=pool.intracellular[i];
+        tLast=pool.tLast[i];
+        if(useSafeRadius){
+        	for(int j=0; j<D; j++){
+        		safeCentre[j]=pool.safeCentre[j*N+i];
+        	}
+        	safeRadius=pool.safeRadius[i];
+        }
+        if(pool.hasRandomStreams()){
+        	// streams are keyed by walker and timestep, so one generator serves them all
+        	if(random==null){
+        		random=new CounterRandom(pool.getRandomSeed());
+        	}
+        }
+        else{
+        	random=null;
+        }
+        
+        index=i;
+        
+        return this;
+    }
+    
+    /**
+     * writes this cursor's position back to the walker it's bound to.
+     */
+    public final void store(){
+        
+        final int N= pool.N;
+        
+        for(int j=0; j<D; j++){
+            pool.r[j*N+index]=r[j];
+            pool.r0[j*N+index]=r0[j];
+            pool.reflectionVec[j*N+index]=reflectionVec[j];
+        }
+        pool.reflectionCount[index]=reflectionCount;
+        pool.intracellular[index]=intracellular;
+        pool.tLast[index]=tLast;
+        if(useSafeRadius){
+        	for(int j=0; j<D; j++){
+        		pool.safeCentre[j*N+index]=safeCentre[j];
+        	}
+        	pool.safeRadius[index]=safeRadius;
+        }
+    }
+    
+    
     /**
      * update walkers position.
      *
      */
     public void update(double t, int ti, int i, boolean report){
         
-    	if(trajWriter!=null){
-        	try{
-        		trajWriter.writeDouble(t);
-        		trajWriter.writeDouble(i);
-        		for(int j=0; j<D; j++){
-        			trajWriter.writeDouble(r[j]);
-        		}
-        	}
-        	catch(IOException ioe){
-        		throw new RuntimeException(ioe);
-        	}
+    	if(random!=null){
+    		// this walker's stream for this timestep
+    		random.setStream(i, ti);
     	}
     	
-        if(scan!=null){
+        if((scan!=null)&&(pool!=null)){
+        	// accumulate straight into the pool
+        	accumulatePhases(t, ti, pool.dPhi, pool.logM, index, pool.N, pool.numMeas);
+        }
+        else if(scan!=null){
         	// get phase and magnetisation from scan
-        	for(int j=0; j<dPhi.length; j++){
-        		dPhi[j]+=scan.getPhaseShift(this, t, j, tLast);
-        		dPhi[j]=AgnosticScan.mapToCircle(dPhi[j]);
-        		M[j]+=substrate.getLogMagnetisationChange(this, t, tLast);
-           	}
-        	        	
-        	tLast=t;
+        	accumulatePhases(t, ti, dPhi, M, 0, 1, dPhi.length);
         }        
         
         //logger.info("Initial position: "+r[0]+", "+r[1]+", "+r[2]);
@@ -214,6 +405,9 @@ public class Walker {
     	
         boolean stepOk=false;
         int counter=0;
+        
+        // did the step stay inside the safe radius?
+        boolean safe=false;
 
         FileWriter debugWriter=null;
         
@@ -270,14 +464,26 @@ public class Walker {
 		    	    }
 	    	    }
     	    
-            // interact with substrate
-            stepOk=substrate.amend(this, step, t, i, report, debugWriter);
+            // interact with substrate, unless the step can't reach a barrier
+            if(useSafeRadius&&!report&&insideSafeRadius(step)){
+            	safe=true;
+            	stepOk=true;
+            }
+            else{
+            	stepOk=substrate.amend(this, step, t, i, report, debugWriter);
+            }
             counter++;
         }
         
         // make the step 
         makeStep(step);
         
+        if(useSafeRadius){
+        	updateSafeRadius(safe);
+        }
+        
+        updateCompartment();
+        
         if(report){
         	logger.info("closing debug report");
         	try{
@@ -294,6 +500,83 @@ public class Walker {
     }
 
     
+    /**
+     * accumulates this timestep's phases for a range of pooled walkers in
+     * one go. subsequent updates of walkers in the range only accumulate
+     * their magnetisations. if the range can't be done in one go (no 
+     * impulse table, or walkers out of step with it) the walkers accumulate
+     * their own phases as usual.
+     * 
+     * @param t current time
+     * @param ti timestep index
+     * @param start index of first walker in range
+     * @param end index after last walker in range
+     */
+    public final void accumulatePoolPhases(double t, int ti, int start, int end){
+    	
+    	if(accumulator==null){
+    		accumulator= new PhaseAccumulator();
+    	}
+    	
+    	if((scan!=null)&&accumulator.accumulate(pool, impulses, ti, t, start, end)){
+    		accumulatedStep=ti;
+    		accumulatedStart=start;
+    		accumulatedEnd=end;
+    	}
+    	else{
+    		accumulatedStep=-1;
+    	}
+    }
+    
+    
+    /**
+     * adds the phase and magnetisation changes since the last update to
+     * this walker's totals. phases and magnetisations are strided so that
+     * the same code serves free-standing and pooled walkers.
+     * 
+     * If the scan has compiled its gradient impulses, only measurements
+     * with a non-zero impulse in this timestep are touched. The others
+     * would add zero phase, and mapping an already mapped phase back onto
+     * the circle leaves it unchanged.
+     * 
+     * @param t current time
+     * @param ti timestep index
+     * @param phi phase array
+     * @param logM log magnetisation array
+     * @param offset index of the first measurement in the arrays
+     * @param stride distance between consecutive measurements
+     * @param numMeas number of measurements
+     */
+    private void accumulatePhases(double t, int ti, double[] phi, double[] logM, int offset, int stride, int numMeas){
+    	
+    	if((impulses!=null)&&impulses.covers(ti, t, tLast)){
+    		if((ti!=accumulatedStep)||(index<accumulatedStart)||(index>=accumulatedEnd)){
+    			final int end= impulses.rowEnd(ti);
+    		
+    			for(int k=impulses.rowStart(ti); k<end; k++){
+    				int m= offset+impulses.getMeasurement(k)*stride;
+    			
+    				phi[m]+=impulses.getPhaseShift(k, r, r0);
+    				phi[m]=AgnosticScan.mapToCircle(phi[m]);
+    			}
+    		}
+    		
+    		for(int j=0, m=offset; j<numMeas; j++, m+=stride){
+    			logM[m]+=substrate.getLogMagnetisationChange(this, t, tLast);
+    		}
+    	}
+    	else{
+    		for(int j=0, m=offset; j<numMeas; j++, m+=stride){
+    			phi[m]+=scan.getPhaseShift(this, t, j, tLast);
+    			phi[m]=AgnosticScan.mapToCircle(phi[m]);
+    			logM[m]+=substrate.getLogMagnetisationChange(this, t, tLast);
+    		}
+    	}
+    	
+    	tLast=t;
+    }
+    
+    
     /**
      * returns the phase shift due to diffusion weighting in 
      * a specified direction. no distinction is made between
@@ -304,6 +587,9 @@ public class Walker {
      * @return dPhi[i]
      */
     public final double getPhaseShift(int i){
+    	if(pool!=null){
+    		return pool.dPhi[i*pool.N+index];
+    	}
     	return dPhi[i];
     }
     
@@ -314,9 +600,129 @@ public class Walker {
      * @return M[i]
      */
     public final double getLogMagnetisation(int i){
+    	if(pool!=null){
+    		return pool.logM[i*pool.N+index];
+    	}
     	return M[i];
     }
     
+    /**
+     * copies this walker's state into a slot in a walker pool, so that
+     * a simulation of walker objects can be checkpointed in the same 
+     * layout as a pooled one. Only for walkers that aren't cursors.
+     * 
+     * @param to the pool to copy into
+     * @param i slot in the pool
+     */
+    public final void saveState(WalkerPool to, int i){
+    	
+    	final int N= to.N;
+    	
+    	for(int j=0; j<D; j++){
+    		to.r[j*N+i]=r[j];
+    		to.r0[j*N+i]=r0[j];
+    		to.reflectionVec[j*N+i]=reflectionVec[j];
+    	}
+    	for(int m=0; m<to.numMeas; m++){
+    		to.dPhi[m*N+i]=dPhi[m];
+    		to.logM[m*N+i]=M[m];
+    	}
+    	to.reflectionCount[i]=reflectionCount;
+    	to.intracellular[i]=intracellular;
+    	to.tLast[i]=tLast;
+    }
+    
+    /**
+     * restores this walker's state from a slot in a walker pool. the
+     * reverse of saveState().
+     * 
+     * @param from the pool to copy from
+     * @param i slot in the pool
+     */
+    public final void loadState(WalkerPool from, int i){
+    	
+    	final int N= from.N;
+    	
+    	for(int j=0; j<D; j++){
+    		r[j]=from.r[j*N+i];
+    		r0[j]=from.r0[j*N+i];
+    		reflectionVec[j]=from.reflectionVec[j*N+i];
+    	}
+    	for(int m=0; m<from.numMeas; m++){
+    		dPhi[m]=from.dPhi[m*N+i];
+    		M[m]=from.logM[m*N+i];
+    	}
+    	reflectionCount=from.reflectionCount[i];
+    	intracellular=from.intracellular[i];
+    	compartmentStale=false;
+    	tLast=from.tLast[i];
+    	
+    	// found again after the first step
+    	safeRadius=0.0;
+    }
+    
+    /**
+     * checks if a step would leave the walker inside its safe radius, in 
+     * which case it can't meet a barrier. positions only change by steps,
+     * so the walker is always inside it before the step.
+     * 
+     * @param step the step
+     * 
+     * @return true if the end of the step is inside the safe radius
+     */
+    private boolean insideSafeRadius(double[] step){
+    	
+    	if(safeRadius<=0.0){
+    		return false;
+    	}
+    	
+    	double distSq=0.0;
+    	for(int j=0; j<D; j++){
+    		double x=r[j]+step[j]-safeCentre[j];
+    		distSq+=x*x;
+    	}
+    	
+    	return distSq<safeRadius*safeRadius;
+    }
+    
+    /**
+     * counts the step just made and, if it was checked against the 
+     * barriers, finds the safe radius again at the new position.
+     * 
+     * @param safe true if the step stayed inside the safe radius
+     */
+    private void updateSafeRadius(boolean safe){
+    	
+    	final TraversalContext context=substrate.getContext();
+    	
+    	if(safe){
+    		context.safeSteps++;
+    		return;
+    	}
+    	
+    	context.testedSteps++;
+    	
+    	safeRadius=substrate.getSafeRadius(this);
+    	for(int j=0; j<D; j++){
+    		safeCentre[j]=r[j];
+    	}
+    }
+    
+    /**
+     * looks up the walker's compartment again if the last step left it
+     * stale. the substrate usually keeps the label up to date itself, so
+     * this only happens after steps through membranes that don't simply
+     * switch compartment.
+     */
+    protected final void updateCompartment(){
+        
+        if(compartmentStale){
+            intracellular= substrate.intracellular(this);
+            compartmentStale= false;
+        }
+    }
+    
+    
     /** make a specified step
      * @param step the step vector
      */
@@ -1,6 +1,5 @@
 package simulation.dynamics;
 
-import java.io.DataOutputStream;
 import java.util.logging.Logger;
 
 import simulation.SimulationParams;
@@ -29,7 +28,7 @@ public class WalkerFactory {
      * constructs the correct type of walker for the desired simulation 
      */
     public static final Walker getWalker(double[] r0, StepGenerator stepGen, Substrate substrate, 
-                                    SyntheticScan synthScan, DataOutputStream trajWriter, SimulationParams simParams){
+                                    SyntheticScan synthScan, SimulationParams simParams){
         
         if(SimulationParams.sim_geomType==SubstrateFactory.SubstrateType.CYL_1_STICKY){
             
@@ -44,11 +43,11 @@ public class WalkerFactory {
             // get surface step generator (singleton)
             StepGenerator csStepGen= new CylindricalSurfaceStepGenerator(simParams, (StickyCylinderSubstrate)substrate);
             
-            return new StickyWalker(r0, stepGen, csStepGen, substrate, synthScan, trajWriter, 
+            return new StickyWalker(r0, stepGen, csStepGen, substrate, synthScan, 
                     true, SimulationParams.sim_p_unstick);
         }
         else{
-            return new Walker(r0, stepGen, substrate, synthScan, trajWriter);
+            return new Walker(r0, stepGen, substrate, synthScan);
         }
     }
 }
@@ -0,0 +1,375 @@
+package simulation.dynamics;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import misc.LoggedException;
+import numerics.CounterRandom;
+
+import simulation.DiffusionSimulation;
+import simulation.geometry.substrates.Substrate;
+import simulation.measurement.SyntheticScan;
+
+/**
+ * structure-of-arrays store for the state of all walkers in a
+ * simulation. Instead of one Walker object per spin, each with its
+ * own small arrays, positions, initial positions, phases and log
+ * magnetisations are held in a few large primitive arrays indexed
+ * by walker.
+ *
+ * Positions are stored component-major, so the j-th coordinate of
+ * walker i is at r[j*N+i]. Phases and log magnetisations are stored
+ * measurement-major, so the phase of walker i in measurement m is at
+ * dPhi[m*N+i]. Sums over walkers for a given measurement therefore
+ * run along contiguous memory.
+ *
+ * Step generators and substrates still work with Walker objects. A
+ * pool hands out cursors, which are walkers that are bound to one
+ * index of the pool at a time. Binding copies a walker's position
+ * into the cursor, and storing writes it back again. Each thread
+ * that updates walkers needs its own cursor.
+ *
+ */
+public class WalkerPool {
+
+    /** logging object */
+    private static final Logger logger= Logger.getLogger("simulation.dynamics.WalkerPool");
+
+    /** dimensionality of space */
+    private static final int D= DiffusionSimulation.D;
+
+    /** number of walkers in the pool */
+    public final int N;
+
+    /** number of measurements accumulated per walker */
+    public final int numMeas;
+
+    /** current positions, component-major */
+    public final double[] r;
+
+    /** initial positions, component-major */
+    public final double[] r0;
+
+    /** accumulated phases, measurement-major */
+    public final double[] dPhi;
+
+    /** accumulated log magnetisations, measurement-major */
+    public final double[] logM;
+
+    /** reflection vectors for point-reflecting boundaries, component-major */
+    public final double[] reflectionVec;
+
+    /** reflection counters */
+    public final int[] reflectionCount;
+
+    /** compartment labels, true if intracellular */
+    public final boolean[] intracellular;
+
+    /** time each walker last queried the scan */
+    public final double[] tLast;
+
+    /** position each walker's safe radius was found at, component-major */
+    public final double[] safeCentre;
+
+    /** safe radius of each walker (zero if not known) */
+    public final double[] safeRadius;
+
+    /** true if walkers have their own random streams */
+    private boolean randomStreams= false;
+
+    /** seed for per-walker random streams */
+    private long randomSeed= 0L;
+
+
+    /**
+     * constructor. allocates space for the given number of walkers and
+     * measurements. all positions, phases and magnetisations are zero.
+     *
+     * @param N number of walkers
+     * @param numMeas number of measurements (zero if there's no scan)
+     */
+    public WalkerPool(int N, int numMeas){
+
+        if((long)N*Math.max(numMeas, D)>Integer.MAX_VALUE){
+            throw new LoggedException("walker pool of "+N+" walkers with "+numMeas+
+                    " measurements is too large for a single array");
+        }
+
+        this.N= N;
+        this.numMeas= numMeas;
+
+        this.r= new double[D*N];
+        this.r0= new double[D*N];
+        this.dPhi= new double[numMeas*N];
+        this.logM= new double[numMeas*N];
+        this.reflectionVec= new double[D*N];
+        this.reflectionCount= new int[N];
+        this.intracellular= new boolean[N];
+        this.tLast= new double[N];
+        this.safeCentre= new double[D*N];
+        this.safeRadius= new double[N];
+
+        logger.info("walker pool of "+N+" walkers, "+numMeas+" measurements, approx "
+                +(getHeapBytes()>>20)+" MB");
+    }
+
+
+    /**
+     * sets the initial and current position of a walker
+     *
+     * @param i walker index
+     * @param pos position (copied)
+     */
+    public final void setPosition(int i, double[] pos){
+
+        for(int j=0; j<D; j++){
+            r[j*N+i]= pos[j];
+            r0[j*N+i]= pos[j];
+        }
+        safeRadius[i]= 0.0;
+    }
+
+
+    /**
+     * resets all walkers to zero phase and magnetisation, ready for a 
+     * new set of initial positions.
+     */
+    public final void clear(){
+        
+        Arrays.fill(dPhi, 0.0);
+        Arrays.fill(logM, 0.0);
+        Arrays.fill(reflectionVec, 0.0);
+        Arrays.fill(reflectionCount, 0);
+        Arrays.fill(intracellular, false);
+        Arrays.fill(tLast, 0.0);
+        Arrays.fill(safeRadius, 0.0);
+        
+        randomStreams= false;
+    }
+
+
+    /**
+     * gives every walker its own random stream. streams are counter-based
+     * and keyed by walker and timestep, so nothing is stored per walker.
+     *
+     * @param seed seed for the streams
+     */
+    public final void setRandomSeed(long seed){
+
+        randomStreams= true;
+        randomSeed= seed;
+    }
+
+
+    /**
+     * @return true if walkers have their own random streams
+     */
+    final boolean hasRandomStreams(){
+        return randomStreams;
+    }
+
+
+    /**
+     * @return seed for per-walker random streams
+     */
+    final long getRandomSeed(){
+        return randomSeed;
+    }
+
+
+    /**
+     * @param i walker index
+     * @param m measurement index
+     *
+     * @return accumulated phase of walker i in measurement m
+     */
+    public final double getPhaseShift(int i, int m){
+        return dPhi[m*N+i];
+    }
+
+
+    /**
+     * @param i walker index
+     * @param m measurement index
+     *
+     * @return log magnetisation of walker i in measurement m
+     */
+    public final double getLogMagnetisation(int i, int m){
+        return logM[m*N+i];
+    }
+
+
+    /**
+     * @param i walker index
+     * @param j coordinate index
+     *
+     * @return displacement of walker i from its initial position along axis j
+     */
+    public final double getDisplacement(int i, int j){
+        return r[j*N+i]-r0[j*N+i];
+    }
+
+
+    /**
+     * copies the state of every walker from another pool of the same 
+     * size. per-walker random stream settings aren't copied.
+     *
+     * @param from the pool to copy from
+     */
+    public final void copyFrom(WalkerPool from){
+
+        if((from.N!=N)||(from.numMeas!=numMeas)){
+            throw new LoggedException("can't copy a pool of "+from.N+" walkers and "+from.numMeas+
+                    " measurements into one of "+N+" walkers and "+numMeas);
+        }
+
+        System.arraycopy(from.r, 0, r, 0, r.length);
+        System.arraycopy(from.r0, 0, r0, 0, r0.length);
+        System.arraycopy(from.dPhi, 0, dPhi, 0, dPhi.length);
+        System.arraycopy(from.logM, 0, logM, 0, logM.length);
+        System.arraycopy(from.reflectionVec, 0, reflectionVec, 0, reflectionVec.length);
+        System.arraycopy(from.reflectionCount, 0, reflectionCount, 0, N);
+        System.arraycopy(from.intracellular, 0, intracellular, 0, N);
+        System.arraycopy(from.tLast, 0, tLast, 0, N);
+        System.arraycopy(from.safeCentre, 0, safeCentre, 0, safeCentre.length);
+        System.arraycopy(from.safeRadius, 0, safeRadius, 0, N);
+    }
+
+
+    /**
+     * constructs a cursor for this pool. the cursor isn't bound to any
+     * walker until bind() is called on it.
+     *
+     * @param stepGen step generator
+     * @param substrate substrate
+     * @param scan synthetic scan (may be null)
+     *
+     * @return a new, unbound cursor
+     */
+    public final Walker getCursor(StepGenerator stepGen, Substrate substrate,
+            SyntheticScan scan){
+
+        return new Walker(this, stepGen, substrate, scan);
+    }
+
+
+    /**
+     * approximate heap occupied by the pool's arrays
+     *
+     * @return size in bytes
+     */
+    public final long getHeapBytes(){
+
+        long doubles= 4L*D*N + 2L*numMeas*N + 2L*N;
+        long ints= N;
+
+        return 8L*doubles + 4L*ints + N;
+    }
+
+
+    /**
+     * compares the heap used by an array of Walker objects with a walker
+     * pool of the same size, and the time taken to sum cos(phase) over all
+     * walkers for each measurement, which is what the scan does at the end
+     * of a simulation.
+     *
+     * usage: WalkerPool [N] [numMeas]
+     */
+    public static void main(String[] args){
+
+        int N= (args.length>0)?Integer.parseInt(args[0]):1000000;
+        int numMeas= (args.length>1)?Integer.parseInt(args[1]):100;
+
+        double[] pos= new double[D];
+        Runtime rt= Runtime.getRuntime();
+
+        // object layout
+        long before= usedHeap(rt);
+        Walker[] walker= new Walker[N];
+        for(int i=0; i<N; i++){
+            pos[0]=i;
+            walker[i]= new Walker(pos, numMeas);
+            walker[i].setRandomStream(new CounterRandom(i));
+        }
+        long objectHeap= usedHeap(rt)-before;
+
+        double sum= sumSignals(walker, numMeas);
+
+        long start= System.nanoTime();
+        for(int rep=0; rep<5; rep++){
+            sum+= sumSignals(walker, numMeas);
+        }
+        double objectTime= (System.nanoTime()-start)/5e9;
+
+        walker= null;
+
+        // pool layout
+        before= usedHeap(rt);
+        WalkerPool pool= new WalkerPool(N, numMeas);
+        for(int i=0; i<N; i++){
+            pos[0]=i;
+            pool.setPosition(i, pos);
+        }
+        pool.setRandomSeed(0L);
+        long poolHeap= usedHeap(rt)-before;
+
+        sum+= sumSignals(pool);
+
+        start= System.nanoTime();
+        for(int rep=0; rep<5; rep++){
+            sum+= sumSignals(pool);
+        }
+        double poolTime= (System.nanoTime()-start)/5e9;
+
+        System.err.println(N+" walkers, "+numMeas+" measurements ("+sum+")");
+        System.err.println("Walker[]:   heap "+(objectHeap>>20)+" MB, phase sum "+objectTime+" s");
+        System.err.println("WalkerPool: heap "+(poolHeap>>20)+" MB, phase sum "+poolTime+" s");
+    }
+
+
+    /**
+     * sums the real part of the signal over all walker objects
+     */
+    private static double sumSignals(Walker[] walker, int numMeas){
+
+        double sum=0.0;
+
+        for(int m=0; m<numMeas; m++){
+            for(int i=0; i<walker.length; i++){
+                sum+= Math.cos(walker[i].getPhaseShift(m));
+            }
+        }
+
+        return sum;
+    }
+
+
+    /**
+     * sums the real part of the signal over all walkers in a pool
+     */
+    private static double sumSignals(WalkerPool pool){
+
+        double sum=0.0;
+
+        for(int m=0; m<pool.numMeas; m++){
+            for(int i=0; i<pool.N; i++){
+                sum+= Math.cos(pool.getPhaseShift(i, m));
+            }
+        }
+
+        return sum;
+    }
+
+
+    /**
+     * @return heap in use after a garbage collection
+     */
+    private static long usedHeap(Runtime rt){
+
+        for(int i=0; i<3; i++){
+            System.gc();
+        }
+
+        return rt.totalMemory()-rt.freeMemory();
+    }
+}
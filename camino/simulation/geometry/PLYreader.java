@@ -1,10 +1,13 @@
 package simulation.geometry;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -13,6 +16,7 @@ import java.util.logging.Logger;
 
 import simulation.DiffusionSimulation;
 import simulation.geometry.elements.Triangle;
+import simulation.geometry.elements.TriangleMesh;
 
 import misc.LoggedException;
 
@@ -20,385 +24,1025 @@ public class PLYreader {
 
     /** logging object */
 	private static Logger logger = Logger.getLogger("simulation.geometry.PLYreader");
-	
+
+	/** dimensionality of space */
+	private static final int D= DiffusionSimulation.D;
+
+	/** size of the buffer used to read files */
+	private static final int BUFFER_SIZE= 1<<20;
+
+	/** file formats */
+	private static final int ASCII= 0;
+	private static final int BINARY_LITTLE_ENDIAN= 1;
+	private static final int BINARY_BIG_ENDIAN= 2;
+
 	/** is the object a closed surface (specified in file header) */
 	public static boolean closedSurface= false;
-	
+
 	/**
 	 * during the read process we construct a list of triangles
 	 * that are subdivisions of a single polygon (eg. the two
 	 * triangles that make up a square face on a cube). These
 	 * are used to prevent the same face being multiply counted
-	 * when intersections are with the common border of the 
+	 * when intersections are with the common border of the
 	 * triangles.
-	 * 
+	 *
 	 * This is only useful when doing the interior/exterior check
 	 * and is not referenced during the normal intersection check.
 	 */
 	private static HashMap<Triangle, ArrayList<Triangle>> coplanarMap=null;
-	
+
 	/**
-	 * static method to read a named PLY format file, parse the 
-	 * contents and return a <code>Collection</code> of 
+	 * static method to read a named PLY format file, parse the
+	 * contents and return a <code>Collection</code> of
 	 * <code>Triangle</code> objects.
-	 * 
-	 * Currently this only works with ascii PLY files and will
-	 * ignore anything other than vertex and connectivity 
-	 * information.
-	 * 
-	 * 
+	 *
+	 * the triangles are views onto the mesh returned by readMesh()
+	 * and share their vertices.
+	 *
 	 * @param fname
 	 * @return collection of triangles read from the file
 	 */
 	public static final Collection<Triangle> readPLYfile(String PLYname, double scale, double p){
 
-		/** dimensionality of space */
-		final int D= DiffusionSimulation.D;
-		
-		/** somewhere to put the triangles */
-		Collection<Triangle> triangle;
-		
-		/** file reader capable of getting one line at a time */
-		BufferedReader plyFile;
-		
-		/** string to store each line read for file */
-		String line;
-		
-		/** string to store tokens in each line */
-		String nextToken=null;
-		
-		/** tokeniser to break line into elements */
-		StringTokenizer tokeniser;
-		
-		/** number of vertices in model */
-		int numVertices=0;
-		
-		/** number of faces (in general not same as number of triangles) */
-		int numFaces=0;
-		
-		/** array of vertex coordinates */
-		double[][] vertex;
-		
-		/** flag of whether we have per-triangle permeability */
-		boolean permFlag=false;
-		
-		
+		TriangleMesh mesh= readMesh(PLYname, scale, p);
+
+		Triangle[] triangle= mesh.getTriangles();
+
+		coplanarMap= mesh.getCoplanarMap(triangle);
+
+		return new ArrayList<Triangle>(Arrays.asList(triangle));
+	}
+
+
+	/**
+	 * reads a PLY file into an indexed triangle mesh. ascii and both
+	 * binary formats are understood. vertex positions are read from
+	 * the x, y and z properties and faces from the vertex_indices list;
+	 * other properties and elements are skipped.
+	 *
+	 * faces with four vertices are split into two triangles, larger
+	 * polygons are star-triangulated about the mean of their vertices,
+	 * which is added to the mesh as a new vertex.
+	 *
+	 * if the header contains the comment "closed surface", closedSurface
+	 * is set. if it contains "multiple permeabilities", each face has a
+	 * permeability following its vertex indices. a face property called
+	 * "permeability" is read in either case.
+	 *
+	 * @param PLYname name of file
+	 * @param scale vertex coordinates are divided by this
+	 * @param p permeability of faces without their own
+	 *
+	 * @return the mesh
+	 */
+	public static final TriangleMesh readMesh(String PLYname, double scale, double p){
+
+		PLYinput in;
+
 		// open file
 		try{
-			plyFile= new BufferedReader(new FileReader(PLYname));
+			in= new PLYinput(new FileInputStream(PLYname).getChannel());
 		}
 		catch(IOException ioe){
 			throw new LoggedException(ioe);
 		}
-		
-		// reader the first line
+
 		try{
-			// check the first line of the PLY file
-			line= plyFile.readLine();
-			
-			if(!line.equalsIgnoreCase("ply")){
-				throw new LoggedException(PLYname+" is not a PLY file");
-			}
+			return readMesh(in, PLYname, scale, p);
 		}
 		catch(IOException ioe){
 			throw new LoggedException(ioe);
 		}
-		
+		finally{
+			try{
+				in.close();
+			}
+			catch(IOException ioe){
+				throw new LoggedException(ioe);
+			}
+		}
+	}
+
+
+	/**
+	 * reads the header and body of a PLY file
+	 */
+	private static final TriangleMesh readMesh(PLYinput in, String PLYname, double scale, double p) throws IOException{
+
+		/** file format */
+		int format=-1;
+
+		/** elements in the order they appear in the file */
+		ArrayList<Element> elements= new ArrayList<Element>();
+
+		/** flag of whether we have per-triangle permeability */
+		boolean permFlag=false;
+
+		closedSurface= false;
+
+		// check the first line of the PLY file
+		String line= in.readLine();
+		if((line==null)||!line.trim().equalsIgnoreCase("ply")){
+			throw new LoggedException(PLYname+" is not a PLY file");
+		}
+
 		// read the header
-		try{
-			logger.info("reading PLY header");
-			line=plyFile.readLine();
-			while(line!=null){
-				tokeniser=new StringTokenizer(line, " ");
-				while(tokeniser.hasMoreTokens()){
-					nextToken= tokeniser.nextToken();
-					if(nextToken.equalsIgnoreCase("element")){
-						nextToken= tokeniser.nextToken();
-						if(nextToken.equalsIgnoreCase("vertex")){
-							nextToken= tokeniser.nextToken();
-							numVertices= Integer.parseInt(nextToken);
-						}
-						if(nextToken.equalsIgnoreCase("face")){
-							nextToken= tokeniser.nextToken();
-							numFaces= Integer.parseInt(nextToken);
-						}
-					}
-					if(nextToken.equalsIgnoreCase("comment")){
-					    nextToken= tokeniser.nextToken();
-					    if(nextToken.equalsIgnoreCase("closed")){
-					        nextToken= tokeniser.nextToken();
-					        if(nextToken.equalsIgnoreCase("surface")){
-					            logger.info("object forms a closed surface");
-					            PLYreader.closedSurface= true;
-					        }
-					    }
-					    else if(nextToken.equalsIgnoreCase("multiple")) {
-					    		nextToken= tokeniser.nextToken();
-					    		if(nextToken.equalsIgnoreCase("permeabilities")) {
-					    			logger.info("reading in per-triangle permeability");
-					    			permFlag= true;
-					    		}
-					    }
+		logger.info("reading PLY header");
+		while(true){
+			line= in.readLine();
+
+			if(line==null){
+				throw new LoggedException("end of file in header of "+PLYname);
+			}
+
+			StringTokenizer tokeniser= new StringTokenizer(line);
+			if(!tokeniser.hasMoreTokens()){
+				continue;
+			}
+
+			String keyword= tokeniser.nextToken();
+
+			if(keyword.equalsIgnoreCase("end_header")){
+				logger.info("end of header");
+				break;
+			}
+
+			if(keyword.equalsIgnoreCase("format")){
+				String fmt= tokeniser.nextToken();
+
+				if(fmt.equalsIgnoreCase("ascii")){
+					format= ASCII;
+				}
+				else if(fmt.equalsIgnoreCase("binary_little_endian")){
+					format= BINARY_LITTLE_ENDIAN;
+				}
+				else if(fmt.equalsIgnoreCase("binary_big_endian")){
+					format= BINARY_BIG_ENDIAN;
+				}
+				else{
+					throw new LoggedException("unknown PLY format '"+fmt+"' in "+PLYname);
+				}
+			}
+			else if(keyword.equalsIgnoreCase("element")){
+				String name= tokeniser.nextToken();
+				long count= Long.parseLong(tokeniser.nextToken());
+
+				if(count>Integer.MAX_VALUE){
+					throw new LoggedException("too many "+name+" elements in "+PLYname);
+				}
+
+				elements.add(new Element(name, (int)count));
+			}
+			else if(keyword.equalsIgnoreCase("property")){
+				if(elements.isEmpty()){
+					throw new LoggedException("property before first element in "+PLYname);
+				}
+
+				Element elem= elements.get(elements.size()-1);
+				String type= tokeniser.nextToken();
+
+				if(type.equalsIgnoreCase("list")){
+					int countType= typeOf(tokeniser.nextToken(), PLYname);
+					int itemType= typeOf(tokeniser.nextToken(), PLYname);
+
+					elem.add(new Property(tokeniser.nextToken(), countType, itemType));
+				}
+				else{
+					elem.add(new Property(tokeniser.nextToken(), typeOf(type, PLYname), -1));
+				}
+			}
+			else if(keyword.equalsIgnoreCase("comment")){
+				String first= tokeniser.hasMoreTokens()?tokeniser.nextToken():"";
+				String second= tokeniser.hasMoreTokens()?tokeniser.nextToken():"";
+
+				if(first.equalsIgnoreCase("closed")&&second.equalsIgnoreCase("surface")){
+		            logger.info("object forms a closed surface");
+		            closedSurface= true;
+				}
+				else if(first.equalsIgnoreCase("multiple")&&second.equalsIgnoreCase("permeabilities")){
+	    			logger.info("reading in per-triangle permeability");
+	    			permFlag= true;
+				}
+			}
+		}
+
+		if(format<0){
+			throw new LoggedException("no format line in header of "+PLYname);
+		}
+
+		if(format!=ASCII){
+			in.setOrder((format==BINARY_LITTLE_ENDIAN)?ByteOrder.LITTLE_ENDIAN:ByteOrder.BIG_ENDIAN);
+		}
+
+		logger.info("reading mesh data ("+((format==ASCII)?"ascii":"binary")+")");
+
+		MeshBuilder mesh= null;
+		double[] vertex= null;
+
+		for(Iterator<Element> elemIt= elements.iterator(); elemIt.hasNext(); ){
+
+			Element elem= elemIt.next();
+
+			if(elem.name.equalsIgnoreCase("vertex")){
+				vertex= readVertices(in, elem, format, scale);
+			}
+			else if(elem.name.equalsIgnoreCase("face")){
+				if(vertex==null){
+					throw new LoggedException("faces before vertices in "+PLYname);
+				}
+
+				mesh= new MeshBuilder(vertex, elem.count, p);
+				readFaces(in, elem, format, permFlag, mesh);
+			}
+			else{
+				skipElement(in, elem, format);
+			}
+		}
+
+		if(mesh==null){
+			throw new LoggedException("no faces in "+PLYname);
+		}
+
+		logger.info("read and constructed "+mesh.numFaces+" faces using "+mesh.numTriangles+" triangles");
+
+		return mesh.toMesh();
+	}
+
+
+	/**
+	 * reads the vertex element
+	 *
+	 * @return vertex coordinates, D per vertex
+	 */
+	private static final double[] readVertices(PLYinput in, Element elem, int format, double scale) throws IOException{
+
+		// positions of coordinates in the property list.
+		// default to the first three properties.
+		int[] coord= new int[]{elem.indexOf("x"), elem.indexOf("y"), elem.indexOf("z")};
+		for(int j=0; j<D; j++){
+			if(coord[j]<0){
+				coord[j]= j;
+			}
+		}
+
+		// which coordinate (if any) each property is
+		int[] which= new int[elem.props.size()];
+		Arrays.fill(which, -1);
+		for(int j=0; j<D; j++){
+			if(coord[j]<which.length){
+				which[coord[j]]= j;
+			}
+		}
+
+		double[] vertex= new double[D*elem.count];
+
+		for(int i=0; i<elem.count; i++){
+			if(format==ASCII){
+				StringTokenizer tokeniser= new StringTokenizer(in.readDataLine());
+
+				for(int k=0; k<which.length; k++){
+					Property prop= elem.props.get(k);
+
+					if(prop.isList()){
+						skipAsciiList(tokeniser);
+						continue;
 					}
-					if(nextToken.equalsIgnoreCase("end_header")){
-						logger.info("end of header");
+
+					if(!tokeniser.hasMoreTokens()){
 						break;
 					}
+					String token= tokeniser.nextToken();
+					if(which[k]>=0){
+						vertex[D*i+which[k]]= Double.parseDouble(token)/scale;
+					}
 				}
-				if(nextToken.equalsIgnoreCase("end_header")){
-					break;
+			}
+			else{
+				for(int k=0; k<which.length; k++){
+					Property prop= elem.props.get(k);
+
+					if(prop.isList()){
+						in.skipList(prop);
+						continue;
+					}
+
+					double x= in.readScalar(prop.type);
+					if(which[k]>=0){
+						vertex[D*i+which[k]]= x/scale;
+					}
 				}
-				line=plyFile.readLine();
 			}
 		}
-		catch(IOException ioe){
-			throw new LoggedException(ioe);
+
+		return vertex;
+	}
+
+
+	/**
+	 * reads the face element and triangulates the faces
+	 */
+	private static final void readFaces(PLYinput in, Element elem, int format, boolean permFlag, MeshBuilder mesh) throws IOException{
+
+		// index list property
+		int listProp= elem.indexOf("vertex_indices");
+		if(listProp<0){
+			listProp= elem.indexOf("vertex_index");
 		}
-		
-		logger.info("reading mesh data");
-		
-		// allocate vertex array
-		vertex=new double[numVertices][D];
-		
-		// read vertices
-		try{
-			for(int i=0; i<numVertices; i++){
-				line=plyFile.readLine();	
-			
-				tokeniser= new StringTokenizer(line, " ");
-				for(int j=0; j<D; j++){
-					nextToken=tokeniser.nextToken();
-					vertex[i][j]=Double.parseDouble(nextToken)/scale;
+		if(listProp<0){
+			for(int k=0; k<elem.props.size(); k++){
+				if(elem.props.get(k).isList()){
+					listProp= k;
+					break;
 				}
 			}
 		}
-		catch(IOException ioe){
-			throw new LoggedException(ioe);
+		if(listProp<0){
+			throw new LoggedException("face element has no vertex index list");
 		}
-		
-		triangle= new ArrayList<Triangle>(numFaces);
-		
-		// construct triangles
-		int numTriangles=0;
-		
-		coplanarMap= new HashMap<Triangle, ArrayList<Triangle>>();
-		
-		try{
-			for(int face=0; face<numFaces; face++){
-				numTriangles++;
-			
-				line=plyFile.readLine();
-				
-				tokeniser=new StringTokenizer(line, " ");
-				nextToken= tokeniser.nextToken();
-				
-				int numVerts= Integer.parseInt(nextToken);
-				
-				if(numVerts<3){
-					logger.warning("found a polygon with "+numVerts+" vertices. skipping.");
-					continue;
+
+		// permeability property. if the header says there are
+		// multiple permeabilities but doesn't name the property
+		// it's the first scalar after the indices
+		int permProp= elem.indexOf("permeability");
+		if((permProp<0)&&permFlag){
+			for(int k=listProp+1; k<elem.props.size(); k++){
+				if(!elem.props.get(k).isList()){
+					permProp= k;
+					break;
 				}
-				
-				if(numVerts==3){
-					// trianglular faces are easy...
-					double[][] verts= new double[numVerts][D];
-
-					for(int i=0; i<numVerts; i++){
-						nextToken=tokeniser.nextToken();
-						int ind= Integer.parseInt(nextToken);
-						
-						for(int j=0; j<D; j++){
-							verts[i][j]= vertex[ind][j];
+			}
+		}
+
+		// older ascii files have the permeability after the
+		// indices without declaring a property for it
+		boolean undeclaredPerm= permFlag&&(permProp<0)&&(format==ASCII);
+
+		if((permProp>=0)||undeclaredPerm){
+			mesh.usePermeabilities();
+		}
+
+		int[] ind= new int[16];
+
+		for(int face=0; face<elem.count; face++){
+
+			int numVerts=0;
+			double p= mesh.p;
+
+			if(format==ASCII){
+				StringTokenizer tokeniser= new StringTokenizer(in.readDataLine());
+
+				for(int k=0; k<elem.props.size(); k++){
+					Property prop= elem.props.get(k);
+
+					if(k==listProp){
+						numVerts= Integer.parseInt(tokeniser.nextToken());
+						if(numVerts>ind.length){
+							ind= new int[numVerts];
+						}
+						for(int i=0; i<numVerts; i++){
+							ind[i]= Integer.parseInt(tokeniser.nextToken());
+						}
+
+						if(undeclaredPerm){
+							p= Double.parseDouble(tokeniser.nextToken());
 						}
 					}
-					if (permFlag) {
-						nextToken=tokeniser.nextToken();
-						p = Double.parseDouble(nextToken);
-					}
-					triangle.add(new Triangle(verts[0], verts[1], verts[2], p));
-				}
-				else if(numVerts==4){
-					// quad faces can be split into two triangles
-					int[] ind= new int[numVerts];
-					
-					// parse all the indices
-					for(int i=0; i<numVerts; i++){
-						nextToken=tokeniser.nextToken();
-						ind[i]= Integer.parseInt(nextToken);
+					else if(prop.isList()){
+						skipAsciiList(tokeniser);
 					}
-					if (permFlag) {
-						nextToken=tokeniser.nextToken();
-						p = Double.parseDouble(nextToken);
+					else if(k==permProp){
+						p= Double.parseDouble(tokeniser.nextToken());
 					}
-					// increment the numTriangles counter again
-					numTriangles++;
-					
-					double[][] verts= new double[numVerts][D];
-					
-					for(int i=0; i<numVerts; i++){
-						for(int j=0; j<D; j++){
-							verts[i][j]=vertex[ind[i]][j];
-						}
+					else if(tokeniser.hasMoreTokens()){
+						tokeniser.nextToken();
 					}
-					
-					// add triangles to collection
-					Triangle tri1= new Triangle(verts[0], verts[1], verts[2], p);
-					Triangle tri2= new Triangle(verts[0], verts[2], verts[3], p);
-					triangle.add(tri1);
-					triangle.add(tri2);
-					
-					// assemble coplanar lists
-					ArrayList<Triangle> copTri1= new ArrayList<Triangle>();
-					ArrayList<Triangle> copTri2= new ArrayList<Triangle>();
-					
-					// add other triangle to lists
-					copTri1.add(tri2);
-					copTri2.add(tri1);
-					
-					// add triangle-list pairs to coplanar map
-					coplanarMap.put(tri1, copTri1);
-					coplanarMap.put(tri2, copTri2);
 				}
-				else{
-					// general convex polygon. star-triangulate.
-					int[] ind= new int[numVerts];
-					
-					// parse indices
-					for(int i=0; i<numVerts; i++){
-						nextToken=tokeniser.nextToken();
-						ind[i]=Integer.parseInt(nextToken);
-					}
-					if (permFlag) {
-						nextToken=tokeniser.nextToken();
-						p = Double.parseDouble(nextToken);
-					}
-					
-					// find the centre of the polygon (algebraic mean of vertices)
-					double[] centre= new double[]{0.0, 0.0, 0.0};
-					for(int i=0; i<numVerts; i++){
-						for(int j=0; j<D; j++){
-							centre[j]+=vertex[ind[i]][j];
+			}
+			else{
+				for(int k=0; k<elem.props.size(); k++){
+					Property prop= elem.props.get(k);
+
+					if(k==listProp){
+						numVerts= (int)in.readScalar(prop.countType);
+						if(numVerts>ind.length){
+							ind= new int[numVerts];
+						}
+						for(int i=0; i<numVerts; i++){
+							ind[i]= (int)in.readScalar(prop.type);
 						}
 					}
-					for(int j=0; j<D; j++){
-						centre[j]/=numVerts;
+					else if(prop.isList()){
+						in.skipList(prop);
 					}
-					
-					numTriangles+=numVerts-1;
-					
-					// compile vertex list
-					double[][] verts= new double[numVerts][D];
-					for(int i=numVerts; i>0; i--){
-						for(int j=0; j<D; j++){
-							verts[i-1][j]=vertex[ind[i-1]][j];
-						}
+					else if(k==permProp){
+						p= in.readScalar(prop.type);
 					}
-					
-					ArrayList<Triangle> subTris= new ArrayList<Triangle>();
-					
-					// each triangle goes (vert[i], vert[(i+1)%numVerts], centre)
-					for(int i=numVerts; i>0; i--){
-						// construct triangle
-						Triangle newTri=new Triangle(verts[i-1], verts[i%numVerts], centre, p);
-						
-						// add to set of all triangles
-						triangle.add(newTri);
-						
-						// add to set of subdivisions in this polygon
-						subTris.add(newTri);
+					else{
+						in.skip(SIZE[prop.type]);
 					}
-					
-					// make coplanar lists
-					Iterator triIt= subTris.iterator();
-					while(triIt.hasNext()){							// loop over all triangles in polygon
-						Triangle thisTri=(Triangle)triIt.next();    // get current triangle
-						ArrayList<Triangle> copList= new ArrayList<Triangle>();		// list of all other triangles
-
-						Iterator otherTriIt=subTris.iterator();			// loop over triangles again
-						while(otherTriIt.hasNext()){                        // include all triangles except current one
-							Triangle thatTri=(Triangle)otherTriIt.next();
-							if(thatTri==thisTri){
-								continue;
-							}
-							copList.add(thatTri);
-						}
-						
-						// add triangle-coplanar list pair to map
-						coplanarMap.put(thisTri, copList);
+				}
+			}
+
+			mesh.addFace(ind, numVerts, p);
+		}
+	}
+
+
+	/**
+	 * skips over an element the reader isn't interested in
+	 */
+	private static final void skipElement(PLYinput in, Element elem, int format) throws IOException{
+
+		logger.info("skipping "+elem.count+" "+elem.name+" elements");
+
+		for(int i=0; i<elem.count; i++){
+			if(format==ASCII){
+				in.readDataLine();
+			}
+			else{
+				for(int k=0; k<elem.props.size(); k++){
+					Property prop= elem.props.get(k);
+
+					if(prop.isList()){
+						in.skipList(prop);
+					}
+					else{
+						in.skip(SIZE[prop.type]);
 					}
-				}		
+				}
 			}
 		}
-		catch(IOException ioe){
-			throw new LoggedException(ioe);
+	}
+
+
+	/**
+	 * skips a list in an ascii line
+	 */
+	private static final void skipAsciiList(StringTokenizer tokeniser){
+
+		int n= Integer.parseInt(tokeniser.nextToken());
+
+		for(int i=0; i<n; i++){
+			tokeniser.nextToken();
 		}
+	}
+
+
+	/**
+	 * writes a mesh as a binary little-endian PLY file. vertex
+	 * coordinates are written as doubles so that nothing is lost
+	 * when the file is read back.
+	 *
+	 * the triangles are written as they are in the mesh, so polygons
+	 * in the original file are written as the triangles they were
+	 * split into.
+	 *
+	 * @param mesh the mesh
+	 * @param closed write the closed surface comment
+	 * @param fname output file name
+	 */
+	public static final void writeBinaryPLYfile(TriangleMesh mesh, boolean closed, String fname){
+
+		boolean perms= mesh.hasPermeabilities();
 
-		logger.info("read and constructed "+numFaces+" faces using "+numTriangles+" triangles");
+		StringBuffer header= new StringBuffer();
+
+		header.append("ply\n");
+		header.append("format binary_little_endian 1.0\n");
+		header.append("comment written by camino\n");
+		if(closed){
+			header.append("comment closed surface\n");
+		}
+		header.append("element vertex "+mesh.numVertices()+"\n");
+		header.append("property double x\n");
+		header.append("property double y\n");
+		header.append("property double z\n");
+		header.append("element face "+mesh.numTriangles()+"\n");
+		header.append("property list uchar int vertex_indices\n");
+		if(perms){
+			header.append("property double permeability\n");
+		}
+		header.append("end_header\n");
 
 		try{
-			plyFile.close();
+			FileChannel out= new FileOutputStream(fname).getChannel();
+			ByteBuffer buf= ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+			buf.put(header.toString().getBytes("US-ASCII"));
+
+			for(int i=0; i<mesh.numVertices(); i++){
+				if(buf.remaining()<8*D){
+					drain(out, buf);
+				}
+				for(int j=0; j<D; j++){
+					buf.putDouble(mesh.getCoord(i, j));
+				}
+			}
+
+			for(int t=0; t<mesh.numTriangles(); t++){
+				if(buf.remaining()<21){
+					drain(out, buf);
+				}
+				buf.put((byte)3);
+				for(int k=0; k<3; k++){
+					buf.putInt(mesh.getVertexIndex(t, k));
+				}
+				if(perms){
+					buf.putDouble(mesh.getPermeability(t));
+				}
+			}
+
+			drain(out, buf);
+			out.close();
 		}
 		catch(IOException ioe){
 			throw new LoggedException(ioe);
 		}
-		
-		return triangle;
 	}
-	
+
+
+	/**
+	 * writes the contents of a buffer to a channel and clears it
+	 */
+	private static final void drain(FileChannel out, ByteBuffer buf) throws IOException{
+
+		buf.flip();
+		while(buf.hasRemaining()){
+			out.write(buf);
+		}
+		buf.clear();
+	}
+
+
 	/**
 	 * returns the map of triangle it triangle indices of triangle
 	 * subdivisions that should be ignored in an interior check if the
 	 * original triangle is intersected by the ray.
-	 * 
+	 *
 	 * note that it is assumed that subdivided polygons are coplanar.
-	 * 
-	 * @return map of Triangle to ArrayList of triangle indices of other 
+	 *
+	 * @return map of Triangle to ArrayList of triangle indices of other
 	 * 			triangles to be ignored.
-	 * 
+	 *
 	 * @throws LoggedException if the map has not been assembled prior
 	 *                         to calling this function, a LoggedException
 	 *                         is thrown.
 	 */
 	public static final HashMap<Triangle, ArrayList<Triangle>> getCoplanarListMap() throws LoggedException{
-		
+
 		if(coplanarMap==null){
 			throw new LoggedException("coplanar triangle map has not been initialised before being fetched");
 		}
 
 		return coplanarMap;
-	
+
+	}
+
+
+	/** scalar types */
+	private static final int CHAR= 0;
+	private static final int UCHAR= 1;
+	private static final int SHORT= 2;
+	private static final int USHORT= 3;
+	private static final int INT= 4;
+	private static final int UINT= 5;
+	private static final int FLOAT= 6;
+	private static final int DOUBLE= 7;
+
+	/** size in bytes of each scalar type */
+	private static final int[] SIZE= new int[]{1, 1, 2, 2, 4, 4, 4, 8};
+
+	/**
+	 * @return the type constant for a PLY type name
+	 */
+	private static final int typeOf(String name, String PLYname){
+
+		if(name.equals("char")||name.equals("int8")){
+			return CHAR;
+		}
+		if(name.equals("uchar")||name.equals("uint8")){
+			return UCHAR;
+		}
+		if(name.equals("short")||name.equals("int16")){
+			return SHORT;
+		}
+		if(name.equals("ushort")||name.equals("uint16")){
+			return USHORT;
+		}
+		if(name.equals("int")||name.equals("int32")){
+			return INT;
+		}
+		if(name.equals("uint")||name.equals("uint32")){
+			return UINT;
+		}
+		if(name.equals("float")||name.equals("float32")){
+			return FLOAT;
+		}
+		if(name.equals("double")||name.equals("float64")){
+			return DOUBLE;
+		}
+
+		throw new LoggedException("unknown property type '"+name+"' in "+PLYname);
+	}
+
+
+	/**
+	 * an element declared in the header
+	 */
+	private static final class Element{
+
+		/** element name */
+		final String name;
+
+		/** number of entries */
+		final int count;
+
+		/** properties of each entry */
+		final ArrayList<Property> props= new ArrayList<Property>();
+
+		Element(String name, int count){
+			this.name= name;
+			this.count= count;
+		}
+
+		void add(Property prop){
+			props.add(prop);
+		}
+
+		/**
+		 * @return index of the named property, or -1
+		 */
+		int indexOf(String name){
+			for(int k=0; k<props.size(); k++){
+				if(props.get(k).name.equalsIgnoreCase(name)){
+					return k;
+				}
+			}
+
+			return -1;
+		}
+	}
+
+
+	/**
+	 * a property of an element. lists have a count type
+	 * and the type of their items, scalars have a count
+	 * type of -1.
+	 */
+	private static final class Property{
+
+		/** property name */
+		final String name;
+
+		/** scalar or list item type */
+		final int type;
+
+		/** type of list length, -1 for scalars */
+		final int countType;
+
+		Property(String name, int type, int itemType){
+			this.name= name;
+
+			if(itemType>=0){
+				this.countType= type;
+				this.type= itemType;
+			}
+			else{
+				this.countType= -1;
+				this.type= type;
+			}
+		}
+
+		boolean isList(){
+			return countType>=0;
+		}
+	}
+
+
+	/**
+	 * buffered reading from a file channel. ascii lines and binary
+	 * values come from the same buffer so the body can be read
+	 * straight after the header.
+	 */
+	private static final class PLYinput{
+
+		/** the file */
+		private final FileChannel channel;
+
+		/** buffer of unread bytes */
+		private final ByteBuffer buf= ByteBuffer.allocate(BUFFER_SIZE);
+
+		/** space for assembling lines */
+		private byte[] line= new byte[256];
+
+		PLYinput(FileChannel channel){
+			this.channel= channel;
+
+			// start empty
+			buf.flip();
+		}
+
+		void setOrder(ByteOrder order){
+			buf.order(order);
+		}
+
+		void close() throws IOException{
+			channel.close();
+		}
+
+		/**
+		 * makes sure at least n bytes are in the buffer
+		 *
+		 * @return false if the file ends first
+		 */
+		private boolean fill(int n) throws IOException{
+
+			if(buf.remaining()>=n){
+				return true;
+			}
+
+			buf.compact();
+			while(buf.position()<n){
+				if(channel.read(buf)<0){
+					break;
+				}
+			}
+			buf.flip();
+
+			return buf.remaining()>=n;
+		}
+
+		/**
+		 * @return next line without its terminator, or null at end of file
+		 */
+		String readLine() throws IOException{
+
+			int len=0;
+
+			while(true){
+				if(!buf.hasRemaining()&&!fill(1)){
+					if(len==0){
+						return null;
+					}
+					break;
+				}
+
+				byte b= buf.get();
+				if(b=='\n'){
+					break;
+				}
+				if(b=='\r'){
+					continue;
+				}
+
+				if(len==line.length){
+					line= Arrays.copyOf(line, 2*len);
+				}
+				line[len++]= b;
+			}
+
+			return new String(line, 0, len, "US-ASCII");
+		}
+
+		/**
+		 * @return next line, which must exist
+		 */
+		String readDataLine() throws IOException{
+
+			String s= readLine();
+
+			if(s==null){
+				throw new LoggedException("unexpected end of PLY file");
+			}
+
+			return s;
+		}
+
+		/**
+		 * reads a binary scalar
+		 */
+		double readScalar(int type) throws IOException{
+
+			if(!fill(SIZE[type])){
+				throw new LoggedException("unexpected end of PLY file");
+			}
+
+			switch(type){
+				case CHAR: return buf.get();
+				case UCHAR: return buf.get()&0xff;
+				case SHORT: return buf.getShort();
+				case USHORT: return buf.getShort()&0xffff;
+				case INT: return buf.getInt();
+				case UINT: return buf.getInt()&0xffffffffL;
+				case FLOAT: return buf.getFloat();
+				default: return buf.getDouble();
+			}
+		}
+
+		/**
+		 * skips a binary list
+		 */
+		void skipList(Property prop) throws IOException{
+
+			long n= (long)readScalar(prop.countType);
+
+			skip(n*SIZE[prop.type]);
+		}
+
+		/**
+		 * skips n bytes
+		 */
+		void skip(long n) throws IOException{
+
+			while(n>0){
+				if(!fill(1)){
+					throw new LoggedException("unexpected end of PLY file");
+				}
+
+				int k= (int)Math.min(n, buf.remaining());
+				buf.position(buf.position()+k);
+				n-=k;
+			}
+		}
+	}
+
+
+	/**
+	 * accumulates triangles as faces are read
+	 */
+	private static final class MeshBuilder{
+
+		/** vertex coordinates. grows as polygon centres are added */
+		private double[] vertex;
+
+		/** number of vertices */
+		private int numVertices;
+
+		/** vertex indices, 3 per triangle */
+		private int[] face;
+
+		/** permeability of each triangle (null unless per-face) */
+		private double[] perm=null;
+
+		/** polygon each triangle came from */
+		private int[] polygon;
+
+		/** default permeability */
+		private final double p;
+
+		/** true if any face had more than three vertices */
+		private boolean polygons=false;
+
+		/** number of triangles so far */
+		private int numTriangles=0;
+
+		/** number of faces so far */
+		private int numFaces=0;
+
+		MeshBuilder(double[] vertex, int numFaces, double p){
+			this.vertex= vertex;
+			this.numVertices= vertex.length/D;
+			this.face= new int[3*Math.max(numFaces, 1)];
+			this.polygon= new int[Math.max(numFaces, 1)];
+			this.p= p;
+		}
+
+		void usePermeabilities(){
+			perm= new double[polygon.length];
+		}
+
+		/**
+		 * adds a polygon, splitting it into triangles. same
+		 * triangulation as the original reader.
+		 */
+		void addFace(int[] ind, int numVerts, double faceP){
+
+			if(numVerts<3){
+				logger.warning("found a polygon with "+numVerts+" vertices. skipping.");
+				return;
+			}
+
+			for(int i=0; i<numVerts; i++){
+				if((ind[i]<0)||(ind[i]>=numVertices)){
+					throw new LoggedException("face "+numFaces+" refers to vertex "+ind[i]+
+							" but there are only "+numVertices+" vertices");
+				}
+			}
+
+			if(numVerts==3){
+				addTriangle(ind[0], ind[1], ind[2], faceP);
+			}
+			else if(numVerts==4){
+				// quad faces can be split into two triangles
+				polygons= true;
+				addTriangle(ind[0], ind[1], ind[2], faceP);
+				addTriangle(ind[0], ind[2], ind[3], faceP);
+			}
+			else{
+				// general convex polygon. star-triangulate about
+				// the centre of the polygon (algebraic mean of vertices)
+				polygons= true;
+
+				double[] centre= new double[]{0.0, 0.0, 0.0};
+				for(int i=0; i<numVerts; i++){
+					for(int j=0; j<D; j++){
+						centre[j]+=vertex[D*ind[i]+j];
+					}
+				}
+				for(int j=0; j<D; j++){
+					centre[j]/=numVerts;
+				}
+
+				int c= addVertex(centre);
+
+				// each triangle goes (vert[i], vert[(i+1)%numVerts], centre)
+				for(int i=numVerts; i>0; i--){
+					addTriangle(ind[i-1], ind[i%numVerts], c, faceP);
+				}
+			}
+
+			numFaces++;
+		}
+
+		private int addVertex(double[] v){
+
+			if(D*(numVertices+1)>vertex.length){
+				vertex= Arrays.copyOf(vertex, D*(numVertices+Math.max(numVertices/4, 16)));
+			}
+
+			for(int j=0; j<D; j++){
+				vertex[D*numVertices+j]= v[j];
+			}
+
+			return numVertices++;
+		}
+
+		private void addTriangle(int a, int b, int c, double faceP){
+
+			if(numTriangles==polygon.length){
+				int n= numTriangles+Math.max(numTriangles/4, 16);
+
+				face= Arrays.copyOf(face, 3*n);
+				polygon= Arrays.copyOf(polygon, n);
+				if(perm!=null){
+					perm= Arrays.copyOf(perm, n);
+				}
+			}
+
+			face[3*numTriangles]= a;
+			face[3*numTriangles+1]= b;
+			face[3*numTriangles+2]= c;
+			polygon[numTriangles]= numFaces;
+			if(perm!=null){
+				perm[numTriangles]= faceP;
+			}
+
+			numTriangles++;
+		}
+
+		TriangleMesh toMesh(){
+
+			return new TriangleMesh(Arrays.copyOf(vertex, D*numVertices),
+					Arrays.copyOf(face, 3*numTriangles),
+					(perm==null)?null:Arrays.copyOf(perm, numTriangles), p,
+					polygons?Arrays.copyOf(polygon, numTriangles):null);
+		}
 	}
-	
+
+
 	/**
-	 * @param args
+	 * reads a PLY file and reports the time taken and the size of the
+	 * mesh. if a second file name is given the mesh is written to it
+	 * in binary.
+	 *
+	 * @param args input file [output file]
 	 */
 	public static void main(String[] args) {
-		// test ply reader with a simple file
-		String fname= new String("shark.ply");
-		
-		// scale factor for large objects 
-		double scale= 1.0;
-		
-		// test file reading
-		System.err.print("reading "+fname+"... ");
-		Collection<Triangle> triangles= PLYreader.readPLYfile(fname, scale, 0.0);
-		System.err.println("done\n");
-		System.err.flush();
-		
-		// leaf through the list
-		Iterator triIt= triangles.iterator();
-		int i=0;
-		
-		System.err.println("read "+triangles.size()+" triangles:");
-		
-		while(triIt.hasNext()){
-			
-			Triangle triangle= (Triangle)triIt.next();
-			System.err.println((i++)+" "+triangle);
-			
-		}
-		
-		System.err.println("all done");
+
+		String fname= (args.length>0)?args[0]:"shark.ply";
+
+		Runtime rt= Runtime.getRuntime();
+
+		System.gc();
+		long mem0= rt.totalMemory()-rt.freeMemory();
+		long start= System.nanoTime();
+
+		TriangleMesh mesh= PLYreader.readMesh(fname, 1.0, 0.0);
+
+		long time= System.nanoTime()-start;
+		System.gc();
+		long mem1= rt.totalMemory()-rt.freeMemory();
+
+		System.err.println("read "+mesh.numVertices()+" vertices and "+mesh.numTriangles()+" triangles from "+fname
+				+" in "+(time/1000000)+" ms");
+		System.err.println("mesh arrays "+(mesh.heapBytes()>>10)+" kB, heap growth "+((mem1-mem0)>>10)+" kB");
+
+		if(args.length>1){
+			start= System.nanoTime();
+			PLYreader.writeBinaryPLYfile(mesh, closedSurface, args[1]);
+			System.err.println("wrote "+args[1]+" in "+((System.nanoTime()-start)/1000000)+" ms");
+		}
 	}
 
 }
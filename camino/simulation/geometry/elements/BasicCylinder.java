@@ -31,6 +31,9 @@ public class BasicCylinder implements Cylinder, SubstrateObject{
 
 	/** numerical tolerence */
 	private static final double TINYNUM=CellularLattice.TINYNUM;
+
+	/** index in substrate, -1 until assigned */
+	private int id= -1;
 	
 	/** number of subdivisions around circumferences when constructing triangle set */
 	protected static int C=60;
@@ -728,6 +731,25 @@ public class BasicCylinder implements Cylinder, SubstrateObject{
 		return r;
 	}
 	
+	/**
+	 * returns the permeability of the cylinder membrane
+	 * 
+	 * @return membrane permeability
+	 */
+	public double getPermeability(){
+		return p;
+	}
+	
+	/**
+	 * cylinders constructed without an orientation are parallel 
+	 * to the z-axis and don't rotate walkers into their own frame.
+	 * 
+	 * @return true if the cylinder is parallel to the z-axis
+	 */
+	public boolean isAxial(){
+		return rotMat==null;
+	}
+	
 	/**
 	 * returns the set of triangles for this cylinder. 
 	 * Number of subdivisions around the circumference are
@@ -1113,4 +1135,18 @@ public class BasicCylinder implements Cylinder, SubstrateObject{
 		
 	}
 	
+	
+	/**
+	 * @see simulation.geometry.elements.SubstrateObject#getId()
+	 */
+	public final int getId(){
+		return id;
+	}
+	
+	/**
+	 * @see simulation.geometry.elements.SubstrateObject#setId(int)
+	 */
+	public final void setId(int id){
+		this.id= id;
+	}
 }
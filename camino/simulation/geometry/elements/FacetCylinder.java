@@ -35,6 +35,9 @@ import numerics.Vector3D;
 public class FacetCylinder implements Cylinder, SubstrateObject{
 
 	private final int D= DiffusionSimulation.D;
+
+	/** index in substrate, -1 until assigned */
+	private int id= -1;
 	
 	private final double d=CL_Initializer.DIFF_CONST;
 	
@@ -465,4 +468,18 @@ public class FacetCylinder implements Cylinder, SubstrateObject{
 		
 	}
 
+	
+	/**
+	 * @see simulation.geometry.elements.SubstrateObject#getId()
+	 */
+	public final int getId(){
+		return id;
+	}
+	
+	/**
+	 * @see simulation.geometry.elements.SubstrateObject#setId(int)
+	 */
+	public final void setId(int id){
+		this.id= id;
+	}
 }
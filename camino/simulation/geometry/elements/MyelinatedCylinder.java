@@ -28,6 +28,9 @@ public class MyelinatedCylinder implements Cylinder, SubstrateObject {
 	
 	/** dimensionality of space */
 	private final int D= DiffusionSimulation.D;
+
+	/** index in substrate, -1 until assigned */
+	private int id= -1;
 	
 	/** inner and outer membrane cylinders */
 	private final BasicCylinder[] cylinder= new BasicCylinder[2]; 
@@ -329,4 +332,18 @@ public class MyelinatedCylinder implements Cylinder, SubstrateObject {
 		
 	}
 
+	
+	/**
+	 * @see simulation.geometry.elements.SubstrateObject#getId()
+	 */
+	public final int getId(){
+		return id;
+	}
+	
+	/**
+	 * @see simulation.geometry.elements.SubstrateObject#setId(int)
+	 */
+	public final void setId(int id){
+		this.id= id;
+	}
 }
@@ -28,6 +28,9 @@ public class Sphere implements SubstrateObject {
 	
 	/** dimensionality of space */
 	private final int D= DiffusionSimulation.D;
+
+	/** index in substrate, -1 until assigned */
+	private int id= -1;
 	
 	/** radius of sphere */
 	private final double R;
@@ -664,6 +667,14 @@ public class Sphere implements SubstrateObject {
 		
 	}
 	
+	/**
+	 * @return radius of sphere
+	 */
+	public final double getRadius(){
+		
+		return R;
+	}
+	
 	/**
 	 * @param args
 	 */
@@ -673,4 +684,18 @@ public class Sphere implements SubstrateObject {
 
 	}
 
+	
+	/**
+	 * @see simulation.geometry.elements.SubstrateObject#getId()
+	 */
+	public final int getId(){
+		return id;
+	}
+	
+	/**
+	 * @see simulation.geometry.elements.SubstrateObject#setId(int)
+	 */
+	public final void setId(int id){
+		this.id= id;
+	}
 }
@@ -101,6 +101,9 @@ public interface SubstrateObject {
 	 * in that instead of checking if a give step intersects the bounding box for this object,
 	 * it check if the object itself intersets an axis-aligned cubic region.
 	 * 
+	 * spatial optimisation maps are built on several threads, so this
+	 * may be called on the same object from more than one thread at once.
+	 * 
 	 * @param bottomLeft
 	 * @param topRight
 	 * 
@@ -129,4 +132,18 @@ public interface SubstrateObject {
 	 * @return ArrayList<Triangle> of triangles for object. 
 	 */
 	public ArrayList<Triangle> getTriangles();
+	
+	/**
+	 * @return the object's index in its substrate, used to keep 
+	 *         track of which objects a traversal has already tested
+	 */
+	public int getId();
+	
+	/**
+	 * sets the object's index in its substrate. called by the 
+	 * substrate when its spatial optimisation map is built.
+	 * 
+	 * @param id the index
+	 */
+	public void setId(int id);
 }
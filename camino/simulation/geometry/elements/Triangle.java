@@ -9,51 +9,28 @@ import tools.CL_Initializer;
 import misc.LoggedException;
 
 /**
- *  
+ * a triangle in a <code>TriangleMesh</code>. The vertices, normal and
+ * the other quantities used in the intersection test are held in the
+ * mesh's arrays, so a triangle is just a reference to the mesh and an
+ * index. Triangles constructed from three vertices get a mesh of their
+ * own.
  */
 public class Triangle implements SubstrateObject {
 	
 	/** dimensionality of space (should be 3) */
 	private static final int D= DiffusionSimulation.D;
+
+    /** index in substrate, -1 until assigned */
+    private int id= -1;
 	
 	/** logging object */
-    private Logger logger= Logger.getLogger(this.getClass().getName());
-    
-    /** surface normal */
-    private double[] normal;
-    
-    /** array of 3 vertices */
-    private final double[][] vertex;
-
-    /** vertices displaced so that box centre is origin (for box overlap check)*/
-    private final double[][] w= new double[3][D];
-    
-    /** box half lengths (for box overlap check) */
-    private final double[] boxhalfsize= new double[3];
-    
-    /** centre of box */
-    private final double[] boxcenter= new double[D]; 
-    
-    /** v1-v0 */
-    private final double[] u= new double[D];
-
-    /** v2-v0 */
-    private final double[] v= new double[D];
-    
-    /** dot product of normal and first vertex */
-    private double nP;
-    
-    /** dot product of u with self */
-    private double uu;
-    
-    /** dot product of v with self */
-    private double vv;
+    private static final Logger logger= Logger.getLogger("simulation.geometry.elements.Triangle");
     
-    /** dot prod of u with v */
-    private double uv;
+    /** mesh containing the triangle */
+    private final TriangleMesh mesh;
     
-    /** permeability */
-    private final double p;
+    /** index of the triangle in the mesh */
+    private final int t;
     
     /**
      * define a triangle from three vertices. normal calulated internally
@@ -63,29 +40,34 @@ public class Triangle implements SubstrateObject {
      * @param vert3 the third vertex of the triangle
      */
     public Triangle(double [] vert1, double [] vert2, double [] vert3, double p){
-    	vertex = new double [3][D];
-
-       	for(int j=0; j<3; j++){
-       		vertex[0][j]=vert1[j];
-       		vertex[1][j]=vert2[j];
-       		vertex[2][j]=vert3[j];
-       	}
-
-       	this.p=p;
-       	
-       	initVectors();
+    	this(new TriangleMesh(vert1, vert2, vert3, p), 0);
     }
     
     /**
-     * reset vertex i with the given vector
+     * a view onto a triangle in a mesh
+     * 
+     * @param mesh the mesh
+     * @param t index of the triangle in the mesh
+     */
+    public Triangle(TriangleMesh mesh, int t){
+    	this.mesh= mesh;
+    	this.t= t;
+    }
+    
+    /**
+     * reset vertex i with the given vector. vertices are shared with
+     * other triangles in the same mesh, which will also move. call
+     * initVectors() on all of them afterwards.
      * 
      * @param i which vertex do we set?
      * @param vert new vertex
      */
     public void setVertex(int i, double[] v){
         
+    	final int vi= D*mesh.face[3*t+i];
+    	
         for(int j=0; j<D; j++){
-            vertex[i][j]=v[j];
+            mesh.vertex[vi+j]=v[j];
         }
     }
     
@@ -109,26 +91,7 @@ public class Triangle implements SubstrateObject {
      * 
      */
     public void initVectors(){
-       	for(int i=0; i<D; i++){
-       		u[i]= vertex[1][i]-vertex[0][i];
-       		v[i]= vertex[0][i]-vertex[2][i];
-       	}
-       	
-       	normal=Triangle.normCrossProd(u, v);
-       	
-       	nP=0.0;
-       	uu=0.0;
-       	vv=0.0;
-       	uv=0.0;
-       	for(int i=0; i<D; i++){
-       		v[i]*=-1.0;
-       		nP+=normal[i]*vertex[0][i];
-       		uu+=u[i]*u[i];
-       		vv+=v[i]*v[i];
-       		uv+=u[i]*v[i];
-       	}
-       	
-
+    	mesh.initPlane(t);
     }
     
     /**
@@ -161,25 +124,53 @@ public class Triangle implements SubstrateObject {
     }
     
     /*
-     * returns the specified vertex.
+     * returns a copy of the specified vertex.
      * @param i the index of the vertex in the range 0-2
      * @return the vertex (as an array of doubles)
      */
     public double [] getVertex(int i){
-        if(i>=0 || i<3){
-        	return vertex[i];
+        if(i>=0 && i<3){
+        	final int vi= D*mesh.face[3*t+i];
+        	
+        	return new double[]{mesh.vertex[vi], mesh.vertex[vi+1], mesh.vertex[vi+2]};
         }
         else{
         	throw new LoggedException("Index to verts array out of range 0-2.  Value given: " + i);
         }
     }
+    
+    /**
+     * @param i the index of the vertex in the range 0-2
+     * @param j coordinate index
+     * 
+     * @return coordinate j of vertex i
+     */
+    public final double getVertexCoord(int i, int j){
+    	return mesh.vertex[D*mesh.face[3*t+i]+j];
+    }
 
-    /** returns the normal of the triangle
+    /** returns a copy of the normal of the triangle
      * @return the normal
      */
     public double[] getNormal()
     {
-    	return normal;
+    	final int n= D*t;
+    	
+    	return new double[]{mesh.normal[n], mesh.normal[n+1], mesh.normal[n+2]};
+    }
+    
+    /**
+     * @return the mesh the triangle belongs to
+     */
+    public final TriangleMesh getMesh(){
+    	return mesh;
+    }
+    
+    /**
+     * @return index of the triangle in its mesh
+     */
+    public final int getIndex(){
+    	return t;
     }
 
     /**
@@ -218,6 +209,11 @@ public class Triangle implements SubstrateObject {
     public boolean crosses(double[] walkerPos, double[] step, double[] normal, double[] d, boolean ignore, 
     		double origLength, double[] intDist, boolean[] in, double[] p, double walkerRad) throws TooDamnCloseException {
     	
+    	final double[] vertex= mesh.vertex;
+    	final double[] norm= mesh.normal;
+    	final int n= D*t;
+    	final int v0= D*mesh.face[3*t];
+    	
     	// start by checking intersection with plane containing triangle
     	double nVmP=0.0;       // normal dot (V0 - walkerpos) 
     	double nStep=0.0;	   // normal dot step
@@ -227,10 +223,10 @@ public class Triangle implements SubstrateObject {
     	// calculate lengyel's 4D dot product of vector & plane
     	// this equals dp of normal and vector plus plane constant
     	for(int i=0; i<D; i++){
-    		nVmP+=this.normal[i]*(vertex[0][i]-walkerPos[i]);
-    		nStep+=this.normal[i]*step[i];
+    		nVmP+=norm[n+i]*(vertex[v0+i]-walkerPos[i]);
+    		nStep+=norm[n+i]*step[i];
     		
-    		nDotPosPlusStep+=this.normal[i]*(vertex[0][i]-(walkerPos[i]+step[i]));
+    		nDotPosPlusStep+=norm[n+i]*(vertex[v0+i]-(walkerPos[i]+step[i]));
     	}
     	
     	
@@ -263,22 +259,25 @@ public class Triangle implements SubstrateObject {
     	// if we've got here the step passes through the plane containing
     	// the triangle, now must check if the intersection point is 
     	// contained in the triangle itself.
-    	double[] w= new double[D];
-    	
-    	for(int i=0; i<D; i++){
-    		// displacement of interaction point from zeroth vertex
-    		w[i]=walkerPos[i]+tInt*step[i]-vertex[0][i];
-    	}
+    	final int v1= D*mesh.face[3*t+1];
+    	final int v2= D*mesh.face[3*t+2];
     	
     	// evaluate dot products
     	double wv=0.0;
     	double wu=0.0;
     	
     	for(int i=0; i<D; i++){
-    		wv+=w[i]*v[i];
-    		wu+=w[i]*u[i];
+    		// displacement of interaction point from zeroth vertex
+    		double w= walkerPos[i]+tInt*step[i]-vertex[v0+i];
+    		
+    		wv+=w*(-(vertex[v0+i]-vertex[v2+i]));
+    		wu+=w*(vertex[v1+i]-vertex[v0+i]);
     	}
     	
+    	final double uu= mesh.dots[3*t];
+    	final double vv= mesh.dots[3*t+1];
+    	final double uv= mesh.dots[3*t+2];
+    	
     	// evaluate triangle coord parameters
     	double denom= (uv*uv) - (uu*vv);
     	
@@ -292,11 +291,11 @@ public class Triangle implements SubstrateObject {
     		return false;
     	}
     	
-    	double t=(uv*wu - uu*wv)/denom;
+    	double tc=(uv*wu - uu*wv)/denom;
     	
     	// check parameter inequalities
-		if(t>=0.0){
-			if(s+t<=1.0){
+		if(tc>=0.0){
+			if(s+tc<=1.0){
 				// if we're in here, we're in the triangle
 				// so set the geometric quantities...
 				
@@ -305,7 +304,7 @@ public class Triangle implements SubstrateObject {
 				d[0]=0.0;
 		    	for(int i=0; i<D; i++){
 		    		double Pint_i= walkerPos[i]+tInt*step[i];
-		    		d[0]+=Pint_i*this.normal[i];
+		    		d[0]+=Pint_i*norm[n+i];
 		    	}
 		    	
 		    	// int dist is the arclength to the intersection
@@ -313,9 +312,9 @@ public class Triangle implements SubstrateObject {
 				
 				// and the the normal is... err... the normal
 				for(int i=0; i<D; i++){
-					normal[i]=this.normal[i];
+					normal[i]=norm[n+i];
 				}
-				p[0]=this.p;
+				p[0]=mesh.getPermeability(t);
 				
 				// ...and leave
 				return true;
@@ -354,21 +353,56 @@ public class Triangle implements SubstrateObject {
      * @param topRight upper corner of box
      * 
      * @return true or false
-     * 
-     * TODO: not implemented.
      */
     public final boolean intersectsCubicRegion(double[] bottomLeft, double[] topRight){
     	
+    	return intersectsCubicRegion(bottomLeft, topRight, new BoxScratch());
+    }
+    
+    /** 
+     * checks if triangle intersects an axis-aligned cubic region,
+     * using the given working space rather than allocating new arrays.
+     * 
+     * @param bottomLeft lower corner of box
+     * @param topRight upper corner of box
+     * @param scratch working space, one per thread
+     * 
+     * @return true or false
+     */
+    public final boolean intersectsCubicRegion(double[] bottomLeft, double[] topRight, BoxScratch scratch){
+    	
+    	final double[] boxcenter= scratch.boxcenter;
+    	final double[] boxhalfsize= scratch.boxhalfsize;
+    	
     	for(int i=0; i<D; i++){
     		boxcenter[i]=(topRight[i]+bottomLeft[i])/2.0;
     		boxhalfsize[i]=(topRight[i]-bottomLeft[i])/2.0;
     	}
     	
-    	return triBoxOverlap();
+    	return triBoxOverlap(boxcenter, boxhalfsize, scratch);
+    }
+    
+    /**
+     * working space for the triangle-box overlap test. building the
+     * spatial optimisation map of a large mesh makes millions of tests,
+     * so each thread keeps one of these rather than allocating arrays
+     * for every test.
+     */
+    public static final class BoxScratch{
+    	
+    	final double[] boxcenter= new double[D];
+    	final double[] boxhalfsize= new double[D];
+    	final double[] normal= new double[D];
+    	final double[] e0= new double[D];
+    	final double[] e1= new double[D];
+    	final double[] e2= new double[D];
+    	final double[][] w= new double[3][D];
+    	final double[] vmin= new double[D];
+    	final double[] vmax= new double[D];
     }
     
     public final double getPermeability(int i){
-    	return p;
+    	return mesh.getPermeability(t);
     }
     
     public final boolean boundingBoxIntersects(double[] pos, double[] step){
@@ -383,13 +417,15 @@ public class Triangle implements SubstrateObject {
     	String s = "vertices: (";
     	for(int i =0; i<3;i++){
     		for(int j=0;j<3;j++){
-    			s += " " + vertex[i][j];
+    			s += " " + getVertexCoord(i, j);
     		}
     		s += ")\t";
     	}
 
+    	final int n= D*t;
+    	
     	s +="\tnormal: (";
-    	s += normal[0] + " " + normal[1] + " " + normal[2] + ")";
+    	s += mesh.normal[n] + " " + mesh.normal[n+1] + " " + mesh.normal[n+2] + ")";
 
     	return s;
     }
@@ -438,9 +474,9 @@ public class Triangle implements SubstrateObject {
      *  
      *  port by matt.
      */
-    private final int X=0;
-    private final int Y=1;
-    private final int Z=2;
+    private static final int X=0;
+    private static final int Y=1;
+    private static final int Z=2;
 
 
     private final void CROSS(double[] dest, double[] v1, double[] v2){
@@ -473,12 +509,9 @@ public class Triangle implements SubstrateObject {
     }
 
 
-    private final boolean planeBoxOverlap(double[] normal, double d, double[] maxbox){
+    private final boolean planeBoxOverlap(double[] normal, double d, double[] maxbox, double[] vmin, double[] vmax){
 
     	int q;
-
-		double[] vmin= new double[D];
-		double[] vmax= new double[D];
 	
 		for(q=X;q<=Z;q++){
 		    if(normal[q]>0.0f)
@@ -501,7 +534,7 @@ public class Triangle implements SubstrateObject {
 
 
     /*======================== X-tests ========================*/
-    private final boolean  AXISTEST_X01(double a, double b, double fa, double fb){
+    private static boolean AXISTEST_X01(double a, double b, double fa, double fb, double[][] w, double[] boxhalfsize){
 	
 		double min, max;
 														       
@@ -525,7 +558,7 @@ public class Triangle implements SubstrateObject {
 
 
 
-    private final boolean AXISTEST_X2(double a, double b, double fa, double fb){
+    private static boolean AXISTEST_X2(double a, double b, double fa, double fb, double[][] w, double[] boxhalfsize){
 	
     	double min, max;
 
@@ -550,7 +583,7 @@ public class Triangle implements SubstrateObject {
 
 
     /*======================== Y-tests ========================*/
-    private final boolean AXISTEST_Y02(double a, double b, double fa, double fb){
+    private static boolean AXISTEST_Y02(double a, double b, double fa, double fb, double[][] w, double[] boxhalfsize){
 
     	double min, max;
 
@@ -575,7 +608,7 @@ public class Triangle implements SubstrateObject {
     }
 
 
-    private final boolean AXISTEST_Y1(double a, double b, double fa, double fb){
+    private static boolean AXISTEST_Y1(double a, double b, double fa, double fb, double[][] w, double[] boxhalfsize){
 
 		double min, max;
 	
@@ -603,7 +636,7 @@ public class Triangle implements SubstrateObject {
 
     /*======================== Z-tests ========================*/
 
-    private final boolean AXISTEST_Z12(double a, double b, double fa, double fb){
+    private static boolean AXISTEST_Z12(double a, double b, double fa, double fb, double[][] w, double[] boxhalfsize){
 	
 		double min, max;
 	
@@ -629,7 +662,7 @@ public class Triangle implements SubstrateObject {
 
 
 
-    private final boolean AXISTEST_Z0(double a, double b, double fa, double fb){
+    private static boolean AXISTEST_Z0(double a, double b, double fa, double fb, double[][] w, double[] boxhalfsize){
 
 		double min, max;
 	
@@ -655,7 +688,16 @@ public class Triangle implements SubstrateObject {
 
 
 
-    public final boolean triBoxOverlap(){
+    /**
+     * triangle-box overlap test
+     * 
+     * @param boxcenter centre of box
+     * @param boxhalfsize half lengths of box sides
+     * @param scratch working space
+     * 
+     * @return true if the triangle and the box overlap
+     */
+    private final boolean triBoxOverlap(double[] boxcenter, double[] boxhalfsize, BoxScratch scratch){
 	
 		/*    use separating axis theorem to test overlap between triangle and box */
 		/*    need to test for overlap in these directions: */
@@ -664,22 +706,28 @@ public class Triangle implements SubstrateObject {
 		/*    2) normal of the triangle */
 		/*    3) crossproduct(edge from tri, {x,y,z}-directin) */
 		/*       this gives 3x3=9 more tests */
-    	double[] axis= new double[D];
 		double min=0;
 		double max=0;
-		double d,p0,p1,p2,rad,fex,fey,fez;  
-		double[] normal= new double[D];
-		double[] e0= new double[D];
-		double[] e1= new double[D];
-		double[] e2= new double[D];
+		double d,fex,fey,fez;  
+		final double[] normal= scratch.normal;
+		final double[] e0= scratch.e0;
+		final double[] e1= scratch.e1;
+		final double[] e2= scratch.e2;
+		
+		/* vertices relative to the box centre */
+		final double[][] w= scratch.w;
 		
 		
 		
 		/* This is the fastest branch on Sun */
 		/* move everything so that the boxcenter is in (0,0,0) */
-		SUB(w[0], vertex[0],boxcenter);
-		SUB(w[1], vertex[1],boxcenter);
-		SUB(w[2], vertex[2],boxcenter);
+		for(int k=0; k<3; k++){
+			final int vk= D*mesh.face[3*t+k];
+			
+			w[k][X]= mesh.vertex[vk]-boxcenter[X];
+			w[k][Y]= mesh.vertex[vk+1]-boxcenter[Y];
+			w[k][Z]= mesh.vertex[vk+2]-boxcenter[Z];
+		}
 		
 		/* compute triangle edges */
 		SUB(e0,w[1],w[0]);      /* tri edge 0 */
@@ -692,39 +740,39 @@ public class Triangle implements SubstrateObject {
 		fey = Math.abs(e0[Y]);
 		fez = Math.abs(e0[Z]);
 		
-		if(!AXISTEST_X01(e0[Z], e0[Y], fez, fey)){
+		if(!AXISTEST_X01(e0[Z], e0[Y], fez, fey, w, boxhalfsize)){
 		    return false;
 		}
-		if(!AXISTEST_Y02(e0[Z], e0[X], fez, fex)){
+		if(!AXISTEST_Y02(e0[Z], e0[X], fez, fex, w, boxhalfsize)){
 		    return false;
 		}
-		if(!AXISTEST_Z12(e0[Y], e0[X], fey, fex)){
+		if(!AXISTEST_Z12(e0[Y], e0[X], fey, fex, w, boxhalfsize)){
 		    return false;
 		}
 		
 		fex = Math.abs(e1[X]);
 		fey = Math.abs(e1[Y]);
 		fez = Math.abs(e1[Z]);
-		if(!AXISTEST_X01(e1[Z], e1[Y], fez, fey)){
+		if(!AXISTEST_X01(e1[Z], e1[Y], fez, fey, w, boxhalfsize)){
 		    return false;
 		}
-		if(!AXISTEST_Y02(e1[Z], e1[X], fez, fex)){
+		if(!AXISTEST_Y02(e1[Z], e1[X], fez, fex, w, boxhalfsize)){
 		    return false;
 		}
-		if(!AXISTEST_Z0(e1[Y], e1[X], fey, fex)){
+		if(!AXISTEST_Z0(e1[Y], e1[X], fey, fex, w, boxhalfsize)){
 		    return false;
 		}
 		
 		fex = Math.abs(e2[X]);
 		fey = Math.abs(e2[Y]);
 		fez = Math.abs(e2[Z]);
-		if(!AXISTEST_X2(e2[Z], e2[Y], fez, fey)){
+		if(!AXISTEST_X2(e2[Z], e2[Y], fez, fey, w, boxhalfsize)){
 		    return false;
 		}
-		if(!AXISTEST_Y1(e2[Z], e2[X], fez, fex)){
+		if(!AXISTEST_Y1(e2[Z], e2[X], fez, fex, w, boxhalfsize)){
 		    return false;
 		}
-		if(!AXISTEST_Z12(e2[Y], e2[X], fey, fex)){
+		if(!AXISTEST_Z12(e2[Y], e2[X], fey, fex, w, boxhalfsize)){
 		    return false;
 		}
 		
@@ -751,7 +799,7 @@ public class Triangle implements SubstrateObject {
 		/*  compute plane equation of triangle: normal*x+d=0 */
 		CROSS(normal,e0,e1);
 		d=-DOT(normal,w[0]);  /* plane eq: normal.x+d=0 */
-		if(!planeBoxOverlap(normal,d,boxhalfsize)) return false;
+		if(!planeBoxOverlap(normal,d,boxhalfsize,scratch.vmin,scratch.vmax)) return false;
 		
 		return true;   /* box and triangle overlaps */
     }
@@ -759,17 +807,28 @@ public class Triangle implements SubstrateObject {
 
     public final double getDistanceFrom(double[] r0){
     	
+    	final double[] vertex= mesh.vertex;
+    	final double[] normal= mesh.normal;
+    	final int n= D*t;
+    	final int v0= D*mesh.face[3*t];
+    	final int v1= D*mesh.face[3*t+1];
+    	final int v2= D*mesh.face[3*t+2];
+    	
+    	final double uu= mesh.dots[3*t];
+    	final double vv= mesh.dots[3*t+1];
+    	final double uv= mesh.dots[3*t+2];
+    	
     	// first, get the point projection into the plane
     	final double[] w= new double[D];
     	
     	double qMpDotn= 0.0;
     	
     	for(int i=0; i<D; i++){
-    		qMpDotn+=(r0[i]-vertex[0][i])*normal[i];
+    		qMpDotn+=(r0[i]-vertex[v0+i])*normal[n+i];
     	}
     	
     	for(int i=0; i<D; i++){
-    		w[i]= r0[i]-qMpDotn*normal[i];
+    		w[i]= r0[i]-qMpDotn*normal[n+i];
     	}
     	
     	// check if projected point is in the triangle or not
@@ -778,18 +837,18 @@ public class Triangle implements SubstrateObject {
     	double wu=0.0;
     	
     	for(int i=0; i<D; i++){
-    		wv+=w[i]*v[i];
-    		wu+=w[i]*u[i];
+    		wv+=w[i]*(-(vertex[v0+i]-vertex[v2+i]));
+    		wu+=w[i]*(vertex[v1+i]-vertex[v0+i]);
     	}
     	
     	// evaluate triangle coord parameters
     	double denom= (uv*uv) - (uu*vv);
     	
     	double s=(uv*wv - vv*wu)/denom;    	
-    	double t=(uv*wu - uu*wv)/denom;
+    	double tc=(uv*wu - uu*wv)/denom;
     	
     	// check parameter inequalities
-		if((t>=0.0)&&(s+t<=1.0)){
+		if((tc>=0.0)&&(s+tc<=1.0)){
 			// if we're in here, we're in the triangle
 			// so the distance is the projected point to the original
 			double distSq=0.0;
@@ -807,22 +866,22 @@ public class Triangle implements SubstrateObject {
 		final double[] rc= new double[D];
 		
 		// clamp s and t
-		if(t<0.0){
-			t=0.0;
+		if(tc<0.0){
+			tc=0.0;
 		}
-		if(t>1.0){
-			t=1.0;
+		if(tc>1.0){
+			tc=1.0;
 		}
 		if(s<0.0){
 			s=0.0;
 		}
-		if(s>1.0-t){
-			s=1.0-t;
+		if(s>1.0-tc){
+			s=1.0-tc;
 		}
 		
 		// transform barycentric coords of clamped point back to substrate frame
 		for(int i=0; i<D; i++){
-			rc[i]=vertex[0][i]+s*u[i]+t*v[i];
+			rc[i]=vertex[v0+i]+s*(vertex[v1+i]-vertex[v0+i])+tc*(-(vertex[v0+i]-vertex[v2+i]));
 		}
 		
 		double sqDist=0.0;
@@ -833,6 +892,96 @@ public class Triangle implements SubstrateObject {
 		return Math.sqrt(sqDist);
     }    
     
+    
+    /**
+     * returns the exact distance from a point to the nearest point of the
+     * triangle, edges and corners included. getDistanceFrom() can give 
+     * more than this when the point is off to one side of the triangle, 
+     * so this is the one to use as a bound on how far a walker can go 
+     * without meeting the triangle.
+     * 
+     * The nearest point is found from the Voronoi regions of the corners,
+     * edges and face, as in Ericson, "Real-time collision detection", 
+     * section 5.1.5.
+     * 
+     * @param r0 the point
+     * 
+     * @return distance to the triangle
+     */
+    public final double getSurfaceDistance(double[] r0){
+    	
+    	final double[] vertex= mesh.vertex;
+    	final int a= D*mesh.face[3*t];
+    	final int b= D*mesh.face[3*t+1];
+    	final int c= D*mesh.face[3*t+2];
+    	
+    	double d1=0.0, d2=0.0, d3=0.0, d4=0.0, d5=0.0, d6=0.0;
+    	
+    	for(int i=0; i<D; i++){
+    		double ab= vertex[b+i]-vertex[a+i];
+    		double ac= vertex[c+i]-vertex[a+i];
+    		
+    		d1+= ab*(r0[i]-vertex[a+i]);
+    		d2+= ac*(r0[i]-vertex[a+i]);
+    		d3+= ab*(r0[i]-vertex[b+i]);
+    		d4+= ac*(r0[i]-vertex[b+i]);
+    		d5+= ab*(r0[i]-vertex[c+i]);
+    		d6+= ac*(r0[i]-vertex[c+i]);
+    	}
+    	
+    	// barycentric coords of the nearest point along the two edges from the first corner
+    	double v, w;
+    	
+    	double va= d3*d6-d5*d4;
+    	double vb= d5*d2-d1*d6;
+    	double vc= d1*d4-d3*d2;
+    	
+    	if((d1<=0.0)&&(d2<=0.0)){
+    		// first corner
+    		v= 0.0;
+    		w= 0.0;
+    	}
+    	else if((d3>=0.0)&&(d4<=d3)){
+    		// second corner
+    		v= 1.0;
+    		w= 0.0;
+    	}
+    	else if((vc<=0.0)&&(d1>=0.0)&&(d3<=0.0)){
+    		// edge from first to second corner
+    		v= d1/(d1-d3);
+    		w= 0.0;
+    	}
+    	else if((d6>=0.0)&&(d5<=d6)){
+    		// third corner
+    		v= 0.0;
+    		w= 1.0;
+    	}
+    	else if((vb<=0.0)&&(d2>=0.0)&&(d6<=0.0)){
+    		// edge from first to third corner
+    		v= 0.0;
+    		w= d2/(d2-d6);
+    	}
+    	else if((va<=0.0)&&(d4-d3>=0.0)&&(d5-d6>=0.0)){
+    		// edge from second to third corner
+    		w= (d4-d3)/((d4-d3)+(d5-d6));
+    		v= 1.0-w;
+    	}
+    	else{
+    		// face
+    		double denom= 1.0/(va+vb+vc);
+    		v= vb*denom;
+    		w= vc*denom;
+    	}
+    	
+    	double sqDist=0.0;
+    	for(int i=0; i<D; i++){
+    		double x= r0[i]-vertex[a+i]-v*(vertex[b+i]-vertex[a+i])-w*(vertex[c+i]-vertex[a+i]);
+    		sqDist+= x*x;
+    	}
+    	
+    	return Math.sqrt(sqDist);
+    }
+    
     /**
      * returns the triangles associated with this object. In this case that just means
      * a copy of the current triangle in an ArrayList
@@ -843,7 +992,7 @@ public class Triangle implements SubstrateObject {
     	
     	ArrayList<Triangle> triangles= new ArrayList<Triangle>(1);
     	
-    	Triangle copy= new Triangle(vertex[0], vertex[1], vertex[2], p);
+    	Triangle copy= new Triangle(getVertex(0), getVertex(1), getVertex(2), mesh.getPermeability(t));
     	
     	triangles.add(copy);
     	
@@ -855,7 +1004,7 @@ public class Triangle implements SubstrateObject {
      */
     public final double[] getPosition(){
     	
-    	return new double[]{vertex[0][0], vertex[0][1], vertex[0][2]};
+    	return getVertex(0);
     }
 
     /**
@@ -1298,4 +1447,18 @@ public class Triangle implements SubstrateObject {
         testBoxIntersection5();
     }
     
+    
+    /**
+     * @see simulation.geometry.elements.SubstrateObject#getId()
+     */
+    public final int getId(){
+        return id;
+    }
+    
+    /**
+     * @see simulation.geometry.elements.SubstrateObject#setId(int)
+     */
+    public final void setId(int id){
+        this.id= id;
+    }
 }
@@ -0,0 +1,412 @@
+package simulation.geometry.elements;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import misc.LoggedException;
+
+import simulation.DiffusionSimulation;
+
+/**
+ * a triangle mesh with shared vertices. Vertex coordinates and the
+ * vertex indices of each triangle are held in flat arrays, together
+ * with the plane of each triangle and the dot products used by the
+ * intersection test, so a mesh of a few million triangles is a handful
+ * of arrays rather than millions of small objects.
+ *
+ * <code>Triangle</code> objects are views onto a triangle of a mesh
+ * (see getTriangles()), which keeps them small enough to put into the
+ * spatial optimisation arrays.
+ *
+ * Triangles that come from the same polygon in the mesh file are
+ * coplanar and stored next to each other. This is recorded so that
+ * the inside/outside test can avoid counting a crossing twice when a
+ * ray hits the shared edge of two halves of a polygon.
+ *
+ */
+public class TriangleMesh {
+
+	/** dimensionality of space */
+	private static final int D= DiffusionSimulation.D;
+
+	/** number of vertices */
+	private final int numVertices;
+
+	/** number of triangles */
+	private final int numTriangles;
+
+	/** vertex coordinates, D per vertex */
+	final double[] vertex;
+
+	/** vertex indices, 3 per triangle */
+	final int[] face;
+
+	/** unit normal of each triangle, D per triangle */
+	final double[] normal;
+
+	/** normal dotted with the first vertex of each triangle */
+	final double[] nP;
+
+	/** u.u, v.v and u.v for each triangle, where u=v1-v0 and v=v2-v0 */
+	final double[] dots;
+
+	/** permeability of each triangle (null if they're all the same) */
+	private final double[] perm;
+
+	/** permeability of all triangles if perm is null */
+	private final double p;
+
+	/** polygon each triangle comes from (null if every polygon is a triangle) */
+	private final int[] polygon;
+
+
+	/**
+	 * constructor. the arrays are used as they are, not copied.
+	 *
+	 * @param vertex vertex coordinates, D per vertex
+	 * @param face vertex indices, 3 per triangle
+	 * @param perm permeability of each triangle, or null
+	 * @param p permeability of every triangle if perm is null
+	 * @param polygon index of the polygon each triangle was cut from,
+	 *        or null if each triangle is a polygon in its own right.
+	 *        triangles from the same polygon must be consecutive.
+	 */
+	public TriangleMesh(double[] vertex, int[] face, double[] perm, double p, int[] polygon){
+
+		this(vertex, face, null, null, null, perm, p, polygon);
+	}
+
+
+	/**
+	 * constructor for a mesh whose planes have already been calculated,
+	 * eg. one read back from a cache. the arrays are used as they are.
+	 * if any of the plane arrays are null they are all recalculated.
+	 *
+	 * @param vertex vertex coordinates, D per vertex
+	 * @param face vertex indices, 3 per triangle
+	 * @param normal unit normals, D per triangle
+	 * @param nP normal dotted with first vertex, one per triangle
+	 * @param dots u.u, v.v and u.v, 3 per triangle
+	 * @param perm permeability of each triangle, or null
+	 * @param p permeability of every triangle if perm is null
+	 * @param polygon polygon indices, or null
+	 */
+	public TriangleMesh(double[] vertex, int[] face, double[] normal, double[] nP, double[] dots,
+			double[] perm, double p, int[] polygon){
+
+		this.numVertices= vertex.length/D;
+		this.numTriangles= face.length/3;
+
+		if((perm!=null)&&(perm.length!=numTriangles)){
+			throw new LoggedException("mesh has "+numTriangles+" triangles but "+perm.length+" permeabilities");
+		}
+		if((polygon!=null)&&(polygon.length!=numTriangles)){
+			throw new LoggedException("mesh has "+numTriangles+" triangles but "+polygon.length+" polygon indices");
+		}
+
+		for(int i=0; i<face.length; i++){
+			if((face[i]<0)||(face[i]>=numVertices)){
+				throw new LoggedException("triangle "+(i/3)+" refers to vertex "+face[i]+
+						" but the mesh only has "+numVertices+" vertices");
+			}
+		}
+
+		this.vertex= vertex;
+		this.face= face;
+		this.perm= perm;
+		this.p= p;
+		this.polygon= polygon;
+
+		if((normal==null)||(nP==null)||(dots==null)){
+			this.normal= new double[D*numTriangles];
+			this.nP= new double[numTriangles];
+			this.dots= new double[3*numTriangles];
+
+			initPlanes();
+		}
+		else{
+			if((normal.length!=D*numTriangles)||(nP.length!=numTriangles)||(dots.length!=3*numTriangles)){
+				throw new LoggedException("plane arrays don't match the number of triangles ("+numTriangles+")");
+			}
+
+			this.normal= normal;
+			this.nP= nP;
+			this.dots= dots;
+		}
+	}
+
+
+	/**
+	 * constructs a mesh containing a single triangle
+	 *
+	 * @param vert1 first vertex
+	 * @param vert2 second vertex
+	 * @param vert3 third vertex
+	 * @param p permeability
+	 */
+	TriangleMesh(double[] vert1, double[] vert2, double[] vert3, double p){
+
+		this(new double[]{vert1[0], vert1[1], vert1[2],
+						  vert2[0], vert2[1], vert2[2],
+						  vert3[0], vert3[1], vert3[2]},
+			 new int[]{0, 1, 2}, null, p, null);
+	}
+
+
+	/**
+	 * recalculates the plane and dot products of every triangle
+	 */
+	public final void initPlanes(){
+		for(int t=0; t<numTriangles; t++){
+			initPlane(t);
+		}
+	}
+
+
+	/**
+	 * recalculates the normal, plane constant and dot products of
+	 * a triangle from its vertices. this is the same arithmetic as
+	 * the original per-triangle code, so intersection results are
+	 * identical.
+	 *
+	 * @param t triangle index
+	 */
+	final void initPlane(int t){
+
+		final int v0= D*face[3*t];
+		final int v1= D*face[3*t+1];
+		final int v2= D*face[3*t+2];
+
+		final double[] u= new double[D];
+		final double[] v= new double[D];
+
+       	for(int i=0; i<D; i++){
+       		u[i]= vertex[v1+i]-vertex[v0+i];
+       		v[i]= vertex[v0+i]-vertex[v2+i];
+       	}
+
+       	final double[] n= Triangle.normCrossProd(u, v);
+
+       	double np=0.0;
+       	double uu=0.0;
+       	double vv=0.0;
+       	double uv=0.0;
+       	for(int i=0; i<D; i++){
+       		v[i]*=-1.0;
+       		np+=n[i]*vertex[v0+i];
+       		uu+=u[i]*u[i];
+       		vv+=v[i]*v[i];
+       		uv+=u[i]*v[i];
+
+       		normal[D*t+i]= n[i];
+       	}
+
+       	nP[t]= np;
+       	dots[3*t]= uu;
+       	dots[3*t+1]= vv;
+       	dots[3*t+2]= uv;
+	}
+
+
+	/**
+	 * moves every vertex by subtracting the given offset and
+	 * recalculates the triangle planes.
+	 *
+	 * @param offset displacement to subtract
+	 */
+	public final void translate(double[] offset){
+
+		for(int i=0; i<numVertices; i++){
+			for(int j=0; j<D; j++){
+				vertex[D*i+j]-=offset[j];
+			}
+		}
+
+		initPlanes();
+	}
+
+
+	/**
+	 * @return number of vertices
+	 */
+	public final int numVertices(){
+		return numVertices;
+	}
+
+
+	/**
+	 * @return number of triangles
+	 */
+	public final int numTriangles(){
+		return numTriangles;
+	}
+
+
+	/**
+	 * @param t triangle index
+	 * @param k vertex of triangle (0-2)
+	 *
+	 * @return index of the vertex in the mesh
+	 */
+	public final int getVertexIndex(int t, int k){
+		return face[3*t+k];
+	}
+
+
+	/**
+	 * @param i vertex index
+	 * @param j coordinate index
+	 *
+	 * @return coordinate j of vertex i
+	 */
+	public final double getCoord(int i, int j){
+		return vertex[D*i+j];
+	}
+
+
+	/**
+	 * @param t triangle index
+	 *
+	 * @return permeability of the triangle
+	 */
+	public final double getPermeability(int t){
+
+		if(perm==null){
+			return p;
+		}
+
+		return perm[t];
+	}
+
+
+	/**
+	 * @return true if the triangles have individual permeabilities
+	 */
+	public final boolean hasPermeabilities(){
+		return perm!=null;
+	}
+
+
+	/**
+	 * constructs a view onto each triangle. the views share the mesh
+	 * arrays, so moving a vertex of one moves it in all triangles that
+	 * use it.
+	 *
+	 * @return array of triangles in mesh order
+	 */
+	public final Triangle[] getTriangles(){
+
+		Triangle[] tri= new Triangle[numTriangles];
+
+		for(int t=0; t<numTriangles; t++){
+			tri[t]= new Triangle(this, t);
+		}
+
+		return tri;
+	}
+
+
+	/**
+	 * assembles the lists of coplanar triangles from the same polygon
+	 * that are skipped in the inside/outside test once one of them has
+	 * been crossed. triangles that were triangles in the mesh file have
+	 * no entry.
+	 *
+	 * @param tri the views returned by getTriangles()
+	 *
+	 * @return map of triangle to the other triangles of its polygon
+	 */
+	public final HashMap<Triangle, ArrayList<Triangle>> getCoplanarMap(Triangle[] tri){
+
+		HashMap<Triangle, ArrayList<Triangle>> coplanarMap= new HashMap<Triangle, ArrayList<Triangle>>();
+
+		if(polygon==null){
+			return coplanarMap;
+		}
+
+		int start=0;
+		while(start<numTriangles){
+
+			int end=start+1;
+			while((end<numTriangles)&&(polygon[end]==polygon[start])){
+				end++;
+			}
+
+			if(end-start>1){
+				for(int t=start; t<end; t++){
+					ArrayList<Triangle> copList= new ArrayList<Triangle>(end-start-1);
+
+					for(int s=start; s<end; s++){
+						if(s!=t){
+							copList.add(tri[s]);
+						}
+					}
+
+					coplanarMap.put(tri[t], copList);
+				}
+			}
+
+			start=end;
+		}
+
+		return coplanarMap;
+	}
+
+
+	/*
+	 * the arrays themselves, not copies. used to save the mesh.
+	 */
+
+	/** @return vertex coordinates, D per vertex */
+	public final double[] getVertexArray(){
+		return vertex;
+	}
+
+	/** @return vertex indices, 3 per triangle */
+	public final int[] getFaceArray(){
+		return face;
+	}
+
+	/** @return triangle normals, D per triangle */
+	public final double[] getNormalArray(){
+		return normal;
+	}
+
+	/** @return plane constants, one per triangle */
+	public final double[] getPlaneArray(){
+		return nP;
+	}
+
+	/** @return u.u, v.v and u.v, 3 per triangle */
+	public final double[] getDotArray(){
+		return dots;
+	}
+
+	/** @return per-triangle permeabilities, or null */
+	public final double[] getPermeabilityArray(){
+		return perm;
+	}
+
+	/** @return polygon index of each triangle, or null */
+	public final int[] getPolygonArray(){
+		return polygon;
+	}
+
+
+	/**
+	 * @return approximate size of the mesh arrays in bytes
+	 */
+	public final long heapBytes(){
+
+		long bytes= 8L*vertex.length+4L*face.length+8L*normal.length+8L*nP.length+8L*dots.length;
+
+		if(perm!=null){
+			bytes+=8L*perm.length;
+		}
+		if(polygon!=null){
+			bytes+=4L*polygon.length;
+		}
+
+		return bytes;
+	}
+}
@@ -159,6 +159,16 @@ public class CrossingCylinderSubstrate extends CylinderSubstrate {
 	    
 	}
 	
+	/**
+	 * the rotated patch means distances in substrate coords aren't 
+	 * distances moved by walkers, so no steps skip the barrier checks.
+	 * 
+	 * @return false
+	 */
+	public boolean hasSafeRadius(){
+		return false;
+	}
+	
 	/**
 	 * overrides the default step mapper to take account of the rotated patch 
 	 * in the coordinate system. if the spin position needs to be rotated, this 
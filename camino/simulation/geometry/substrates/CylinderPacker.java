@@ -0,0 +1,619 @@
+package simulation.geometry.substrates;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import numerics.GammaRandom;
+import numerics.MTRandom;
+
+/**
+ * packs the cross sections of parallel cylinders with given radii into
+ * a periodic rectangle by growing them together.
+ *
+ * Random sequential addition jams at around half the area for gamma
+ * distributed radii, so it can't reach the intracellular fractions of
+ * real white matter. Here every cylinder starts at the same fraction of
+ * its radius at a random position, small enough that they cover a
+ * third of the area. Overlapping pairs are pushed apart along the line
+ * between their centres, the smaller cylinder moving further, in sweeps
+ * over a cell list until none overlap. The radii are then grown a little
+ * and the cylinders relaxed again, and so on until they reach full
+ * size. The growth slows down as the packing gets tighter, and goes
+ * back to the last overlap-free packing if relaxation fails.
+ *
+ * Small cylinders can get caught in the closing gaps between bigger
+ * ones. If relaxation fails, the smaller cylinder of each pair that
+ * still overlaps is moved to a free space elsewhere and relaxation is
+ * tried again. If the cylinders jam before they reach full size anyway,
+ * the ones that first got stuck are left out and growth carries on.
+ *
+ * Distances are all minimum-image, so the packing is periodic and
+ * cylinders can straddle the edges of the rectangle.
+ *
+ */
+public final class CylinderPacker {
+
+    /** logging object */
+    private static final Logger logger= Logger.getLogger("simulation.geometry.substrates.CylinderPacker");
+
+    /** push overlapping pairs apart */
+    private static final int PUSH= 0;
+
+    /** count overlapping pairs */
+    private static final int COUNT= 1;
+
+    /** mark the smaller of each overlapping pair as stuck */
+    private static final int MARK= 2;
+
+    /** fraction of the area covered at the start of growth */
+    private static final double START_FRACTION= 0.3;
+
+    /** largest relative increase in the radii between relaxations */
+    private static final double MAX_GROWTH= 0.05;
+
+    /** smallest relative increase in the radii before the packing is taken as jammed */
+    private static final double MIN_GROWTH= 1E-3;
+
+    /** most relaxation sweeps before giving up on a size */
+    private static final int MAX_SWEEPS= 50;
+
+    /** most times to move stuck cylinders before giving up on a size */
+    private static final int MAX_MOVES= 3;
+
+    /** most random positions to try for a stuck cylinder */
+    private static final int MAX_TRIES= 100;
+
+    /** relative distance past contact that overlapping pairs are pushed to */
+    private static final double OVERSHOOT= 1E-6;
+
+    /** number of cylinders */
+    private final int N;
+
+    /** full radius of each cylinder */
+    private final double[] r;
+
+    /** largest radius */
+    private final double rmax;
+
+    /** size of the rectangle */
+    private final double Lx, Ly;
+
+    /** smallest gap between cylinders */
+    private final double gap;
+
+    /** centres of cylinders */
+    private final double[] x, y;
+
+    /** centres in the last packing without overlaps */
+    private final double[] bestX, bestY;
+
+    /** is each cylinder in the packing? */
+    private final boolean[] placed;
+
+    /** random numbers for positions */
+    private final MTRandom rng;
+
+    /** number of cells along each side */
+    private int ncx, ncy;
+
+    /** size of a cell along each side */
+    private double hx, hy;
+
+    /** index in cellItems of the first cylinder in each cell, plus one at the end */
+    private int[] cellStart;
+
+    /** cylinders in each cell in turn */
+    private int[] cellItems;
+
+    /** cell of each cylinder */
+    private final int[] cellOf;
+
+    /** cylinders caught overlapping when relaxation failed */
+    private final boolean[] stuck;
+
+    /** cylinders that first got stuck at the current size */
+    private final boolean[] jammed;
+
+    /** number of relaxation sweeps so far */
+    private int sweeps= 0;
+
+
+    /**
+     * constructor.
+     *
+     * @param radius radius of each cylinder
+     * @param Lx width of the rectangle
+     * @param Ly height of the rectangle
+     * @param gap smallest gap to leave between cylinders
+     * @param seed seed for the random initial positions
+     */
+    public CylinderPacker(double[] radius, double Lx, double Ly, double gap, long seed){
+
+        this.N= radius.length;
+        this.r= radius.clone();
+        this.Lx= Lx;
+        this.Ly= Ly;
+        this.gap= gap;
+
+        double rmax= 0.0;
+        for(int i=0; i<N; i++){
+            rmax= Math.max(rmax, r[i]);
+        }
+        this.rmax= rmax;
+
+        this.x= new double[N];
+        this.y= new double[N];
+        this.bestX= new double[N];
+        this.bestY= new double[N];
+        this.placed= new boolean[N];
+        this.stuck= new boolean[N];
+        this.jammed= new boolean[N];
+        this.cellOf= new int[N];
+
+        this.rng= new MTRandom(seed);
+    }
+
+
+    /**
+     * packs the cylinders.
+     *
+     * @return number of cylinders in the packing
+     */
+    public int pack(){
+
+        long start= System.currentTimeMillis();
+
+        double area= 0.0;
+        for(int i=0; i<N; i++){
+            area+= Math.PI*r[i]*r[i];
+        }
+
+        // shrink the cylinders until they cover the starting fraction of the area
+        double s= Math.min(1.0, Math.sqrt(START_FRACTION*Lx*Ly/area));
+
+        for(int i=0; i<N; i++){
+            x[i]= Lx*rng.nextDouble();
+            y[i]= Ly*rng.nextDouble();
+        }
+        Arrays.fill(placed, true);
+
+        double growth= MAX_GROWTH;
+        double bestS= 0.0;
+
+        while(true){
+            int used= relax(s, growth, MAX_SWEEPS);
+
+            // small cylinders get caught in the closing gaps between bigger
+            // ones, and can't get out. move them somewhere else and try again
+            for(int m=0; (used<0)&&(m<MAX_MOVES); m++){
+                moveStuck(s);
+
+                if(m==0){
+                    // the first to get stuck are left out if the packing jams
+                    System.arraycopy(stuck, 0, jammed, 0, N);
+                }
+
+                used= relax(s, growth, MAX_SWEEPS);
+            }
+
+            if(used>0){
+                bestS= s;
+                System.arraycopy(x, 0, bestX, 0, N);
+                System.arraycopy(y, 0, bestY, 0, N);
+
+                if(s>=1.0){
+                    break;
+                }
+
+                // grow faster while relaxation is easy
+                if(used<=MAX_SWEEPS/10){
+                    growth= Math.min(2.0*growth, MAX_GROWTH);
+                }
+
+                s= Math.min(1.0, s*(1.0+growth));
+            }
+            else if(bestS==0.0){
+                // couldn't even relax the starting packing
+                s*= 0.9;
+            }
+            else{
+                if(growth<MIN_GROWTH){
+                    // jammed. leave out the cylinders that got stuck first
+                    int dropped= 0;
+                    for(int i=0; i<N; i++){
+                        if(jammed[i]){
+                            placed[i]= false;
+                            dropped++;
+                        }
+                    }
+
+                    logger.info("jammed at "+s+" of full size. leaving out "+dropped+" cylinders");
+
+                    growth= 2.0*MIN_GROWTH;
+                }
+                else{
+                    growth*= 0.5;
+                }
+
+                // go back to the last packing and grow more slowly
+                System.arraycopy(bestX, 0, x, 0, N);
+                System.arraycopy(bestY, 0, y, 0, N);
+
+                s= Math.min(1.0, bestS*(1.0+growth));
+            }
+        }
+
+        int numPlaced= 0;
+        double placedArea= 0.0;
+        for(int i=0; i<N; i++){
+            if(placed[i]){
+                numPlaced++;
+                placedArea+= Math.PI*r[i]*r[i];
+            }
+        }
+
+        logger.info("packed "+numPlaced+" of "+N+" cylinders to fraction "+placedArea/(Lx*Ly)+
+                " in "+sweeps+" sweeps ("+(System.currentTimeMillis()-start)/1000.0+"s)");
+
+        return numPlaced;
+    }
+
+
+    /**
+     * @param i index of a cylinder
+     *
+     * @return true if the cylinder is in the packing
+     */
+    public boolean isPlaced(int i){
+        return placed[i];
+    }
+
+
+    /**
+     * gets the centre of a cylinder in the rectangle
+     *
+     * @param i index of a cylinder
+     * @param P space for the centre. the first two components are set
+     */
+    public void getCentre(int i, double[] P){
+        P[0]= x[i];
+        P[1]= y[i];
+    }
+
+
+    /**
+     * counts the pairs of cylinders in the packing that overlap or are
+     * closer than the gap at full size.
+     *
+     * @return number of overlapping pairs
+     */
+    public int countOverlaps(){
+
+        buildCells(1.0);
+
+        int overlaps= 0;
+        for(int i=0; i<N; i++){
+            if(placed[i]){
+                overlaps+= separate(i, 1.0, 0.0, COUNT, false);
+            }
+        }
+
+        return overlaps;
+    }
+
+
+    /**
+     * sweeps over the cylinders pushing overlapping pairs apart until
+     * a sweep finds no overlaps. Pairs are pushed apart as if they were
+     * a little bigger than they are, which leaves room for the smaller
+     * overlaps that each push makes with other neighbours.
+     *
+     * @param s fraction of full size
+     * @param skin relative amount bigger to push pairs apart as
+     * @param maxSweeps most sweeps to make
+     *
+     * @return number of sweeps, including the last one with no overlaps,
+     *         or -1 if there were still overlaps after maxSweeps
+     */
+    private int relax(double s, double skin, int maxSweeps){
+
+        for(int sweep=0; sweep<maxSweeps; sweep++){
+            // rebuilt every sweep, so the last sweep (which doesn't move anything) is exact
+            buildCells(s);
+            sweeps++;
+
+            int overlaps= 0;
+            for(int i=0; i<N; i++){
+                if(placed[i]){
+                    overlaps+= separate(i, s, skin, PUSH, false);
+                }
+            }
+
+            if(overlaps==0){
+                return sweep+1;
+            }
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * marks the smaller cylinder of each overlapping pair as stuck
+     *
+     * @param s fraction of full size
+     */
+    private void markStuck(double s){
+
+        buildCells(s);
+
+        Arrays.fill(stuck, false);
+        for(int i=0; i<N; i++){
+            if(placed[i]){
+                separate(i, s, 0.0, MARK, false);
+            }
+        }
+    }
+
+
+    /**
+     * moves each stuck cylinder to a random position where it doesn't
+     * overlap anything, if one can be found quickly. the cylinders
+     * moved are left marked as stuck.
+     *
+     * @param s fraction of full size
+     */
+    private void moveStuck(double s){
+
+        markStuck(s);
+
+        for(int i=0; i<N; i++){
+            if(!stuck[i]){
+                continue;
+            }
+
+            for(int t=0; t<MAX_TRIES; t++){
+                x[i]= Lx*rng.nextDouble();
+                y[i]= Ly*rng.nextDouble();
+
+                cellOf[i]= getCell(x[i], y[i]);
+
+                if(separate(i, s, 0.0, COUNT, true)==0){
+                    break;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * finds the cylinders that overlap one cylinder and pushes each pair
+     * apart or marks the smaller one.
+     *
+     * @param i index of the cylinder
+     * @param s fraction of full size
+     * @param skin relative amount bigger to push pairs apart as
+     * @param mode PUSH to push overlapping pairs apart, COUNT to only
+     *        count them, MARK to mark the smaller of each pair as stuck
+     * @param all check every other cylinder, rather than only those no
+     *        bigger than it
+     *
+     * @return number of overlapping cylinders found
+     */
+    private int separate(int i, double s, double skin, int mode, boolean all){
+
+        // each pair is found from its bigger cylinder, unless checking them all
+        double reach= s*(r[i]+(all?rmax:r[i]))+gap;
+
+        int ci= cellOf[i]/ncy;
+        int cj= cellOf[i]%ncy;
+
+        int kx= (int)Math.ceil(reach/hx);
+        int ky= (int)Math.ceil(reach/hy);
+
+        // visit each cell once, even if the reach wraps all the way round
+        boolean allX= (2*kx+1>=ncx);
+        boolean allY= (2*ky+1>=ncy);
+
+        int nx= allX?ncx:2*kx+1;
+        int ny= allY?ncy:2*ky+1;
+
+        int overlaps= 0;
+
+        for(int a=0; a<nx; a++){
+            int cx= allX?a:(ci-kx+a+ncx)%ncx;
+
+            for(int b=0; b<ny; b++){
+                int cy= allY?b:(cj-ky+b+ncy)%ncy;
+
+                int cell= cx*ncy+cy;
+
+                for(int m=cellStart[cell]; m<cellStart[cell+1]; m++){
+                    int j= cellItems[m];
+
+                    if((j==i)||!placed[j]||(!all&&((r[j]>r[i])||((r[j]==r[i])&&(j<i))))){
+                        continue;
+                    }
+
+                    double dx= x[j]-x[i];
+                    double dy= y[j]-y[i];
+                    dx-= Lx*Math.rint(dx/Lx);
+                    dy-= Ly*Math.rint(dy/Ly);
+
+                    double target= s*(r[i]+r[j])+gap;
+                    double d2= dx*dx+dy*dy;
+
+                    double pushTo= target*(1.0+skin+OVERSHOOT);
+
+                    if(d2>target*target){
+                        continue;
+                    }
+
+                    overlaps++;
+
+                    if(mode==MARK){
+                        stuck[(r[j]<r[i])?j:i]= true;
+                    }
+                    if(mode!=PUSH){
+                        continue;
+                    }
+
+                    double d= Math.sqrt(d2);
+                    double ux, uy;
+                    if(d>0.0){
+                        ux= dx/d;
+                        uy= dy/d;
+                    }
+                    else{
+                        double theta= 2.0*Math.PI*rng.nextDouble();
+                        ux= Math.cos(theta);
+                        uy= Math.sin(theta);
+                    }
+
+                    double push= pushTo-d;
+
+                    // the smaller cylinder moves further
+                    double ai= r[i]*r[i];
+                    double aj= r[j]*r[j];
+                    double wi= (ai+aj>0.0)?aj/(ai+aj):0.5;
+                    double wj= 1.0-wi;
+
+                    x[i]= wrap(x[i]-ux*push*wi, Lx);
+                    y[i]= wrap(y[i]-uy*push*wi, Ly);
+                    x[j]= wrap(x[j]+ux*push*wj, Lx);
+                    y[j]= wrap(y[j]+uy*push*wj, Ly);
+                }
+            }
+        }
+
+        return overlaps;
+    }
+
+
+    /**
+     * @return coordinate moved into [0, L)
+     */
+    private static double wrap(double c, double L){
+
+        c-= L*Math.floor(c/L);
+
+        // rounding can leave it at L
+        if(c>=L){
+            c= 0.0;
+        }
+
+        return c;
+    }
+
+
+    /**
+     * sorts the cylinders in the packing into a grid of cells about the
+     * size of a typical cylinder at the current size.
+     *
+     * @param s fraction of full size
+     */
+    private void buildCells(double s){
+
+        double meanR= 0.0;
+        for(int i=0; i<N; i++){
+            meanR+= r[i];
+        }
+        meanR/= Math.max(N, 1);
+
+        double h= Math.max(2.0*s*meanR+gap, Math.sqrt(Lx*Ly/Math.max(N, 1)));
+
+        ncx= Math.max(1, (int)(Lx/h));
+        ncy= Math.max(1, (int)(Ly/h));
+        hx= Lx/ncx;
+        hy= Ly/ncy;
+
+        if((cellStart==null)||(cellStart.length!=ncx*ncy+1)){
+            cellStart= new int[ncx*ncy+1];
+        }
+        else{
+            Arrays.fill(cellStart, 0);
+        }
+
+        int count= 0;
+        for(int i=0; i<N; i++){
+            if(!placed[i]){
+                continue;
+            }
+
+            cellOf[i]= getCell(x[i], y[i]);
+            cellStart[cellOf[i]+1]++;
+            count++;
+        }
+
+        for(int c=0; c<ncx*ncy; c++){
+            cellStart[c+1]+= cellStart[c];
+        }
+
+        if((cellItems==null)||(cellItems.length<count)){
+            cellItems= new int[N];
+        }
+
+        int[] fill= Arrays.copyOf(cellStart, ncx*ncy);
+        for(int i=0; i<N; i++){
+            if(placed[i]){
+                cellItems[fill[cellOf[i]]++]= i;
+            }
+        }
+    }
+
+
+    /**
+     * @return index of the cell containing a point in the rectangle
+     */
+    private int getCell(double px, double py){
+
+        int cx= Math.min((int)(px/hx), ncx-1);
+        int cy= Math.min((int)(py/hy), ncy-1);
+
+        return cx*ncy+cy;
+    }
+
+
+    /**
+     * packs gamma distributed cylinders into a square and reports the
+     * time taken and the fraction of the area covered.
+     *
+     * usage: CylinderPacker <cylinders> [fraction [k beta]]
+     */
+    public static void main(String[] args){
+
+        int N= (args.length>0)?Integer.parseInt(args[0]):10000;
+        double fraction= (args.length>1)?Double.parseDouble(args[1]):0.7;
+        double k= (args.length>3)?Double.parseDouble(args[2]):1.84;
+        double beta= (args.length>3)?Double.parseDouble(args[3]):7.8E-7;
+
+        GammaRandom grng= new GammaRandom(36558013l, k, beta);
+
+        double[] radius= new double[N];
+        double area= 0.0;
+        for(int i=0; i<N; i++){
+            radius[i]= grng.nextGamma();
+            area+= Math.PI*radius[i]*radius[i];
+        }
+
+        // size of square the cylinders should cover the given fraction of
+        double L= Math.sqrt(area/fraction);
+
+        CylinderPacker packer= new CylinderPacker(radius, L, L, 0.0, 36558013l);
+
+        long start= System.nanoTime();
+        int placed= packer.pack();
+        double t= (System.nanoTime()-start)/1E9;
+
+        double placedArea= 0.0;
+        for(int i=0; i<N; i++){
+            if(packer.isPlaced(i)){
+                placedArea+= Math.PI*radius[i]*radius[i];
+            }
+        }
+
+        System.err.println(N+" cylinders, target fraction "+fraction+": placed "+placed+
+                ", fraction "+placedArea/(L*L)+", overlapping pairs "+packer.countOverlaps()+
+                ", "+t+"s");
+    }
+}
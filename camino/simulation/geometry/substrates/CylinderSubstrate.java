@@ -14,12 +14,15 @@ import simulation.DiffusionSimulation;
 import simulation.SimulationParams;
 import simulation.dynamics.StepGeneratorFactory;
 import simulation.dynamics.Walker;
+import simulation.dynamics.WalkerPool;
 import simulation.dynamics.exceptions.StepRejectedException;
 import simulation.dynamics.exceptions.TooDamnCloseException;
+import simulation.geometry.elements.BasicCylinder;
 import simulation.geometry.elements.Cylinder;
 import simulation.geometry.elements.SquashyCylinder;
 import simulation.geometry.elements.SubstrateObject;
 import simulation.geometry.elements.Triangle;
+import tools.CL_Initializer;
 
 public abstract class CylinderSubstrate extends Substrate{
 
@@ -70,6 +73,9 @@ public abstract class CylinderSubstrate extends Substrate{
 	
 	/** use spatial optimisation or not? */
 	private final boolean useSpaceOpt;
+	
+	/** 2D index over the cylinders, if they're all parallel to the z-axis */
+	private ParallelCylinderIndex cylIndex= null;
 
 	
 	
@@ -103,6 +109,11 @@ public abstract class CylinderSubstrate extends Substrate{
 	public boolean crossesMembrane(Walker walker, double[] offset, double[] stepVector,
 			double[] normal, double[] d, boolean skipCurrent, double origLength, 
 			boolean[] in, double[] p, boolean report, FileWriter debugWriter) throws StepRejectedException {
+		
+		if(cylIndex!=null){
+			return crossesIndexedMembrane(walker, offset, stepVector, normal, d, skipCurrent, origLength, in, p, report, debugWriter);
+		}
+		
 		double len= 0.0;
 		double[] walkerPos= new double[D];
 		double[] intDist= new double[1];
@@ -344,6 +355,96 @@ public abstract class CylinderSubstrate extends Substrate{
 		// in this case there are no intersections
 		return false;
 	}
+	
+	
+	/**
+	 * barrier check for cylinders that are all parallel to the z-axis, 
+	 * using the 2D index. Candidates and intersections are found by the
+	 * index without allocating, and all state kept between calls is in 
+	 * the traversal context. Gives the same answers as the general check
+	 * above.
+	 * 
+	 * @see #crossesMembrane(Walker, double[], double[], double[], double[], boolean, double, boolean[], double[], boolean, FileWriter)
+	 */
+	private boolean crossesIndexedMembrane(Walker walker, double[] offset, double[] stepVector,
+			double[] normal, double[] d, boolean skipCurrent, double origLength, 
+			boolean[] in, double[] p, boolean report, FileWriter debugWriter) throws StepRejectedException {
+		
+		final TraversalContext context= getContext();
+		final double[] walkerPos= context.subsCoords;
+		final ParallelCylinderIndex.Crossing hit= context.cylCrossing;
+		
+		double len= 0.0;
+		for(int i=0; i<stepVector.length; i++){
+			len += stepVector[i]*stepVector[i];
+		}
+		getSubstrateCoords(walker.r, offset, walkerPos);
+		len=Math.sqrt(len);
+		
+		if(len/origLength<=1E-14){
+			return false;
+		}
+		
+		// the cylinder to skip is the one crossed by the last check
+		int skip= skipCurrent?hit.index:-1;
+		
+		cylIndex.crosses(walkerPos, stepVector, skip, in[0], walker.R, hit);
+		
+		// check if we've intersected the boundaries of the substrate
+		if(checkBoundaryIntersection(walkerPos, offset, stepVector, normal, d, skipCurrent, origLength, hit.boundaryDist, in, p)){
+			hit.addBoundary(hit.boundaryDist[0], normal, d[0], p[0]);
+		}
+		
+		if(hit.count==0){
+			return false;
+		}
+		
+		// check that there aren't two barriers within walker radius
+		if((hit.count>1)&&((hit.second-hit.dist)*len<=walker.R)){
+			throw new StepRejectedException("Two barriers within walker radius. rejecting step");
+		}
+		
+		d[0]=hit.d;
+		for(int i=0; i<D; i++){
+			normal[i]=hit.normal[i];
+		}
+		in[0]=hit.in;
+		p[0]=hit.p;
+		
+		context.intersectsBoundary= (hit.index==-1);
+		
+		if(report&&(hit.index>=0)){
+			cylIndex.getCylinder(hit.index).toFile(debugWriter);
+		}
+		
+		return true;
+	}
+	
+	
+	/**
+	 * the boundary flag is kept in the traversal context when the 
+	 * cylinders are indexed, so that they can be shared between threads.
+	 */
+	protected boolean crossingIsBoundary(){
+		
+		if(cylIndex!=null){
+			return getContext().intersectsBoundary;
+		}
+		
+		return intersectsBoundary;
+	}
+	
+	
+	/**
+	 * indexed cylinders keep all the mutable state used in barrier 
+	 * checks in the traversal context, so can be shared between threads.
+	 * 
+	 * @return true if the cylinders are indexed
+	 */
+	public boolean supportsParallelTraversal(){
+		
+		return cylIndex!=null;
+	}
 
 
 	public abstract double[] getSubstrateSize();
@@ -369,6 +470,10 @@ public abstract class CylinderSubstrate extends Substrate{
 		final double[] noStep= new double[]{0.0, 0.0, 0.0};
 		getSubstrateCoords(walker.r, new double[]{0.0,0.0,0.0}, substrateCoords);
 		
+		if(cylIndex!=null){
+			return cylIndex.inside(substrateCoords);
+		}
+		
 		//
 		if(useSpaceOpt){
 			assembleSubVoxelList(substrateCoords,noStep);
@@ -440,6 +545,60 @@ public abstract class CylinderSubstrate extends Substrate{
     }
 	
 	
+	/**
+	 * safe radii are given for plain circular cylinders, whose membranes
+	 * are easy to find the distance to. 
+	 * 
+	 * @return true if every cylinder is a BasicCylinder
+	 */
+	public boolean hasSafeRadius(){
+		
+		if(cylinder==null){
+			return false;
+		}
+		
+		for(int i=0; i<cylinder.length; i++){
+			if(cylinder[i].getClass()!=BasicCylinder.class){
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	
+	/**
+	 * distance to the nearest cylinder surface, from the spatial 
+	 * optimisation grid if there is one, otherwise from every cylinder.
+	 */
+	protected double getBarrierDistance(double[] subsCoords){
+		
+		if(useSpaceOpt){
+			return getGridBarrierDistance(subsCoords);
+		}
+		
+		double dist= Double.MAX_VALUE;
+		
+		for(int i=0; i<cylinder.length; i++){
+			dist= Math.min(dist, getMembraneDistance(cylinder[i], subsCoords));
+		}
+		
+		return dist;
+	}
+	
+	
+	/**
+	 * distance from a point to the surface of a cylinder, which is the 
+	 * difference between its distance from the axis and the radius.
+	 */
+	protected double getMembraneDistance(SubstrateObject obj, double[] subsCoords){
+		
+		Cylinder cyl= (Cylinder)obj;
+		
+		return Math.abs(cyl.getDistanceFrom(subsCoords)-cyl.getRadius());
+	}
+	
+	
 	final void setCylinders(Cylinder[] cylinder) {
 		this.cylinder = cylinder;
 		super.subsObj= cylinder;
@@ -453,6 +612,12 @@ public abstract class CylinderSubstrate extends Substrate{
 		intInside= new boolean[cylinder.length+2];
 		isBoundary= new boolean[cylinder.length+2];
 		
+		if(SimulationParams.sim_cylinder_index && ParallelCylinderIndex.isIndexable(cylinder)){
+			cylIndex= new ParallelCylinderIndex(cylinder);
+		}
+		else{
+			cylIndex= null;
+		}
 		
 		
 		/*
@@ -545,8 +710,179 @@ public abstract class CylinderSubstrate extends Substrate{
 	}
 	
 	
+	/**
+	 * benchmarks barrier checks on a packing of parallel cylinders with
+	 * the subvoxel grid and with the 2D index. The cylinders are put on 
+	 * a jittered square lattice with random radii, so that none overlap. 
+	 * Steps of several lengths and random directions are started 
+	 * uniformly over the substrate, and the number of steps checked per 
+	 * second is reported for each method along with the number of steps
+	 * whose outcome differs between them.
+	 * 
+	 * @param numCyls number of cylinders (rounded down to a square)
+	 * @param numSteps number of steps of each length
+	 */
+	private static final void benchmarkCylinderIndex(int numCyls, int numSteps){
+		
+		final int D= DiffusionSimulation.D;
+		
+		int m= (int)Math.sqrt(numCyls);
+		double a= 1E-6;
+		double L= m*a;
+		
+		SimulationParams simParams= new SimulationParams(1, 1, 0.0, 
+				SimulationParams.UNIFORM, SubstrateFactory.SubstrateType.CYL_1_DISTRIB, 
+				StepGeneratorFactory.StepType.FIXEDLENGTH, L, 0.1);
+		
+		java.util.Random rng= new java.util.Random(CL_Initializer.seed);
+		
+		Cylinder[] cyl= new Cylinder[m*m];
+		double[] P= new double[D];
+		
+		for(int i=0; i<m; i++){
+			for(int j=0; j<m; j++){
+				double r= a*(0.2+0.25*rng.nextDouble());
+				double jitter= 0.5*a-r;
+				
+				P[0]= (i+0.5)*a+jitter*(2.0*rng.nextDouble()-1.0);
+				P[1]= (j+0.5)*a+jitter*(2.0*rng.nextDouble()-1.0);
+				P[2]= 0.5*L;
+				
+				cyl[i+m*j]= new BasicCylinder(P, r, 0.0);
+			}
+		}
+		
+		String[] name= new String[]{"subvoxel grid", "2D index"};
+		CylinderSubstrate[] subs= new CylinderSubstrate[name.length];
+		
+		for(int k=0; k<subs.length; k++){
+			SimulationParams.sim_cylinder_index= (k==1);
+			
+			long start= System.nanoTime();
+			subs[k]= new BenchmarkSubstrate(new double[]{L, L, L}, simParams);
+			subs[k].setCylinders(cyl);
+			if(k==0){
+				subs[k].initialiseSpatialOptimisation(new int[]{m, m, 1});
+			}
+			System.err.println(name[k]+": constructed in "+((System.nanoTime()-start)/1E9)+" s");
+		}
+		
+		double[] offset= new double[D];
+		double[] normal= new double[D];
+		double[] d= new double[1];
+		boolean[] in= new boolean[1];
+		double[] p= new double[1];
+		
+		double[] stepLength= new double[]{0.05*a, 0.2*a, 1.0*a};
+		
+		for(int l=0; l<stepLength.length; l++){
+			
+			double len= stepLength[l];
+			
+			double[][] pos= new double[numSteps][D];
+			double[][] step= new double[numSteps][D];
+			
+			for(int i=0; i<numSteps; i++){
+				double theta= 2.0*Math.PI*rng.nextDouble();
+				double cosPhi= 2.0*rng.nextDouble()-1.0;
+				double sinPhi= Math.sqrt(1.0-cosPhi*cosPhi);
+				
+				step[i][0]= len*Math.cos(theta)*sinPhi;
+				step[i][1]= len*Math.sin(theta)*sinPhi;
+				step[i][2]= len*cosPhi;
+				
+				for(int j=0; j<D; j++){
+					pos[i][j]= L*rng.nextDouble();
+				}
+			}
+			
+			double[][] dist= new double[subs.length][numSteps];
+			
+			for(int k=0; k<subs.length; k++){
+				
+				// a point walker with no step generator
+				Walker walker= new WalkerPool(1, 0).getCursor(null, subs[k], null).bind(0);
+				
+				// two passes, the first to warm up
+				for(int pass=0; pass<2; pass++){
+					
+					int crossings=0;
+					
+					long start= System.nanoTime();
+					
+					for(int i=0; i<numSteps; i++){
+						for(int j=0; j<D; j++){
+							walker.r[j]= pos[i][j];
+						}
+						
+						dist[k][i]= Double.NaN;
+						
+						try{
+							if(subs[k].crossesMembrane(walker, offset, step[i], normal, d, false, len, in, p, false, null)){
+								dist[k][i]= d[0];
+								crossings++;
+							}
+						}
+						catch(StepRejectedException sre){
+							throw new LoggedException(sre);
+						}
+					}
+					
+					double time= (System.nanoTime()-start)/1E9;
+					
+					if(pass==1){
+						System.err.println("step of "+(len/a)+" spacings, "+name[k]+": "+(numSteps/time)+" steps/s, "+crossings+" crossings");
+					}
+				}
+			}
+			
+			int mismatches=0;
+			for(int i=0; i<numSteps; i++){
+				if(Double.compare(dist[0][i], dist[1][i])!=0){
+					mismatches++;
+				}
+			}
+			
+			System.err.println("step of "+(len/a)+" spacings: crossings differ in "+mismatches+" of "+numSteps+" steps");
+		}
+	}
+	
+	
+	/**
+	 * cylinder substrate holding any set of cylinders, for benchmarking
+	 */
+	private static final class BenchmarkSubstrate extends CylinderSubstrate{
+		
+		BenchmarkSubstrate(double[] L, SimulationParams simParams){
+			super(L, simParams, !SimulationParams.sim_cylinder_index);
+		}
+		
+		public double[] getSubstrateSize(){
+			return L;
+		}
+		
+		public double getPeakCoord(){
+			return L[0]/2.0;
+		}
+	}
+	
+	
+	/**
+	 * with no arguments, tests the spatial optimisation. otherwise 
+	 * benchmarks barrier checks on parallel cylinders.
+	 * 
+	 * usage: CylinderSubstrate [cylinders] [steps]
+	 */
 	public static void main(String[] args){
 	    
+	    if(args.length>0){
+	        int numSteps= (args.length>1)?Integer.parseInt(args[1]):200000;
+	        
+	        benchmarkCylinderIndex(Integer.parseInt(args[0]), numSteps);
+	        
+	        return;
+	    }
+	    
 	    int n[] = new int[]{10, 10, 1};
 	    
 	    testSpatialOptInitialisation(n);
@@ -18,7 +18,6 @@ import simulation.geometry.elements.Cylinder;
 import simulation.geometry.elements.CylinderFactory;
 import simulation.geometry.elements.CylinderFactory.CylType;
 import simulation.geometry.elements.NestedCylinder;
-import simulation.geometry.elements.SubstrateObject;
 import tools.CL_Initializer;
 
 /** 
@@ -222,6 +221,68 @@ public class DistributedRadiusCylinderSubstrate extends CylinderSubstrate {
 		// array of cylinder positions
 		P= new double[N][D];
 
+		// walkers keep a walker diameter from the cylinders
+		double walkerRadius= StepGeneratorFactory.getStepGenerator(simParams).getWalkerRadius();
+		
+		int maxInd;
+		if(SimulationParams.sim_cyl_dist_grow){
+			maxInd= growCylinders(walkerRadius);
+		}
+		else{
+			maxInd= addCylinders(rng, walkerRadius);
+		}
+		
+		logger.info("dynamic cylinder placment finished");
+		
+		// calculate intracellular vol frac
+		cylArea=0.0;
+		for(int i=0; i<maxInd; i++){
+			cylArea+=Math.PI*radius[i]*radius[i];
+		}
+		
+		double V_I= cylArea/sqArea;
+		
+		logger.info("intracellular volume fraction "+V_I);
+		
+		
+		
+		// remember how many we've managed to place
+		int Nbefore=maxInd;
+		
+		logger.info("constructing runtime spatial optimisation arrays");
+		// set the cylinders arrays here and in superclass
+		this.cylinder= new Cylinder[allCyls.size()];
+		for(int i=0; i<allCyls.size(); i++){
+			// bloody stupid java generics can't do this automatically via toArray(). useless.
+			cylinder[i]=allCyls.get(i);
+		}
+		
+		return cylinder;
+		
+		/*try{
+			drawCrossSection();
+		}
+		catch(IOException ioe){
+			throw new LoggedException(ioe);
+		}*/
+		
+	}
+	
+	
+	/**
+	 * places the cylinders one at a time, biggest first, at random 
+	 * positions that don't overlap any already placed, and adds them
+	 * to the dynamic map. stops at the first cylinder that can't be 
+	 * placed.
+	 * 
+	 * @param rng random numbers for positions
+	 * @param walkerRadius walker radius
+	 * 
+	 * @return number of cylinders placed
+	 */
+	private final int addCylinders(MTRandom rng, double walkerRadius){
+		
+		int N= radius.length;
 		int interval= N/20;
 		
 		logger.info("arranging cylinders");
@@ -249,7 +310,7 @@ public class DistributedRadiusCylinderSubstrate extends CylinderSubstrate {
 				// dynamic spac-opt checking
 				cells= getIntersectingCells(P[i], radius[i]);
 				overlapping= checkIntersections(P[i], radius[i], cells, 
-						StepGeneratorFactory.getStepGenerator(simParams).getWalkerRadius());
+						walkerRadius);
 				
 				// check if the new cylinder needs cloning, 
 				// and check the clones for overlaps
@@ -261,7 +322,7 @@ public class DistributedRadiusCylinderSubstrate extends CylinderSubstrate {
 					for(int j=0; j<newClones.size(); j++){
 						cloneCells=getIntersectingCells(newClones.get(j), radius[i]);
 						overlapping= checkIntersections(newClones.get(j), radius[i], cloneCells, 
-								StepGeneratorFactory.getStepGenerator(simParams).getWalkerRadius());
+								walkerRadius);
 						if(overlapping){
 							break;
 						}
@@ -292,40 +353,59 @@ public class DistributedRadiusCylinderSubstrate extends CylinderSubstrate {
 			}
 		}
 		
-		logger.info("dynamic cylinder placment finished");
-		
-		// calculate intracellular vol frac
-		cylArea=0.0;
-		for(int i=0; i<maxInd; i++){
-			cylArea+=Math.PI*radius[i]*radius[i];
-		}
-		
-		double V_I= cylArea/sqArea;
-		
-		logger.info("intracellular volume fraction "+V_I);
-		
+		return maxInd;
+	}
+	
+	
+	/**
+	 * packs the cylinders by growing them together (see CylinderPacker) 
+	 * and adds them to the dynamic map. This reaches much higher volume 
+	 * fractions than placing them one at a time. cylinders that don't 
+	 * fit are left out, as are any that are too close to the edge of 
+	 * the substrate.
+	 * 
+	 * @param walkerRadius walker radius
+	 * 
+	 * @return number of cylinders placed
+	 */
+	private final int growCylinders(double walkerRadius){
 		
+		logger.info("packing cylinders");
 		
-		// remember how many we've managed to place
-		int Nbefore=maxInd;
+		CylinderPacker packer= new CylinderPacker(radius, L[0], L[1], 2.0*walkerRadius, CL_Initializer.seed);
+		packer.pack();
 		
-		logger.info("constructing runtime spatial optimisation arrays");
-		// set the cylinders arrays here and in superclass
-		this.cylinder= new Cylinder[allCyls.size()];
-		for(int i=0; i<allCyls.size(); i++){
-			// bloody stupid java generics can't do this automatically via toArray(). useless.
-			cylinder[i]=allCyls.get(i);
+		// keep the ones that fitted, still in descending order of radius
+		int count=0;
+		for(int i=0; i<radius.length; i++){
+			if(!packer.isPlaced(i)){
+				continue;
+			}
+			
+			packer.getCentre(i, P[count]);
+			radius[count]= radius[i];
+			
+			// only the boundary checks here, the packer deals with the other cylinders
+			if(checkIntersections(P[count], radius[count], new int[0], walkerRadius)){
+				continue;
+			}
+			
+			count++;
 		}
 		
-		return cylinder;
+		if(count<radius.length){
+			logger.warning("could only place "+count+" of "+radius.length+" cylinders on substrate");
+			
+			P= Arrays.copyOf(P, count);
+		}
 		
-		/*try{
-			drawCrossSection();
+		for(int i=0; i<count; i++){
+			int[] cells= getIntersectingCells(P[i], radius[i]);
+			
+			addToDynamicMap(P[i], radius[i], cyl_p[i], cells, null, CylType.BASIC);
 		}
-		catch(IOException ioe){
-			throw new LoggedException(ioe);
-		}*/
 		
+		return count;
 	}
 	
 	
@@ -665,8 +745,7 @@ public class DistributedRadiusCylinderSubstrate extends CylinderSubstrate {
 			numCells*=n[i];
 		}
 		
-        voxToObjects= new SubstrateObject[numCells][];
-        candidateSubVox= new int[voxToObjects.length];
+        voxToObjects= new SubVoxelMap(numCells);
 		
 		this.dynamicVoxMap= new ArrayList[numCells];
 		
@@ -772,22 +851,8 @@ public class DistributedRadiusCylinderSubstrate extends CylinderSubstrate {
 	
 	private final void initSpacOptFromDynamicMap(){
 		
-		super.voxToObjects= new SubstrateObject[dynamicVoxMap.length][];
-		
-		for(int i=0; i<voxToObjects.length; i++){
-			if(dynamicVoxMap[i].size()>0){
-				// transfer objects out of the ArrayList and into a static array
-				voxToObjects[i]= new SubstrateObject[dynamicVoxMap[i].size()];
-				for(int j=0; j< dynamicVoxMap[i].size(); j++){
-					voxToObjects[i][j]= dynamicVoxMap[i].get(j);
-				}
-			}
-			else{
-				voxToObjects[i]=null;
-			}
-		}
-		
-		checked= new SubstrateObject[allCyls.size()];
+		// transfer objects out of the ArrayLists and into a static map
+		super.voxToObjects= SubVoxelMap.fromLists(dynamicVoxMap);
 	}
 	
 
@@ -875,15 +940,11 @@ public class DistributedRadiusCylinderSubstrate extends CylinderSubstrate {
     	
     	for(int i=0; i<cell.length; i++){
     		
-    		SubstrateObject[] cyls= voxToObjects[cell[i]];
-    		
-    		if(cyls!=null){
-	    		for(int j=0; j<cyls.length; j++){
-	    			double distToObj= cyls[j].getDistanceFrom(r0);
-				
-		    		if(distToObj<minDist){
-		    			minDist=distToObj;
-		    		}
+    		for(int j=0; j<voxToObjects.size(cell[i]); j++){
+    			double distToObj= voxToObjects.get(cell[i], j).getDistanceFrom(r0);
+			
+	    		if(distToObj<minDist){
+	    			minDist=distToObj;
 	    		}
     		}
     	}
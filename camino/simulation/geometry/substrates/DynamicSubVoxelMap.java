@@ -0,0 +1,575 @@
+package simulation.geometry.substrates;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import misc.LoggedException;
+import tools.CL_Initializer;
+
+import simulation.geometry.elements.BasicCylinder;
+import simulation.geometry.elements.SubstrateObject;
+
+/**
+ * subvoxel map that objects can be added to, removed from and moved
+ * around in after it's made, for substrates whose geometry changes
+ * during a simulation.
+ *
+ * Objects are still stored subvoxel by subvoxel in one array, so
+ * traversals read the map exactly as they read a static one. Each
+ * subvoxel has some room reserved after its last object. An insertion
+ * into a full subvoxel moves that subvoxel's objects to the end of the
+ * array with twice the room, and when the end of the array is reached
+ * the whole array is repacked in subvoxel order. Both are amortised
+ * over many insertions, so adding or removing an object costs about as
+ * much as the number of subvoxels it's in.
+ *
+ * The map numbers its objects itself (see SubstrateObject.setId()) and
+ * remembers the subvoxels each one is in, and where its entry in each
+ * subvoxel is. When an object moves or changes size, replace() only
+ * touches the subvoxels it has left or entered, and swaps the object in
+ * place in the others. Every change
+ * increments the version, which is how traversal contexts and safe
+ * radius fields know to update.
+ *
+ * Changes must not be made while other threads are traversing the map.
+ *
+ */
+public class DynamicSubVoxelMap extends SubVoxelMap {
+
+    /** room reserved for a subvoxel the first time something is added to it */
+    private static final int MIN_CAPACITY= 4;
+
+    /** end of the room reserved for each subvoxel */
+    private final int[] limit;
+
+    /** first unused position at the end of the object array */
+    private int top=0;
+
+    /** number of entries in the map */
+    private int numEntries=0;
+
+    /** objects by id */
+    private SubstrateObject[] byId= new SubstrateObject[16];
+
+    /** subvoxels each object is in, by id, in increasing order */
+    private int[][] cellsOf= new int[16][];
+
+    /** position in the object array of each object's entry in each of its subvoxels, by id */
+    private int[][] slotOf= new int[16][];
+
+    /** ids of removed objects, available for reuse */
+    private int[] freeIds= new int[16];
+
+    /** number of free ids */
+    private int numFree=0;
+
+    /** one more than the largest id given out */
+    private int numIds=0;
+
+
+    /**
+     * constructs an empty map
+     *
+     * @param numSubVoxels number of subvoxels
+     */
+    public DynamicSubVoxelMap(int numSubVoxels){
+
+        super(new int[numSubVoxels], new int[numSubVoxels], new SubstrateObject[MIN_CAPACITY*numSubVoxels]);
+
+        this.limit= new int[numSubVoxels];
+    }
+
+
+    /**
+     * adds an object to the map and gives it an id.
+     *
+     * @param obj the object
+     * @param cells subvoxels the object is in
+     */
+    public void insert(SubstrateObject obj, int[] cells){
+
+        final int id;
+
+        if(numFree>0){
+            id= freeIds[--numFree];
+        }
+        else{
+            id= numIds++;
+
+            if(id==byId.length){
+                byId= Arrays.copyOf(byId, 2*byId.length);
+                cellsOf= Arrays.copyOf(cellsOf, 2*cellsOf.length);
+                slotOf= Arrays.copyOf(slotOf, 2*slotOf.length);
+            }
+        }
+
+        final int[] sorted= sortedCopy(cells);
+
+        obj.setId(id);
+        byId[id]= obj;
+        cellsOf[id]= sorted;
+        slotOf[id]= new int[sorted.length];
+
+        for(int k=0; k<sorted.length; k++){
+            add(id, k, obj);
+        }
+
+        version++;
+    }
+
+
+    /**
+     * removes an object from the map. its id may be given to another
+     * object later.
+     *
+     * @param obj the object
+     */
+    public void remove(SubstrateObject obj){
+
+        final int id= checkId(obj);
+
+        final int[] cells= cellsOf[id];
+        final int[] slots= slotOf[id];
+
+        for(int k=0; k<cells.length; k++){
+            delete(cells[k], slots[k]);
+        }
+
+        byId[id]= null;
+        cellsOf[id]= null;
+        slotOf[id]= null;
+
+        if(numFree==freeIds.length){
+            freeIds= Arrays.copyOf(freeIds, 2*freeIds.length);
+        }
+        freeIds[numFree++]= id;
+
+        obj.setId(-1);
+
+        version++;
+    }
+
+
+    /**
+     * replaces an object with another, which may be the same object,
+     * in a new set of subvoxels. the replacement takes the object's id.
+     * subvoxels that both are in have the object swapped in place, and
+     * only the subvoxels the object leaves or enters are changed.
+     *
+     * @param obj object in the map
+     * @param replacement object to put in its place
+     * @param cells subvoxels the replacement is in
+     */
+    public void replace(SubstrateObject obj, SubstrateObject replacement, int[] cells){
+
+        final int id= checkId(obj);
+
+        final int[] oldCells= cellsOf[id];
+        final int[] oldSlots= slotOf[id];
+        final int[] newCells= sortedCopy(cells);
+        final int[] newSlots= new int[newCells.length];
+
+        // walk both sorted lists together, leaving the subvoxels it
+        // has left and swapping it in the ones it stays in
+        int i=0;
+        int j=0;
+
+        while(i<oldCells.length){
+            if((j==newCells.length)||(oldCells[i]<newCells[j])){
+                delete(oldCells[i], oldSlots[i]);
+                i++;
+            }
+            else if(newCells[j]<oldCells[i]){
+                newSlots[j++]= -1;
+            }
+            else{
+                objects[oldSlots[i]]= replacement;
+                newSlots[j++]= oldSlots[i++];
+            }
+        }
+        while(j<newCells.length){
+            newSlots[j++]= -1;
+        }
+
+        if(replacement!=obj){
+            obj.setId(-1);
+        }
+
+        replacement.setId(id);
+        byId[id]= replacement;
+        cellsOf[id]= newCells;
+        slotOf[id]= newSlots;
+
+        // now the tables are up to date, enter the new subvoxels
+        for(int k=0; k<newCells.length; k++){
+            if(newSlots[k]<0){
+                add(id, k, replacement);
+            }
+        }
+
+        version++;
+    }
+
+
+    /**
+     * @param obj an object in the map
+     *
+     * @return the subvoxels it's in, in increasing order. not a copy.
+     */
+    public final int[] getCells(SubstrateObject obj){
+        return cellsOf[checkId(obj)];
+    }
+
+
+    /**
+     * @return one more than the largest id given to an object
+     */
+    public final int numObjectIds(){
+        return numIds;
+    }
+
+
+    /**
+     * @return total number of entries, counting objects once for each
+     *         subvoxel they're in
+     */
+    public int numEntries(){
+        return numEntries;
+    }
+
+
+    /**
+     * @return the object's id, having checked it's in the map
+     */
+    private final int checkId(SubstrateObject obj){
+
+        final int id= obj.getId();
+
+        if((id<0)||(id>=numIds)||(byId[id]!=obj)){
+            throw new LoggedException("object "+obj+" is not in the subvoxel map");
+        }
+
+        return id;
+    }
+
+
+    /**
+     * @return sorted copy of an array of subvoxel indices
+     */
+    private static int[] sortedCopy(int[] cells){
+
+        int[] sorted= cells.clone();
+        Arrays.sort(sorted);
+
+        return sorted;
+    }
+
+
+    /**
+     * records the position of an entry in the object array
+     *
+     * @param c subvoxel of the entry
+     * @param o position in the object array
+     */
+    private final void setSlot(int c, int o){
+
+        final int id= objects[o].getId();
+
+        slotOf[id][Arrays.binarySearch(cellsOf[id], c)]= o;
+    }
+
+
+    /**
+     * adds an object to the end of one of its subvoxels, making room if
+     * there is none.
+     *
+     * @param id the object's id
+     * @param k index of the subvoxel in the object's list
+     * @param obj the object
+     */
+    private final void add(int id, int k, SubstrateObject obj){
+
+        final int c= cellsOf[id][k];
+
+        if(end[c]==limit[c]){
+            grow(c);
+        }
+
+        objects[end[c]]= obj;
+        slotOf[id][k]= end[c];
+        end[c]++;
+
+        numEntries++;
+    }
+
+
+    /**
+     * removes an entry from a subvoxel. the last object in the subvoxel
+     * takes its place.
+     *
+     * @param c subvoxel
+     * @param o position of the entry in the object array
+     */
+    private final void delete(int c, int o){
+
+        final int last= end[c]-1;
+
+        if(o!=last){
+            objects[o]= objects[last];
+            setSlot(c, o);
+        }
+
+        objects[last]= null;
+        end[c]= last;
+
+        numEntries--;
+    }
+
+
+    /**
+     * makes room for at least one more object in a full subvoxel by
+     * moving it to the end of the object array, repacking the array
+     * first if there isn't space there.
+     */
+    private final void grow(int c){
+
+        final int size= end[c]-start[c];
+        final int capacity= Math.max(MIN_CAPACITY, 2*size);
+
+        if(top+capacity>objects.length){
+            repack();
+
+            if(end[c]<limit[c]){
+                return;
+            }
+        }
+
+        System.arraycopy(objects, start[c], objects, top, size);
+        Arrays.fill(objects, start[c], end[c], null);
+
+        start[c]= top;
+        end[c]= top+size;
+        limit[c]= top+capacity;
+
+        for(int o=start[c]; o<end[c]; o++){
+            setSlot(c, o);
+        }
+
+        top+= capacity;
+    }
+
+
+    /**
+     * copies the subvoxels into a new object array in subvoxel order,
+     * with half their size again in room after each non-empty one. The
+     * new array has at least as much space again at the end.
+     */
+    private final void repack(){
+
+        final int numSubVoxels= end.length;
+
+        int needed=0;
+        for(int c=0; c<numSubVoxels; c++){
+            needed+= room(end[c]-start[c]);
+        }
+
+        SubstrateObject[] packed= new SubstrateObject[2*needed+MIN_CAPACITY];
+
+        int next=0;
+        for(int c=0; c<numSubVoxels; c++){
+            final int size= end[c]-start[c];
+
+            System.arraycopy(objects, start[c], packed, next, size);
+
+            start[c]= next;
+            end[c]= next+size;
+            limit[c]= next+room(size);
+
+            next= limit[c];
+        }
+
+        objects= packed;
+        top= next;
+
+        for(int c=0; c<numSubVoxels; c++){
+            for(int o=start[c]; o<end[c]; o++){
+                setSlot(c, o);
+            }
+        }
+    }
+
+
+    /**
+     * @return room kept for a subvoxel with the given number of objects
+     */
+    private static int room(int size){
+        return (size==0)?0:size+Math.max(MIN_CAPACITY/2, size/2);
+    }
+
+
+    /**
+     * empty subvoxel lists for SubVoxelMap.fromLists(). java can't make
+     * arrays of a generic type, so this makes an array of wildcard lists.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<SubstrateObject>[] newLists(int numSubVoxels){
+        return (List<SubstrateObject>[])new List<?>[numSubVoxels];
+    }
+
+
+    /**
+     * subvoxels of a grid on the square cross section of a substrate
+     * crossed by an axial cylinder. the cylinder runs the length of the
+     * substrate, so it's in every subvoxel in z.
+     */
+    private static int[] cylinderCells(double[] P, double r, double s, int n, int nz){
+
+        int imin= (int)Math.max(Math.floor((P[0]-r)/s), 0);
+        int imax= (int)Math.min(Math.floor((P[0]+r)/s), n-1);
+        int jmin= (int)Math.max(Math.floor((P[1]-r)/s), 0);
+        int jmax= (int)Math.min(Math.floor((P[1]+r)/s), n-1);
+
+        int[] cells= new int[(imax-imin+1)*(jmax-jmin+1)*nz];
+
+        int count=0;
+        for(int i=imin; i<=imax; i++){
+            for(int j=jmin; j<=jmax; j++){
+                for(int k=0; k<nz; k++){
+                    cells[count++]= i+n*j+n*n*k;
+                }
+            }
+        }
+
+        return cells;
+    }
+
+
+    /**
+     * benchmark of swelling cylinders. Cylinders are placed at random on
+     * a square substrate, and over a number of increments a fraction of
+     * them grow by a fixed amount each. After each increment the subvoxel
+     * map is brought up to date by replacing the grown cylinders in a
+     * dynamic map, and separately by rebuilding a static map from lists
+     * of the objects in each subvoxel, which is what swelling substrates
+     * used to do. The two maps are compared after every increment.
+     *
+     * usage: DynamicSubVoxelMap [cylinders] [increments] [fraction growing] [subvoxels per side]
+     */
+    public static void main(String[] args){
+
+        int numCylinders= (args.length>0)?Integer.parseInt(args[0]):20000;
+        int numIncrements= (args.length>1)?Integer.parseInt(args[1]):100;
+        double fraction= (args.length>2)?Double.parseDouble(args[2]):1.0;
+        int n= (args.length>3)?Integer.parseInt(args[3]):100;
+
+        final int nz= 1;
+        final double L= 1.0;
+        final double s= L/n;
+
+        // radii start at about a tenth of a subvoxel and grow to several subvoxels
+        final double r0= 0.1*s;
+        final double inc= 3.0*s/numIncrements;
+
+        java.util.Random rng= new java.util.Random(CL_Initializer.seed);
+
+        BasicCylinder[] cyl= new BasicCylinder[numCylinders];
+        double[] r= new double[numCylinders];
+        int[][] cells= new int[numCylinders][];
+
+        DynamicSubVoxelMap map= new DynamicSubVoxelMap(n*n*nz);
+
+        for(int i=0; i<numCylinders; i++){
+            double[] P= new double[]{L*rng.nextDouble(), L*rng.nextDouble(), 0.0};
+            r[i]= r0*(0.5+rng.nextDouble());
+
+            cyl[i]= new BasicCylinder(P, r[i], 0.0);
+            cells[i]= cylinderCells(P, r[i], s, n, nz);
+
+            map.insert(cyl[i], cells[i]);
+        }
+
+        long dynamicTime=0;
+        long rebuildTime=0;
+        long touched=0;
+        int mismatches=0;
+
+        for(int t=0; t<numIncrements; t++){
+
+            // grow some of the cylinders
+            BasicCylinder[] grown= new BasicCylinder[numCylinders];
+            for(int i=0; i<numCylinders; i++){
+                if(rng.nextDouble()<fraction){
+                    r[i]+= inc;
+                    grown[i]= new BasicCylinder(cyl[i].getPosition(), r[i], 0.0);
+                }
+            }
+
+            // dynamic map: replace the cylinders that grew
+            long start= System.nanoTime();
+
+            for(int i=0; i<numCylinders; i++){
+                if(grown[i]!=null){
+                    int[] newCells= cylinderCells(cyl[i].getPosition(), r[i], s, n, nz);
+
+                    touched+= cells[i].length+newCells.length;
+
+                    map.replace(cyl[i], grown[i], newCells);
+
+                    cyl[i]= grown[i];
+                    cells[i]= newCells;
+                }
+            }
+
+            dynamicTime+= System.nanoTime()-start;
+
+            // static map: rebuild from lists
+            start= System.nanoTime();
+
+            List<SubstrateObject>[] lists= newLists(n*n*nz);
+
+            for(int i=0; i<numCylinders; i++){
+                int[] c= cylinderCells(cyl[i].getPosition(), r[i], s, n, nz);
+
+                for(int k=0; k<c.length; k++){
+                    if(lists[c[k]]==null){
+                        lists[c[k]]= new ArrayList<SubstrateObject>();
+                    }
+                    lists[c[k]].add(cyl[i]);
+                }
+            }
+
+            SubVoxelMap rebuilt= SubVoxelMap.fromLists(lists);
+
+            rebuildTime+= System.nanoTime()-start;
+
+            // the same objects must be in each subvoxel, in any order
+            for(int c=0; c<n*n*nz; c++){
+                if(map.size(c)!=rebuilt.size(c)){
+                    mismatches++;
+                    continue;
+                }
+
+                int[] a= new int[map.size(c)];
+                int[] b= new int[map.size(c)];
+                for(int k=0; k<a.length; k++){
+                    a[k]= map.get(c, k).getId();
+                    b[k]= rebuilt.get(c, k).getId();
+                }
+                Arrays.sort(a);
+                Arrays.sort(b);
+
+                if(!Arrays.equals(a, b)){
+                    mismatches++;
+                }
+            }
+        }
+
+        System.err.println(numCylinders+" cylinders, "+numIncrements+" increments, "+(100*fraction)+"% growing per increment, "
+                +n+"x"+n+" subvoxels, "+map.numEntries()+" entries at the end");
+        System.err.println("dynamic map: "+(dynamicTime/1E6/numIncrements)+" ms per increment, "
+                +((double)touched/numIncrements)+" subvoxels visited per increment");
+        System.err.println("rebuild:     "+(rebuildTime/1E6/numIncrements)+" ms per increment");
+        System.err.println("subvoxels differing between the maps: "+mismatches);
+    }
+}
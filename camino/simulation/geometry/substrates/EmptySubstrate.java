@@ -53,6 +53,19 @@ public class EmptySubstrate extends Substrate {
         
         return false;
     }
+    
+    
+    public boolean hasSafeRadius(){
+        return true;
+    }
+    
+    
+    /**
+     * @return no step ever meets a barrier, so the safe radius is unlimited
+     */
+    public double getSafeRadius(Walker walker){
+        return Double.MAX_VALUE;
+    }
 
     /**
      * @return half substrate size
@@ -97,6 +110,15 @@ public class EmptySubstrate extends Substrate {
     }
     
 
+    /**
+     * no barriers, so nothing to share between threads
+     * 
+     * @return always true
+     */
+    public boolean supportsParallelTraversal(){
+        return true;
+    }
+    
     /**
      * does nothing
      */
@@ -0,0 +1,488 @@
+package simulation.geometry.substrates;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.logging.Logger;
+
+import misc.LoggedException;
+
+import simulation.DiffusionSimulation;
+import simulation.dynamics.exceptions.TooDamnCloseException;
+import simulation.geometry.elements.SubstrateObject;
+import simulation.geometry.elements.Triangle;
+
+/**
+ * classifies points as inside or outside a closed surface mesh without
+ * testing every triangle.
+ *
+ * The substrate is divided into a grid of cells. Any cell that a triangle
+ * might pass through is marked as a surface cell. The remaining cells
+ * fall into connected regions that no triangle passes through, so every
+ * point in a region is on the same side of the surface. Each region is
+ * labelled once, when the map is built, by ray parity from a few of its
+ * cell centres. Points in labelled cells are then classified with a
+ * single lookup.
+ *
+ * Points in surface cells get the exact ray parity test used by
+ * MeshSubstrate, casting a ray in the +y direction. The ray is axis
+ * aligned, so instead of walking a 3D index the triangles are binned
+ * into columns over x and z, sorted by their highest y. A ray tests the
+ * triangles in its column, stopping at the first that lies entirely
+ * below the point. Each triangle appears at most once in a column, so
+ * no crossing is counted twice.
+ *
+ * Maps hold no mutable state once built, so they can be shared between
+ * threads.
+ *
+ */
+public class InsideOutsideMap {
+
+    /** logging object */
+    private static final Logger logger= Logger.getLogger("simulation.geometry.substrates.InsideOutsideMap");
+
+    /** dimensionality of space */
+    private static final int D= DiffusionSimulation.D;
+
+    /** label of cells the surface may pass through */
+    private static final byte SURFACE= 0;
+
+    /** label of cells inside the surface */
+    private static final byte INSIDE= 1;
+
+    /** label of cells outside the surface */
+    private static final byte OUTSIDE= 2;
+
+    /** number of cells per triangle we aim for */
+    private static final int CELLS_PER_TRIANGLE= 4;
+
+    /** fewest cells in the grid */
+    private static final int MIN_CELLS= 4096;
+
+    /** most cells in the grid */
+    private static final int MAX_CELLS= 1<<21;
+
+    /** number of cell centres used to label each region */
+    private static final int SAMPLES= 3;
+
+    /** cells per axis */
+    private final int[] n= new int[D];
+
+    /** cell size */
+    private final double[] s= new double[D];
+
+    /** cell labels, x fastest */
+    private final byte[] label;
+
+    /** start of each x-z column in the column arrays. length n[0]*n[2]+1 */
+    private final int[] colStart;
+
+    /** triangles in each column, highest first */
+    private final Triangle[] colTri;
+
+    /** highest y of each triangle in the column arrays */
+    private final double[] colTop;
+
+    /** map of triangles to the coplanar triangles skipped after crossing them */
+    private final HashMap<Triangle, ArrayList<Triangle>> coplanarMap;
+
+    /** the ray vector */
+    private final double[] ray;
+
+    /** length passed to the triangle crossing test with the ray */
+    private final double rayLength;
+
+    /** padding for rounding error */
+    private final double tol;
+
+
+    /**
+     * builds a map for a mesh.
+     *
+     * @param objs the mesh triangles (all must be Triangles), in substrate coords
+     * @param L substrate size
+     * @param coplanarMap coplanar lists of triangles
+     * @param ray vector cast from points to count crossings, must point along +y
+     * @param rayLength length passed to crossing test with the ray
+     */
+    public InsideOutsideMap(SubstrateObject[] objs, double[] L, HashMap<Triangle, ArrayList<Triangle>> coplanarMap,
+            double[] ray, double rayLength){
+
+        long start= System.nanoTime();
+
+        this.coplanarMap= coplanarMap;
+        this.ray= ray;
+        this.rayLength= rayLength;
+
+        if((ray[0]!=0.0)||(ray[1]<=0.0)||(ray[2]!=0.0)){
+            throw new LoggedException("inside/outside map needs a ray in the +y direction");
+        }
+
+        // choose roughly cubic cells
+        long target= Math.min(MAX_CELLS, Math.max(MIN_CELLS, (long)CELLS_PER_TRIANGLE*objs.length));
+        double h= Math.cbrt(L[0]*L[1]*L[2]/target);
+
+        double maxL=0.0;
+        int numCells=1;
+        for(int i=0; i<D; i++){
+            n[i]= (int)Math.max(1, Math.min(256, Math.ceil(L[i]/h)));
+            s[i]= L[i]/n[i];
+            numCells*= n[i];
+            maxL= Math.max(maxL, L[i]);
+        }
+
+        tol= 1E-9*maxL;
+
+        label= new byte[numCells];
+        for(int c=0; c<numCells; c++){
+            label[c]= OUTSIDE;
+        }
+
+        // mark surface cells and count triangles in each column
+        final int numCols= n[0]*n[2];
+        colStart= new int[numCols+1];
+
+        final int[] lo= new int[D];
+        final int[] hi= new int[D];
+        final double[] ext= new double[D];
+
+        for(int j=0; j<D; j++){
+            ext[j]= 0.5*s[j];
+        }
+
+        for(int t=0; t<objs.length; t++){
+            Triangle tri= (Triangle)objs[t];
+
+            cellRange(tri, lo, hi);
+
+            for(int i=lo[0]; i<=hi[0]; i++){
+                for(int k=lo[2]; k<=hi[2]; k++){
+                    colStart[i*n[2]+k+1]++;
+                }
+            }
+
+            double[] norm= tri.getNormal();
+            double[] v0= tri.getVertex(0);
+
+            // cells in the bounding box whose box the triangle's plane misses are left alone
+            for(int i=lo[0]; i<=hi[0]; i++){
+                for(int j=lo[1]; j<=hi[1]; j++){
+                    for(int k=lo[2]; k<=hi[2]; k++){
+                        double dist=0.0;
+                        double reach=tol;
+
+                        dist+= norm[0]*((i+0.5)*s[0]-v0[0]);
+                        dist+= norm[1]*((j+0.5)*s[1]-v0[1]);
+                        dist+= norm[2]*((k+0.5)*s[2]-v0[2]);
+
+                        for(int m=0; m<D; m++){
+                            reach+= ext[m]*Math.abs(norm[m]);
+                        }
+
+                        // NaN normals (degenerate triangles) fail this and mark the cell
+                        if(Math.abs(dist)>reach){
+                            continue;
+                        }
+
+                        label[cellIndex(i, j, k)]= SURFACE;
+                    }
+                }
+            }
+        }
+
+        // fill columns, then order each by highest y
+        for(int c=0; c<numCols; c++){
+            colStart[c+1]+= colStart[c];
+        }
+
+        colTri= new Triangle[colStart[numCols]];
+        colTop= new double[colStart[numCols]];
+
+        int[] fill= new int[numCols];
+        for(int t=0; t<objs.length; t++){
+            Triangle tri= (Triangle)objs[t];
+
+            cellRange(tri, lo, hi);
+
+            double top= Math.max(tri.getVertexCoord(0, 1), Math.max(tri.getVertexCoord(1, 1), tri.getVertexCoord(2, 1)));
+
+            for(int i=lo[0]; i<=hi[0]; i++){
+                for(int k=lo[2]; k<=hi[2]; k++){
+                    int c= i*n[2]+k;
+                    int e= colStart[c]+(fill[c]++);
+
+                    colTri[e]= tri;
+                    colTop[e]= top;
+                }
+            }
+        }
+
+        for(int c=0; c<numCols; c++){
+            for(int e=colStart[c]+1; e<colStart[c+1]; e++){
+                Triangle tri= colTri[e];
+                double top= colTop[e];
+
+                int f=e-1;
+                while((f>=colStart[c])&&(colTop[f]<top)){
+                    colTri[f+1]= colTri[f];
+                    colTop[f+1]= colTop[f];
+                    f--;
+                }
+
+                colTri[f+1]= tri;
+                colTop[f+1]= top;
+            }
+        }
+
+        // label the regions between surface cells
+        int[] queue= new int[numCells];
+        boolean[] seen= new boolean[numCells];
+        int tail=0;
+        int numRegions=0;
+        int numSurface=0;
+        double[] centre= new double[D];
+
+        for(int c=0; c<numCells; c++){
+
+            if(label[c]==SURFACE){
+                numSurface++;
+                continue;
+            }
+
+            if(seen[c]){
+                continue;
+            }
+
+            int head= tail;
+            int regionStart= tail;
+
+            queue[tail++]= c;
+            seen[c]= true;
+
+            while(head<tail){
+                int cell= queue[head++];
+
+                int i= cell%n[0];
+                int j= (cell/n[0])%n[1];
+                int k= cell/(n[0]*n[1]);
+
+                if(i>0) tail= visit(cellIndex(i-1, j, k), queue, seen, tail);
+                if(i<n[0]-1) tail= visit(cellIndex(i+1, j, k), queue, seen, tail);
+                if(j>0) tail= visit(cellIndex(i, j-1, k), queue, seen, tail);
+                if(j<n[1]-1) tail= visit(cellIndex(i, j+1, k), queue, seen, tail);
+                if(k>0) tail= visit(cellIndex(i, j, k-1), queue, seen, tail);
+                if(k<n[2]-1) tail= visit(cellIndex(i, j, k+1), queue, seen, tail);
+            }
+
+            // parity from a few cell centres in case a ray grazes an edge
+            int samples= Math.min(SAMPLES, tail-regionStart);
+            int votes=0;
+            for(int q=0; q<samples; q++){
+                int cell= queue[regionStart+(q*(tail-regionStart))/samples];
+
+                centre[0]= (cell%n[0]+0.5)*s[0];
+                centre[1]= ((cell/n[0])%n[1]+0.5)*s[1];
+                centre[2]= (cell/(n[0]*n[1])+0.5)*s[2];
+
+                if(crossesOddTimes(centre, 0.0)){
+                    votes++;
+                }
+            }
+
+            byte regionLabel= (2*votes>samples)?INSIDE:OUTSIDE;
+
+            for(int q=regionStart; q<tail; q++){
+                label[queue[q]]= regionLabel;
+            }
+
+            numRegions++;
+        }
+
+        logger.info("inside/outside map: "+n[0]+"x"+n[1]+"x"+n[2]+" cells, "+numSurface+" surface cells, "
+                +numRegions+" regions, "+colTri.length+" column entries, built in "
+                +((System.nanoTime()-start)/1E6)+" ms");
+    }
+
+
+    /**
+     * checks if a point is inside the surface.
+     *
+     * @param p point in substrate coords
+     * @param walkerRad walker radius passed to the crossing test
+     *
+     * @return true if ray parity puts the point inside
+     */
+    public boolean contains(double[] p, double walkerRad){
+
+        int c=0;
+        int stride=1;
+
+        for(int i=0; i<D; i++){
+            int ci= (int)Math.floor(p[i]/s[i]);
+
+            // off the grid (or not a number) so no label
+            if(!((ci>=0)&&(ci<n[i]))){
+                return crossesOddTimes(p, walkerRad);
+            }
+
+            c+= ci*stride;
+            stride*= n[i];
+        }
+
+        byte l= label[c];
+
+        if(l==INSIDE){
+            return true;
+        }
+        if(l==OUTSIDE){
+            return false;
+        }
+
+        return crossesOddTimes(p, walkerRad);
+    }
+
+
+    /**
+     * @param p point in substrate coords
+     *
+     * @return true if the point is in a surface cell or off the grid, and
+     *         so needs the exact test
+     */
+    public boolean nearSurface(double[] p){
+
+        int c=0;
+        int stride=1;
+
+        for(int i=0; i<D; i++){
+            int ci= (int)Math.floor(p[i]/s[i]);
+
+            if(!((ci>=0)&&(ci<n[i]))){
+                return true;
+            }
+
+            c+= ci*stride;
+            stride*= n[i];
+        }
+
+        return label[c]==SURFACE;
+    }
+
+
+    /**
+     * exact ray parity test. casts the ray from the point and counts the
+     * triangles it crosses, skipping triangles coplanar with ones already
+     * crossed.
+     *
+     * @param p point in substrate coords
+     * @param walkerRad walker radius passed to the crossing test
+     *
+     * @return true if the ray crosses the surface an odd number of times
+     */
+    private boolean crossesOddTimes(double[] p, double walkerRad){
+
+        int i= (int)Math.floor(p[0]/s[0]);
+        int k= (int)Math.floor(p[2]/s[2]);
+
+        // clamping keeps every triangle that could be hit, and NaNs end up in column zero
+        i= Math.max(0, Math.min(n[0]-1, i));
+        k= Math.max(0, Math.min(n[2]-1, k));
+
+        final int c= i*n[2]+k;
+        final double bottom= p[1]-tol;
+
+        double[] tempNorm= new double[D];
+        double[] tempD= new double[1];
+        double[] intDist= new double[1];
+        double[] tempP= new double[1];
+
+        HashSet<Triangle> skips= null;
+
+        int crossings=0;
+
+        for(int e=colStart[c]; e<colStart[c+1]; e++){
+
+            // the rest of the column is below the point
+            if(colTop[e]<bottom){
+                break;
+            }
+
+            Triangle tri= colTri[e];
+
+            if((skips!=null)&&skips.contains(tri)){
+                continue;
+            }
+
+            boolean crosses=false;
+            try{
+                crosses= tri.crosses(p, ray, tempNorm, tempD, false, rayLength, intDist, null, tempP, walkerRad);
+            }
+            catch(TooDamnCloseException tdce){
+                throw new LoggedException(tdce);
+            }
+
+            if(crosses){
+                ArrayList<Triangle> newSkips= coplanarMap.get(tri);
+
+                if(newSkips!=null){
+                    if(skips==null){
+                        skips= new HashSet<Triangle>();
+                    }
+                    skips.addAll(newSkips);
+                }
+
+                crossings++;
+            }
+        }
+
+        return crossings%2==1;
+    }
+
+
+    /**
+     * range of cells covered by the padded bounding box of a triangle
+     */
+    private void cellRange(Triangle tri, int[] lo, int[] hi){
+
+        for(int j=0; j<D; j++){
+            double min= Double.MAX_VALUE;
+            double max= -Double.MAX_VALUE;
+
+            for(int v=0; v<3; v++){
+                double x= tri.getVertexCoord(v, j);
+
+                min= Math.min(min, x);
+                max= Math.max(max, x);
+            }
+
+            lo[j]= Math.max(0, Math.min(n[j]-1, (int)Math.floor((min-tol)/s[j])));
+            hi[j]= Math.max(0, Math.min(n[j]-1, (int)Math.floor((max+tol)/s[j])));
+        }
+    }
+
+
+    /**
+     * adds an unseen non-surface cell to the flood fill queue
+     *
+     * @return new queue tail
+     */
+    private int visit(int cell, int[] queue, boolean[] seen, int tail){
+
+        if(seen[cell]||(label[cell]==SURFACE)){
+            return tail;
+        }
+
+        seen[cell]= true;
+        queue[tail]= cell;
+
+        return tail+1;
+    }
+
+
+    /**
+     * @return linear index of a cell
+     */
+    private int cellIndex(int i, int j, int k){
+        return i+n[0]*(j+n[1]*k);
+    }
+
+}
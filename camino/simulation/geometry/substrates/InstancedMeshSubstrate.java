@@ -0,0 +1,1385 @@
+package simulation.geometry.substrates;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.logging.Logger;
+
+import misc.LoggedException;
+
+import simulation.DiffusionSimulation;
+import simulation.SimulationParams;
+import simulation.dynamics.Walker;
+import simulation.dynamics.WalkerPool;
+import simulation.dynamics.StepGeneratorFactory.StepType;
+import simulation.dynamics.exceptions.StepRejectedException;
+import simulation.dynamics.exceptions.TooDamnCloseException;
+import simulation.geometry.PLYreader;
+import simulation.geometry.elements.SubstrateObject;
+import simulation.geometry.elements.Triangle;
+import simulation.geometry.elements.TriangleMesh;
+import simulation.geometry.substrates.SubstrateFactory.SubstrateType;
+import tools.CL_Initializer;
+
+/**
+ * substrate made of many rigidly transformed copies (instances) of a
+ * small set of meshes.
+ *
+ * Filling a voxel with cells by baking every copy into one PLY file
+ * makes memory and index construction time grow with the number of
+ * copies. Here each unique mesh is read once, in its own frame, and
+ * gets its own bounding volume hierarchy and, if it is a closed
+ * surface, its own inside/outside map. Each instance is just a mesh
+ * index, a rotation and a translation. A second, top-level hierarchy
+ * over the instances' bounding boxes finds the instances a step might
+ * meet, and the step is rotated into the frame of each one before its
+ * triangles are tested. Rotations preserve lengths, so the arclength to
+ * a crossing is the same in both frames.
+ *
+ * Instances are read from a placement file, one per line:
+ * <pre>
+ *   mesh tx ty tz                         translation only
+ *   mesh tx ty tz ax ay az angle          rotation by angle (radians) about axis (ax, ay, az)
+ *   mesh tx ty tz r00 r01 r02 ... r22     rotation matrix, row by row
+ * </pre>
+ * mesh is the index of the PLY file in the list of meshes, starting at
+ * zero. A vertex x of the mesh is placed at R.x+t, in the coordinates
+ * of the PLY file. Blank lines and lines starting with # are ignored.
+ *
+ * The substrate is the bounding box of all the instances, or the size
+ * given by -meshsep around it, with periodic boundaries as on mesh
+ * substrates.
+ *
+ */
+public class InstancedMeshSubstrate extends Substrate {
+
+    /** dimensionality of space */
+    private static final int D= DiffusionSimulation.D;
+
+    /** logging object */
+    private static final Logger logger= Logger.getLogger("simulation.geometry.substrates.InstancedMeshSubstrate");
+
+    /** rotation matrices must be orthonormal to this tolerance */
+    private static final double ROTATION_TOL= 1E-6;
+
+    /** unique meshes, each moved so that its bounding box starts at the origin */
+    private final TriangleMesh[] mesh;
+
+    /** triangles of each unique mesh */
+    private final Triangle[][] triangles;
+
+    /** hierarchy over each unique mesh, in the mesh's own frame */
+    private final TriangleBVH[] bvh;
+
+    /** inside/outside map of each unique mesh (null for meshes that aren't closed) */
+    private final InsideOutsideMap[] insideMap;
+
+    /** true if every mesh is a closed surface */
+    private final boolean allClosed;
+
+    /** number of instances */
+    private final int numInstances;
+
+    /** mesh placed by each instance */
+    private final int[] instMesh;
+
+    /** rotation of each instance, 9 values per instance, row by row */
+    private final double[] rot;
+
+    /** translation of each instance. substrate coords = rot.local+trans */
+    private final double[] trans;
+
+    /** bounding box of each instance in substrate coords, 2*D values: minimum corner then maximum */
+    private final double[] instBounds;
+
+    /** hierarchy over the instance bounding boxes */
+    private final InstanceBVH top;
+
+    /** fraction of substrate size that is contained in central voxel */
+    private final double voxelSizeFrac= SimulationParams.sim_voxelSizeFrac;
+
+    /** bottomLeft corner of central voxel */
+    private final double[] voxelMin;
+
+    /** topRight corner of central voxel */
+    private final double[] voxelMax;
+
+    /** the ray vector that is used as a step in the inside/outside maps */
+    private final double[] ray= new double[]{0.0, Double.MAX_VALUE, 0.0};
+
+    /** length passed to the crossing test with the ray */
+    private final double size= Double.MAX_VALUE;
+
+
+    /**
+     * reads the meshes named by -plyfiles (or -plyfile) and the
+     * placements in the -instancefile.
+     *
+     * @param simParams simulation parameters
+     */
+    public InstancedMeshSubstrate(SimulationParams simParams){
+
+        super(simParams, new double[] {SimulationParams.sim_R,
+                                       SimulationParams.sim_R,
+                                       SimulationParams.sim_R});
+
+        String[] fname= SimulationParams.sim_plyfiles;
+        if(fname==null){
+            if(SimulationParams.sim_plyfile==null){
+                throw new LoggedException("instanced mesh substrate needs meshes. use -plyfiles");
+            }
+            fname= new String[]{SimulationParams.sim_plyfile};
+        }
+        if(SimulationParams.sim_instance_file==null){
+            throw new LoggedException("instanced mesh substrate needs a placement file. use -instancefile");
+        }
+        if(SimulationParams.sim_boundary!=SimulationParams.BOUNDARY_DEFAULT){
+            logger.warning("point reflection boundaries are not supported on instanced meshes. using periodic boundaries");
+        }
+
+        final int numMeshes= fname.length;
+
+        mesh= new TriangleMesh[numMeshes];
+        triangles= new Triangle[numMeshes][];
+        bvh= new TriangleBVH[numMeshes];
+        insideMap= new InsideOutsideMap[numMeshes];
+
+        // bottom left corner of each mesh in its PLY file, and its size
+        double[][] origin= new double[numMeshes][];
+        double[][] meshSize= new double[numMeshes][D];
+
+        boolean closed=true;
+        long uniqueBytes=0;
+
+        for(int m=0; m<numMeshes; m++){
+            logger.info("reading mesh "+m+" from '"+fname[m]+"'");
+            mesh[m]= PLYreader.readMesh(fname[m], 1.0, simParams.getP());
+
+            double[] topRight= new double[D];
+            origin[m]= new double[D];
+            meshBox(mesh[m], origin[m], topRight);
+
+            for(int i=0; i<D; i++){
+                meshSize[m][i]= topRight[i]-origin[m][i];
+            }
+
+            // each mesh lives in its own frame, with its box at the origin
+            mesh[m].translate(origin[m]);
+
+            triangles[m]= mesh[m].getTriangles();
+            bvh[m]= new TriangleBVH(triangles[m]);
+
+            if(PLYreader.closedSurface){
+                HashMap<Triangle, ArrayList<Triangle>> coplanarMap= mesh[m].getCoplanarMap(triangles[m]);
+                insideMap[m]= new InsideOutsideMap(triangles[m], meshSize[m], coplanarMap, ray, 2.0*size);
+            }
+            else{
+                closed=false;
+            }
+
+            uniqueBytes+= mesh[m].heapBytes()+bvhBytes(bvh[m]);
+        }
+        this.allClosed= closed;
+
+        // read the placements, folding each mesh's origin into the translation
+        double[][] placement= readPlacements(SimulationParams.sim_instance_file, numMeshes);
+
+        numInstances= placement.length;
+        instMesh= new int[numInstances];
+        rot= new double[9*numInstances];
+        trans= new double[D*numInstances];
+        instBounds= new double[2*D*numInstances];
+
+        long bakedBytes=0;
+
+        for(int k=0; k<numInstances; k++){
+            final int m= (int)placement[k][0];
+
+            instMesh[k]= m;
+            System.arraycopy(placement[k], 1+D, rot, 9*k, 9);
+
+            for(int i=0; i<D; i++){
+                double t= placement[k][1+i];
+                for(int j=0; j<D; j++){
+                    t+= rot[9*k+D*i+j]*origin[m][j];
+                }
+                trans[D*k+i]= t;
+            }
+
+            boxCorners(k, meshSize[m]);
+
+            bakedBytes+= mesh[m].heapBytes();
+        }
+
+        // substrate is the box around all the instances
+        substrateBottomLeft= new double[]{Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] topRight= new double[]{-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+
+        for(int k=0; k<numInstances; k++){
+            for(int i=0; i<D; i++){
+                substrateBottomLeft[i]= Math.min(substrateBottomLeft[i], instBounds[2*D*k+i]);
+                topRight[i]= Math.max(topRight[i], instBounds[2*D*k+D+i]);
+            }
+        }
+
+        if(SimulationParams.sim_mesh_sep!=null){
+            for(int i=0; i<D; i++){
+                if(SimulationParams.sim_mesh_sep[i]>0.0){
+                    double halfDiff= (SimulationParams.sim_mesh_sep[i]-(topRight[i]-substrateBottomLeft[i]))/2;
+
+                    if(halfDiff<0.0){
+                        logger.warning("Specified mesh separation in direction "+i+" is smaller than the instances. " +
+                                "Outer portions of the instances will be ignored.");
+                    }
+
+                    substrateBottomLeft[i]-=halfDiff;
+                    topRight[i]+=halfDiff;
+                }
+            }
+        }
+
+        // move the origin to the bottom left of the box
+        for(int k=0; k<numInstances; k++){
+            for(int i=0; i<D; i++){
+                trans[D*k+i]-= substrateBottomLeft[i];
+                instBounds[2*D*k+i]-= substrateBottomLeft[i];
+                instBounds[2*D*k+D+i]-= substrateBottomLeft[i];
+            }
+        }
+
+        for(int i=0; i<D; i++){
+            L[i]= topRight[i]-substrateBottomLeft[i];
+        }
+
+        logger.info("substrate size ("+L[0]+","+L[1]+","+L[2]+")");
+
+        top= new InstanceBVH(instBounds, numInstances);
+
+        // there are no triangles in substrate coords
+        super.subsObj= new SubstrateObject[0];
+
+        voxelMin= new double[D];
+        voxelMax= new double[D];
+
+        for(int i=0; i<D; i++){
+            double centre= L[i]/2;
+            double voxSize= voxelSizeFrac*L[i];
+
+            voxelMin[i]= centre-voxSize/2;
+            voxelMax[i]= centre+voxSize/2;
+        }
+
+        initBoundaryIntersectionArrays();
+
+        long instanceBytes= 4L*instMesh.length+8L*(rot.length+trans.length+instBounds.length)+bvhBytes(top.getNumNodes(), 0);
+
+        logger.info(numInstances+" instances of "+numMeshes+" meshes: "+(uniqueBytes>>20)+" MB of unique geometry and "
+                +(instanceBytes>>10)+" kB of placements. the same instances baked into one mesh would take "
+                +(bakedBytes>>20)+" MB before indexing");
+    }
+
+
+    /**
+     * finds the bounding box of a mesh
+     *
+     * @param mesh the mesh
+     * @param bottomLeft space for the minimum corner
+     * @param topRight space for the maximum corner
+     */
+    private static void meshBox(TriangleMesh mesh, double[] bottomLeft, double[] topRight){
+
+        Arrays.fill(bottomLeft, Double.MAX_VALUE);
+        Arrays.fill(topRight, -Double.MAX_VALUE);
+
+        for(int v=0; v<mesh.numVertices(); v++){
+            for(int i=0; i<D; i++){
+                double x= mesh.getCoord(v, i);
+
+                bottomLeft[i]= Math.min(bottomLeft[i], x);
+                topRight[i]= Math.max(topRight[i], x);
+            }
+        }
+    }
+
+
+    /**
+     * sets the bounding box of an instance from the eight transformed
+     * corners of its mesh's box.
+     *
+     * @param k instance
+     * @param meshSize size of the mesh's box
+     */
+    private void boxCorners(int k, double[] meshSize){
+
+        final int b= 2*D*k;
+
+        for(int i=0; i<D; i++){
+            instBounds[b+i]= Double.MAX_VALUE;
+            instBounds[b+D+i]= -Double.MAX_VALUE;
+        }
+
+        for(int c=0; c<8; c++){
+            for(int i=0; i<D; i++){
+                double x= trans[D*k+i];
+                for(int j=0; j<D; j++){
+                    double corner= ((c>>j)&1)==1?meshSize[j]:0.0;
+                    x+= rot[9*k+D*i+j]*corner;
+                }
+
+                instBounds[b+i]= Math.min(instBounds[b+i], x);
+                instBounds[b+D+i]= Math.max(instBounds[b+D+i], x);
+            }
+        }
+    }
+
+
+    /**
+     * reads the placement file.
+     *
+     * @param fname name of file
+     * @param numMeshes number of meshes
+     *
+     * @return one array per instance: mesh index, translation, then
+     *         rotation matrix row by row
+     */
+    private static double[][] readPlacements(String fname, int numMeshes){
+
+        logger.info("reading instance placements from '"+fname+"'");
+
+        ArrayList<double[]> placements= new ArrayList<double[]>();
+
+        try{
+            BufferedReader in= new BufferedReader(new FileReader(fname));
+
+            String line;
+            int lineNum=0;
+
+            while((line=in.readLine())!=null){
+                lineNum++;
+                line= line.trim();
+
+                if((line.length()==0)||line.startsWith("#")){
+                    continue;
+                }
+
+                String[] tok= line.split("[\\s,]+");
+
+                if((tok.length!=4)&&(tok.length!=8)&&(tok.length!=13)){
+                    in.close();
+                    throw new LoggedException("line "+lineNum+" of placement file '"+fname+"' has "+tok.length
+                            +" values. expected 4, 8 or 13");
+                }
+
+                double[] val= new double[tok.length];
+                for(int i=0; i<tok.length; i++){
+                    val[i]= Double.parseDouble(tok[i]);
+                }
+
+                int m= (int)val[0];
+                if((m!=val[0])||(m<0)||(m>=numMeshes)){
+                    in.close();
+                    throw new LoggedException("line "+lineNum+" of placement file '"+fname+"' places mesh "+tok[0]
+                            +" but there are "+numMeshes+" meshes");
+                }
+
+                double[] placement= new double[1+D+9];
+                System.arraycopy(val, 0, placement, 0, 1+D);
+
+                if(tok.length==4){
+                    placement[1+D]= 1.0;
+                    placement[1+D+4]= 1.0;
+                    placement[1+D+8]= 1.0;
+                }
+                else if(tok.length==8){
+                    axisAngle(val[4], val[5], val[6], val[7], placement, 1+D);
+                }
+                else{
+                    System.arraycopy(val, 4, placement, 1+D, 9);
+
+                    if(!isRotation(placement, 1+D)){
+                        in.close();
+                        throw new LoggedException("line "+lineNum+" of placement file '"+fname+"' is not a rotation matrix");
+                    }
+                }
+
+                placements.add(placement);
+            }
+
+            in.close();
+        }
+        catch(IOException ioe){
+            throw new LoggedException(ioe);
+        }
+
+        if(placements.size()==0){
+            throw new LoggedException("placement file '"+fname+"' contains no instances");
+        }
+
+        return placements.toArray(new double[placements.size()][]);
+    }
+
+
+    /**
+     * rotation matrix from an axis and angle (Rodrigues' formula)
+     *
+     * @param ax axis x component
+     * @param ay axis y component
+     * @param az axis z component
+     * @param angle angle in radians
+     * @param R space for the matrix, row by row
+     * @param o position of matrix in R
+     */
+    private static void axisAngle(double ax, double ay, double az, double angle, double[] R, int o){
+
+        double len= Math.sqrt(ax*ax+ay*ay+az*az);
+        if(len==0.0){
+            throw new LoggedException("rotation axis has zero length");
+        }
+
+        final double x= ax/len;
+        final double y= ay/len;
+        final double z= az/len;
+
+        final double c= Math.cos(angle);
+        final double s= Math.sin(angle);
+        final double C= 1.0-c;
+
+        R[o]=   c+x*x*C;   R[o+1]= x*y*C-z*s; R[o+2]= x*z*C+y*s;
+        R[o+3]= y*x*C+z*s; R[o+4]= c+y*y*C;   R[o+5]= y*z*C-x*s;
+        R[o+6]= z*x*C-y*s; R[o+7]= z*y*C+x*s; R[o+8]= c+z*z*C;
+    }
+
+
+    /**
+     * @param R matrix, row by row
+     * @param o position of matrix in R
+     *
+     * @return true if the matrix is orthonormal with determinant one
+     */
+    private static boolean isRotation(double[] R, int o){
+
+        for(int i=0; i<D; i++){
+            for(int j=0; j<D; j++){
+                double dot=0.0;
+                for(int k=0; k<D; k++){
+                    dot+= R[o+D*i+k]*R[o+D*j+k];
+                }
+                if(Math.abs(dot-((i==j)?1.0:0.0))>ROTATION_TOL){
+                    return false;
+                }
+            }
+        }
+
+        double det= R[o]*(R[o+4]*R[o+8]-R[o+5]*R[o+7])
+                   -R[o+1]*(R[o+3]*R[o+8]-R[o+5]*R[o+6])
+                   +R[o+2]*(R[o+3]*R[o+7]-R[o+4]*R[o+6]);
+
+        return det>0.0;
+    }
+
+
+    /**
+     * @return approximate size of a hierarchy's arrays in bytes
+     */
+    private static long bvhBytes(TriangleBVH bvh){
+        return bvhBytes(bvh.getNumNodes(), bvh.size());
+    }
+
+
+    /**
+     * @param numNodes number of nodes
+     * @param numObjects number of object references
+     *
+     * @return approximate size of a hierarchy's arrays in bytes
+     */
+    private static long bvhBytes(int numNodes, int numObjects){
+        return (16L*D+8L)*numNodes+8L*numObjects;
+    }
+
+
+    /**
+     * maps a position and step from substrate coords into the frame of
+     * an instance.
+     *
+     * @param k the instance
+     * @param pos position in substrate coords
+     * @param step step in substrate coords
+     * @param localPos space for the position in the instance's frame
+     * @param localStep space for the step in the instance's frame
+     */
+    private final void toLocal(int k, double[] pos, double[] step, double[] localPos, double[] localStep){
+
+        final int r= 9*k;
+        final int t= D*k;
+
+        // the inverse of a rotation is its transpose
+        for(int j=0; j<D; j++){
+            double x=0.0;
+            double s=0.0;
+            for(int i=0; i<D; i++){
+                x+= rot[r+D*i+j]*(pos[i]-trans[t+i]);
+                s+= rot[r+D*i+j]*step[i];
+            }
+            localPos[j]= x;
+            localStep[j]= s;
+        }
+    }
+
+
+    /**
+     * makes sure a context has room for a top-level query
+     */
+    private final void checkCapacity(TraversalContext context){
+
+        if((context.instances==null)||(context.instances.length<numInstances)){
+            context.instances= new int[numInstances];
+        }
+        if((context.instanceStack==null)||(context.instanceStack.length<top.getDepth())){
+            context.instanceStack= new int[top.getDepth()];
+        }
+    }
+
+
+    public boolean crossesMembrane(Walker walker, double[] offset, double[] stepVector,
+            double[] normal, double[] d, boolean skipCurrent, double origLength,
+            boolean[] in, double[] p, boolean report, FileWriter debugWriter) throws StepRejectedException {
+
+        double nearest=2.0;
+
+        boolean crossing=false;
+        boolean crossingIsSubstrateBoundary= false;
+
+        double[] tempNormal= new double[D];
+        double[] tempD= new double[1];
+        double[] intDist= new double[1];
+        double[] tempP= new double[1];
+
+        // scratch space for this thread
+        final TraversalContext context= getContext();
+        final double[] subsCoords= context.subsCoords;
+        final double[] localPos= context.localPos;
+        final double[] localStep= context.localStep;
+
+        getSubstrateCoords(walker, offset, subsCoords);
+
+        checkCapacity(context);
+
+        final int numFound= top.findInstances(subsCoords, stepVector, walker.R, context.instanceStack, context.instances);
+
+        Triangle toSkip=null;
+        int skipInstance=-1;
+
+        int count=0;
+
+        for(int f=0; f<numFound; f++){
+            final int k= context.instances[f];
+
+            toLocal(k, subsCoords, stepVector, localPos, localStep);
+
+            context.assembleCandidateList(bvh[instMesh[k]], localPos, localStep, walker.R);
+
+            while(context.moreCandidates()){
+                Triangle tri= (Triangle)context.nextCandidate();
+
+                // the same triangle object appears in every instance of its mesh
+                if(skipCurrent){
+                    if((tri==context.skipping)&&(k==context.skippingInstance)){
+                        continue;
+                    }
+                }
+
+                count++;
+
+                boolean crosses=false;
+                try{
+                    crosses= tri.crosses(localPos, localStep, tempNormal, tempD, false, origLength, intDist, null, tempP, walker.R);
+                }
+                catch(TooDamnCloseException tdce){
+                    throw new StepRejectedException(tdce.getMessage());
+                }
+
+                if(crosses){
+                    crossing=true;
+
+                    if(intDist[0]<nearest){
+                        nearest=intDist[0];
+
+                        // rotate the normal back, and move the plane with the instance
+                        d[0]=tempD[0];
+                        for(int i=0; i<D; i++){
+                            double n=0.0;
+                            for(int j=0; j<D; j++){
+                                n+= rot[9*k+D*i+j]*tempNormal[j];
+                            }
+                            normal[i]=n;
+                            d[0]+= trans[D*k+i]*n;
+                        }
+
+                        toSkip= tri;
+                        skipInstance= k;
+                        p[0]= tri.getPermeability(0);
+                    }
+                }
+            }
+        }
+
+        context.barrierChecks++;
+        context.candidatesTested+=count;
+
+        // check intersection with substrate boundaries
+        if(checkBoundaryIntersection(subsCoords, offset, stepVector, tempNormal, tempD, false, origLength, intDist, null, tempP)){
+
+            crossing=true;
+
+            if(intDist[0]<nearest){
+                nearest=intDist[0];
+                for(int j=0; j<D; j++){
+                    normal[j]=tempNormal[j];
+                }
+                d[0]=tempD[0];
+                toSkip= null;
+                p[0]=1.0;
+                crossingIsSubstrateBoundary= true;
+            }
+        }
+
+        if(!crossing){
+            context.skipping=null;
+            context.skippingInstance=-1;
+        }
+
+        if(toSkip!=null){
+            context.skipping=toSkip;
+            context.skippingInstance= skipInstance;
+        }
+
+        context.intersectsBoundary= crossingIsSubstrateBoundary;
+
+        return crossing;
+    }
+
+
+    /**
+     * all mutable state used in crossesMembrane() is held in the
+     * traversal context, so instances can be shared between threads.
+     *
+     * @return true
+     */
+    public boolean supportsParallelTraversal(){
+        return true;
+    }
+
+
+    /**
+     * if every mesh is closed each pass through a surface switches
+     * compartment (as long as the instances don't overlap).
+     */
+    public boolean crossingsSwitchCompartment(){
+        return allClosed;
+    }
+
+
+    /**
+     * the boundary flag is kept in the traversal context so that
+     * substrates can be shared between threads.
+     */
+    protected boolean crossingIsBoundary(){
+        return getContext().intersectsBoundary;
+    }
+
+
+    /**
+     * a walker is inside if it's inside any closed instance whose box
+     * contains it.
+     */
+    public boolean intracellular(Walker walker){
+
+        final TraversalContext context= getContext();
+        final double[] subsCoords= new double[D];
+        final double[] zero= new double[D];
+
+        getSubstrateCoords(walker, zero, subsCoords);
+
+        checkCapacity(context);
+
+        final int numFound= top.findInstances(subsCoords, zero, 0.0, context.instanceStack, context.instances);
+
+        for(int f=0; f<numFound; f++){
+            final int k= context.instances[f];
+            final InsideOutsideMap map= insideMap[instMesh[k]];
+
+            if(map==null){
+                continue;
+            }
+
+            toLocal(k, subsCoords, zero, context.localPos, context.localStep);
+
+            if(map.contains(context.localPos, walker.R)){
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * there's no subvoxel grid, so initial positions are checked against
+     * the triangles of instances within a walker radius.
+     */
+    public boolean positionOk(double[] r0, double R){
+
+        final TraversalContext context= getContext();
+        final double[] zero= new double[D];
+
+        checkCapacity(context);
+
+        final int numFound= top.findInstances(r0, zero, R, context.instanceStack, context.instances);
+
+        for(int f=0; f<numFound; f++){
+            final int k= context.instances[f];
+
+            toLocal(k, r0, zero, context.localPos, context.localStep);
+
+            context.assembleCandidateList(bvh[instMesh[k]], context.localPos, zero, R);
+
+            while(context.moreCandidates()){
+                if(context.nextCandidate().getDistanceFrom(context.localPos)<=R){
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * check is a given walker is in the voxel, as on mesh substrates.
+     *
+     * @param pos walker pos in global coords
+     *
+     * @return true if in central voxel, otherwise false
+     */
+    public boolean voxelContains(double[] pos){
+
+        final double[] subsCoords= new double[D];
+
+        getSubstrateCoords(pos, new double[D], subsCoords);
+
+        for(int i=0; i<D; i++){
+            if((subsCoords[i]<voxelMin[i])||(subsCoords[i]>voxelMax[i])){
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * return peak coord, used as the centre of the substrate
+     */
+    public double getPeakCoord(){
+        return L[0]/2.0;
+    }
+
+
+    /**
+     * returns the size of the substrate
+     */
+    public double[] getSubstrateSize(){
+        return L;
+    }
+
+
+    /**
+     * not used, does nothing.
+     */
+    public void init(){
+
+    }
+
+
+    /**
+     * returns the triangles of the unique meshes, each in its own frame.
+     */
+    public Collection<Triangle> getTriangles(){
+
+        ArrayList<Triangle> tris= new ArrayList<Triangle>();
+
+        for(int m=0; m<triangles.length; m++){
+            tris.addAll(Arrays.asList(triangles[m]));
+        }
+
+        return tris;
+    }
+
+
+    /**
+     * hierarchy over the instance bounding boxes. laid out like
+     * TriangleBVH, but split at the median centroid on the longest axis,
+     * which is plenty for boxes that are mostly similar in size and
+     * don't overlap much.
+     */
+    private static final class InstanceBVH {
+
+        /** nodes with this many instances or fewer are leaves */
+        private static final int LEAF_SIZE= 4;
+
+        /** node bounds, 2*D values per node */
+        private final double[] bounds;
+
+        /** leaves: index of first instance in order. interior nodes: index of second child */
+        private final int[] offset;
+
+        /** number of instances in a leaf, zero for interior nodes */
+        private final int[] count;
+
+        /** instances in leaf order */
+        private final int[] order;
+
+        /** instance boxes */
+        private final double[] box;
+
+        /** padding added to node boxes to absorb rounding error */
+        private final double tol;
+
+        /** box centres during construction */
+        private double[] centroid;
+
+        /** number of nodes */
+        private int numNodes=0;
+
+        /** depth of deepest leaf (root has depth 1) */
+        private int depth=0;
+
+
+        /**
+         * @param box instance boxes, 2*D values per instance
+         * @param n number of instances
+         */
+        InstanceBVH(double[] box, int n){
+
+            this.box= box;
+
+            order= new int[n];
+            centroid= new double[D*n];
+
+            double maxExtent=0.0;
+
+            for(int k=0; k<n; k++){
+                order[k]= k;
+                for(int j=0; j<D; j++){
+                    centroid[D*k+j]= 0.5*(box[2*D*k+j]+box[2*D*k+D+j]);
+                    maxExtent= Math.max(maxExtent, Math.abs(box[2*D*k+D+j]));
+                }
+            }
+
+            this.tol= 1E-9*maxExtent;
+
+            int maxNodes= Math.max(2*n-1, 1);
+            bounds= new double[2*D*maxNodes];
+            offset= new int[maxNodes];
+            count= new int[maxNodes];
+
+            build(0, n, 1);
+
+            centroid= null;
+
+            logger.info("instance hierarchy: "+n+" instances, "+numNodes+" nodes, depth "+depth);
+        }
+
+
+        /**
+         * builds the subtree over order[start] to order[end-1]
+         *
+         * @return index of the subtree's root node
+         */
+        private int build(int start, int end, int level){
+
+            final int node= numNodes++;
+            final int b= 2*D*node;
+
+            depth= Math.max(depth, level);
+
+            double[] cmin= new double[]{Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+            double[] cmax= new double[]{-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+
+            for(int j=0; j<D; j++){
+                bounds[b+j]= Double.MAX_VALUE;
+                bounds[b+D+j]= -Double.MAX_VALUE;
+            }
+
+            for(int i=start; i<end; i++){
+                final int k= order[i];
+                for(int j=0; j<D; j++){
+                    bounds[b+j]= Math.min(bounds[b+j], box[2*D*k+j]);
+                    bounds[b+D+j]= Math.max(bounds[b+D+j], box[2*D*k+D+j]);
+
+                    cmin[j]= Math.min(cmin[j], centroid[D*k+j]);
+                    cmax[j]= Math.max(cmax[j], centroid[D*k+j]);
+                }
+            }
+
+            if(end-start<=LEAF_SIZE){
+                offset[node]= start;
+                count[node]= end-start;
+                return node;
+            }
+
+            int axis=0;
+            for(int j=1; j<D; j++){
+                if(cmax[j]-cmin[j]>cmax[axis]-cmin[axis]){
+                    axis=j;
+                }
+            }
+
+            final int mid= (start+end)>>>1;
+            select(start, end, mid, axis);
+
+            build(start, mid, level+1);
+            offset[node]= build(mid, end, level+1);
+            count[node]= 0;
+
+            return node;
+        }
+
+
+        /**
+         * partially sorts order[start] to order[end-1] by centroid so that
+         * the instance at position mid is in its sorted place, with none
+         * above it before and none below it after.
+         */
+        private void select(int start, int end, int mid, int axis){
+
+            int lo= start;
+            int hi= end-1;
+
+            while(lo<hi){
+                final double pivot= centroid[D*order[(lo+hi)>>>1]+axis];
+
+                int i= lo;
+                int j= hi;
+
+                while(i<=j){
+                    while(centroid[D*order[i]+axis]<pivot){
+                        i++;
+                    }
+                    while(centroid[D*order[j]+axis]>pivot){
+                        j--;
+                    }
+                    if(i<=j){
+                        int tmp= order[i];
+                        order[i]= order[j];
+                        order[j]= tmp;
+                        i++;
+                        j--;
+                    }
+                }
+
+                if(mid<=j){
+                    hi= j;
+                }
+                else if(mid>=i){
+                    lo= i;
+                }
+                else{
+                    return;
+                }
+            }
+        }
+
+
+        /**
+         * finds the instances whose boxes a step passes through or comes
+         * within a walker radius of.
+         *
+         * @param p start of step in substrate coords
+         * @param step step vector
+         * @param rad walker radius
+         * @param stack traversal stack, at least getDepth() long
+         * @param out space for instances, at least the number of instances long
+         *
+         * @return number of instances found
+         */
+        int findInstances(double[] p, double[] step, double rad, int[] stack, int[] out){
+
+            if(order.length==0){
+                return 0;
+            }
+
+            final double pad= rad+tol;
+
+            int found=0;
+            int top=0;
+
+            stack[top++]= 0;
+
+            while(top>0){
+
+                final int node= stack[--top];
+
+                if(!segmentHitsBox(bounds, 2*D*node, p, step, pad)){
+                    continue;
+                }
+
+                final int n= count[node];
+
+                if(n>0){
+                    final int first= offset[node];
+
+                    for(int i=0; i<n; i++){
+                        final int k= order[first+i];
+
+                        // leaves are small, so boxes are checked individually
+                        if(segmentHitsBox(box, 2*D*k, p, step, pad)){
+                            out[found++]= k;
+                        }
+                    }
+                }
+                else{
+                    stack[top++]= offset[node];
+                    stack[top++]= node+1;
+                }
+            }
+
+            return found;
+        }
+
+
+        /**
+         * slab test of the segment p to p+step against a box
+         *
+         * @param bounds array of boxes
+         * @param b position of box in bounds
+         * @param p start of segment
+         * @param step segment vector
+         * @param pad amount to grow the box by on all sides
+         *
+         * @return true if the segment meets the padded box
+         */
+        private static boolean segmentHitsBox(double[] bounds, int b, double[] p, double[] step, double pad){
+
+            double tmin= 0.0;
+            double tmax= 1.0;
+
+            for(int j=0; j<D; j++){
+
+                final double lo= bounds[b+j]-pad;
+                final double hi= bounds[b+D+j]+pad;
+
+                if(step[j]==0.0){
+                    if((p[j]<lo)||(p[j]>hi)){
+                        return false;
+                    }
+                    continue;
+                }
+
+                final double inv= 1.0/step[j];
+
+                double t1= (lo-p[j])*inv;
+                double t2= (hi-p[j])*inv;
+
+                if(t1>t2){
+                    double tmp= t1;
+                    t1= t2;
+                    t2= tmp;
+                }
+
+                if(t1>tmin){
+                    tmin= t1;
+                }
+                if(t2<tmax){
+                    tmax= t2;
+                }
+
+                if(tmin>tmax){
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+
+        /**
+         * @return depth of the deepest leaf, and so the largest traversal
+         *         stack a query can need
+         */
+        int getDepth(){
+            return depth+1;
+        }
+
+
+        /**
+         * @return number of nodes
+         */
+        int getNumNodes(){
+            return numNodes;
+        }
+    }
+
+
+    /**
+     * nearest triangle crossed by a step, found by testing every
+     * triangle of every instance, and the instance it belongs to.
+     *
+     * @return the nearest triangle, or null if none is crossed before the
+     *         substrate boundary
+     */
+    private Triangle nearestCrossingBruteForce(double[] subsCoords, double[] step, double origLength, int[] instance){
+
+        double[] tempNormal= new double[D];
+        double[] tempD= new double[1];
+        double[] intDist= new double[1];
+        double[] tempP= new double[1];
+        double[] localPos= new double[D];
+        double[] localStep= new double[D];
+
+        double nearest=2.0;
+        Triangle nearestTri=null;
+
+        for(int k=0; k<numInstances; k++){
+            toLocal(k, subsCoords, step, localPos, localStep);
+
+            Triangle[] tri= triangles[instMesh[k]];
+
+            for(int t=0; t<tri.length; t++){
+                try{
+                    if(tri[t].crosses(localPos, localStep, tempNormal, tempD, false, origLength, intDist, null, tempP, 0.0)){
+                        if(intDist[0]<nearest){
+                            nearest=intDist[0];
+                            nearestTri=tri[t];
+                            instance[0]=k;
+                        }
+                    }
+                }
+                catch(TooDamnCloseException tdce){
+                    throw new LoggedException(tdce);
+                }
+            }
+        }
+
+        if(checkBoundaryIntersection(subsCoords, new double[D], step, tempNormal, tempD, false, origLength, intDist, null, tempP)){
+            if(intDist[0]<nearest){
+                nearestTri=null;
+            }
+        }
+
+        return nearestTri;
+    }
+
+
+    /**
+     * benchmark of an instanced substrate. copies of a mesh are placed on
+     * a cubic lattice with random rotations, far enough apart not to
+     * overlap. The construction time and memory of the instanced
+     * substrate are compared with baking all the copies into a single
+     * mesh and building one hierarchy over it. Barrier checks are then
+     * timed for random steps started uniformly over the substrate, and
+     * the nearest crossing of each is compared with testing every
+     * triangle of every instance.
+     *
+     * usage: InstancedMeshSubstrate plyfile [copies per axis] [steps] [step length as fraction of mesh size]
+     */
+    public static void main(String[] args){
+
+        String plyfile= args[0];
+        int perAxis= (args.length>1)?Integer.parseInt(args[1]):5;
+        int numSteps= (args.length>2)?Integer.parseInt(args[2]):200000;
+        double frac= (args.length>3)?Double.parseDouble(args[3]):0.005;
+
+        java.util.Random rng= new java.util.Random(CL_Initializer.seed);
+
+        // size of the mesh, and spacing that leaves room for any rotation
+        TriangleMesh proto= PLYreader.readMesh(plyfile, 1.0, 0.0);
+        double[] lo= new double[D];
+        double[] hi= new double[D];
+        meshBox(proto, lo, hi);
+
+        double diag=0.0;
+        for(int i=0; i<D; i++){
+            diag+= (hi[i]-lo[i])*(hi[i]-lo[i]);
+        }
+        diag= Math.sqrt(diag);
+        double spacing= 1.05*diag;
+
+        int copies= perAxis*perAxis*perAxis;
+        double[][] R= new double[copies][9];
+        double[][] t= new double[copies][D];
+
+        File placementFile;
+        try{
+            placementFile= File.createTempFile("instances", ".txt");
+            placementFile.deleteOnExit();
+
+            FileWriter out= new FileWriter(placementFile);
+
+            for(int k=0; k<copies; k++){
+                axisAngle(rng.nextGaussian(), rng.nextGaussian(), rng.nextGaussian(), 2.0*Math.PI*rng.nextDouble(), R[k], 0);
+
+                int[] c= new int[]{k%perAxis, (k/perAxis)%perAxis, k/(perAxis*perAxis)};
+
+                // put the centre of the mesh box at the lattice point
+                for(int i=0; i<D; i++){
+                    t[k][i]= c[i]*spacing;
+                    for(int j=0; j<D; j++){
+                        t[k][i]-= R[k][D*i+j]*0.5*(lo[j]+hi[j]);
+                    }
+                }
+
+                out.write("0 "+t[k][0]+" "+t[k][1]+" "+t[k][2]);
+                for(int e=0; e<9; e++){
+                    out.write(" "+R[k][e]);
+                }
+                out.write("\n");
+            }
+
+            out.close();
+        }
+        catch(IOException ioe){
+            throw new LoggedException(ioe);
+        }
+
+        SimulationParams.sim_plyfiles= new String[]{plyfile};
+        SimulationParams.sim_instance_file= placementFile.getPath();
+
+        SimulationParams simParams= new SimulationParams(1, 1000, 0.0, SimulationParams.UNIFORM,
+                SubstrateType.TRI_PLY_INSTANCED, StepType.FIXEDLENGTH, 1.5, 0.1);
+
+        long start= System.nanoTime();
+        InstancedMeshSubstrate subs= new InstancedMeshSubstrate(simParams);
+        double instancedTime= (System.nanoTime()-start)/1E9;
+
+        long instancedBytes= subs.mesh[0].heapBytes()+bvhBytes(subs.bvh[0])+8L*(subs.rot.length+subs.trans.length+subs.instBounds.length);
+
+        // the same copies baked into one mesh
+        start= System.nanoTime();
+
+        int numV= proto.numVertices();
+        int numT= proto.numTriangles();
+        double[] vertex= new double[D*numV*copies];
+        int[] face= new int[3*numT*copies];
+
+        for(int k=0; k<copies; k++){
+            for(int v=0; v<numV; v++){
+                for(int i=0; i<D; i++){
+                    double x= t[k][i];
+                    for(int j=0; j<D; j++){
+                        x+= R[k][D*i+j]*proto.getCoord(v, j);
+                    }
+                    vertex[D*(k*numV+v)+i]= x;
+                }
+            }
+            for(int f=0; f<numT; f++){
+                for(int c=0; c<3; c++){
+                    face[3*(k*numT+f)+c]= k*numV+proto.getVertexIndex(f, c);
+                }
+            }
+        }
+
+        TriangleMesh baked= new TriangleMesh(vertex, face, null, 0.0, null);
+        TriangleBVH bakedBVH= new TriangleBVH(baked.getTriangles());
+        double bakedTime= (System.nanoTime()-start)/1E9;
+
+        long bakedBytes= baked.heapBytes()+bvhBytes(bakedBVH);
+
+        System.err.println(copies+" copies of "+numT+" triangles");
+        System.err.println("instanced: built in "+instancedTime+" s, "+(instancedBytes>>10)+" kB");
+        System.err.println("baked:     built in "+bakedTime+" s, "+(bakedBytes>>10)+" kB");
+
+        // random steps
+        double[] L= subs.getSubstrateSize();
+        double len= frac*diag;
+
+        double[][] pos= new double[numSteps][D];
+        double[][] step= new double[numSteps][D];
+
+        for(int i=0; i<numSteps; i++){
+            double theta= 2.0*Math.PI*rng.nextDouble();
+            double cosPhi= 2.0*rng.nextDouble()-1.0;
+            double sinPhi= Math.sqrt(1.0-cosPhi*cosPhi);
+
+            step[i][0]= len*Math.cos(theta)*sinPhi;
+            step[i][1]= len*Math.sin(theta)*sinPhi;
+            step[i][2]= len*cosPhi;
+
+            for(int j=0; j<D; j++){
+                pos[i][j]= L[j]*rng.nextDouble();
+            }
+        }
+
+        double[] offset= new double[D];
+        double[] normal= new double[D];
+        double[] d= new double[1];
+        boolean[] in= new boolean[1];
+        double[] p= new double[1];
+
+        Triangle[] nearest= new Triangle[numSteps];
+        int[] nearestInstance= new int[numSteps];
+
+        // a point walker with no step generator
+        Walker walker= new WalkerPool(1, 0).getCursor(null, subs, null).bind(0);
+        TraversalContext context= subs.getContext();
+
+        // two passes, the first to warm up
+        for(int pass=0; pass<2; pass++){
+
+            context.barrierChecks=0;
+            context.candidatesTested=0;
+            int crossings=0;
+
+            start= System.nanoTime();
+
+            for(int i=0; i<numSteps; i++){
+                for(int j=0; j<D; j++){
+                    walker.r[j]= pos[i][j];
+                }
+
+                context.skipping= null;
+                context.skippingInstance= -1;
+
+                try{
+                    if(subs.crossesMembrane(walker, offset, step[i], normal, d, false, len, in, p, false, null)){
+                        crossings++;
+                    }
+                }
+                catch(StepRejectedException sre){
+                    throw new LoggedException(sre);
+                }
+
+                nearest[i]= (Triangle)context.skipping;
+                nearestInstance[i]= context.skippingInstance;
+            }
+
+            double time= (System.nanoTime()-start)/1E9;
+
+            if(pass==1){
+                System.err.println("instanced: "+((double)context.candidatesTested/context.barrierChecks)+" triangles tested per step, "
+                        +(numSteps/time)+" steps/s, "+crossings+" crossings");
+            }
+        }
+
+        // compare with brute force on a subset of steps
+        int numChecked= Math.min(numSteps, 100);
+        int mismatches=0;
+        int[] instance= new int[1];
+
+        for(int i=0; i<numChecked; i++){
+            Triangle brute= subs.nearestCrossingBruteForce(pos[i], step[i], len, instance);
+
+            if((brute!=nearest[i])||((brute!=null)&&(instance[0]!=nearestInstance[i]))){
+                mismatches++;
+            }
+        }
+
+        System.err.println("nearest crossing differs from brute force in "+mismatches+" of "+numChecked+" steps");
+    }
+}
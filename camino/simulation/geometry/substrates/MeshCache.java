@@ -0,0 +1,553 @@
+package simulation.geometry.substrates;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import misc.LoggedException;
+
+import simulation.DiffusionSimulation;
+import simulation.geometry.elements.SubstrateObject;
+import simulation.geometry.elements.Triangle;
+import simulation.geometry.elements.TriangleMesh;
+
+/**
+ * on-disk cache of a processed mesh substrate. Reading a large PLY
+ * file, moving it into substrate coordinates and assigning triangles
+ * to subvoxels takes far longer than the simulation itself for short
+ * runs, and parameter sweeps do it over and over on the same mesh.
+ *
+ * The cache holds the mesh in substrate coordinates, with the planes
+ * of its triangles, the polygon each triangle came from (from which
+ * the coplanar lists are rebuilt), the substrate dimensions and the
+ * subvoxel index as lists of triangle numbers. Cache files are
+ * memory-mapped and copied straight into the mesh arrays.
+ *
+ * Files are named after the PLY file and a hash of its contents, the
+ * scaling, the mesh separation, the subvoxel grid and the format
+ * version, so any change to these gives a different file. The full
+ * hash is also stored in the file and checked when it's read. Files
+ * are written under a temporary name and renamed when complete, so
+ * concurrent runs never see a partial cache.
+ *
+ */
+public class MeshCache {
+
+	/** logging object */
+	private static final Logger logger= Logger.getLogger("simulation.geometry.substrates.MeshCache");
+
+	/** dimensionality of space */
+	private static final int D= DiffusionSimulation.D;
+
+	/** first eight bytes of a cache file ("CAMINOMC") */
+	private static final long MAGIC= 0x43414d494e4f4d43L;
+
+	/** format version. change this whenever the file layout or mesh processing changes */
+	private static final int VERSION= 1;
+
+	/** length of the key */
+	private static final int KEY_LENGTH= 20;
+
+	/** size of the header in bytes */
+	private static final int HEADER_SIZE= 8+4+4+KEY_LENGTH+4+4+4*D+4+8*D+8*D+4;
+
+	/** flags */
+	private static final int CLOSED= 1;
+	private static final int PERMEABILITIES= 2;
+	private static final int POLYGONS= 4;
+
+	/** size of buffer used for hashing and writing */
+	private static final int BUFFER_SIZE= 1<<20;
+
+	/** the mesh in substrate coordinates */
+	public final TriangleMesh mesh;
+
+	/** is the mesh a closed surface */
+	public final boolean closed;
+
+	/** bottom left corner of the substrate in mesh coordinates */
+	public final double[] bottomLeft;
+
+	/** substrate dimensions */
+	public final double[] L;
+
+	/** number of subvoxels in each direction */
+	private final int[] n;
+
+	/** start of each subvoxel's triangle list. length numSubvoxels+1 */
+	private final int[] cellStart;
+
+	/** triangle numbers in each subvoxel */
+	private final int[] cellTri;
+
+
+	/**
+	 * constructor. use read() to get a cache from a file.
+	 */
+	private MeshCache(TriangleMesh mesh, boolean closed, double[] bottomLeft, double[] L, int[] n,
+			int[] cellStart, int[] cellTri){
+
+		this.mesh= mesh;
+		this.closed= closed;
+		this.bottomLeft= bottomLeft;
+		this.L= L;
+		this.n= n;
+		this.cellStart= cellStart;
+		this.cellTri= cellTri;
+	}
+
+
+	/**
+	 * makes a subvoxel map from the cached triangle lists
+	 *
+	 * @param tri triangles of the cached mesh, in mesh order
+	 * @param numSubVoxels number of subvoxels expected
+	 *
+	 * @return the map
+	 */
+	public SubVoxelMap getMap(Triangle[] tri, int numSubVoxels){
+
+		if(numSubVoxels!=cellStart.length-1){
+			throw new LoggedException("subvoxel map has "+numSubVoxels+" entries but cache has "+(cellStart.length-1));
+		}
+
+		SubstrateObject[] objects= new SubstrateObject[cellTri.length];
+		for(int k=0; k<cellTri.length; k++){
+			objects[k]= tri[cellTri[k]];
+		}
+
+		return new SubVoxelMap(cellStart, objects);
+	}
+
+
+	/**
+	 * hashes the things that determine the processed mesh
+	 *
+	 * @param plyfile name of the PLY file
+	 * @param scale scale factor applied when reading
+	 * @param meshSep mesh separation, or null
+	 * @param n number of subvoxels in each direction
+	 *
+	 * @return the key
+	 */
+	public static byte[] key(String plyfile, double scale, double[] meshSep, int[] n){
+
+		MessageDigest md;
+		try{
+			md= MessageDigest.getInstance("SHA-1");
+		}
+		catch(NoSuchAlgorithmException nsae){
+			throw new LoggedException(nsae);
+		}
+
+		ByteBuffer buf= ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		try{
+			FileChannel in= new FileInputStream(plyfile).getChannel();
+
+			while(in.read(buf)>=0){
+				buf.flip();
+				md.update(buf);
+				buf.clear();
+			}
+
+			in.close();
+		}
+		catch(IOException ioe){
+			throw new LoggedException(ioe);
+		}
+
+		buf.clear();
+		buf.putInt(VERSION);
+		buf.putDouble(scale);
+		if(meshSep!=null){
+			for(int i=0; i<meshSep.length; i++){
+				buf.putDouble(meshSep[i]);
+			}
+		}
+		for(int i=0; i<n.length; i++){
+			buf.putInt(n[i]);
+		}
+		buf.flip();
+		md.update(buf);
+
+		return md.digest();
+	}
+
+
+	/**
+	 * @param dir cache directory
+	 * @param plyfile name of PLY file
+	 * @param key cache key
+	 *
+	 * @return the cache file for the key
+	 */
+	public static File file(String dir, String plyfile, byte[] key){
+
+		StringBuffer name= new StringBuffer(new File(plyfile).getName());
+
+		name.append('.');
+		for(int i=0; i<8; i++){
+			name.append(Integer.toHexString((key[i]&0xff)|0x100).substring(1));
+		}
+		name.append(".meshcache");
+
+		return new File(dir, name.toString());
+	}
+
+
+	/**
+	 * reads a cache file. any problem with the file is logged and
+	 * treated as a miss.
+	 *
+	 * @param f the file
+	 * @param key expected key
+	 * @param p permeability of triangles if the mesh doesn't have its own
+	 *
+	 * @return the cache, or null if there's no valid cache file
+	 */
+	public static MeshCache read(File f, byte[] key, double p){
+
+		if(!f.exists()){
+			logger.info("no mesh cache "+f.getPath());
+			return null;
+		}
+
+		try{
+			RandomAccessFile raf= new RandomAccessFile(f, "r");
+			FileChannel ch= raf.getChannel();
+
+			try{
+				return read(ch, key, p, f.getPath());
+			}
+			finally{
+				raf.close();
+			}
+		}
+		catch(IOException ioe){
+			logger.warning("couldn't read mesh cache "+f.getPath()+": "+ioe.getMessage());
+			return null;
+		}
+	}
+
+
+	private static MeshCache read(FileChannel ch, byte[] key, double p, String name) throws IOException{
+
+		long start= System.currentTimeMillis();
+
+		if(ch.size()<HEADER_SIZE){
+			logger.warning("mesh cache "+name+" is truncated. ignoring it.");
+			return null;
+		}
+
+		ByteBuffer head= ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		if(head.getLong()!=MAGIC){
+			logger.warning(name+" is not a mesh cache. ignoring it.");
+			return null;
+		}
+		int version= head.getInt();
+		if(version!=VERSION){
+			logger.info("mesh cache "+name+" is version "+version+", not "+VERSION+". ignoring it.");
+			return null;
+		}
+
+		int flags= head.getInt();
+
+		byte[] fileKey= new byte[KEY_LENGTH];
+		head.get(fileKey);
+		if(!Arrays.equals(fileKey, key)){
+			logger.warning("mesh cache "+name+" was made from a different mesh or parameters. ignoring it.");
+			return null;
+		}
+
+		int numVertices= head.getInt();
+		int numTriangles= head.getInt();
+
+		int[] n= new int[D];
+		int numCells= 1;
+		for(int i=0; i<D; i++){
+			n[i]= head.getInt();
+			numCells*= n[i];
+		}
+		int numEntries= head.getInt();
+
+		double[] bottomLeft= new double[D];
+		double[] L= new double[D];
+		for(int i=0; i<D; i++){
+			bottomLeft[i]= head.getDouble();
+		}
+		for(int i=0; i<D; i++){
+			L[i]= head.getDouble();
+		}
+
+		boolean perms= (flags&PERMEABILITIES)!=0;
+		boolean polys= (flags&POLYGONS)!=0;
+
+		long expected= HEADER_SIZE+bytes(8, D*(long)numVertices)+bytes(4, 3L*numTriangles)
+			+bytes(8, (long)(D+1+3)*numTriangles)+(perms?bytes(8, numTriangles):0)
+			+(polys?bytes(4, numTriangles):0)+bytes(4, numCells+1L)+bytes(4, numEntries);
+
+		if(ch.size()!=expected){
+			logger.warning("mesh cache "+name+" is "+ch.size()+" bytes, expected "+expected+". ignoring it.");
+			return null;
+		}
+
+		long pos= HEADER_SIZE;
+
+		double[] vertex= new double[D*numVertices];
+		pos= readDoubles(ch, pos, vertex);
+
+		int[] face= new int[3*numTriangles];
+		pos= readInts(ch, pos, face);
+
+		double[] normal= new double[D*numTriangles];
+		pos= readDoubles(ch, pos, normal);
+
+		double[] nP= new double[numTriangles];
+		pos= readDoubles(ch, pos, nP);
+
+		double[] dots= new double[3*numTriangles];
+		pos= readDoubles(ch, pos, dots);
+
+		double[] perm= null;
+		if(perms){
+			perm= new double[numTriangles];
+			pos= readDoubles(ch, pos, perm);
+		}
+
+		int[] polygon= null;
+		if(polys){
+			polygon= new int[numTriangles];
+			pos= readInts(ch, pos, polygon);
+		}
+
+		int[] cellStart= new int[numCells+1];
+		pos= readInts(ch, pos, cellStart);
+
+		int[] cellTri= new int[numEntries];
+		pos= readInts(ch, pos, cellTri);
+
+		for(int i=0; i<numEntries; i++){
+			if((cellTri[i]<0)||(cellTri[i]>=numTriangles)){
+				logger.warning("mesh cache "+name+" is corrupt. ignoring it.");
+				return null;
+			}
+		}
+
+		TriangleMesh mesh= new TriangleMesh(vertex, face, normal, nP, dots, perm, p, polygon);
+
+		logger.info("read mesh cache "+name+" ("+numTriangles+" triangles) in "
+				+(System.currentTimeMillis()-start)+" ms");
+
+		return new MeshCache(mesh, (flags&CLOSED)!=0, bottomLeft, L, n, cellStart, cellTri);
+	}
+
+
+	/**
+	 * writes a processed mesh to a cache file. failures are logged
+	 * but otherwise ignored; the cache is an optimisation.
+	 *
+	 * @param f the file
+	 * @param key cache key
+	 * @param mesh the mesh in substrate coordinates
+	 * @param closed is the mesh a closed surface
+	 * @param bottomLeft bottom left of substrate in original mesh coords
+	 * @param L substrate dimensions
+	 * @param n number of subvoxels in each direction
+	 * @param voxToObjects subvoxel map of the mesh's triangles
+	 */
+	public static void write(File f, byte[] key, TriangleMesh mesh, boolean closed, double[] bottomLeft,
+			double[] L, int[] n, SubVoxelMap voxToObjects){
+
+		long start= System.currentTimeMillis();
+
+		// the map is already flat, just needs triangle indices
+		int[] cellStart= voxToObjects.start;
+
+		int[] cellTri= new int[voxToObjects.objects.length];
+		for(int k=0; k<cellTri.length; k++){
+			Triangle tri= (Triangle)voxToObjects.objects[k];
+
+			if(tri.getMesh()!=mesh){
+				logger.warning("subvoxel map contains triangles from another mesh. mesh cache not written.");
+				return;
+			}
+
+			cellTri[k]= tri.getIndex();
+		}
+
+		int flags= 0;
+		if(closed){
+			flags|=CLOSED;
+		}
+		if(mesh.hasPermeabilities()){
+			flags|=PERMEABILITIES;
+		}
+		if(mesh.getPolygonArray()!=null){
+			flags|=POLYGONS;
+		}
+
+		File dir= f.getAbsoluteFile().getParentFile();
+		if((dir!=null)&&!dir.exists()&&!dir.mkdirs()){
+			logger.warning("couldn't create mesh cache directory "+dir.getPath());
+			return;
+		}
+
+		File tmp= null;
+
+		try{
+			tmp= File.createTempFile(f.getName(), ".tmp", dir);
+
+			FileChannel out= new RandomAccessFile(tmp, "rw").getChannel();
+			ByteBuffer buf= ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+			buf.putLong(MAGIC);
+			buf.putInt(VERSION);
+			buf.putInt(flags);
+			buf.put(key, 0, KEY_LENGTH);
+			buf.putInt(mesh.numVertices());
+			buf.putInt(mesh.numTriangles());
+			for(int i=0; i<D; i++){
+				buf.putInt(n[i]);
+			}
+			buf.putInt(cellTri.length);
+			for(int i=0; i<D; i++){
+				buf.putDouble(bottomLeft[i]);
+			}
+			for(int i=0; i<D; i++){
+				buf.putDouble(L[i]);
+			}
+			// pad header to a multiple of eight bytes
+			buf.putInt(0);
+
+			writeDoubles(out, buf, mesh.getVertexArray());
+			writeInts(out, buf, mesh.getFaceArray());
+			writeDoubles(out, buf, mesh.getNormalArray());
+			writeDoubles(out, buf, mesh.getPlaneArray());
+			writeDoubles(out, buf, mesh.getDotArray());
+			if(mesh.hasPermeabilities()){
+				writeDoubles(out, buf, mesh.getPermeabilityArray());
+			}
+			if(mesh.getPolygonArray()!=null){
+				writeInts(out, buf, mesh.getPolygonArray());
+			}
+			writeInts(out, buf, cellStart);
+			writeInts(out, buf, cellTri);
+
+			drain(out, buf);
+			out.force(false);
+			out.close();
+
+			if(!tmp.renameTo(f)){
+				// another run may have got there first
+				if(!f.exists()){
+					logger.warning("couldn't rename "+tmp.getPath()+" to "+f.getPath()+". mesh cache not written.");
+				}
+				tmp.delete();
+				return;
+			}
+		}
+		catch(IOException ioe){
+			logger.warning("couldn't write mesh cache "+f.getPath()+": "+ioe.getMessage());
+			if(tmp!=null){
+				tmp.delete();
+			}
+			return;
+		}
+
+		logger.info("wrote mesh cache "+f.getPath()+" in "+(System.currentTimeMillis()-start)+" ms");
+	}
+
+
+	/**
+	 * @return size of an array in the file, padded to a multiple of 8 bytes
+	 */
+	private static long bytes(int size, long length){
+		return (size*length+7)&~7L;
+	}
+
+
+	private static long readDoubles(FileChannel ch, long pos, double[] a) throws IOException{
+
+		long len= bytes(8, a.length);
+		if(len>0){
+			MappedByteBuffer map= ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+			map.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(a);
+		}
+
+		return pos+len;
+	}
+
+
+	private static long readInts(FileChannel ch, long pos, int[] a) throws IOException{
+
+		long len= bytes(4, a.length);
+		if(len>0){
+			MappedByteBuffer map= ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+			map.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(a);
+		}
+
+		return pos+len;
+	}
+
+
+	private static void writeDoubles(FileChannel out, ByteBuffer buf, double[] a) throws IOException{
+
+		int i=0;
+		while(i<a.length){
+			if(buf.remaining()<8){
+				drain(out, buf);
+			}
+
+			int k= Math.min(a.length-i, buf.remaining()/8);
+			buf.asDoubleBuffer().put(a, i, k);
+			buf.position(buf.position()+8*k);
+			i+=k;
+		}
+	}
+
+
+	private static void writeInts(FileChannel out, ByteBuffer buf, int[] a) throws IOException{
+
+		int i=0;
+		while(i<a.length){
+			if(buf.remaining()<4){
+				drain(out, buf);
+			}
+
+			int k= Math.min(a.length-i, buf.remaining()/4);
+			buf.asIntBuffer().put(a, i, k);
+			buf.position(buf.position()+4*k);
+			i+=k;
+		}
+
+		// keep arrays eight-byte aligned
+		if((a.length&1)!=0){
+			if(buf.remaining()<4){
+				drain(out, buf);
+			}
+			buf.putInt(0);
+		}
+	}
+
+
+	private static void drain(FileChannel out, ByteBuffer buf) throws IOException{
+
+		buf.flip();
+		while(buf.hasRemaining()){
+			out.write(buf);
+		}
+		buf.clear();
+	}
+
+}
@@ -5,12 +5,16 @@ import imaging.DW_Scheme;
 import imaging.SimulableScheme;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
 import misc.DT;
@@ -20,12 +24,14 @@ import simulation.DiffusionSimulation;
 import simulation.SimulationParams;
 import simulation.dynamics.StepGeneratorFactory;
 import simulation.dynamics.Walker;
+import simulation.dynamics.WalkerPool;
 import simulation.dynamics.StepGeneratorFactory.StepType;
 import simulation.dynamics.exceptions.StepRejectedException;
 import simulation.dynamics.exceptions.TooDamnCloseException;
 import simulation.geometry.PLYreader;
 import simulation.geometry.elements.SubstrateObject;
 import simulation.geometry.elements.Triangle;
+import simulation.geometry.elements.TriangleMesh;
 import simulation.geometry.substrates.SubstrateFactory.SubstrateType;
 import tools.CL_Initializer;
 
@@ -34,8 +40,11 @@ public class MeshSubstrate extends Substrate {
 	/** dimensionality of space */
 	private static final int D= DiffusionSimulation.D;
 	
+	/** the object mesh */
+	private final TriangleMesh mesh;
+	
 	/** triangles forming the object mesh */
-	private final Collection<Triangle> triangles;
+	private final Triangle[] triangles;
 	
 	/** fraction of substrate size that is contained in central voxel */
 	private final double voxelSizeFrac= SimulationParams.sim_voxelSizeFrac;
@@ -49,9 +58,6 @@ public class MeshSubstrate extends Substrate {
 	/** logging object */
 	private final Logger logger= Logger.getLogger(this.getClass().getName());
 	
-	/** index of the triangle to skip, if we're skipping */
-	private Triangle skipping= null;
-	
 	/** size of (cubic) unit cell around object */
 	//private final double[] sep;
 	
@@ -67,6 +73,12 @@ public class MeshSubstrate extends Substrate {
 	/** flag indicating if this is a convenient convex hull surface or not */
 	private final boolean convexHull;
 
+	/** bounding volume hierarchy used instead of the grid to find candidate triangles (null if not used) */
+	private final TriangleBVH bvh;
+
+	/** precomputed inside/outside classification (null unless the mesh is a closed surface) */
+	private final InsideOutsideMap insideMap;
+
 	
 	
 	
@@ -103,27 +115,134 @@ public class MeshSubstrate extends Substrate {
 		// assemble the ray vector -- parallel to an axis and slightly larger than object
 		this.ray=new double[]{0.0, Double.MAX_VALUE, 0.0};
 		
-		logger.info("reading object mesh from '"+fname+"'");
-		triangles =PLYreader.readPLYfile(fname, 1.0, simParams.getP());
+		// TODO: investigate grid sizes
+		// spatial optimisation grid
+		int[] n= new int[]{12, 12, 12};
+		
+		// look for a cached copy of the processed mesh
+		byte[] cacheKey= null;
+		File cacheFile= null;
+		MeshCache cache= null;
 		
-		this.convexHull= PLYreader.closedSurface;
+		if(SimulationParams.sim_mesh_cache!=null){
+			cacheKey= MeshCache.key(fname, 1.0, SimulationParams.sim_mesh_sep, n);
+			cacheFile= MeshCache.file(SimulationParams.sim_mesh_cache, fname, cacheKey);
+			cache= MeshCache.read(cacheFile, cacheKey, simParams.getP());
+		}
+		
+		if(cache!=null){
+			mesh= cache.mesh;
+			convexHull= cache.closed;
+			
+			substrateBottomLeft= cache.bottomLeft;
+			for(int i=0; i<D; i++){
+				this.L[i]= cache.L[i];
+			}
+		}
+		else{
+			mesh= readMesh(fname, simParams.getP());
+			convexHull= PLYreader.closedSurface;
+		}
+		
+		logger.info("constructing array for spatial optimisation");
+		triangles= mesh.getTriangles();
+		SubstrateObject[] newTriangles= triangles;
 		
 		logger.info("getting coplanar map");
-		this.coplanarMap= PLYreader.getCoplanarListMap();
+		this.coplanarMap= mesh.getCoplanarMap(triangles);
+		
+		logger.info("mesh has "+mesh.numVertices()+" vertices and "+mesh.numTriangles()+" triangles ("
+				+(mesh.heapBytes()>>20)+" MB)");
+		
+		/* substrate object array in superclass needs to contain 
+		 * our processed triangles before we can initialise 
+		 * spatial optimisation
+		 */
+		super.subsObj= newTriangles;
+		
+		
+		// set dimensions of outer and central voxel
+		voxelMin= new double[D];
+		voxelMax= new double[D];
+		
+		for(int i=0; i<D; i++){
+		    // central region from which data is generated
+		    double centre= L[i]/2;
+		    double voxSize= voxelSizeFrac*L[i];
+		    
+		    voxelMin[i]= centre-voxSize/2;
+		    voxelMax[i]= centre+voxSize/2;
+		    
+		}
+
+		// reinitialise values for boundary intersection
+		initBoundaryIntersectionArrays();
+		
+		// initialise spatial optimisation
+		if(cache!=null){
+			logger.info("using cached spatial optimisation. n=("+n[0]+","+n[1]+","+n[2]+")");
+			int numSubVoxels= initSpatialOptArrays(n);
+			voxToObjects= cache.getMap(triangles, numSubVoxels);
+			spatialOptInitialised=true;
+		}
+		else{
+			logger.info("initialising spatial optimisation. n=("+n[0]+","+n[1]+","+n[2]+")");
+			initialiseSpatialOptimisation(n);
+			
+			if(cacheFile!=null){
+				MeshCache.write(cacheFile, cacheKey, mesh, convexHull, substrateBottomLeft, L, n, voxToObjects);
+			}
+		}
+		
+		// the grid is still used for initial positions, so the hierarchy is built as well
+		if(SimulationParams.sim_mesh_bvh){
+			logger.info("building bounding volume hierarchy for barrier checks");
+			bvh= new TriangleBVH(subsObj);
+		}
+		else{
+			bvh= null;
+		}
+		
+		// intracellular() is only meaningful for closed surfaces
+		if(convexHull){
+			logger.info("building inside/outside map");
+			insideMap= new InsideOutsideMap(subsObj, L, coplanarMap, ray, 2.0*size);
+		}
+		else{
+			insideMap= null;
+		}
+		
+		logger.info("mesh processing complete.");
+		
+	}
+	
+	
+	
+	/**
+	 * reads the mesh from a PLY file, finds its bounding box and moves
+	 * the origin to the bottom left corner. sets substrateBottomLeft
+	 * and the substrate dimensions.
+	 * 
+	 * @param fname name of PLY file
+	 * @param p permeability of triangles without their own
+	 * 
+	 * @return the mesh in substrate coordinates
+	 */
+	private TriangleMesh readMesh(String fname, double p){
+		
+		logger.info("reading object mesh from '"+fname+"'");
+		TriangleMesh mesh= PLYreader.readMesh(fname, 1.0, p);
 		
 		// find centre of mass of all vertices
 		logger.info("finding centre of mass");
         double[] m= new double[D];
         int count=0;
 		
-        Iterator<Triangle> triIt;
-		for(triIt= triangles.iterator(); triIt.hasNext();){
-		    
-		    Triangle triangle = triIt.next();
+		for(int t=0; t<mesh.numTriangles(); t++){
 		    for(int i=0; i<3; i++){
-		        double[] vertex= triangle.getVertex(i);
+		    	int vi= mesh.getVertexIndex(t, i);
 		        for(int j=0; j<D; j++){
-		            m[j]+=vertex[j];
+		            m[j]+=mesh.getCoord(vi, j);
 		        }
 		        
 		        count++;
@@ -141,23 +260,21 @@ public class MeshSubstrate extends Substrate {
 		substrateBottomLeft= new double[]{Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
 		double[] topRight= new double[]{-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
 
-		for(triIt= triangles.iterator(); triIt.hasNext(); ){
-            
-            // for each triangle
-            Triangle triangle= triIt.next();
-
+		for(int t=0; t<mesh.numTriangles(); t++){
             for(int k=0; k<3; k++){
                 // for each vertex
-                double[] vert= triangle.getVertex(k);
+            	int vi= mesh.getVertexIndex(t, k);
             
                 for(int i=0; i<D; i++){
+                	double x= mesh.getCoord(vi, i);
+                	
                     // is this a new record in either direction?
-                    if(vert[i]<substrateBottomLeft[i]){
-                        substrateBottomLeft[i]=vert[i];
+                    if(x<substrateBottomLeft[i]){
+                        substrateBottomLeft[i]=x;
                     }
                     
-                    if(vert[i]>topRight[i]){
-                        topRight[i]=vert[i];
+                    if(x>topRight[i]){
+                        topRight[i]=x;
                     }
                 }
             }
@@ -204,67 +321,14 @@ public class MeshSubstrate extends Substrate {
 		 * and reinitialise the intersection checking vectors
 		 * in all triangles
 		 */
-		for(triIt=triangles.iterator(); triIt.hasNext(); ){
-		
-		    Triangle triangle= triIt.next();
-
-		    for(int k=0; k<3; k++){
-		        double[] vert= triangle.getVertex(k);
-		        
-		        for(int i=0; i<D; i++){
-		            vert[i]-=substrateBottomLeft[i];
-		        }
-	            triangle.setVertex(k, vert);
-		    }
-		    
-		    triangle.initVectors();
-		}
-		
-		logger.info("constructing array for spatial optimisation");
-		SubstrateObject[] newTriangles= new Triangle[triangles.size()];
-		int triInd=0;
-		for(triIt= triangles.iterator(); triIt.hasNext(); triInd++){
-		    
-		    newTriangles[triInd]= triIt.next();
-		    
-		}
-		
-		/* substrate object array in superclass needs to contain 
-		 * our processed triangles before we can initialise 
-		 * spatial optimisation
-		 */
-		super.subsObj= newTriangles;
-		
-		
-		// set dimensions of outer and central voxel
-		voxelMin= new double[D];
-		voxelMax= new double[D];
+		mesh.translate(substrateBottomLeft);
 		
+		// outer voxel (substrate size)
 		for(int i=0; i<D; i++){
-		    // outer voxel (substrate size)
 		    this.L[i]=topRight[i]-substrateBottomLeft[i];
-		    super.L[i]= this.L[i];
-		    
-		    // central region from which data is generated
-		    double centre= L[i]/2;
-		    double voxSize= voxelSizeFrac*L[i];
-		    
-		    voxelMin[i]= centre-voxSize/2;
-		    voxelMax[i]= centre+voxSize/2;
-		    
 		}
-
-		// reinitialise values for boundary intersection
-		initBoundaryIntersectionArrays();
-		
-		// TODO: investigate grid sizes
-		// initialise spatial optimisation
-		int[] n= new int[]{12, 12, 12};
-		logger.info("initialising spatial optimisation. n=("+n[0]+","+n[1]+","+n[2]+")");
-		initialiseSpatialOptimisation(n);
-		
-		logger.info("mesh processing complete.");
 		
+		return mesh;
 	}
 	
 	
@@ -284,7 +348,9 @@ public class MeshSubstrate extends Substrate {
 		double[] intDist= new double[1];
 		double[] tempP= new double[1];
 		
-		
+		// scratch space for this thread
+		final TraversalContext context= getContext();
+		final double[] subsCoords= context.subsCoords;
 		
 		// map walker position into unit cell
 		getSubstrateCoords(walker, offset, subsCoords);
@@ -310,7 +376,7 @@ public class MeshSubstrate extends Substrate {
 			
 			// check skipping
 			if(skipCurrent){
-				if(tri==skipping){
+				if(tri==context.skipping){
 					continue;
 				}				
 			}
@@ -345,6 +411,9 @@ public class MeshSubstrate extends Substrate {
 			
 			// increment triangle counter
 		}
+		
+		context.barrierChecks++;
+		context.candidatesTested+=count;
 
 		// check intersection with substrate boundaries
 		if(checkBoundaryIntersection(subsCoords, offset, stepVector, tempNormal, tempD, false, origLength, intDist, null, tempP)){
@@ -368,13 +437,15 @@ public class MeshSubstrate extends Substrate {
 		
 		
 		if(!crossing){
-			skipping=null;
+			context.skipping=null;
 		}
 		
 		if(toSkip!=null){
-		    skipping=toSkip;
+		    context.skipping=toSkip;
 		}
 		
+		context.intersectsBoundary= crossingIsSubstrateBoundary;
+		
 		if (crossingIsSubstrateBoundary && SimulationParams.sim_boundary == SimulationParams.BOUNDARY_POINT_REFLECT) {
 			double[] crossingPoint = new double[MeshSubstrate.D];
 			for (int i = 0; i < MeshSubstrate.D; i++) {
@@ -389,6 +460,84 @@ public class MeshSubstrate extends Substrate {
 		return crossing;
 	}
 
+	/**
+	 * finds the triangles a step might cross. uses the bounding volume 
+	 * hierarchy if there is one, otherwise the grid.
+	 */
+	public void initCandidates(Walker walker, double[] offset, double[] step){
+		
+		if(bvh==null){
+			super.initCandidates(walker, offset, step);
+			return;
+		}
+		
+		final TraversalContext context= getContext();
+		
+		getSubstrateCoords(walker, offset, context.subsCoords);
+		
+		context.assembleCandidateList(bvh, context.subsCoords, step, walker.R);
+	}
+	
+	
+	/**
+	 * all mutable state used in crossesMembrane() is held in the 
+	 * traversal context, so meshes can be shared between threads.
+	 * 
+	 * @return true
+	 */
+	public boolean supportsParallelTraversal(){
+		return true;
+	}
+	
+	/**
+	 * safe radii come from the distance to the triangles in the grid
+	 * 
+	 * @return true if the grid has been made
+	 */
+	public boolean hasSafeRadius(){
+		return spatialOptInitialised&&(voxToObjects!=null);
+	}
+	
+	/**
+	 * triangles check walkers with a radius against the whole plane they
+	 * lie in, not just the triangle, so safe radii are only given for 
+	 * point walkers.
+	 */
+	public double getSafeRadius(Walker walker){
+		
+		if(walker.R>0.0){
+			return 0.0;
+		}
+		
+		return super.getSafeRadius(walker);
+	}
+	
+	protected double getBarrierDistance(double[] subsCoords){
+		return getGridBarrierDistance(subsCoords);
+	}
+	
+	protected double getMembraneDistance(SubstrateObject obj, double[] subsCoords){
+		return ((Triangle)obj).getSurfaceDistance(subsCoords);
+	}
+	
+	/**
+	 * a closed surface has one inside, so every pass through it switches
+	 * compartment.
+	 * 
+	 * @return true if the mesh is a closed surface
+	 */
+	public boolean crossingsSwitchCompartment(){
+		return convexHull;
+	}
+	
+	/**
+	 * the boundary flag is kept in the traversal context so that meshes 
+	 * can be shared between threads.
+	 */
+	protected boolean crossingIsBoundary(){
+		return getContext().intersectsBoundary;
+	}
+	
 	/**
 	 * return peak coord, used as the centre of the object
 	 */
@@ -425,161 +574,228 @@ public class MeshSubstrate extends Substrate {
 	 * overrides the spatial optimisation initialiser in Substrate
 	 * with a method optimised for triangles. 
 	 * 
-	 * This generates a warning due to the instantiation of an array 
-	 * of generified ArrayLists without an explicit unchecked cast.
-	 * This is because of some subtleties in Java's implementation
-	 * of generics. Any solution to this would involve messing around
-	 * with reflection and frankly is not worth it. It could also be
-	 * dealt with via @suppressWarnings but this is only legal since
-	 * Java 1.7 and consequently would cause some issues for anyone 
-	 * using an earlier compliance level. In light of this, I've left 
-	 * the code as it is and the warning in place.
-	 * 
 	 * Testing on large-scale meshes show a 200-fold speed increase over
 	 * generic version. Not too shabby!
 	 * 
+	 * The triangles are split into contiguous blocks that are binned
+	 * on separate threads. Each block lists the (subvoxel, triangle) 
+	 * pairs it finds, and the lists are then counted and scattered
+	 * into the map in block order. triangles in each subvoxel are 
+	 * therefore in mesh order, as they were when this was done 
+	 * serially, and the map is the same for any number of threads.
+	 * 
 	 * @param n number of subvoxels in x, y & z directions.
 	 */
 	public void initialiseSpatialOptimisation(int[] n){
 		
         logger.info("Using triangle-optimised spatial optimisation algorithm");
         
-        int numSubVoxels= initSpatialOptArrays(n);
-        
-        double[] xmin= new double[D];
-        double[] xmax= new double[D];
+        final int numSubVoxels= initSpatialOptArrays(n);
+        final int numThreads= spatialOptThreads();
         
+        long startTime= System.currentTimeMillis();
         
-		ArrayList<Triangle>[] intersectingObjects= new ArrayList[numSubVoxels]; 
+        // a few blocks per thread evens out the load, but don't bother 
+        // splitting small meshes
+        int numBlocks= Math.max(1, Math.min(4*numThreads, subsObj.length/4096));
         
-        // loop over all objects
-        for(int o=0; o<subsObj.length; o++){
+        List<TriangleBlock> blocks= new ArrayList<TriangleBlock>(numBlocks);
+        for(int b=0; b<numBlocks; b++){
+        	int first= (int)(((long)b*subsObj.length)/numBlocks);
+        	int last= (int)(((long)(b+1)*subsObj.length)/numBlocks);
         	
-        	// in this case, we know that all objects are triangles
-        	Triangle tri=(Triangle)subsObj[o];
-        	
-        	// initialise min and max arrays with zeroth vertex
-        	double[] v= tri.getVertex(0);
-        	for(int i=0; i<D; i++){
-        		xmin[i]=v[i];
-        		xmax[i]=v[i];
-        	}
-        	
-        	// find min and max extent of triangle (minimal axis-aligned b-box)
-        	for(int i=1; i<3; i++){
-        		v=tri.getVertex(i);
-        		for(int j=0; j<D; j++){
-        			if(v[j]<xmin[j]){
-        				xmin[j]=v[j];
-        			}
-        			if(v[j]>xmax[j]){
-        				xmax[j]=v[j];
-        			}
-        		}
-        	}
-        	
-        	// get indices of min and max subvoxels
-        	int[] nmin= new int[D];
-        	int[] nmax= new int[D];
-        	
-        	boolean same=true;
-        	
-        	for(int i=0; i<D; i++){
-        		nmin[i]=(int)Math.floor(xmin[i]/s[i]);
-        		nmax[i]=(int)Math.floor(xmax[i]/s[i]);
-        		
-        		// mild hack! clamp cell ranges to avoid rounding error
-        		// in extreme-valued vertices
-        		if(nmin[i]==-1){
-        			nmin[i]=0;
-        		}
-        		if(nmax[i]==n[i]){
-        			nmax[i]=n[i]-1;
-        		}
-        		
-        		if(nmin[i]!=nmax[i]){
-        			same=false;
-        		}
-        	}
-        	
-        	// if min and max subvoxels are the same, this is the only voxel intersected
-        	// and therefore contains the triangle completely. In this case there's no
-        	// need to perform the intersection check, we know that this is the one and
-        	// only, hence just add it to the map and continue.
-        	if(same){
-        		
-        		int index= getSubVoxelIndex(nmin[0], nmin[1], nmin[2]);
-    			
-        		//if(index==40){
-    			//	System.err.println("catch case");
-    			//}
-        		
-        		if(intersectingObjects[index]==null){
-        			intersectingObjects[index]= new ArrayList<Triangle>();
-        		}
-        		
-        		intersectingObjects[index].add(tri);
-        		
-        		continue;
-        	}
+        	blocks.add(new TriangleBlock(first, last));
+        }
+        
+        runTasks(blocks, numThreads);
+        
+        long binTime= System.currentTimeMillis();
+        
+        // count the triangles in each subvoxel and turn the counts into offsets
+        int[] start= new int[numSubVoxels+1];
+        
+        for(int b=0; b<numBlocks; b++){
+        	TriangleBlock block= blocks.get(b);
         	
-        	// if the triangles isn't completely contained in one subvoxel, we need to
-        	// do an explicit intersection check across all subvoxels in the region
-        	// defined by nmin and nmax (NB- less-equal not less-than on loops)
-        	for(int i=nmin[0]; i<=nmax[0]; i++){
-        		for(int j=nmin[1]; j<=nmax[1]; j++){
-        			for(int k= nmin[2]; k<=nmax[2]; k++){
-        				
-        				// get the linear index for the subvoxel indices
-        				int index= getSubVoxelIndex(i, j, k);
-        				
-        				//if(index==40){
-        				//	System.err.println("catch case");
-        				//}
-        				
-        				// get the coords for the limiting corners of the subvoxel
-                        double[] bottomLeft= getBottomLeft(i, j, k);
-                        double[] topRight= getUpperRight(i, j, k);
-                        
-                        // perform intersection check
-                        if(tri.intersectsCubicRegion(bottomLeft, topRight)){
-                        	
-                        	// is this the first intersection for this subvoxel?
-                        	if(intersectingObjects[index]==null){
-                    			intersectingObjects[index]= new ArrayList<Triangle>();
-                    		}
-                        	
-                            intersectingObjects[index].add(tri);                            
-                        }
-        			}
-        		}
+        	for(int e=0; e<block.size; e++){
+        		start[block.pairs[2*e]+1]++;
         	}
         }
         
-        // we've now checked all objects for subvoxel intersection and built lists
-        // of intersecting triangles for each subvoxel. Now need to prse these into 
-        // arrays of SubstrateObjects and make the actual map.
-        for(int i=0; i<intersectingObjects.length; i++){
+        for(int i=0; i<numSubVoxels; i++){
+        	start[i+1]+=start[i];
+        }
+        
+        // scatter the triangles into place
+        SubstrateObject[] objects= new SubstrateObject[start[numSubVoxels]];
+        int[] next= Arrays.copyOf(start, numSubVoxels);
+        
+        for(int b=0; b<numBlocks; b++){
+        	TriangleBlock block= blocks.get(b);
         	
-        	// no intersecting objects? set map to null and continue
-        	if(intersectingObjects[i]==null){
-        		voxToObjects[i]=null;
-        		continue;
+        	for(int e=0; e<block.size; e++){
+        		objects[next[block.pairs[2*e]]++]= subsObj[block.pairs[2*e+1]];
         	}
         	
-        	// otherwise copy the contents of the intersecting object ArrayList to the fixed-length array
-        	voxToObjects[i]= new SubstrateObject[intersectingObjects[i].size()];
-            for(int o=0; o<intersectingObjects[i].size(); o++){
-                voxToObjects[i][o]= intersectingObjects[i].get(o);
-            }
+        	// finished with this block
+        	blocks.set(b, null);
         }
         
+        voxToObjects= new SubVoxelMap(start, objects);
+        
+        long endTime= System.currentTimeMillis();
+        
+        logger.info("binned "+subsObj.length+" triangles into "+objects.length+" subvoxel entries on "+numThreads
+        		+" threads. binning "+(binTime-startTime)+" ms, merge "+(endTime-binTime)+" ms");
+        
         // finally, set the spatially optimised flag to true, and we're done.
         spatialOptInitialised=true;
 
 	}
 	
 	
+	/**
+	 * finds the subvoxels intersected by a block of consecutive 
+	 * triangles. used by the spatial optimisation initialiser.
+	 */
+	private final class TriangleBlock implements Callable<Object>{
+		
+		/** first triangle in the block */
+		private final int first;
+		
+		/** one past the last triangle in the block */
+		private final int last;
+		
+		/** subvoxel and triangle index of each intersection found */
+		private int[] pairs;
+		
+		/** number of intersections found */
+		private int size=0;
+		
+		TriangleBlock(int first, int last){
+			this.first= first;
+			this.last= last;
+			
+			// most triangles are in a single subvoxel
+			this.pairs= new int[2*(last-first)+16];
+		}
+		
+		/**
+		 * records an intersection
+		 * 
+		 * @param index subvoxel index
+		 * @param o triangle index
+		 */
+		private final void add(int index, int o){
+			
+			if(2*size==pairs.length){
+				pairs= Arrays.copyOf(pairs, 2*pairs.length);
+			}
+			
+			pairs[2*size]= index;
+			pairs[2*size+1]= o;
+			size++;
+		}
+		
+		public Object call(){
+			
+	        final double[] xmin= new double[D];
+	        final double[] xmax= new double[D];
+	        
+	        final int[] nmin= new int[D];
+	        final int[] nmax= new int[D];
+	        
+	        final double[] bottomLeft= new double[D];
+	        final double[] topRight= new double[D];
+	        
+	        final Triangle.BoxScratch scratch= new Triangle.BoxScratch();
+	        
+	        for(int o=first; o<last; o++){
+	        	
+	        	// in this case, we know that all objects are triangles
+	        	Triangle tri=(Triangle)subsObj[o];
+	        	
+	        	// initialise min and max arrays with zeroth vertex
+	        	for(int j=0; j<D; j++){
+	        		xmin[j]=tri.getVertexCoord(0, j);
+	        		xmax[j]=xmin[j];
+	        	}
+	        	
+	        	// find min and max extent of triangle (minimal axis-aligned b-box)
+	        	for(int i=1; i<3; i++){
+	        		for(int j=0; j<D; j++){
+	        			double v= tri.getVertexCoord(i, j);
+	        			
+	        			if(v<xmin[j]){
+	        				xmin[j]=v;
+	        			}
+	        			if(v>xmax[j]){
+	        				xmax[j]=v;
+	        			}
+	        		}
+	        	}
+	        	
+	        	// get indices of min and max subvoxels
+	        	boolean same=true;
+	        	
+	        	for(int i=0; i<D; i++){
+	        		nmin[i]=(int)Math.floor(xmin[i]/s[i]);
+	        		nmax[i]=(int)Math.floor(xmax[i]/s[i]);
+	        		
+	        		// mild hack! clamp cell ranges to avoid rounding error
+	        		// in extreme-valued vertices
+	        		if(nmin[i]==-1){
+	        			nmin[i]=0;
+	        		}
+	        		if(nmax[i]==n[i]){
+	        			nmax[i]=n[i]-1;
+	        		}
+	        		
+	        		if(nmin[i]!=nmax[i]){
+	        			same=false;
+	        		}
+	        	}
+	        	
+	        	// if min and max subvoxels are the same, this is the only voxel intersected
+	        	// and therefore contains the triangle completely. In this case there's no
+	        	// need to perform the intersection check, we know that this is the one and
+	        	// only, hence just add it to the map and continue.
+	        	if(same){
+	        		add(getSubVoxelIndex(nmin[0], nmin[1], nmin[2]), o);
+	        		
+	        		continue;
+	        	}
+	        	
+	        	// if the triangles isn't completely contained in one subvoxel, we need to
+	        	// do an explicit intersection check across all subvoxels in the region
+	        	// defined by nmin and nmax (NB- less-equal not less-than on loops)
+	        	for(int i=nmin[0]; i<=nmax[0]; i++){
+	        		for(int j=nmin[1]; j<=nmax[1]; j++){
+	        			for(int k= nmin[2]; k<=nmax[2]; k++){
+	        				
+	        				// get the coords for the limiting corners of the subvoxel
+	        				bottomLeft[0]= i*s[0];
+	        				bottomLeft[1]= j*s[1];
+	        				bottomLeft[2]= k*s[2];
+	        				
+	        				topRight[0]= (i+1)*s[0];
+	        				topRight[1]= (j+1)*s[1];
+	        				topRight[2]= (k+1)*s[2];
+	        				
+	                        // perform intersection check
+	                        if(tri.intersectsCubicRegion(bottomLeft, topRight, scratch)){
+	                        	add(getSubVoxelIndex(i, j, k), o);
+	                        }
+	        			}
+	        		}
+	        	}
+	        }
+	        
+	        return null;
+		}
+	}
+	
+	
 	
 	
 	/**
@@ -595,6 +811,11 @@ public class MeshSubstrate extends Substrate {
 	 * This is only well-defined for closed surfaces.
 	 * any holes will cause it to get it wrong some of the time.
 	 * 
+	 * Points away from the surface are looked up in the inside/outside
+	 * map, which was labelled with the same test when the substrate was
+	 * built. Points near the surface get the ray test, using only the 
+	 * triangles the ray can reach.
+	 * 
 	 * @param walker the walker whose position to test.
 	 * 
 	 * @return true if inside object, false if outside
@@ -602,74 +823,13 @@ public class MeshSubstrate extends Substrate {
 	public boolean intracellular(Walker walker) {
 		
 	    if(convexHull){
-    		// ArrayList of coplanar triangles to
-    		// skip after intersections are found
-    		ArrayList<Triangle> skips=new ArrayList<Triangle>();
-    		
     		final double[] offset= new double[]{0.0, 0.0, 0.0};
     		final double[] subsCoords= new double[D];
     		
-    		
     		// map walker's position into unit cell
-    		//double[] subsCoords=getSubstrateCoords(walker.r, offset);
     		getSubstrateCoords(walker, offset, subsCoords);
     		
-    		// space to store the geometric stuff
-    		// even though we ignore it here, it still
-    		// needs to go somewhere
-    		double[] tempNorm= new double[D];
-    		double[] tempD= new double[1];
-    		double[] intDist= new double[1];
-    		double[] p= new double[1];
-    		
-    		// number of intersections
-    		int n=0;
-    				
-    		// triangle iterator
-    		Iterator<Triangle> triIt=triangles.iterator();
-    		
-    		// loop over all triangles
-    		while(triIt.hasNext()){
-    			// get triangle
-    			Triangle triangle=(Triangle)triIt.next();
-    
-    			if(skips.contains(triangle)){
-    				continue;
-    			}
-    			
-    			boolean crosses=false;
-    			try{
-    				crosses=triangle.crosses(subsCoords, ray, tempNorm, tempD, false, 2.0*size, intDist, null, p, walker.R);
-    			}
-    			catch(TooDamnCloseException tdce){
-    				throw new LoggedException(tdce);
-    			}
-    			
-    			// check for intersection with ray
-    			if(crosses){
-    				// if yes, add coplanar triangles to the skipping array
-    				ArrayList<Triangle> newSkips=coplanarMap.get(triangle);
-    				
-    				if(newSkips!=null){
-    					skips.addAll(newSkips);
-    				}
-    				
-    				// increment the intersection counter
-    				n++;
-    			}
-    			
-    		}
-    		
-    		// if n is odd, we're inside
-    		if(n%2==1){
-    		    
-    		    //System.err.println("closed surface mesh intracellular returning true. n= "+n+" ray= ("+ray[0]+","+ray[1]+","+ray[2]+")");
-    			return true;
-    		}
-    		
-    		// otherwise outside
-            //System.err.println("closed surface mesh intracellular returning false. n= "+n+" ray= ("+ray[0]+","+ray[1]+","+ray[2]+")");
-    		return false;
+    		return insideMap.contains(subsCoords, walker.R);
 	    }
 	    else{
 	        // if not a convex hull there's no way to perform this test
@@ -679,6 +839,67 @@ public class MeshSubstrate extends Substrate {
 	}
 	
 	
+	/**
+	 * the ray test from intracellular() against every triangle in the
+	 * mesh. used to check the inside/outside map.
+	 * 
+	 * @param subsCoords position in substrate coords
+	 * @param walkerRad walker radius
+	 * 
+	 * @return true if the ray crosses the surface an odd number of times
+	 */
+	private boolean intracellularBruteForce(double[] subsCoords, double walkerRad){
+		
+		// set of coplanar triangles to
+		// skip after intersections are found
+		HashSet<Triangle> skips=new HashSet<Triangle>();
+		
+		// space to store the geometric stuff
+		// even though we ignore it here, it still
+		// needs to go somewhere
+		double[] tempNorm= new double[D];
+		double[] tempD= new double[1];
+		double[] intDist= new double[1];
+		double[] p= new double[1];
+		
+		// number of intersections
+		int n=0;
+		
+		// loop over all triangles
+		for(int t=0; t<triangles.length; t++){
+			Triangle triangle=triangles[t];
+			
+			if(skips.contains(triangle)){
+				continue;
+			}
+			
+			boolean crosses=false;
+			try{
+				crosses=triangle.crosses(subsCoords, ray, tempNorm, tempD, false, 2.0*size, intDist, null, p, walkerRad);
+			}
+			catch(TooDamnCloseException tdce){
+				throw new LoggedException(tdce);
+			}
+			
+			// check for intersection with ray
+			if(crosses){
+				// if yes, add coplanar triangles to the skipping set
+				ArrayList<Triangle> newSkips=coplanarMap.get(triangle);
+				
+				if(newSkips!=null){
+					skips.addAll(newSkips);
+				}
+				
+				// increment the intersection counter
+				n++;
+			}
+		}
+		
+		// if n is odd, we're inside
+		return n%2==1;
+	}
+	
+	
 	/**
 	 * check is a given walker is in the voxel. if a walker
 	 * is in the central region after being mapped into 
@@ -806,17 +1027,13 @@ public class MeshSubstrate extends Substrate {
         MeshSubstrate meshSubs= new MeshSubstrate(simParams);
         
         // fish out the triangles
-        Collection<Triangle> mesh= meshSubs.triangles;
+        Triangle[] mesh= meshSubs.triangles;
         
         // and let's have a look at them...
-        System.err.println("read "+mesh.size()+" triangles");
+        System.err.println("read "+mesh.length+" triangles");
         
-        int i=0;
-        Iterator<Triangle> meshIt= mesh.iterator();
-        while(meshIt.hasNext()){
-            Triangle triangle= (Triangle)meshIt.next();
-            
-            System.err.println(++i+" "+triangle);
+        for(int i=0; i<mesh.length; i++){
+            System.err.println((i+1)+" "+mesh[i]);
         }
         
         // now let's have a look at the intracellular routine
@@ -848,17 +1065,306 @@ public class MeshSubstrate extends Substrate {
 	 * returns the list of triangles. This method is used by the visualiser.
 	 */
 	public Collection<Triangle> getTriangles(){
-		return triangles;
+		return Arrays.asList(triangles);
+	}
+	
+	
+	/**
+	 * nearest crossing of a step found by testing every triangle and the
+	 * substrate boundary, in the same way as crossesMembrane().
+	 * 
+	 * @return the nearest triangle crossed, or null if no triangle is 
+	 *         crossed before the boundary
+	 */
+	private Triangle nearestCrossingBruteForce(double[] subsCoords, double[] step, double origLength){
+		
+		double[] tempNormal= new double[D];
+		double[] tempD= new double[1];
+		double[] intDist= new double[1];
+		double[] tempP= new double[1];
+		
+		double nearest=2.0;
+		Triangle nearestTri=null;
+		
+		for(int i=0; i<subsObj.length; i++){
+			Triangle tri= (Triangle)subsObj[i];
+			
+			try{
+				if(tri.crosses(subsCoords, step, tempNormal, tempD, false, origLength, intDist, null, tempP, 0.0)){
+					if(intDist[0]<nearest){
+						nearest=intDist[0];
+						nearestTri=tri;
+					}
+				}
+			}
+			catch(TooDamnCloseException tdce){
+				throw new LoggedException(tdce);
+			}
+		}
+		
+		if(checkBoundaryIntersection(subsCoords, new double[D], step, tempNormal, tempD, false, origLength, intDist, null, tempP)){
+			if(intDist[0]<nearest){
+				nearestTri=null;
+			}
+		}
+		
+		return nearestTri;
 	}
 	
 	
 	/** 
-	 * test ply substrate reading and intra cellular routine
+	 * benchmarks barrier checks on a mesh with the subvoxel grid and with
+	 * the bounding volume hierarchy. Steps of fixed length and random
+	 * direction are started uniformly over the substrate, and then from 
+	 * points a step length from random triangles, which is closer to 
+	 * where walkers confined by a membrane spend their time. For each method
+	 * the number of triangles tested per step and the number of steps 
+	 * checked per second are reported. The nearest crossing found by each
+	 * method is also compared with a brute-force test of every triangle.
+	 * For closed surfaces, the starting points are also classified as
+	 * inside or outside with the inside/outside map and by testing every
+	 * triangle.
+	 * 
+	 * usage: MeshSubstrate plyfile [steps] [step length as fraction of mesh size]
 	 * 
 	 * @param args
 	 */
 	public static void main(String[] args){
 		
+		SimulationParams.sim_plyfile= args[0];
+		int numSteps= (args.length>1)?Integer.parseInt(args[1]):200000;
+		double frac= (args.length>2)?Double.parseDouble(args[2]):0.005;
+		
+		SimulationParams simParams= new SimulationParams(1, 1000, 0.0, SimulationParams.UNIFORM, 
+				SubstrateType.TRI_PLY_MESH, StepType.FIXEDLENGTH, 1.5, 0.1);
+		
+		MeshSubstrate[] subs= new MeshSubstrate[2];
+		String[] name= new String[]{"grid", "bvh"};
+		
+		for(int m=0; m<subs.length; m++){
+			SimulationParams.sim_mesh_bvh= (m==1);
+			
+			long start= System.nanoTime();
+			subs[m]= new MeshSubstrate(simParams);
+			System.err.println(name[m]+": substrate constructed in "+((System.nanoTime()-start)/1E9)+" s");
+		}
+		
+		double[] L= subs[0].getSubstrateSize();
+		double len= frac*Math.max(L[0], Math.max(L[1], L[2]));
+		
+		java.util.Random rng= new java.util.Random(CL_Initializer.seed);
+		
+		for(int nearMembrane=0; nearMembrane<2; nearMembrane++){
+			
+			System.err.println((nearMembrane==0)?"steps started uniformly":"steps started near the membrane");
+			
+			// random starting points and steps
+			double[][] pos= new double[numSteps][D];
+			double[][] step= new double[numSteps][D];
+			
+			for(int i=0; i<numSteps; i++){
+				double theta= 2.0*Math.PI*rng.nextDouble();
+				double cosPhi= 2.0*rng.nextDouble()-1.0;
+				double sinPhi= Math.sqrt(1.0-cosPhi*cosPhi);
+				
+				step[i][0]= len*Math.cos(theta)*sinPhi;
+				step[i][1]= len*Math.sin(theta)*sinPhi;
+				step[i][2]= len*cosPhi;
+				
+				if(nearMembrane==0){
+					for(int j=0; j<D; j++){
+						pos[i][j]= L[j]*rng.nextDouble();
+					}
+				}
+				else{
+					// random point on a random triangle, moved a step length off it.
+					// points within a step of the substrate boundary (or off degenerate 
+					// triangles with no normal) are drawn again
+					boolean inside=false;
+					
+					while(!inside){
+						Triangle tri= (Triangle)subs[0].subsObj[rng.nextInt(subs[0].subsObj.length)];
+						double a= rng.nextDouble();
+						double b= rng.nextDouble();
+						if(a+b>1.0){
+							a= 1.0-a;
+							b= 1.0-b;
+						}
+						double side= (rng.nextDouble()<0.5)?-len:len;
+						double[] n= tri.getNormal();
+						double[] v0= tri.getVertex(0);
+						
+						inside=true;
+						for(int j=0; j<D; j++){
+							pos[i][j]= v0[j]+a*(tri.getVertex(1)[j]-v0[j])+b*(tri.getVertex(2)[j]-v0[j])+side*n[j];
+							
+							if(!((pos[i][j]>=len)&&(pos[i][j]<L[j]-len))){
+								inside=false;
+							}
+						}
+					}
+				}
+			}
+			
+			benchmark(subs, name, pos, step, len);
+			
+			if(subs[0].insideMap!=null){
+				classify(subs[0], pos);
+			}
+		}
+	}
+	
+	
+	/**
+	 * times inside/outside classification of a set of points with the
+	 * inside/outside map and compares it with testing every triangle.
+	 */
+	private static void classify(MeshSubstrate subs, double[][] pos){
+		
+		final int numPoints= pos.length;
+		
+		boolean[] inside= new boolean[numPoints];
+		int numInside=0;
+		int numNear=0;
+		long time=0;
+		
+		// two passes, the first to warm up
+		for(int pass=0; pass<2; pass++){
+			numInside=0;
+			numNear=0;
+			
+			long start= System.nanoTime();
+			for(int i=0; i<numPoints; i++){
+				inside[i]= subs.insideMap.contains(pos[i], 0.0);
+				if(inside[i]){
+					numInside++;
+				}
+			}
+			time= System.nanoTime()-start;
+		}
+		
+		for(int i=0; i<numPoints; i++){
+			if(subs.insideMap.nearSurface(pos[i])){
+				numNear++;
+			}
+		}
+		
+		int numChecked= Math.min(numPoints, 2000);
+		int mismatches=0;
+		
+		long start= System.nanoTime();
+		for(int i=0; i<numChecked; i++){
+			if(subs.intracellularBruteForce(pos[i], 0.0)!=inside[i]){
+				mismatches++;
+			}
+		}
+		long bruteTime= System.nanoTime()-start;
+		
+		System.err.println("inside/outside map: "+((double)time/numPoints)+" ns per point, "+numInside+" of "+numPoints
+				+" inside, "+numNear+" needed the ray test");
+		System.err.println("all triangles: "+((double)bruteTime/numChecked)+" ns per point. classification differs in "
+				+mismatches+" of "+numChecked+" points");
+	}
+	
+	
+	/**
+	 * times barrier checks for a set of steps on each substrate and 
+	 * compares the nearest crossings with brute force.
+	 */
+	private static void benchmark(MeshSubstrate[] subs, String[] name, double[][] pos, double[][] step, double len){
+		
+		final int numSteps= pos.length;
+		
+		double[] offset= new double[D];
+		double[] normal= new double[D];
+		double[] d= new double[1];
+		boolean[] in= new boolean[1];
+		double[] p= new double[1];
+		
+		Triangle[][] nearest= new Triangle[subs.length][numSteps];
+		
+		for(int m=0; m<subs.length; m++){
+			
+			// a point walker with no step generator
+			Walker walker= new WalkerPool(1, 0).getCursor(null, subs[m], null).bind(0);
+			TraversalContext context= subs[m].getContext();
+			
+			// two passes, the first to warm up
+			for(int pass=0; pass<2; pass++){
+				
+				context.barrierChecks=0;
+				context.candidatesTested=0;
+				int crossings=0;
+				
+				long start= System.nanoTime();
+				
+				for(int i=0; i<numSteps; i++){
+					for(int j=0; j<D; j++){
+						walker.r[j]= pos[i][j];
+					}
+					
+					context.skipping= null;
+					
+					try{
+						if(subs[m].crossesMembrane(walker, offset, step[i], normal, d, false, len, in, p, false, null)){
+							crossings++;
+						}
+					}
+					catch(StepRejectedException sre){
+						throw new LoggedException(sre);
+					}
+					
+					nearest[m][i]= (Triangle)context.skipping;
+				}
+				
+				double time= (System.nanoTime()-start)/1E9;
+				
+				if(pass==1){
+					System.err.println(name[m]+": "+((double)context.candidatesTested/context.barrierChecks)+" triangles tested per step, "
+							+(numSteps/time)+" steps/s, "+crossings+" crossings");
+				}
+			}
+		}
+		
+		// compare with brute force on a subset of steps
+		int numChecked= Math.min(numSteps, 2000);
+		int[] mismatches= new int[subs.length];
+		
+		for(int i=0; i<numChecked; i++){
+			Triangle brute= subs[0].nearestCrossingBruteForce(pos[i], step[i], len);
+			
+			for(int m=0; m<subs.length; m++){
+				// grid and bvh substrates hold different triangle objects, compare by vertices
+				if(!sameTriangle(brute, nearest[m][i])){
+					mismatches[m]++;
+				}
+			}
+		}
+		
+		for(int m=0; m<subs.length; m++){
+			System.err.println(name[m]+": nearest crossing differs from brute force in "+mismatches[m]+" of "+numChecked+" steps");
+		}
+	}
+	
+	
+	/**
+	 * @return true if both triangles are null or have the same vertices
+	 */
+	private static boolean sameTriangle(Triangle a, Triangle b){
+		
+		if((a==null)||(b==null)){
+			return a==b;
+		}
+		
+		for(int k=0; k<3; k++){
+			for(int j=0; j<D; j++){
+				if(a.getVertexCoord(k, j)!=b.getVertexCoord(k, j)){
+					return false;
+				}
+			}
+		}
+		
+		return true;
 	}
 	
 }
@@ -0,0 +1,543 @@
+package simulation.geometry.substrates;
+
+import java.util.logging.Logger;
+
+import simulation.DiffusionSimulation;
+import simulation.dynamics.exceptions.StepRejectedException;
+import simulation.geometry.elements.BasicCylinder;
+import simulation.geometry.elements.Cylinder;
+
+/**
+ * two-dimensional index over a set of cylinders that are all parallel to
+ * the z-axis, with an intersection kernel that works straight from packed
+ * arrays.
+ *
+ * Because every cylinder is parallel to z, nothing about a crossing
+ * depends on the z coordinate, so there's no need for the 3D subvoxel
+ * grid. The cylinders are binned into a regular grid of square cells in
+ * the xy-plane instead, with each cylinder listed in every cell its
+ * cross section overlaps. The cell lists are stored end to end in a
+ * single array, as in SubVoxelMap.
+ *
+ * A step is tested against the cylinders in the cells covered by its
+ * bounding rectangle, grown by the walker radius. A cylinder that spans
+ * several of those cells is only tested in the first of them, the one at
+ * the lowest corner of the overlap between its own cells and the step's,
+ * so no scratch space is needed to avoid repeats and an index can be
+ * shared between threads.
+ *
+ * Centres and radii are packed side by side in one primitive array, so
+ * testing a cylinder reads a single cache line. The kernel repeats the
+ * arithmetic of BasicCylinder.crosses() for an axial cylinder without
+ * allocating, rotating or calling through the Cylinder interface, and
+ * gives the same results as that method.
+ *
+ * @see BasicCylinder#crosses(double[], double[], double[], double[], boolean, double, double[], boolean[], double[], double)
+ *
+ */
+public final class ParallelCylinderIndex {
+
+    /** logging object */
+    private static final Logger logger= Logger.getLogger("simulation.geometry.substrates.ParallelCylinderIndex");
+
+    /** dimensionality of space */
+    private static final int D= DiffusionSimulation.D;
+
+    /** target mean number of cylinders listed in a cell */
+    private static final double CYLS_PER_CELL= 2.0;
+
+    /** padding added to query rectangles to absorb rounding error, relative to the cell size */
+    private static final double PAD= 1E-6;
+
+    /** the cylinders */
+    private final Cylinder[] cylinder;
+
+    /** number of values per cylinder in geom */
+    private static final int STRIDE= 4;
+
+    /** centre (x, y, z) and radius of each cylinder, side by side */
+    private final double[] geom;
+
+    /** membrane permeability of each cylinder */
+    private final double[] perm;
+
+    /** first cell column and row overlapped by each cylinder */
+    private final int[] lo;
+
+    /** lower corner of the grid */
+    private final double x0, y0;
+
+    /** cell size */
+    private final double h;
+
+    /** number of cell columns and rows */
+    private final int nx, ny;
+
+    /** start of each cell's list in items, plus one past the end */
+    private final int[] start;
+
+    /** cylinder indices, cell by cell */
+    private final int[] items;
+
+
+    /**
+     * builds an index over a set of axial cylinders.
+     *
+     * @param cylinder the cylinders. all must pass isIndexable().
+     */
+    public ParallelCylinderIndex(Cylinder[] cylinder){
+
+        final int N= cylinder.length;
+
+        this.cylinder= cylinder;
+
+        geom= new double[STRIDE*N];
+        perm= new double[N];
+        lo= new int[2*N];
+
+        double xmin= Double.MAX_VALUE, ymin= Double.MAX_VALUE;
+        double xmax= -Double.MAX_VALUE, ymax= -Double.MAX_VALUE;
+        double meanRad= 0.0;
+
+        for(int k=0; k<N; k++){
+            BasicCylinder cyl= (BasicCylinder)cylinder[k];
+            double[] P= cyl.getPosition();
+
+            double r= cyl.getRadius();
+
+            geom[STRIDE*k]= P[0];
+            geom[STRIDE*k+1]= P[1];
+            geom[STRIDE*k+2]= P[2];
+            geom[STRIDE*k+3]= r;
+            perm[k]= cyl.getPermeability();
+
+            xmin= Math.min(xmin, P[0]-r);
+            xmax= Math.max(xmax, P[0]+r);
+            ymin= Math.min(ymin, P[1]-r);
+            ymax= Math.max(ymax, P[1]+r);
+
+            meanRad+= r;
+        }
+
+        if(N==0){
+            xmin= xmax= ymin= ymax= 0.0;
+        }
+        else{
+            meanRad/= N;
+        }
+
+        // cells about the size of a cylinder, or bigger if they're sparse
+        double area= Math.max((xmax-xmin)*(ymax-ymin), 0.0);
+        double size= Math.max(Math.sqrt(CYLS_PER_CELL*area/Math.max(N, 1)), 2.0*meanRad);
+        if(!(size>0.0)){
+            size= 1.0;
+        }
+
+        this.x0= xmin;
+        this.y0= ymin;
+        this.h= size;
+        this.nx= Math.max((int)Math.ceil((xmax-xmin)/h), 1);
+        this.ny= Math.max((int)Math.ceil((ymax-ymin)/h), 1);
+
+        // count, then fill, the cell lists
+        start= new int[nx*ny+1];
+
+        for(int k=0; k<N; k++){
+            double x= geom[STRIDE*k], y= geom[STRIDE*k+1], r= geom[STRIDE*k+3];
+
+            lo[2*k]= column(x-r);
+            lo[2*k+1]= row(y-r);
+            int hiI= column(x+r);
+            int hiJ= row(y+r);
+
+            for(int j=lo[2*k+1]; j<=hiJ; j++){
+                for(int i=lo[2*k]; i<=hiI; i++){
+                    start[i+nx*j+1]++;
+                }
+            }
+        }
+
+        for(int c=0; c<nx*ny; c++){
+            start[c+1]+= start[c];
+        }
+
+        items= new int[start[nx*ny]];
+        int[] fill= new int[nx*ny];
+
+        for(int k=0; k<N; k++){
+            int hiI= column(geom[STRIDE*k]+geom[STRIDE*k+3]);
+            int hiJ= row(geom[STRIDE*k+1]+geom[STRIDE*k+3]);
+
+            for(int j=lo[2*k+1]; j<=hiJ; j++){
+                for(int i=lo[2*k]; i<=hiI; i++){
+                    int c= i+nx*j;
+                    items[start[c]+fill[c]++]= k;
+                }
+            }
+        }
+
+        logger.info("2D index over "+N+" parallel cylinders: "+nx+" x "+ny+" cells of size "+h+
+                ", "+((double)items.length/Math.max(N, 1))+" cells per cylinder");
+    }
+
+
+    /**
+     * can a set of cylinders be indexed? the kernel only handles plain
+     * circular cylinders parallel to the z-axis.
+     *
+     * @param cylinder the cylinders
+     *
+     * @return true if every cylinder is an axial BasicCylinder
+     */
+    public static boolean isIndexable(Cylinder[] cylinder){
+
+        if(cylinder==null){
+            return false;
+        }
+
+        for(int k=0; k<cylinder.length; k++){
+            if(cylinder[k].getClass()!=BasicCylinder.class){
+                return false;
+            }
+            if(!((BasicCylinder)cylinder[k]).isAxial()){
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * @return number of cylinders in the index
+     */
+    public int size(){
+        return cylinder.length;
+    }
+
+
+    /**
+     * @param k index of a cylinder
+     *
+     * @return the cylinder
+     */
+    public Cylinder getCylinder(int k){
+        return cylinder[k];
+    }
+
+
+    /**
+     * @return column of the cell containing x, clamped to the grid
+     */
+    private int column(double x){
+
+        int i= (int)Math.floor((x-x0)/h);
+
+        return (i<0)?0:((i>=nx)?nx-1:i);
+    }
+
+
+    /**
+     * @return row of the cell containing y, clamped to the grid
+     */
+    private int row(double y){
+
+        int j= (int)Math.floor((y-y0)/h);
+
+        return (j<0)?0:((j>=ny)?ny-1:j);
+    }
+
+
+    /**
+     * is a point inside a cylinder? this is the same sum as
+     * BasicCylinder.inside(), so points on the membrane give the
+     * same answer.
+     */
+    private boolean inside(int k, double[] Q){
+
+        double x= Q[0]-geom[STRIDE*k];
+        double y= Q[1]-geom[STRIDE*k+1];
+        double z= Q[2]-geom[STRIDE*k+2];
+
+        double QminusPsquared= x*x+y*y+z*z;
+
+        return Math.sqrt(QminusPsquared-z*z)<=geom[STRIDE*k+3];
+    }
+
+
+    /**
+     * is a point inside any of the cylinders?
+     *
+     * @param Q position in substrate coords
+     *
+     * @return true if any cylinder contains the point
+     */
+    public boolean inside(double[] Q){
+
+        int c= column(Q[0])+nx*row(Q[1]);
+
+        for(int m=start[c]; m<start[c+1]; m++){
+            if(inside(items[m], Q)){
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * finds the first membrane crossed by a step. Cylinders are tested
+     * as in CylinderSubstrate.crossesMembrane(), and the nearest crossing
+     * is kept along with the distance to the next nearest.
+     *
+     * @param walkerPos start of the step in substrate coords
+     * @param step step vector
+     * @param skip index of cylinder whose membrane the walker is sitting on
+     *        (-1 for none)
+     * @param skipIn was the walker inside the skipped cylinder when it
+     *        reached the membrane?
+     * @param walkerRad walker radius
+     * @param hit the crossing, filled in if one is found
+     *
+     * @return true if a membrane is crossed
+     *
+     * @throws StepRejectedException if the step ends too close to a membrane
+     */
+    public boolean crosses(double[] walkerPos, double[] step, int skip, boolean skipIn,
+            double walkerRad, Crossing hit) throws StepRejectedException {
+
+        hit.count= 0;
+        hit.index= -1;
+        hit.dist= Double.MAX_VALUE;
+        hit.second= Double.MAX_VALUE;
+
+        final double px= walkerPos[0];
+        final double py= walkerPos[1];
+        final double qx= px+step[0];
+        final double qy= py+step[1];
+
+        final double pad= walkerRad+PAD*h;
+
+        final int i0= column(Math.min(px, qx)-pad);
+        final int i1= column(Math.max(px, qx)+pad);
+        final int j0= row(Math.min(py, qy)-pad);
+        final int j1= row(Math.max(py, qy)+pad);
+
+        for(int j=j0; j<=j1; j++){
+            for(int i=i0; i<=i1; i++){
+                int c= i+nx*j;
+
+                for(int m=start[c]; m<start[c+1]; m++){
+                    int k= items[m];
+
+                    // only test each cylinder in the first cell it shares with the step
+                    if((i!=Math.max(lo[2*k], i0))||(j!=Math.max(lo[2*k+1], j0))){
+                        continue;
+                    }
+
+                    crosses(k, walkerPos, step, k==skip, skipIn, walkerRad, hit);
+                }
+            }
+        }
+
+        return hit.count>0;
+    }
+
+
+    /**
+     * tests a single cylinder. this follows BasicCylinder.crosses()
+     * line by line for an axial cylinder, and records a crossing in
+     * hit if it's nearer than those already found.
+     */
+    private void crosses(int k, double[] walkerPos, double[] step, boolean skipCurrent,
+            boolean skipIn, double walkerRad, Crossing hit) throws StepRejectedException {
+
+        final double Px= geom[STRIDE*k];
+        final double Py= geom[STRIDE*k+1];
+        final double r= geom[STRIDE*k+3];
+
+        // start and end points of step relative to the axis
+        double w1x= walkerPos[0]-Px;
+        double w1y= walkerPos[1]-Py;
+        double w2x= walkerPos[0]-Px+step[0];
+        double w2y= walkerPos[1]-Py+step[1];
+
+        double d1= Math.sqrt(w1x*w1x + w1y*w1y);
+        double d2= Math.sqrt(w2x*w2x + w2y*w2y);
+
+        // check for close approach
+        if(Math.abs(d2-r)<walkerRad){
+            throw new StepRejectedException("step would take walker too close to cylinder surface. rejecting.");
+        }
+
+        // both ends inside the circle
+        if((d1<=r)&&(d2<=r)){
+            return;
+        }
+
+        // roots of the ray-circle equation
+        double A= (step[0]*step[0] + step[1]*step[1]);
+        double B= 2.0*(w1x*step[0] + w1y*step[1]);
+        double C= w1x*w1x + w1y*w1y - r*r;
+
+        if(B*B<4.0*A*C){
+            return;
+        }
+
+        double t0= (-B + Math.sqrt(B*B - 4*A*C))/(2.0*A);
+        double t1= (-B - Math.sqrt(B*B - 4*A*C))/(2.0*A);
+
+        if(Math.abs(t0)<CellularLattice.TINYNUM){
+            t0= 0.0;
+        }
+        if(Math.abs(t1)<CellularLattice.TINYNUM){
+            t1= 0.0;
+        }
+
+        if((t0<0.0)&&(t1<0.0)){
+            return;
+        }
+
+        // if first root is out of range but second is in, swap them
+        if(!((t0>=0.0)&&(t0<=1.0))){
+            if((t1>=0.0)&&(t1<=1.0)){
+                double temp= t0;
+                t0= t1;
+                t1= temp;
+            }
+        }
+
+        // if both are in range, take the lowest first
+        if((t0>=0.0)&&(t0<=1.0)){
+            if((t1>=0.0)&&(t1<=1.0)){
+                if(t0>t1){
+                    double temp= t0;
+                    t0= t1;
+                    t1= temp;
+                }
+            }
+        }
+
+        for(int n=0; n<2; n++){
+            double t= (n==0)?t0:t1;
+
+            if(!((t>0.0)&&(t<=1.0))){
+                continue;
+            }
+
+            // skip the membrane we're sitting on unless the step goes through it
+            if(skipCurrent){
+                double[] end= hit.end;
+                for(int j=0; j<D; j++){
+                    end[j]= walkerPos[j]+step[j];
+                }
+
+                if(skipIn==inside(k, end)){
+                    continue;
+                }
+            }
+
+            double ix= walkerPos[0]+t*step[0]-Px;
+            double iy= walkerPos[1]+t*step[1]-Py;
+
+            double theta= Math.atan2(iy, ix);
+
+            double nx= Math.cos(theta);
+            double ny= Math.sin(theta);
+
+            double newD= 0.0;
+            newD+= (ix+Px)*nx;
+            newD+= (iy+Py)*ny;
+
+            boolean in= skipCurrent?skipIn:inside(k, walkerPos);
+
+            hit.add(k, t, nx, ny, newD, in, perm[k]);
+
+            return;
+        }
+    }
+
+
+    /**
+     * the nearest crossing found by a query, and the distance to the
+     * next nearest. one of these is needed for each thread making
+     * queries.
+     */
+    public static final class Crossing {
+
+        /** number of membranes crossed */
+        public int count;
+
+        /** index of the nearest cylinder crossed */
+        public int index;
+
+        /** arclength to the nearest crossing */
+        public double dist;
+
+        /** arclength to the next nearest crossing */
+        public double second;
+
+        /** normal at the nearest crossing */
+        public final double[] normal= new double[D];
+
+        /** distance from origin to the membrane, in the normal direction */
+        public double d;
+
+        /** was the walker inside the cylinder crossed? */
+        public boolean in;
+
+        /** permeability of the cylinder crossed */
+        public double p;
+
+        /** space for the end of a step */
+        private final double[] end= new double[D];
+
+        /** space for the arclength to the substrate boundary */
+        final double[] boundaryDist= new double[1];
+
+
+        /**
+         * records a crossing, keeping it if it's the nearest so far.
+         * ties go to the first found.
+         */
+        private void add(int k, double t, double nx, double ny, double newD, boolean in, double p){
+
+            count++;
+
+            if(t<dist){
+                second= dist;
+                dist= t;
+                index= k;
+                normal[0]= nx;
+                normal[1]= ny;
+                normal[2]= 0.0;
+                d= newD;
+                this.in= in;
+                this.p= p;
+            }
+            else if(t<second){
+                second= t;
+            }
+        }
+
+
+        /**
+         * records a crossing with the substrate boundary, which is found
+         * after the membranes and loses ties with them.
+         *
+         * @param t arclength to the boundary
+         * @param boundaryNormal normal to the boundary
+         * @param boundaryD distance from origin to the boundary
+         * @param p permeability of the boundary
+         */
+        void addBoundary(double t, double[] boundaryNormal, double boundaryD, double p){
+
+            add(-1, t, boundaryNormal[0], boundaryNormal[1], boundaryD, false, p);
+
+            if(index==-1){
+                normal[2]= boundaryNormal[2];
+            }
+        }
+    }
+}
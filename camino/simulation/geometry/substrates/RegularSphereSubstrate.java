@@ -326,6 +326,27 @@ public class RegularSphereSubstrate extends Substrate {
 
 
 	
+	/**
+	 * there's a single sphere, so passing through its surface always
+	 * switches compartment.
+	 */
+	public boolean crossingsSwitchCompartment(){
+		return true;
+	}
+	
+	
+	/**
+	 * the sphere reports crossings for some steps that start outside
+	 * it and move away, so a step inside the distance to its surface
+	 * isn't guaranteed to find nothing. no steps skip the barrier checks.
+	 * 
+	 * @return false
+	 */
+	public boolean hasSafeRadius(){
+		return false;
+	}
+	
+	
 	public boolean intracellular(Walker walker) {
 		getSubstrateCoords(walker.r,  nullVector, coords);
 		
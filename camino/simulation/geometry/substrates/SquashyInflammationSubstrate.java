@@ -32,7 +32,6 @@ import simulation.dynamics.Walker;
 import simulation.geometry.elements.Cylinder;
 import simulation.geometry.elements.SquashyCylinder;
 import simulation.geometry.elements.SquashyCylinder.Chord;
-import simulation.geometry.elements.SubstrateObject;
 import simulation.geometry.substrates.SubstrateFactory.SubstrateType;
 import simulation.measurement.SyntheticScan;
 import tools.CL_Initializer;
@@ -118,8 +117,23 @@ public class SquashyInflammationSubstrate extends CylinderSubstrate {
 	/** place to store clones */
 	private final ArrayList<double[]> clones=new ArrayList<double[]>();
 
-	/** place to store the dynamic spac opt map */
-	private ArrayList<Cylinder>[] dynamicVoxMap;
+	/** 
+	 * spatial optimisation map. cylinders are replaced in it as they grow,
+	 * so their ids are their indices in the cylinder array.
+	 */
+	private DynamicSubVoxelMap dynamicVoxMap;
+	
+	/** radius of each cylinder (including clones) before any growth */
+	private double[] baseRadius;
+	
+	/** radius increment of each cylinder (including clones) */
+	private double[] radiusInc;
+	
+	/** index of the cylinder each clone was cloned from, -1 for the originals */
+	private int[] cloneOf;
+	
+	/** index in the radius arrays of the original of each cylinder in allCyls */
+	private final ArrayList<Integer> originalOf= new ArrayList<Integer>();
 
 	/** place to store all cylinders as we create them (needs to be dynamic because of clones) */
 	private final ArrayList<SquashyCylinder> allCyls;
@@ -295,7 +309,7 @@ public class SquashyInflammationSubstrate extends CylinderSubstrate {
 
 			// if we're down here and not overlapping then it should be ok to add the clones
 			if(!overlapping){
-				addToDynamicMap(P[i], radius[i], cyl_p[i], cells, newClones);
+				addToDynamicMap(i, P[i], radius[i], cyl_p[i], cells, newClones);
 			}
 		}
 		
@@ -325,7 +339,27 @@ public class SquashyInflammationSubstrate extends CylinderSubstrate {
 		}
 		setCylinders(cylinder);
 		
-		initSpacOptFromDynamicMap();
+		// growth of each cylinder follows its original
+		baseRadius= new double[cylinder.length];
+		radiusInc= new double[cylinder.length];
+		cloneOf= new int[cylinder.length];
+		
+		int original=-1;
+		for(int i=0; i<cylinder.length; i++){
+			int o= originalOf.get(i);
+			
+			baseRadius[i]= radius[o];
+			radiusInc[i]= rinc[o];
+			
+			// clones come straight after their original in allCyls
+			if((i==0)||(o!=originalOf.get(i-1))){
+				original=i;
+				cloneOf[i]=-1;
+			}
+			else{
+				cloneOf[i]=original;
+			}
+		}
 		
 		/*try{
 			drawCrossSection();
@@ -456,13 +490,27 @@ public class SquashyInflammationSubstrate extends CylinderSubstrate {
 		
 		setCylinders(cylinder);
 		
+		// cylinders read from a file don't grow, and have no clones
+		baseRadius= new double[cylinder.length];
+		radiusInc= new double[cylinder.length];
+		cloneOf= new int[cylinder.length];
+		
+		for(int i=0; i<cylinder.length; i++){
+			baseRadius[i]= cylinder[i].getRadius();
+			cloneOf[i]=-1;
+		}
+		
 		logger.info("initialising spatial optimisation");
 		double k= CL_Initializer.gamma_k;
 		double beta= CL_Initializer.gamma_beta;
 		
 		int[] n= getSpatialOptGridSize(k, beta, L);
 		
-		initialiseSpatialOptimisation(n);
+		initDynamicSpacOpt(n);
+		
+		for(int i=0; i<cylinder.length; i++){
+			dynamicVoxMap.insert(cylinder[i], getInersectingCells(cylinder[i].getPosition(), cylinder[i].getRadius()));
+		}
 		logger.info("done");
 	}
 	
@@ -659,34 +707,42 @@ public class SquashyInflammationSubstrate extends CylinderSubstrate {
 	 */
 	public void init() {
 		
-	    if(numIncrements!=1){
-    		if((DiffusionSimulation.calls%inflammationIncrementModulus == 0)){
-    		    
-    			for(int i=0; i<cylinder.length; i++){
-    				
-    				// reinitialise cylinder either with new or same radius
-    				if((cylinder[i]==null)||(cylinder[i].isExpanding())){
-    					cylinder[i]=new SquashyCylinder(P[i], radius[i]+n*rinc[i], p);
-    				}
-    				else{
-    					cylinder[i]= new SquashyCylinder(P[i], cylinder[i].getRadius(), p);
-    					
-    					// cylinders are expanding by default. if static in the previous
-    					// iteration, must be static in this.
-    					cylinder[i].stopExpanding();
-    				}
-    			}
-    		}
+	    if((numIncrements!=1)&&(DiffusionSimulation.calls%inflammationIncrementModulus == 0)){
+		    
+			for(int i=0; i<cylinder.length; i++){
+				
+				SquashyCylinder old= cylinder[i];
+				double[] pos= old.getPosition();
+				
+				// reinitialise cylinder either with new or same radius
+				if(old.isExpanding()){
+					cylinder[i]=new SquashyCylinder(pos, baseRadius[i]+n*radiusInc[i], p);
+				}
+				else{
+					cylinder[i]= new SquashyCylinder(pos, old.getRadius(), p);
+					
+					// cylinders are expanding by default. if static in the previous
+					// iteration, must be static in this.
+					cylinder[i].stopExpanding();
+				}
+				
+				// only the subvoxels the cylinder has grown into are changed
+				dynamicVoxMap.replace(old, cylinder[i], getInersectingCells(pos, cylinder[i].getRadius()));
+			}
 
 			// reassemble clonal relationships
-			for(int i=Nbefore; i<P.length; i++){
-				int cloneOf= (int)P[i][D+1];
-				
-				cylinder[cloneOf].addToMyClones(cylinder[i]);
+			for(int i=0; i<cylinder.length; i++){
+				if(cloneOf[i]>=0){
+					cylinder[cloneOf[i]].addToMyClones(cylinder[i]);
+				}
 			}
 			
 			// propagate clone relationships
-			for(int i=0; i<Nbefore; i++){
+			for(int i=0; i<cylinder.length; i++){
+				if(cloneOf[i]>=0){
+					continue;
+				}
+				
 				cylinder[i].propagateCloneRelationships();
 				
 				// this might seem a little odd! we have to
@@ -703,40 +759,47 @@ public class SquashyInflammationSubstrate extends CylinderSubstrate {
 			
 			
 			for(int i=0; i<cylinder.length; i++){				
-				// add intersections
-				for(int j=0; j<i; j++){
-					if(i==j){
-						continue;
-					}
-									
-					if(cylinder[i].abutts(cylinder[j])){
-						if(!cylinder[i].hasIntersectionWith(cylinder[j])){
-							cylinder[i].addIntersectionWith(cylinder[j]);
+				// add intersections. abutting cylinders share a subvoxel,
+				// so only the cylinders in this one's subvoxels are checked
+				int[] cells= dynamicVoxMap.getCells(cylinder[i]);
+				
+				for(int c=0; c<cells.length; c++){
+					for(int k=0; k<dynamicVoxMap.size(cells[c]); k++){
+						int j= dynamicVoxMap.get(cells[c], k).getId();
+						
+						if(j>=i){
+							continue;
 						}
-						if(!cylinder[j].hasIntersectionWith(cylinder[i])){
-							cylinder[j].addIntersectionWith(cylinder[i]);
+										
+						if(cylinder[i].abutts(cylinder[j])){
+							if(!cylinder[i].hasIntersectionWith(cylinder[j])){
+								cylinder[i].addIntersectionWith(cylinder[j]);
+							}
+							if(!cylinder[j].hasIntersectionWith(cylinder[i])){
+								cylinder[j].addIntersectionWith(cylinder[i]);
+							}
 						}
 					}
 				}
+			}
 
-				for(int j=0; j<i; j++){
-					Iterator<Chord> chIt=((SquashyCylinder)cylinder[j]).chords.iterator();
-					
-					while(chIt.hasNext()){
-						Chord chord= (Chord)chIt.next();
+			for(int j=0; j<cylinder.length; j++){
+				Iterator<Chord> chIt=((SquashyCylinder)cylinder[j]).chords.iterator();
+				
+				while(chIt.hasNext()){
+					Chord chord= (Chord)chIt.next();
 
-						if(chord.tmin>=chord.tmax){
-							System.err.println("added cylinder "+i+", cyl "+j+" has zero-length chord");
-							System.err.println("tmin= "+chord.tmin+", tmax= "+chord.tmax);
-						}
-						
-						
-						if(Double.isNaN(chord.tmin)){
-							System.err.println("added cylinder "+i+", cylinder "+j+" tmin is NaN");
-						}
-						if(Double.isNaN(chord.tmax)){
-							System.err.println("added cylinder "+i+", cylinder "+j+" tmax is NaN");
-						}
+					if(chord.tmin>=chord.tmax){
+						System.err.println("cylinder "+j+" has zero-length chord");
+						System.err.println("tmin= "+chord.tmin+", tmax= "+chord.tmax);
+					}
+					
+					
+					if(Double.isNaN(chord.tmin)){
+						System.err.println("cylinder "+j+" tmin is NaN");
+					}
+					if(Double.isNaN(chord.tmax)){
+						System.err.println("cylinder "+j+" tmax is NaN");
 					}
 				}
 			}
@@ -1061,9 +1124,9 @@ public class SquashyInflammationSubstrate extends CylinderSubstrate {
 	
 	
 	/**
-	 * initialises an array of empty ArrayLists with a guess at
-	 * their lengths assuming a roughly equal number of cylinders 
-	 * in each grid cell.
+	 * initialises an empty dynamic subvoxel map that cylinders
+	 * are inserted into as they are placed, and replaced in as
+	 * they grow.
 	 * 
 	 * @param n array of spac opt grid dimensions
 	 */
@@ -1077,15 +1140,9 @@ public class SquashyInflammationSubstrate extends CylinderSubstrate {
 			numCells*=n[i];
 		}
 		
-        voxToObjects= new SubstrateObject[numCells][];
-        candidateSubVox= new int[voxToObjects.length];
+		this.dynamicVoxMap= new DynamicSubVoxelMap(numCells);
 		
-		this.dynamicVoxMap= new ArrayList[numCells];
-		
-		for(int i=0; i<numCells; i++){
-			// initialise 
-			dynamicVoxMap[i]= new ArrayList<Cylinder>((int)(SimulationParams.sim_cyl_dist_size/numCells));
-		}
+		voxToObjects= dynamicVoxMap;
 	}
 	
 	
@@ -1156,11 +1213,8 @@ public class SquashyInflammationSubstrate extends CylinderSubstrate {
 			
 			int ind= cells[i];
 			
-			ArrayList<Cylinder> cyls= dynamicVoxMap[ind];
-			
-			Iterator<Cylinder> cylsIt= cyls.iterator();
-			while(cylsIt.hasNext()){
-				Cylinder cyl= cylsIt.next();
+			for(int k=0; k<dynamicVoxMap.size(ind); k++){
+				Cylinder cyl= (Cylinder)dynamicVoxMap.get(ind, k);
 				
 				double dist= cyl.getDistanceFrom(pos);
 				//if(dist<=cyl.getRadius()+r){
@@ -1177,36 +1231,14 @@ public class SquashyInflammationSubstrate extends CylinderSubstrate {
 	
 	
 	
-	private final void initSpacOptFromDynamicMap(){
-		
-		super.voxToObjects= new SubstrateObject[dynamicVoxMap.length][];
-		
-		for(int i=0; i<voxToObjects.length; i++){
-			if(dynamicVoxMap[i].size()>0){
-				// transfer objects out of the ArrayList and into a static array
-				voxToObjects[i]= new SubstrateObject[dynamicVoxMap[i].size()];
-				for(int j=0; j< dynamicVoxMap[i].size(); j++){
-					voxToObjects[i][j]= dynamicVoxMap[i].get(j);
-				}
-			}
-			else{
-				voxToObjects[i]=null;
-			}
-		}
-		
-		checked= new SubstrateObject[allCyls.size()];
-	}
-	
-	
-	private final void addToDynamicMap(double[] pos, double r, double p_perc, int[] cells, ArrayList<double[]> clones){
+	private final void addToDynamicMap(int index, double[] pos, double r, double p_perc, int[] cells, ArrayList<double[]> clones){
 		
 		SquashyCylinder cylinder= new SquashyCylinder(pos, r, p_perc);
 		
-		for(int i=0; i<cells.length; i++){
-			dynamicVoxMap[cells[i]].add(cylinder);
-		}
+		dynamicVoxMap.insert(cylinder, cells);
 		
 		allCyls.add(cylinder);
+		originalOf.add(index);
 		
 		if(clones!=null){
 			for(int i=0; i<clones.size(); i++){
@@ -1214,12 +1246,11 @@ public class SquashyInflammationSubstrate extends CylinderSubstrate {
 				
 				SquashyCylinder clone= new SquashyCylinder(clones.get(i), clones.get(i)[D], p_perc);
 				
-				for(int j=0; j<cloneCells.length; j++){
-					dynamicVoxMap[cloneCells[j]].add(clone);
-				}
+				dynamicVoxMap.insert(clone, cloneCells);
 				
 				cylinder.addToMyClones(clone);
 				allCyls.add(clone);
+				originalOf.add(index);
 			}
 		}
 		cylinder.propagateCloneRelationships();
@@ -1275,7 +1306,7 @@ public class SquashyInflammationSubstrate extends CylinderSubstrate {
 		double[] r0= new double[]{2.5686876843502166E-4,2.1144633425261604E-4,2.4779049425419504E-4};
 		
 		// construct a test walker
-		Walker walker= new Walker(r0, stepGen, substrate, scan, null);
+		Walker walker= new Walker(r0, stepGen, substrate, scan);
 
 		// construct the problematic step (from debug output)
 		double[] step= new double[]{-5.899642786304271E-6,-2.129506892156036E-5,2.051132015790311E-5};
@@ -1310,15 +1341,11 @@ public class SquashyInflammationSubstrate extends CylinderSubstrate {
     	
     	for(int i=0; i<cell.length; i++){
     		
-    		SubstrateObject[] cyls= voxToObjects[cell[i]];
-    		
-    		if(cyls!=null){
-	    		for(int j=0; j<cyls.length; j++){
-	    			double distToObj= cyls[j].getDistanceFrom(r0);
-				
-		    		if(distToObj<minDist){
-		    			minDist=distToObj;
-		    		}
+    		for(int j=0; j<voxToObjects.size(cell[i]); j++){
+    			double distToObj= voxToObjects.get(cell[i], j).getDistanceFrom(r0);
+			
+	    		if(distToObj<minDist){
+	    			minDist=distToObj;
 	    		}
     		}
     	}
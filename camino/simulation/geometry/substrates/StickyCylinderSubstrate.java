@@ -128,6 +128,29 @@ public class StickyCylinderSubstrate extends ParallelCylinderSubstrate {
     }
 
 
+    /**
+     * stuck walkers don't see the membranes like free ones do, so no
+     * steps can skip the barrier checks.
+     * 
+     * @return false
+     */
+    public boolean hasSafeRadius(){
+        return false;
+    }
+
+
+    /**
+     * stuck walkers are released with a random number generator that
+     * all sticky walkers share, so they can't be updated from several
+     * threads.
+     *
+     * @return false
+     */
+    public boolean supportsParallelTraversal(){
+        return false;
+    }
+
+
     /**
      * returns the change in magnetisation at a given location and time.
      * overrides superclass method to include T2 effects. separate T2s are
@@ -0,0 +1,189 @@
+package simulation.geometry.substrates;
+
+import java.util.Arrays;
+import java.util.List;
+
+import misc.LoggedException;
+
+import simulation.geometry.elements.SubstrateObject;
+
+/**
+ * map of subvoxels to the substrate objects that intersect them, used
+ * for spatial optimisation.
+ *
+ * The map is stored in compressed sparse row (CSR) form: the objects in
+ * every subvoxel are stored end to end in a single array, and a second
+ * array holds the position of the first object of each subvoxel. the
+ * objects in subvoxel c are objects[start[c]] to objects[end[c]-1],
+ * where end[c] is start[c+1] in a map made in one go.
+ * Compared to an array of arrays this saves an array header for each
+ * non-empty subvoxel, and the objects of neighbouring subvoxels sit
+ * next to each other in memory.
+ *
+ * maps made by this class aren't changed once made. a substrate whose
+ * objects change either makes a new map, which is how traversal 
+ * contexts notice the change, or keeps a DynamicSubVoxelMap, which
+ * leaves room after each subvoxel and counts its changes in version.
+ *
+ */
+public class SubVoxelMap {
+
+    /** index of the first object in each subvoxel, plus the total at the end */
+    final int[] start;
+
+    /** index after the last object in each subvoxel */
+    final int[] end;
+
+    /** objects in each subvoxel, subvoxel by subvoxel */
+    SubstrateObject[] objects;
+
+    /** number of times the map has been changed in place */
+    int version=0;
+
+
+    /**
+     * constructor. the arrays are used as they are, not copied.
+     *
+     * @param start index of first object in each subvoxel. has one
+     *        more entry than there are subvoxels, the last being the
+     *        length of the object array.
+     * @param objects objects in subvoxel order
+     */
+    public SubVoxelMap(int[] start, SubstrateObject[] objects){
+
+        if((start.length<1)||(start[0]!=0)||(start[start.length-1]!=objects.length)){
+            throw new LoggedException("subvoxel offsets don't match "+objects.length+" objects");
+        }
+
+        for(int i=1; i<start.length; i++){
+            if(start[i]<start[i-1]){
+                throw new LoggedException("subvoxel offsets decrease at subvoxel "+i);
+            }
+        }
+
+        this.start= start;
+        this.end= Arrays.copyOfRange(start, 1, start.length);
+        this.objects= objects;
+    }
+
+
+    /**
+     * constructor for maps that manage their own arrays. the arrays are
+     * used as they are and not checked.
+     *
+     * @param start index of first object in each subvoxel
+     * @param end index after last object in each subvoxel
+     * @param objects object array
+     */
+    SubVoxelMap(int[] start, int[] end, SubstrateObject[] objects){
+
+        this.start= start;
+        this.end= end;
+        this.objects= objects;
+    }
+
+
+    /**
+     * constructs an empty map
+     *
+     * @param numSubVoxels number of subvoxels
+     */
+    public SubVoxelMap(int numSubVoxels){
+
+        this(new int[numSubVoxels+1], new SubstrateObject[0]);
+    }
+
+
+    /**
+     * constructs a map from lists of objects for each subvoxel. null
+     * lists are empty subvoxels.
+     *
+     * @param lists objects in each subvoxel
+     *
+     * @return new map
+     */
+    public static SubVoxelMap fromLists(List<? extends SubstrateObject>[] lists){
+
+        int[] start= new int[lists.length+1];
+
+        for(int i=0; i<lists.length; i++){
+            start[i+1]= start[i]+((lists[i]==null)?0:lists[i].size());
+        }
+
+        SubstrateObject[] objects= new SubstrateObject[start[lists.length]];
+
+        for(int i=0; i<lists.length; i++){
+            if(lists[i]!=null){
+                for(int j=0; j<lists[i].size(); j++){
+                    objects[start[i]+j]= lists[i].get(j);
+                }
+            }
+        }
+
+        return new SubVoxelMap(start, objects);
+    }
+
+
+    /**
+     * @return number of subvoxels
+     */
+    public final int numSubVoxels(){
+        return end.length;
+    }
+
+
+    /**
+     * @return total number of entries, counting objects once for each
+     *         subvoxel they're in
+     */
+    public int numEntries(){
+        return objects.length;
+    }
+
+
+    /**
+     * @param c subvoxel index
+     *
+     * @return number of objects in the subvoxel
+     */
+    public final int size(int c){
+        return end[c]-start[c];
+    }
+
+
+    /**
+     * @param c subvoxel index
+     *
+     * @return true if the subvoxel contains no objects
+     */
+    public final boolean isEmpty(int c){
+        return end[c]==start[c];
+    }
+
+
+    /**
+     * @param c subvoxel index
+     * @param k object number in the subvoxel
+     *
+     * @return the object
+     */
+    public final SubstrateObject get(int c, int k){
+        return objects[start[c]+k];
+    }
+
+
+    /**
+     * @return offsets array itself, not a copy. used to save the map.
+     */
+    public final int[] getStartArray(){
+        return start;
+    }
+
+
+    /**
+     * @return object array itself, not a copy. used to save the map.
+     */
+    public final SubstrateObject[] getObjectArray(){
+        return objects;
+    }
+}
@@ -19,6 +19,12 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import misc.LoggedException;
@@ -61,70 +67,35 @@ public abstract class Substrate{
      */
     private final int D=DiffusionSimulation.D;
     
-    /**
-     * membrane transition probability
-     */
-    private final double[] p= new double[1];
-        
     /**
      * substrate dimensions
      */
     protected final double[] L;
     
     /**
-     * space to store normal
+     * traversal context used by serial simulations
      */
-    private final double[] normal;
-        
-    /**
-     * space to store amended step
-     */
-    private final double[] amended;
+    private final TraversalContext serialContext;
     
     /**
-     * space to store unamended step
+     * per-thread traversal contexts used when walkers are updated concurrently
      */
-    private final double[] unamended;
-
-    /**
-     * space to store step to barrier
-     */
-    private final double[] toBarrier;
+    private final ThreadLocal<TraversalContext> threadContext;
     
     /**
-     * point of intersection
+     * every traversal context made so far, so that their counters can be summed
      */
-    private final double[] intPoint;
+    private final List<TraversalContext> contexts= new ArrayList<TraversalContext>();
     
     /**
-     * space for amended step
-     */
-    private final double[] newStep;
-
-    /**
-     * space to store membrane distance
+     * flag indicating if amendment is being called from more than one thread
      */
-    private final double[] d;
-
-    /**
-     * space to store intracellular flag
-     */
-    private final boolean[] in;
-    
-    /**
-     * space to store position of walker on substrate
-     */
-    protected final double[] subsCoords= new double[D];
-    
-    /**
-     * space to store barrier transition steps
-     */
-    private final double[] transition= new double[D];
+    private boolean parallelTraversal= false;
     
     /**
-     * rechecking offset
+     * space to store position of walker on substrate (serial context)
      */
-    private final double[] offset= new double[D];
+    protected final double[] subsCoords;
     
     /**
      * random number generator
@@ -185,85 +156,47 @@ public abstract class Substrate{
      */
     protected final double[] s= new double[D];
 
-    /** initial pos */
-    private final double[] px= new double[D];
-    
-    /** final pos */
-    private final double[] qx= new double[D];
-    
-    /** gradient vector */
-    private final double[] du= new double[D];
-    
-    /** increment test vector */
-    private final double[] e= new double[D];
-    
-    /** increment factor vector */
-    private final double[] r= new double[D];
-        
-    /** initial subvoxel */
-    private final int[] cp= new int[D];
-    
-    /** unreflected subvoxel coords */
-    private final int[] ctrue= new int[D];
-    
-    /** final subvoxel */
-    private final int[] cq= new int[D];
-    
-    /** flags indicating reflection symmetry true= flipped */
-    private final boolean[] flipped= new boolean[D];  
-    
-    
 
-    
-    
     /**
      * map of subvoxels to arrays of substrate objects for 
      * spatial optimisation
      */
-    public SubstrateObject[][] voxToObjects=null;
+    public SubVoxelMap voxToObjects=null;
     
+    /** the spatial optimisation map that object ids were last assigned for */
+    private SubVoxelMap idMap=null;
     
-    /**
-     * space to store latest list of candidates for intersection testing
-     */
-    protected int[] candidateSubVox;
+    /** number of object ids in use */
+    private int numObjectIds=0;
     
-    /**
-     * if we're iterating through a list of candidates, this is the line we're on
-     */
-    private int currentSubVox=-1;
     
     /**
-     * number of candidates in current list
+     * flag to say whether an intersection is with the cell boundary or not
      */
-    private int subVoxListLength=0;
+    public boolean intersectsBoundary=false;
     
+  
     /**
-     * object index in current voxel
+     * space to store a subvox index array
      */
-    private int objIndex=-1;
-
+    private final int[] subvox= new int[D];
     
     /**
-     * to avoid repeated checks of objects 
+     * fraction of the distance to the nearest barrier that's given as a
+     * safe radius, to stay well clear of rounding in the barrier checks
      */
-    protected SubstrateObject[] checked;
+    private static final double SAFE_FRACTION= 0.999;
     
     /**
-     * counter for length of list of checked objects
+     * zero offset for safe radius queries
      */
-    private int checkedLength=-1;
+    private static final double[] NO_OFFSET= new double[DiffusionSimulation.D];
     
     /**
-     * flag to say whether an intersection is with the cell boundary or not
+     * clearance of each subvoxel in the spatial optimisation map (null until
+     * the first grid safe radius query)
      */
-    public boolean intersectsBoundary=false;
-    
-  
-    /**
-     * space to store a subvox index array
-     */
-    private final int[] subvox= new int[D];
+    private volatile ClearanceField clearance=null;
     
     /** 
      * constructor with p specified
@@ -275,17 +208,18 @@ public abstract class Substrate{
 
         this.L=substrateDims;
         
-        this.normal=new double[D];
-        this.amended= new double[D];
-        this.unamended= new double[D];
-        this.d= new double[1];
-        this.in= new boolean[1];
-        this.toBarrier= new double[D];
-        this.intPoint= new double[D];
-        this.newStep= new double[D];
-        this.p[0]=simParams.getP(); 
+        final double p= simParams.getP();
+        
+        this.serialContext= register(new TraversalContext(this, p));
+        this.subsCoords= serialContext.subsCoords;
+        this.threadContext= new ThreadLocal<TraversalContext>(){
+        	protected TraversalContext initialValue(){
+        		return register(new TraversalContext(Substrate.this, p));
+        	}
+        };
         
-        this.twister=new MTRandom(CL_Initializer.seed);
+        // membrane crossings are part of the walk
+        this.twister=new MTRandom(CL_Initializer.walkerSeed());
         
         this.amender=StepAmenderFactory.getStepAmender(SimulationParams.sim_amender_type, this);
         
@@ -305,16 +239,15 @@ public abstract class Substrate{
     	
         this.L=substrateDims;
         
-        this.normal=new double[D];
-        this.amended= new double[D];
-        this.unamended= new double[D];
-        this.d= new double[1];
-        this.in= new boolean[1];
-        this.toBarrier= new double[D];
-        this.intPoint= new double[D];
-        this.newStep= new double[D];
+        this.serialContext= register(new TraversalContext(this, 0.0));
+        this.subsCoords= serialContext.subsCoords;
+        this.threadContext= new ThreadLocal<TraversalContext>(){
+        	protected TraversalContext initialValue(){
+        		return register(new TraversalContext(Substrate.this, 0.0));
+        	}
+        };
         
-        this.twister= new MTRandom(CL_Initializer.seed);
+        this.twister= new MTRandom(CL_Initializer.walkerSeed());
         
         //this.amender=StepAmenderFactory.getStepAmender(SimulationParams.sim_amender_type, this);
         this.amender= null;
@@ -342,6 +275,19 @@ public abstract class Substrate{
     
     public final boolean amend(Walker walker, double[] step, double t, int n, boolean report, FileWriter debugWriter){
    	
+        final TraversalContext context= getContext();
+        
+        final double[] newStep= context.newStep;
+        final double[] normal= context.normal;
+        final double[] d= context.d;
+        final boolean[] in= context.in;
+        final double[] p= context.p;
+        final double[] toBarrier= context.toBarrier;
+        final double[] amended= context.amended;
+        final double[] unamended= context.unamended;
+        final double[] transition= context.transition;
+        final double[] subsCoords= context.subsCoords;
+        
         boolean crosses=false;
     	
         boolean isAmended= false;
@@ -349,6 +295,9 @@ public abstract class Substrate{
         boolean stepMade=false;
         
         double origLength=0.0;
+        
+        // number of membranes passed through (not counting the substrate boundary)
+        int transmissions=0;
     	
         FileWriter cylWriter=null;
         
@@ -491,7 +440,7 @@ public abstract class Substrate{
             }
             
         	// pick a number
-            double prob=twister.nextDouble();
+            double prob=(walker.random!=null)?walker.random.nextDouble():twister.nextDouble();
             //logger.info("Rand number: "+prob);
             
             
@@ -513,6 +462,10 @@ public abstract class Substrate{
 	            		newStep[j]+=transition[j];
 	            		step[j]=unamended[j];
 	            	}
+	            	
+	            	if(!crossingIsBoundary()){
+	            		transmissions++;
+	            	}
             }
 
             
@@ -541,6 +494,18 @@ public abstract class Substrate{
 	        		step[i]=newStep[i];
 	        	}
         }
+        
+        // the step is going ahead, so update the walker's compartment
+        if(transmissions>0){
+	        	if(crossingsSwitchCompartment()){
+	        		if(transmissions%2==1){
+	        			walker.intracellular= !walker.intracellular;
+	        		}
+	        	}
+	        	else{
+	        		walker.compartmentStale= true;
+	        	}
+        }
 
         if(report){
 	        	try{
@@ -819,16 +784,6 @@ public abstract class Substrate{
     
     
     
-    /** wrapper for index method that takes array
-     * 
-     * @param c array of sub vox coords of length D
-     * 
-     * @return linear index
-     */
-    private int getSubVoxelIndex(int[] c){
-        return getSubVoxelIndex(c[0], c[1], c[2]);
-    }
-    
     /**
      * calculates linear index from three subvoxel coordinates.
      * 
@@ -887,6 +842,49 @@ public abstract class Substrate{
         return getBottomLeft(i+1, j+1, k+1);
     }
     
+    /**
+     * gives every object in the spatial optimisation map an id from zero
+     * up, so that traversals can keep track of the objects they've tested
+     * in an array rather than a list. does nothing if ids have already 
+     * been assigned for the current map. static maps are replaced rather
+     * than changed in place, so a new map is always noticed. dynamic maps
+     * number their own objects as they're inserted.
+     * 
+     * @return the number of ids
+     */
+    final synchronized int assignObjectIds(){
+        
+        final SubVoxelMap map= voxToObjects;
+        
+        if((idMap==map)||(map==null)){
+            return numObjectIds;
+        }
+        
+        // dynamic maps number their own objects, and may add more later
+        if(map instanceof DynamicSubVoxelMap){
+            return ((DynamicSubVoxelMap)map).numObjectIds();
+        }
+        
+        final SubstrateObject[] objects= map.objects;
+        
+        // clear ids first, in case objects have come from another map
+        for(int i=0; i<objects.length; i++){
+            objects[i].setId(-1);
+        }
+        
+        int next=0;
+        for(int i=0; i<objects.length; i++){
+            if(objects[i].getId()<0){
+                objects[i].setId(next++);
+            }
+        }
+        
+        numObjectIds=next;
+        idMap=map;
+        
+        return next;
+    }
+    
     protected int initSpatialOptArrays(int[] n){
     	
     	// initalise subvoxel counter
@@ -907,21 +905,87 @@ public abstract class Substrate{
             this.n[i]=n[i];
         }
         
-        voxToObjects= new SubstrateObject[numSubVoxels][];
-        candidateSubVox= new int[voxToObjects.length];
-        
-        checked= new SubstrateObject[subsObj.length];
+        voxToObjects= new SubVoxelMap(numSubVoxels);
         
         return numSubVoxels;
     }
     
     
+    /**
+     * number of threads to build the spatial optimisation map on. the
+     * map is the same however many threads build it, so this uses every
+     * processor unless the number of simulation threads has been set.
+     * 
+     * @return number of threads
+     */
+    protected static int spatialOptThreads(){
+        
+        if(SimulationParams.sim_threads>0){
+            return SimulationParams.sim_threads;
+        }
+        
+        return Runtime.getRuntime().availableProcessors();
+    }
+    
+    
+    /**
+     * runs a list of tasks on a pool of threads and waits for them all 
+     * to finish. with a single thread the tasks are run in order on the 
+     * calling thread. exceptions thrown by tasks are rethrown here.
+     * 
+     * @param tasks the tasks to run
+     * @param numThreads number of threads to use
+     */
+    protected static void runTasks(List<? extends Callable<Object>> tasks, int numThreads){
+        
+        try{
+            if((numThreads<=1)||(tasks.size()<=1)){
+                for(int i=0; i<tasks.size(); i++){
+                    tasks.get(i).call();
+                }
+                return;
+            }
+            
+            ExecutorService executor= Executors.newFixedThreadPool(Math.min(numThreads, tasks.size()));
+            
+            try{
+                List<Future<Object>> results= executor.invokeAll(tasks);
+                
+                for(int i=0; i<results.size(); i++){
+                    results.get(i).get();
+                }
+            }
+            finally{
+                executor.shutdownNow();
+            }
+        }
+        catch(InterruptedException ie){
+            throw new LoggedException(ie);
+        }
+        catch(ExecutionException ee){
+            if(ee.getCause() instanceof RuntimeException){
+                throw (RuntimeException)ee.getCause();
+            }
+            throw new LoggedException(ee.getCause());
+        }
+        catch(RuntimeException re){
+            throw re;
+        }
+        catch(Exception e){
+            throw new LoggedException(e);
+        }
+    }
+    
+    
     /**
      * initialises the map of substrate objects to subvoxels
      * in the spatial optimisation grid.
      * 
      * This is a general purpose version that checks every object 
-     * against every box.
+     * against every box. the subvoxels are split into contiguous 
+     * blocks that are checked on separate threads, and the blocks' 
+     * lists are joined in order, so the map doesn't depend on the 
+     * number of threads.
      * 
      * @param n number of subvoxels in each direction
      */
@@ -936,38 +1000,113 @@ public abstract class Substrate{
        
         logger.info("initialising spatial optimisation...");
         
-        initSpatialOptArrays(n);
+        final int numSubVoxels= initSpatialOptArrays(n);
+        final int numThreads= spatialOptThreads();
         
-        for(int i=0; i<n[0]; i++){
-            for(int j=0; j<n[1]; j++){
-                for(int k=0; k<n[2]; k++){
-                    int index= getSubVoxelIndex(i, j, k);
-                    
-                    double[] bottomLeft= getBottomLeft(i, j, k);
-                    double[] topRight= getUpperRight(i, j, k);
-                    
-                    ArrayList<SubstrateObject> intersectingObjects= new ArrayList<SubstrateObject>();
-                    
-                    for(int o=0; o<subsObj.length; o++){
-                        SubstrateObject so = subsObj[o];
-                        if(so.intersectsCubicRegion(bottomLeft, topRight)){
-                            intersectingObjects.add(so);                            
-                        }
-                    }
-                    
-                    if(intersectingObjects.size()>0){
-                        voxToObjects[index]= new SubstrateObject[intersectingObjects.size()];
-                        for(int o=0; o<intersectingObjects.size(); o++){
-                            voxToObjects[index][o]= intersectingObjects.get(o);
-                        }
+        long startTime= System.currentTimeMillis();
+        
+        // a few blocks per thread evens out the load
+        int numBlocks= Math.max(1, Math.min(numSubVoxels, 4*numThreads));
+        
+        List<CellBlock> blocks= new ArrayList<CellBlock>(numBlocks);
+        for(int b=0; b<numBlocks; b++){
+            int first= (int)(((long)b*numSubVoxels)/numBlocks);
+            int last= (int)(((long)(b+1)*numSubVoxels)/numBlocks);
+            
+            blocks.add(new CellBlock(first, last));
+        }
+        
+        runTasks(blocks, numThreads);
+        
+        long checkTime= System.currentTimeMillis();
+        
+        // join the blocks' lists
+        int[] start= new int[numSubVoxels+1];
+        int numEntries=0;
+        
+        for(int b=0; b<numBlocks; b++){
+            CellBlock block= blocks.get(b);
+            
+            for(int c=block.first; c<block.last; c++){
+                start[c]= numEntries;
+                numEntries+= block.count[c-block.first];
+            }
+        }
+        start[numSubVoxels]= numEntries;
+        
+        SubstrateObject[] objects= new SubstrateObject[numEntries];
+        
+        for(int b=0; b<numBlocks; b++){
+            CellBlock block= blocks.get(b);
+            
+            for(int o=0; o<block.found.size(); o++){
+                objects[start[block.first]+o]= block.found.get(o);
+            }
+        }
+        
+        voxToObjects= new SubVoxelMap(start, objects);
+        
+        long endTime= System.currentTimeMillis();
+        
+        logger.info("spatial optimisation initialised on "+numThreads+" threads. "+numEntries+" entries. object checks "
+                +(checkTime-startTime)+" ms, merge "+(endTime-checkTime)+" ms");
+    }
+    
+    
+    /**
+     * checks every object against a block of consecutive subvoxels.
+     * used by the general purpose spatial optimisation initialiser.
+     */
+    private final class CellBlock implements Callable<Object>{
+        
+        /** first subvoxel in the block */
+        private final int first;
+        
+        /** one past the last subvoxel in the block */
+        private final int last;
+        
+        /** number of objects found in each subvoxel */
+        private final int[] count;
+        
+        /** objects found, subvoxel by subvoxel */
+        private final ArrayList<SubstrateObject> found= new ArrayList<SubstrateObject>();
+        
+        CellBlock(int first, int last){
+            this.first= first;
+            this.last= last;
+            this.count= new int[last-first];
+        }
+        
+        public Object call(){
+            
+            final double[] bottomLeft= new double[D];
+            final double[] topRight= new double[D];
+            
+            for(int c=first; c<last; c++){
+                
+                // subvoxel index is i + n[0]*j + n[0]*n[1]*k
+                int i= c%n[0];
+                int j= (c/n[0])%n[1];
+                int k= c/(n[0]*n[1]);
+                
+                bottomLeft[0]= i*s[0];
+                bottomLeft[1]= j*s[1];
+                bottomLeft[2]= k*s[2];
+                
+                topRight[0]= (i+1)*s[0];
+                topRight[1]= (j+1)*s[1];
+                topRight[2]= (k+1)*s[2];
+                
+                for(int o=0; o<subsObj.length; o++){
+                    if(subsObj[o].intersectsCubicRegion(bottomLeft, topRight)){
+                        found.add(subsObj[o]);
+                        count[c-first]++;
                     }
-                    else{
-                        voxToObjects[index]=null;
-                    }           
                 }
             }
+            
+            return null;
         }
-        logger.info("spatial optimisation initialised.");
     }
     
     
@@ -986,37 +1125,6 @@ public abstract class Substrate{
     }
     
     
-    /**
-     * having found the index of a subvoxel to add to the 
-     * candidates list, this method does the adding. New
-     * entries are checked to make sure that the particular
-     * subvoxel contains objects. if no objects, they aren't 
-     * added to the list.
-     * 
-     * @param index the linear cell index to add
-     */
-    private final void report(int[] c){
-        
-        // ignore cells that are off the edges of the substrate
-        for(int i=0; i<c.length; i++){
-            if(c[i]>=n[i]){
-                return;
-            }
-            if(c[i]<0){
-                return;
-            }
-        }
-        
-        int index= getSubVoxelIndex(c);
-        
-        if(voxToObjects[index]!=null){
-            candidateSubVox[subVoxListLength]=index;
-            subVoxListLength++;
-        }
-        
-    }
-    
-    
     /**
      * checks if a walker is in the current voxel. This is designed
      * to be used by the synthetic scan so that walkers outside of
@@ -1058,191 +1166,435 @@ public abstract class Substrate{
      */
     protected final void assembleSubVoxelList(double[] subsCoords, double[] step){
         
-        subVoxListLength=0;
-        checkedLength=0;
+        getContext().assembleSubVoxelList(subsCoords, step);
         
-        // initialise vectors
-        for(int j=0; j<D; j++){
-            
-            // initialise starting pos and gradients, reflecting if negative
-            if(step[j]<0){
-                flipped[j]=true;
-                px[j]=L[j]-subsCoords[j];
-                qx[j]= px[j]-step[j];
-                du[j]=-step[j];
-            }
-            else{
-                flipped[j]=false;
-                px[j]=subsCoords[j];
-                qx[j]= px[j]+step[j];
-                du[j]=step[j];
-            }
+    }
+    
+    
+    public void initCandidates(Walker walker, double[] offset, double[] step){
+        
+        final TraversalContext context= getContext();
+        
+        // map position to substrate
+        getSubstrateCoords(walker, offset, context.subsCoords);
+        
+        // get intersecting subvoxels
+        context.assembleSubVoxelList(context.subsCoords, step);
 
-            // initialise starting cell
-            cp[j]= (int)(px[j]/s[j]);
-            
-            // initialise end cell
-            cq[j]= (int)(qx[j]/s[j]);
-            
-            // initialise unflipped cell
-            ctrue[j]=(int)(subsCoords[j]/s[j]);
-            
-            if(flipped[j]){
-            	/* if we're flipped, it's possible that rounding error can introduce
-            	 * a discrepancy between the flipped and unflipped box coordinates.
-            	 * In this case we trust the unflipped coordinate, ctrue. 
-            	 */
-            	if(cp[j]!=(n[j]-1)-ctrue[j]){
-            		cp[j]=(n[j]-1)-ctrue[j];
-            	}
-        	}
-            
-            // initialise update test vector
-            e[j]= ((cp[j]+1)*s[j]-px[j])/du[j];
-            
-            // need to take care of the -Infinities that can occur if du[j]=-0.0
-            if(Double.isInfinite(e[j])||Double.isNaN(e[j])){
-            	e[j]=Double.MAX_VALUE;
-            }
-            
-            r[j]=s[j]/du[j];
-            // need to take care of the -Infinities that can occur if du[j]=-0.0
-            if(Double.isInfinite(r[j])||Double.isNaN(r[j])){
-            	e[j]=Double.MAX_VALUE;
-            }
-            
+    }
+    
+    /**
+     * are there more candidates to check?
+     * 
+     * @return
+     */
+    public final boolean moreCandidates(){
+        
+        return getContext().moreCandidates();
+    }
+    
+    /** 
+     * get the next substrate object in the candidate list
+     * 
+     * @return next object
+     */
+    public SubstrateObject nextCandidate(){
+        
+        return getContext().nextCandidate();
+    }
+    
+    
+    /**
+     * returns the substrate's random number generator, which decides 
+     * whether walkers without their own random streams cross permeable
+     * membranes. This is the only state the substrate carries from one
+     * timestep to the next, so it's all that needs checkpointing.
+     * 
+     * @return the substrate's twister
+     */
+    public final MTRandom getTwister(){
+        
+        return twister;
+    }
+    
+    
+    /**
+     * returns the traversal context for the calling thread. In serial
+     * simulations this is always the substrate's own context.
+     * 
+     * @return scratch space for step amendment and candidate traversal
+     */
+    public final TraversalContext getContext(){
+        
+        if(parallelTraversal){
+            return threadContext.get();
         }
         
-        // report ctrue;
-        report(ctrue);
+        return serialContext;
+    }
+    
+    /**
+     * can steps on this substrate be amended from several threads at once? 
+     * This requires that all mutable state used during barrier checks lives 
+     * in the traversal context and not in fields of the substrate itself.
+     * 
+     * @return false by default. override in substrates that are safe to share.
+     */
+    public boolean supportsParallelTraversal(){
         
-        // main loop
-        while(!((cp[0]==cq[0])&&(cp[1]==cq[1])&&(cp[2]==cq[2]))){
-
-            // find smallest e[j]
-            double smallest =e[0];
-            int smallestJ =0;
-            for(int j=1; j<D; j++){
-                if(e[j]<smallest){
-                    smallest=e[j];
-                    smallestJ= j;
-                }
-            }
-            
-            // update subvoxel coord
-            cp[smallestJ]++;
-            
-            // the true (unflipped) coord
-            if(flipped[smallestJ]){
-                // if flipped, we're going downwards
-                ctrue[smallestJ]--;
+        return false;
+    }
+    
+    /**
+     * does passing through any membrane on this substrate move a walker
+     * between the intracellular and extracellular compartments? if so,
+     * walkers keep track of their compartment by switching it each time 
+     * they pass through. otherwise it's looked up again with 
+     * intracellular() after any step that passes through a membrane.
+     * 
+     * @return false by default. override where membranes never nest or overlap.
+     */
+    public boolean crossingsSwitchCompartment(){
+        
+        return false;
+    }
+    
+    /**
+     * @return true if the crossing found by the last call to crossesMembrane()
+     *         is with the substrate boundary rather than a membrane
+     */
+    protected boolean crossingIsBoundary(){
+        
+        return intersectsBoundary;
+    }
+    
+    /**
+     * adds a new traversal context to the list whose counters are summed
+     * 
+     * @param context the new context
+     * 
+     * @return the context
+     */
+    private TraversalContext register(TraversalContext context){
+        
+        synchronized(contexts){
+            contexts.add(context);
+        }
+        
+        return context;
+    }
+    
+    /**
+     * @return number of steps made without barrier checks because they
+     *         stayed inside the walker's safe radius, over all threads
+     */
+    public final long getSafeSteps(){
+        
+        long safeSteps=0;
+        
+        synchronized(contexts){
+            for(int i=0; i<contexts.size(); i++){
+                safeSteps+= contexts.get(i).safeSteps;
             }
-            else{
-                // otherwise we're just doing the same as cp
-                ctrue[smallestJ]++;
+        }
+        
+        return safeSteps;
+    }
+    
+    /**
+     * @return number of steps made by walkers with safe radii that did 
+     *         need barrier checks, over all threads
+     */
+    public final long getTestedSteps(){
+        
+        long testedSteps=0;
+        
+        synchronized(contexts){
+            for(int i=0; i<contexts.size(); i++){
+                testedSteps+= contexts.get(i).testedSteps;
             }
-
-            e[smallestJ]+=r[smallestJ];
-
-            
-            // move
-            report(ctrue);
         }
         
-        // set the list length
-        currentSubVox=0;
-        objIndex=0;
+        return testedSteps;
+    }
+    
+    /**
+     * can this substrate give walkers a safe radius? A walker that knows
+     * how far it is from the nearest barrier can skip the barrier checks
+     * for any step that doesn't take it further than that from where it
+     * last asked.
+     * 
+     * substrates that say yes must implement getBarrierDistance(), and 
+     * crossesMembrane() must find nothing for a step that stays closer
+     * to where it started than the nearest barrier, without changing 
+     * anything on the way. the geometry mustn't change as walkers move.
+     * 
+     * @return false by default
+     */
+    public boolean hasSafeRadius(){
         
+        return false;
     }
     
+    /**
+     * returns the safe radius of a walker at its current position: how
+     * far it can move in any direction before a step might meet a 
+     * membrane or the substrate boundary, less the walker radius. steps
+     * that stay inside it pass through crossesMembrane() untouched.
+     * 
+     * @param walker the walker
+     * 
+     * @return safe radius, zero if there's no guarantee
+     */
+    public double getSafeRadius(Walker walker){
+        
+        final double[] subsCoords= getContext().subsCoords;
+        
+        getSubstrateCoords(walker, NO_OFFSET, subsCoords);
+        
+        double dist= getBarrierDistance(subsCoords);
+        
+        // substrate boundary, and the edge of the periodic cell if that's nearer
+        final double[] size= getSubstrateSize();
+        for(int i=0; i<D; i++){
+            dist= Math.min(dist, subsCoords[i]);
+            dist= Math.min(dist, Math.min(L[i], size[i])-subsCoords[i]);
+        }
+        
+        dist-= walker.R;
+        
+        return (dist>0.0)?SAFE_FRACTION*dist:0.0;
+    }
     
-    public void initCandidates(Walker walker, double[] offset, double[] step){
+    /**
+     * returns a lower bound on the distance from a point on the substrate
+     * to the nearest membrane. the substrate boundary is dealt with by
+     * getSafeRadius().
+     * 
+     * @param subsCoords position in substrate coords
+     * 
+     * @return zero by default. override in substrates that have safe radii.
+     */
+    protected double getBarrierDistance(double[] subsCoords){
         
-        // map position to substrate
-        getSubstrateCoords(walker, offset, subsCoords);
+        return 0.0;
+    }
+    
+    /**
+     * returns a lower bound on the distance from a point to the membranes
+     * of an object in the spatial optimisation map. used by 
+     * getGridBarrierDistance().
+     * 
+     * @param obj the object
+     * @param subsCoords position in substrate coords
+     * 
+     * @return zero by default. override for the substrate's objects.
+     */
+    protected double getMembraneDistance(SubstrateObject obj, double[] subsCoords){
         
-        // get intersecting subvoxels
-        assembleSubVoxelList(subsCoords, step);
-
+        return 0.0;
     }
     
     /**
-     * are there more candidates to check?
+     * finds a lower bound on the distance from a point to the nearest 
+     * object in the spatial optimisation map. 
      * 
-     * @return
+     * Each subvoxel's clearance is its chessboard distance, in subvoxels,
+     * to the nearest subvoxel with objects in it. A point in an empty 
+     * subvoxel is at least one less than that many subvoxel widths, plus
+     * its distance to the walls of its own subvoxel, from any object. In 
+     * a subvoxel with objects in it, the objects in it and its neighbours
+     * are checked.
+     * 
+     * @param subsCoords position in substrate coords
+     * 
+     * @return lower bound on distance, zero if there's no map
      */
-    public final boolean moreCandidates(){
+    protected final double getGridBarrierDistance(double[] subsCoords){
+        
+        final ClearanceField field= getClearanceField();
+        
+        if(field==null){
+            return 0.0;
+        }
+        
+        final SubVoxelMap map= field.map;
+        
+        int i= Math.min(Math.max((int)Math.floor(subsCoords[0]/s[0]), 0), n[0]-1);
+        int j= Math.min(Math.max((int)Math.floor(subsCoords[1]/s[1]), 0), n[1]-1);
+        int k= Math.min(Math.max((int)Math.floor(subsCoords[2]/s[2]), 0), n[2]-1);
+        
+        // distance to the walls of the subvoxel
+        double wall= Math.min(subsCoords[0]-i*s[0], (i+1)*s[0]-subsCoords[0]);
+        wall= Math.min(wall, Math.min(subsCoords[1]-j*s[1], (j+1)*s[1]-subsCoords[1]));
+        wall= Math.min(wall, Math.min(subsCoords[2]-k*s[2], (k+1)*s[2]-subsCoords[2]));
+        wall= Math.max(wall, 0.0);
         
+        final double smin= Math.min(s[0], Math.min(s[1], s[2]));
         
-        if(currentSubVox<subVoxListLength){
-            int index= candidateSubVox[currentSubVox];
-            if(objIndex<voxToObjects[index].length){
-                return true;
+        final int rings= field.rings[getSubVoxelIndex(i, j, k)];
+        
+        if(rings==ClearanceField.FAR){
+            return Double.MAX_VALUE;
+        }
+        
+        if(rings>0){
+            return wall+(rings-1)*smin;
+        }
+        
+        // objects in this subvoxel or its neighbours are the only ones within a subvoxel of its walls
+        double dist= wall+smin;
+        
+        for(int kk=Math.max(k-1, 0); kk<=Math.min(k+1, n[2]-1); kk++){
+            for(int jj=Math.max(j-1, 0); jj<=Math.min(j+1, n[1]-1); jj++){
+                for(int ii=Math.max(i-1, 0); ii<=Math.min(i+1, n[0]-1); ii++){
+                    
+                    int index= getSubVoxelIndex(ii, jj, kk);
+                    
+                    for(int o=map.start[index]; o<map.end[index]; o++){
+                        dist= Math.min(dist, getMembraneDistance(map.objects[o], subsCoords));
+                    }
+                }
             }
         }
         
-        return false;
+        return dist;
     }
     
-    /** 
-     * get the next substrate object in the candidate list
+    /**
+     * returns the clearance of the subvoxels in the current spatial 
+     * optimisation map, making it if the map is new or has been changed
+     * since the field was made.
      * 
-     * @return next object
+     * @return clearance field, null if there's no map
      */
-    public SubstrateObject nextCandidate(){
+    private ClearanceField getClearanceField(){
         
-        // get line to read along
-        int index= candidateSubVox[currentSubVox];
+        final SubVoxelMap map= voxToObjects;
         
-        // space to store return value
-        SubstrateObject lastObj= voxToObjects[index][objIndex];
-        SubstrateObject nextObj=null;
-        boolean alreadyChecked=true;
+        ClearanceField field= clearance;
         
-        while(alreadyChecked){
+        if((map==null)||!spatialOptInitialised){
+            return null;
+        }
+        
+        if((field==null)||(field.map!=map)||(field.version!=map.version)){
+            synchronized(this){
+                field= clearance;
+                
+                if((field==null)||(field.map!=map)||(field.version!=map.version)){
+                    field= new ClearanceField(map, n);
+                    clearance= field;
+                }
+            }
+        }
+        
+        return field;
+    }
+    
+    /**
+     * the chessboard distance, in subvoxels, from each subvoxel of a 
+     * spatial optimisation map to the nearest subvoxel with anything in 
+     * it. found with a forward and a backward raster pass over the grid.
+     */
+    private static final class ClearanceField{
+        
+        /** clearance of a subvoxel when the whole map is empty */
+        static final int FAR= Integer.MAX_VALUE/2;
+        
+        /** the map */
+        final SubVoxelMap map;
+        
+        /** version of the map the field was made from */
+        final int version;
+        
+        /** clearance of each subvoxel */
+        final int[] rings;
+        
+        ClearanceField(SubVoxelMap map, int[] n){
             
+            this.map= map;
+            this.version= map.version;
+            this.rings= new int[map.numSubVoxels()];
             
-            nextObj=voxToObjects[index][objIndex++];
-        
+            for(int c=0; c<rings.length; c++){
+                rings[c]= map.isEmpty(c)?FAR:0;
+            }
             
+            final int nx= n[0], ny= n[1], nz= n[2];
             
-            if(objIndex>=voxToObjects[index].length){
-                currentSubVox++;
-                objIndex=0;
+            // forward pass takes the neighbours before each subvoxel
+            for(int k=0; k<nz; k++){
+                for(int j=0; j<ny; j++){
+                    for(int i=0; i<nx; i++){
+                        relax(i, j, k, nx, ny, nz, -1);
+                    }
+                }
             }
             
-            // check if we've already done this one
-            alreadyChecked=false;
-            for(int i=0; i<checkedLength; i++){
-                if(checked[i]==nextObj){
-                	nextObj=null;
-                    break;
+            // backward pass takes the neighbours after it
+            for(int k=nz-1; k>=0; k--){
+                for(int j=ny-1; j>=0; j--){
+                    for(int i=nx-1; i>=0; i--){
+                        relax(i, j, k, nx, ny, nz, 1);
+                    }
                 }
             }
+        }
+        
+        /**
+         * updates the clearance of a subvoxel from the half of its 
+         * neighbours on one side of it in raster order
+         */
+        private void relax(int i, int j, int k, int nx, int ny, int nz, int dir){
+            
+            final int c= i+nx*j+nx*ny*k;
             
-            // this is here to catch the case where the last n objects 
-            // in the list have all been checked before. 
-            if(currentSubVox==subVoxListLength){
-                //nextObj=lastObj;
-                break;
+            int best= rings[c];
+            
+            if(best==0){
+                return;
             }
-
-            index= candidateSubVox[currentSubVox];
             
-            // check if we've already done this one
-            alreadyChecked=false;
-            for(int i=0; i<checkedLength; i++){
-                if(checked[i]==nextObj){
-                    alreadyChecked=true;
+            for(int dk=-1; dk<=1; dk++){
+                for(int dj=-1; dj<=1; dj++){
+                    for(int di=-1; di<=1; di++){
+                        
+                        // neighbour's position in raster order relative to this one
+                        int order= (dk!=0)?dk:((dj!=0)?dj:di);
+                        
+                        if(order!=dir){
+                            continue;
+                        }
+                        
+                        int ii= i+di, jj= j+dj, kk= k+dk;
+                        
+                        if((ii<0)||(ii>=nx)||(jj<0)||(jj>=ny)||(kk<0)||(kk>=nz)){
+                            continue;
+                        }
+                        
+                        best= Math.min(best, rings[ii+nx*jj+nx*ny*kk]+1);
+                    }
                 }
             }
+            
+            rings[c]= best;
         }
+    }
+    
+    /**
+     * switches between a single shared traversal context and per-thread
+     * contexts.
+     * 
+     * @param parallel true if walkers will be updated from several threads
+     */
+    public final void setParallelTraversal(boolean parallel){
         
-        if(nextObj!=null){
-        	checked[checkedLength++]=nextObj;
+        if(parallel && !supportsParallelTraversal()){
+            throw new LoggedException("substrate "+this.getClass().getName()+" does not support parallel traversal");
         }
         
-        return nextObj;
+        this.parallelTraversal= parallel;
     }
     
     
@@ -1278,14 +1630,8 @@ public abstract class Substrate{
     					continue;
     				}
     				
-    				SubstrateObject[] subsObj= voxToObjects[index];
-    				
-    				if(subsObj==null){
-    					continue;
-    				}
-    				
-    				for(int o=0; o<subsObj.length; o++){
-    					double distToObj= subsObj[o].getDistanceFrom(r0);
+    				for(int o=voxToObjects.start[index]; o<voxToObjects.end[index]; o++){
+    					double distToObj= voxToObjects.objects[o].getDistanceFrom(r0);
     					
     					if(distToObj<minDist){
     						minDist=distToObj;
@@ -1514,15 +1860,15 @@ public abstract class Substrate{
         substrate.initialiseSpatialOptimisation(n);
         
         // check contents of spatial optimisation map
-        SubstrateObject[][] optMap= substrate.voxToObjects;
+        SubVoxelMap optMap= substrate.voxToObjects;
         
-        System.err.println("optMap has "+optMap.length+" entries:");
-        for(int i=0; i<optMap.length; i++){
+        System.err.println("optMap has "+optMap.numSubVoxels()+" entries:");
+        for(int i=0; i<optMap.numSubVoxels(); i++){
             System.err.print(i+") ");
-            if(optMap[i]!=null){
-                System.err.print("["+optMap[i].length+"] ");
-                for(int j=0; j<optMap[i].length; j++){
-                    System.err.print(optMap[i][j]+" ");
+            if(!optMap.isEmpty(i)){
+                System.err.print("["+optMap.size(i)+"] ");
+                for(int j=0; j<optMap.size(i); j++){
+                    System.err.print(optMap.get(i, j)+" ");
                 }
                 System.err.println();
             }
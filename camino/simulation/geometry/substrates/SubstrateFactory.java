@@ -52,6 +52,7 @@ public class SubstrateFactory {
         
         // misc substrates
         TRI_PLY_MESH,         /** triangular mesh from PLY file */
+        TRI_PLY_INSTANCED,    /** rigidly transformed copies of a few PLY meshes */
         EMPTY                 /** substrate containing nothing at all */
     }
     
@@ -88,6 +89,9 @@ public class SubstrateFactory {
         else if(substrateType==SubstrateType.TRI_PLY_MESH){
         	return new MeshSubstrate(simParams);
         }
+        else if(substrateType==SubstrateType.TRI_PLY_INSTANCED){
+        	return new InstancedMeshSubstrate(simParams);
+        }
         else if(substrateType==SubstrateType.CYL_1_PERC){
         	return new PercolationSubstrate(simParams);
         	
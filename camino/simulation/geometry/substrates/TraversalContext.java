@@ -0,0 +1,577 @@
+package simulation.geometry.substrates;
+
+import java.util.Arrays;
+
+import simulation.DiffusionSimulation;
+import simulation.SimulationParams;
+import simulation.dynamics.StepGeneratorFactory.StepType;
+import simulation.geometry.elements.SubstrateObject;
+import simulation.geometry.substrates.SubstrateFactory.SubstrateType;
+import tools.CL_Initializer;
+
+/**
+ * per-thread scratch space for barrier checking on a substrate.
+ *
+ * the substrate objects and spatial optimisation map are
+ * read-only once a simulation is running, but step amendment
+ * and the candidate list traversal used by crossesMembrane() need
+ * a fair amount of mutable working space. That space lives here
+ * so that several threads can amend steps on the same substrate
+ * at the same time, each with its own context.
+ *
+ * In serial simulations the substrate owns a single context and
+ * behaviour is unchanged.
+ *
+ */
+public class TraversalContext {
+
+    /** dimensionality of space */
+    private static final int D= DiffusionSimulation.D;
+
+    /** the substrate we're traversing */
+    private final Substrate substrate;
+
+    /** space to store normal */
+    final double[] normal= new double[D];
+
+    /** space to store amended step */
+    final double[] amended= new double[D];
+
+    /** space to store unamended step */
+    final double[] unamended= new double[D];
+
+    /** space to store step to barrier */
+    final double[] toBarrier= new double[D];
+
+    /** space for amended step */
+    final double[] newStep= new double[D];
+
+    /** space to store membrane distance */
+    final double[] d= new double[1];
+
+    /** space to store intracellular flag */
+    final boolean[] in= new boolean[1];
+
+    /** membrane transition probability */
+    final double[] p= new double[1];
+
+    /** space to store barrier transition steps */
+    final double[] transition= new double[D];
+
+    /** space to store position of walker on substrate */
+    public final double[] subsCoords= new double[D];
+
+    /** initial pos */
+    private final double[] px= new double[D];
+
+    /** final pos */
+    private final double[] qx= new double[D];
+
+    /** gradient vector */
+    private final double[] du= new double[D];
+
+    /** increment test vector */
+    private final double[] e= new double[D];
+
+    /** increment factor vector */
+    private final double[] r= new double[D];
+
+    /** initial subvoxel */
+    private final int[] cp= new int[D];
+
+    /** unreflected subvoxel coords */
+    private final int[] ctrue= new int[D];
+
+    /** final subvoxel */
+    private final int[] cq= new int[D];
+
+    /** flags indicating reflection symmetry true= flipped */
+    private final boolean[] flipped= new boolean[D];
+
+    /** space to store latest list of candidates for intersection testing */
+    private int[] candidateSubVox= null;
+
+    /** if we're iterating through a list of candidates, this is the line we're on */
+    private int currentSubVox=-1;
+
+    /** number of candidates in current list */
+    private int subVoxListLength=0;
+
+    /** index in the map's object array of the next object to return */
+    private int objIndex=-1;
+
+    /** end of the current subvoxel in the map's object array */
+    private int objEnd=-1;
+
+    /** 
+     * traversal in which each object (by id) was last returned. an object
+     * has already been checked if its stamp is the current epoch.
+     */
+    private int[] stamp= null;
+
+    /** number of the current traversal */
+    private int epoch=0;
+
+    /** spatial optimisation map the stamp array was sized for */
+    private SubVoxelMap stampMap= null;
+
+    /** version of that map when the stamp array was sized */
+    private int stampVersion= 0;
+
+    /** spatial optimisation map the current candidates come from */
+    private SubVoxelMap map= null;
+
+    /** true if candidates come from a bounding volume hierarchy rather than the grid */
+    private boolean usingList= false;
+
+    /** candidates found by the last hierarchy query */
+    private SubstrateObject[] list= null;
+
+    /** number of candidates in list */
+    private int listLength=0;
+
+    /** position in list */
+    private int listIndex=0;
+
+    /** traversal stack for hierarchy queries */
+    private int[] stack= null;
+
+    /** number of barrier checks made with this context */
+    public long barrierChecks=0;
+
+    /** number of candidate objects tested in those checks */
+    public long candidatesTested=0;
+
+    /** number of steps made on this thread without barrier checks, inside a safe radius */
+    public long safeSteps=0;
+
+    /** number of steps made on this thread by walkers with safe radii that were checked */
+    public long testedSteps=0;
+
+    /**
+     * object to skip on the next barrier check, if any. used by substrates
+     * that need to remember the last object crossed between calls to
+     * crossesMembrane() during a single amendment.
+     */
+    public SubstrateObject skipping= null;
+
+    /**
+     * instance the skipping object belongs to on instanced mesh
+     * substrates, where the same triangle appears in every copy of a mesh
+     */
+    public int skippingInstance= -1;
+
+    /** instances found by the last query of an instanced mesh substrate's top-level hierarchy */
+    int[] instances= null;
+
+    /** traversal stack for top-level hierarchy queries */
+    int[] instanceStack= null;
+
+    /** walker position in the frame of the instance being tested */
+    final double[] localPos= new double[D];
+
+    /** step in the frame of the instance being tested */
+    final double[] localStep= new double[D];
+
+    /** nearest crossing found by the last barrier check on indexed parallel cylinders */
+    final ParallelCylinderIndex.Crossing cylCrossing= new ParallelCylinderIndex.Crossing();
+
+    /**
+     * true if the crossing found by the last barrier check is with the
+     * substrate boundary rather than a membrane. used by substrates that
+     * don't set Substrate.intersectsBoundary.
+     */
+    public boolean intersectsBoundary= false;
+
+
+    /**
+     * constructor.
+     *
+     * @param substrate the substrate this context traverses
+     * @param p initial membrane permeability
+     */
+    TraversalContext(Substrate substrate, double p){
+        this.substrate= substrate;
+        this.p[0]= p;
+    }
+
+
+    /**
+     * makes sure the candidate list and stamp array are large enough for 
+     * the substrate's current spatial optimisation grid, and starts a new
+     * epoch. the grid can be reinitialised after a context is constructed, 
+     * so sizes are checked on each traversal.
+     */
+    private final void checkCapacity(){
+
+        final SubVoxelMap voxToObjects= substrate.voxToObjects;
+
+        if((candidateSubVox==null)||(candidateSubVox.length<voxToObjects.numSubVoxels())){
+            candidateSubVox= new int[voxToObjects.numSubVoxels()];
+        }
+
+        // dynamic maps can gain objects without being replaced
+        if((stampMap!=voxToObjects)||(stampVersion!=voxToObjects.version)){
+            int numIds= substrate.assignObjectIds();
+
+            if((stamp==null)||(stamp.length<numIds)){
+                stamp= new int[Math.max(numIds, 16)];
+                epoch=0;
+            }
+
+            stampMap= voxToObjects;
+            stampVersion= voxToObjects.version;
+        }
+
+        map= voxToObjects;
+
+        // stamps from previous traversals are all less than the new epoch
+        if(epoch==Integer.MAX_VALUE){
+            Arrays.fill(stamp, 0);
+            epoch=0;
+        }
+        epoch++;
+    }
+
+
+    /**
+     * having found the index of a subvoxel to add to the
+     * candidates list, this method does the adding. New
+     * entries are checked to make sure that the particular
+     * subvoxel contains objects. if no objects, they aren't
+     * added to the list.
+     *
+     * @param c the subvoxel coords to add
+     */
+    private final void report(int[] c){
+
+        final int[] n= substrate.n;
+
+        // ignore cells that are off the edges of the substrate
+        for(int i=0; i<c.length; i++){
+            if(c[i]>=n[i]){
+                return;
+            }
+            if(c[i]<0){
+                return;
+            }
+        }
+
+        int index= substrate.getSubVoxelIndex(c[0], c[1], c[2]);
+
+        if(!map.isEmpty(index)){
+            candidateSubVox[subVoxListLength]=index;
+            subVoxListLength++;
+        }
+
+    }
+
+
+    /**
+     * calculates a list of indicies of subvoxels that are
+     * intersected by a given step made by a walker.
+     *
+     * @see Substrate#assembleSubVoxelList(double[], double[])
+     *
+     * @param subsCoords coordinates of the walker in substrate
+     * @param step step vector to test
+     */
+    final void assembleSubVoxelList(double[] subsCoords, double[] step){
+
+        final double[] L= substrate.L;
+        final double[] s= substrate.s;
+        final int[] n= substrate.n;
+
+        checkCapacity();
+
+        usingList=false;
+        subVoxListLength=0;
+
+        // initialise vectors
+        for(int j=0; j<D; j++){
+
+            // initialise starting pos and gradients, reflecting if negative
+            if(step[j]<0){
+                flipped[j]=true;
+                px[j]=L[j]-subsCoords[j];
+                qx[j]= px[j]-step[j];
+                du[j]=-step[j];
+            }
+            else{
+                flipped[j]=false;
+                px[j]=subsCoords[j];
+                qx[j]= px[j]+step[j];
+                du[j]=step[j];
+            }
+
+            // initialise starting cell
+            cp[j]= (int)(px[j]/s[j]);
+
+            // initialise end cell
+            cq[j]= (int)(qx[j]/s[j]);
+
+            // initialise unflipped cell
+            ctrue[j]=(int)(subsCoords[j]/s[j]);
+
+            if(flipped[j]){
+            	/* if we're flipped, it's possible that rounding error can introduce
+            	 * a discrepancy between the flipped and unflipped box coordinates.
+            	 * In this case we trust the unflipped coordinate, ctrue.
+            	 */
+            	if(cp[j]!=(n[j]-1)-ctrue[j]){
+            		cp[j]=(n[j]-1)-ctrue[j];
+            	}
+        	}
+
+            // initialise update test vector
+            e[j]= ((cp[j]+1)*s[j]-px[j])/du[j];
+
+            // need to take care of the -Infinities that can occur if du[j]=-0.0
+            if(Double.isInfinite(e[j])||Double.isNaN(e[j])){
+            	e[j]=Double.MAX_VALUE;
+            }
+
+            r[j]=s[j]/du[j];
+            // need to take care of the -Infinities that can occur if du[j]=-0.0
+            if(Double.isInfinite(r[j])||Double.isNaN(r[j])){
+            	e[j]=Double.MAX_VALUE;
+            }
+
+        }
+
+        // report ctrue;
+        report(ctrue);
+
+        // main loop
+        while(!((cp[0]==cq[0])&&(cp[1]==cq[1])&&(cp[2]==cq[2]))){
+
+            // find smallest e[j]
+            double smallest =e[0];
+            int smallestJ =0;
+            for(int j=1; j<D; j++){
+                if(e[j]<smallest){
+                    smallest=e[j];
+                    smallestJ= j;
+                }
+            }
+
+            // update subvoxel coord
+            cp[smallestJ]++;
+
+            // the true (unflipped) coord
+            if(flipped[smallestJ]){
+                // if flipped, we're going downwards
+                ctrue[smallestJ]--;
+            }
+            else{
+                // otherwise we're just doing the same as cp
+                ctrue[smallestJ]++;
+            }
+
+            e[smallestJ]+=r[smallestJ];
+
+
+            // move
+            report(ctrue);
+        }
+
+        // start at the first object of the first subvoxel
+        currentSubVox=0;
+
+        if(subVoxListLength>0){
+            objIndex= map.start[candidateSubVox[0]];
+            objEnd= map.end[candidateSubVox[0]];
+        }
+
+    }
+
+
+    /**
+     * finds the candidates for a step with a bounding volume hierarchy
+     * instead of the subvoxel grid.
+     *
+     * @param bvh the hierarchy
+     * @param subsCoords coordinates of the walker in substrate
+     * @param step step vector to test
+     * @param R walker radius
+     */
+    final void assembleCandidateList(TriangleBVH bvh, double[] subsCoords, double[] step, double R){
+
+        if((list==null)||(list.length<bvh.size())){
+            list= new SubstrateObject[bvh.size()];
+        }
+        if((stack==null)||(stack.length<bvh.getDepth())){
+            stack= new int[bvh.getDepth()];
+        }
+
+        usingList=true;
+        listLength= bvh.findCandidates(subsCoords, step, R, stack, list);
+        listIndex=0;
+    }
+
+
+    /**
+     * are there more candidates to check?
+     *
+     * @return true if the candidate list is not exhausted
+     */
+    final boolean moreCandidates(){
+
+        if(usingList){
+            return listIndex<listLength;
+        }
+
+        // listed subvoxels aren't empty, and we move on when one is finished
+        return currentSubVox<subVoxListLength;
+    }
+
+
+    /**
+     * get the next substrate object in the candidate list
+     *
+     * @return next object, or null if all remaining objects have been checked
+     */
+    final SubstrateObject nextCandidate(){
+
+        if(usingList){
+            // hierarchy candidates are already unique
+            return list[listIndex++];
+        }
+
+        SubstrateObject nextObj= map.objects[objIndex++];
+
+        if(objIndex>=objEnd){
+            currentSubVox++;
+
+            if(currentSubVox<subVoxListLength){
+                objIndex= map.start[candidateSubVox[currentSubVox]];
+                objEnd= map.end[candidateSubVox[currentSubVox]];
+            }
+        }
+
+        // objects spanning several subvoxels are only returned the first time
+        final int id= nextObj.getId();
+
+        if(stamp[id]==epoch){
+            return null;
+        }
+
+        stamp[id]=epoch;
+
+        return nextObj;
+    }
+
+
+
+    /**
+     * microbenchmark of candidate traversal on the subvoxel grid of a
+     * mesh. Steps in random directions from uniformly distributed points
+     * cross several subvoxels, so the same triangles turn up many times.
+     * Each step's candidates are deduplicated by the epoch stamps, and
+     * for comparison by searching a list of the objects already returned,
+     * which is what the traversal used to do. both must find the same
+     * number of distinct candidates.
+     *
+     * usage: TraversalContext plyfile [steps] [subvoxels per axis]
+     */
+    public static void main(String[] args){
+
+        SimulationParams.sim_plyfile= args[0];
+        int numSteps= (args.length>1)?Integer.parseInt(args[1]):100000;
+        int gridSize= (args.length>2)?Integer.parseInt(args[2]):48;
+
+        SimulationParams simParams= new SimulationParams(1, 1000, 0.0, SimulationParams.UNIFORM,
+                SubstrateType.TRI_PLY_MESH, StepType.FIXEDLENGTH, 1.5, 0.1);
+
+        MeshSubstrate subs= new MeshSubstrate(simParams);
+        subs.initialiseSpatialOptimisation(new int[]{gridSize, gridSize, gridSize});
+
+        TraversalContext context= subs.getContext();
+
+        double[] L= subs.getSubstrateSize();
+        double[] pos= new double[D];
+        double[] step= new double[D];
+
+        SubstrateObject[] seen= new SubstrateObject[16];
+
+        double[] subvoxels= new double[]{1.0, 4.0, 16.0};
+
+        for(int l=0; l<subvoxels.length; l++){
+
+            double len= subvoxels[l]*subs.s[0];
+
+            long stampTime=0, listTime=0;
+            long stampCount=0, listCount=0, visits=0;
+
+            // two passes, the first to warm up
+            for(int pass=0; pass<2; pass++){
+
+                java.util.Random rng= new java.util.Random(CL_Initializer.seed);
+
+                stampTime=0;
+                listTime=0;
+                stampCount=0;
+                listCount=0;
+                visits=0;
+
+                for(int i=0; i<numSteps; i++){
+
+                    double theta= 2.0*Math.PI*rng.nextDouble();
+                    double cosPhi= 2.0*rng.nextDouble()-1.0;
+                    double sinPhi= Math.sqrt(1.0-cosPhi*cosPhi);
+
+                    step[0]= len*Math.cos(theta)*sinPhi;
+                    step[1]= len*Math.sin(theta)*sinPhi;
+                    step[2]= len*cosPhi;
+
+                    for(int j=0; j<D; j++){
+                        pos[j]= L[j]*rng.nextDouble();
+                    }
+
+                    long start= System.nanoTime();
+                    context.assembleSubVoxelList(pos, step);
+                    while(context.moreCandidates()){
+                        if(context.nextCandidate()!=null){
+                            stampCount++;
+                        }
+                    }
+                    stampTime+= System.nanoTime()-start;
+
+                    start= System.nanoTime();
+                    context.assembleSubVoxelList(pos, step);
+                    int numSeen=0;
+                    for(int v=0; v<context.subVoxListLength; v++){
+                        SubVoxelMap map= subs.voxToObjects;
+                        int cell= context.candidateSubVox[v];
+
+                        for(int o=map.start[cell]; o<map.end[cell]; o++){
+                            SubstrateObject obj= map.objects[o];
+                            boolean already=false;
+                            for(int k=0; k<numSeen; k++){
+                                if(seen[k]==obj){
+                                    already=true;
+                                    break;
+                                }
+                            }
+                            visits++;
+
+                            if(!already){
+                                if(numSeen==seen.length){
+                                    seen= Arrays.copyOf(seen, 2*seen.length);
+                                }
+                                seen[numSeen++]= obj;
+                            }
+                        }
+                    }
+                    listCount+= numSeen;
+                    listTime+= System.nanoTime()-start;
+                }
+            }
+
+            System.err.println("step of "+subvoxels[l]+" subvoxels: "+((double)visits/numSteps)+" objects visited and "
+                    +((double)stampCount/numSteps)+" distinct per step. epoch stamps "+((double)stampTime/numSteps)
+                    +" ns per step, list search "+((double)listTime/numSteps)+" ns per step. counts agree= "+(stampCount==listCount));
+        }
+    }
+
+}
@@ -0,0 +1,509 @@
+package simulation.geometry.substrates;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import simulation.DiffusionSimulation;
+import simulation.geometry.elements.SubstrateObject;
+import simulation.geometry.elements.Triangle;
+
+/**
+ * bounding volume hierarchy over the triangles of a mesh. this is an
+ * alternative to the regular subvoxel grid for finding the triangles a
+ * step might cross.
+ *
+ * A grid works well when triangles are spread evenly over the substrate.
+ * Neuron meshes aren't like that. Most cells of a coarse grid are empty,
+ * while the few that contain the cell body or dense processes hold
+ * thousands of triangles, and every step that enters them tests all of
+ * them. A BVH adapts to the mesh instead. Each node's box bounds its
+ * triangles, and a step only descends into nodes whose box it passes
+ * through.
+ *
+ * The tree is built top-down with the surface area heuristic (SAH),
+ * using binned centroids. A split is chosen to minimise the expected
+ * number of nodes visited plus triangles tested by a random segment.
+ *
+ * The tree is flattened into primitive arrays. The first child of an
+ * interior node immediately follows it, and the node stores the index of
+ * the second child. A leaf stores the position of its triangles in a
+ * reordered triangle array. Queries need only a small stack, which the
+ * caller provides, so a tree can be shared between threads.
+ *
+ */
+public class TriangleBVH {
+
+    /** logging object */
+    private static final Logger logger= Logger.getLogger("simulation.geometry.substrates.TriangleBVH");
+
+    /** dimensionality of space */
+    private static final int D= DiffusionSimulation.D;
+
+    /** number of centroid bins per axis when evaluating splits */
+    private static final int BINS= 16;
+
+    /** nodes with this many triangles or fewer are always leaves */
+    private static final int MIN_LEAF= 2;
+
+    /** largest leaf made because splitting doesn't pay */
+    private static final int MAX_LEAF= 8;
+
+    /** cost of visiting a node relative to testing a triangle */
+    private static final double TRAVERSAL_COST= 1.0;
+
+    /** node bounds, 2*D values per node: the minimum corner then the maximum */
+    private double[] bounds;
+
+    /** leaves: index of first triangle. interior nodes: index of second child */
+    private int[] offset;
+
+    /** number of triangles in a leaf, zero for interior nodes */
+    private int[] count;
+
+    /** number of nodes */
+    private int numNodes=0;
+
+    /** depth of deepest leaf (root has depth 1) */
+    private int depth=0;
+
+    /** triangles in leaf order */
+    private final Triangle[] tri;
+
+    /** padding added to node boxes to absorb rounding error */
+    private final double tol;
+
+    /** triangle bounding boxes during construction, 2*D values per triangle */
+    private double[] triBounds;
+
+    /** triangle centroids during construction */
+    private double[] centroid;
+
+    /** permutation of triangles during construction */
+    private int[] index;
+
+
+    /**
+     * builds a hierarchy over a set of triangles.
+     *
+     * @param objs triangles (all must be Triangles)
+     */
+    public TriangleBVH(SubstrateObject[] objs){
+
+        final int n= objs.length;
+
+        long start= System.nanoTime();
+
+        triBounds= new double[2*D*n];
+        centroid= new double[D*n];
+        index= new int[n];
+
+        double maxExtent=0.0;
+
+        for(int i=0; i<n; i++){
+            Triangle t= (Triangle)objs[i];
+
+            for(int j=0; j<D; j++){
+                double lo= Double.MAX_VALUE;
+                double hi= -Double.MAX_VALUE;
+
+                for(int k=0; k<3; k++){
+                    double x= t.getVertexCoord(k, j);
+
+                    lo= Math.min(lo, x);
+                    hi= Math.max(hi, x);
+                }
+
+                triBounds[2*D*i+j]= lo;
+                triBounds[2*D*i+D+j]= hi;
+                centroid[D*i+j]= 0.5*(lo+hi);
+
+                maxExtent= Math.max(maxExtent, Math.abs(hi));
+            }
+
+            index[i]= i;
+        }
+
+        this.tol= 1E-9*maxExtent;
+
+        // a binary tree with at least one triangle per leaf has fewer than 2n nodes
+        int maxNodes= Math.max(2*n-1, 1);
+        bounds= new double[2*D*maxNodes];
+        offset= new int[maxNodes];
+        count= new int[maxNodes];
+
+        if(n>0){
+            build(0, n, 1);
+        }
+        else{
+            // empty root
+            numNodes=1;
+        }
+
+        this.tri= new Triangle[n];
+        for(int i=0; i<n; i++){
+            tri[i]= (Triangle)objs[index[i]];
+        }
+
+        // construction arrays no longer needed
+        triBounds= null;
+        centroid= null;
+        index= null;
+
+        logger.info("bounding volume hierarchy: "+n+" triangles, "+numNodes+" nodes, depth "+depth
+                +", built in "+((System.nanoTime()-start)/1E6)+" ms");
+    }
+
+
+    /**
+     * builds the subtree over triangles index[start] to index[end-1]
+     *
+     * @param start first triangle
+     * @param end index after last triangle
+     * @param level depth of this node
+     *
+     * @return index of the subtree's root node
+     */
+    private int build(int start, int end, int level){
+
+        final int node= numNodes++;
+        final int b= 2*D*node;
+        final int n= end-start;
+
+        depth= Math.max(depth, level);
+
+        // node bounds and centroid bounds
+        double[] cmin= new double[D];
+        double[] cmax= new double[D];
+
+        for(int j=0; j<D; j++){
+            bounds[b+j]= Double.MAX_VALUE;
+            bounds[b+D+j]= -Double.MAX_VALUE;
+            cmin[j]= Double.MAX_VALUE;
+            cmax[j]= -Double.MAX_VALUE;
+        }
+
+        for(int i=start; i<end; i++){
+            final int t= index[i];
+
+            for(int j=0; j<D; j++){
+                bounds[b+j]= Math.min(bounds[b+j], triBounds[2*D*t+j]);
+                bounds[b+D+j]= Math.max(bounds[b+D+j], triBounds[2*D*t+D+j]);
+                cmin[j]= Math.min(cmin[j], centroid[D*t+j]);
+                cmax[j]= Math.max(cmax[j], centroid[D*t+j]);
+            }
+        }
+
+        if(n<=MIN_LEAF){
+            return makeLeaf(node, start, n);
+        }
+
+        // evaluate binned SAH splits along each axis
+        final double nodeArea= area(bounds, b);
+
+        double bestCost= Double.MAX_VALUE;
+        int bestAxis= -1;
+        int bestBin= -1;
+
+        int[] binCount= new int[BINS];
+        double[] binBounds= new double[2*D*BINS];
+        double[] rightArea= new double[BINS];
+        int[] rightCount= new int[BINS];
+        double[] acc= new double[2*D];
+
+        for(int axis=0; axis<D; axis++){
+
+            final double extent= cmax[axis]-cmin[axis];
+
+            if(extent<=0.0){
+                continue;
+            }
+
+            final double scale= BINS/extent;
+
+            Arrays.fill(binCount, 0);
+            for(int k=0; k<BINS; k++){
+                empty(binBounds, 2*D*k);
+            }
+
+            for(int i=start; i<end; i++){
+                final int t= index[i];
+                final int k= bin(centroid[D*t+axis], cmin[axis], scale);
+
+                binCount[k]++;
+                grow(binBounds, 2*D*k, triBounds, 2*D*t);
+            }
+
+            // sweep from the right to get areas and counts of right-hand sides
+            empty(acc, 0);
+            int c=0;
+            for(int k=BINS-1; k>0; k--){
+                c+= binCount[k];
+                grow(acc, 0, binBounds, 2*D*k);
+
+                rightCount[k]= c;
+                rightArea[k]= (c>0)?area(acc, 0):0.0;
+            }
+
+            // sweep from the left, costing each split
+            empty(acc, 0);
+            c=0;
+            for(int k=0; k<BINS-1; k++){
+                c+= binCount[k];
+                grow(acc, 0, binBounds, 2*D*k);
+
+                if((c==0)||(rightCount[k+1]==0)){
+                    continue;
+                }
+
+                double cost= TRAVERSAL_COST+(area(acc, 0)*c+rightArea[k+1]*rightCount[k+1])/nodeArea;
+
+                if(cost<bestCost){
+                    bestCost= cost;
+                    bestAxis= axis;
+                    bestBin= k;
+                }
+            }
+        }
+
+        // make a leaf if splitting doesn't pay and the leaf isn't too big
+        if((bestAxis<0)||((bestCost>=n)&&(n<=MAX_LEAF))){
+            if((bestAxis<0)&&(n>MAX_LEAF)){
+                // all centroids coincide. split down the middle
+                return makeInterior(node, start, start+n/2, end, level);
+            }
+
+            return makeLeaf(node, start, n);
+        }
+
+        // partition triangles about the chosen split
+        final double scale= BINS/(cmax[bestAxis]-cmin[bestAxis]);
+
+        int mid= start;
+        for(int i=start; i<end; i++){
+            final int t= index[i];
+
+            if(bin(centroid[D*t+bestAxis], cmin[bestAxis], scale)<=bestBin){
+                index[i]= index[mid];
+                index[mid]= t;
+                mid++;
+            }
+        }
+
+        if((mid==start)||(mid==end)){
+            mid= start+n/2;
+        }
+
+        return makeInterior(node, start, mid, end, level);
+    }
+
+
+    /**
+     * fills in an interior node and builds its children
+     *
+     * @return node index
+     */
+    private int makeInterior(int node, int start, int mid, int end, int level){
+
+        build(start, mid, level+1);
+
+        offset[node]= build(mid, end, level+1);
+        count[node]= 0;
+
+        return node;
+    }
+
+
+    /**
+     * fills in a leaf node
+     *
+     * @return node index
+     */
+    private int makeLeaf(int node, int start, int n){
+
+        offset[node]= start;
+        count[node]= n;
+
+        return node;
+    }
+
+
+    /**
+     * @return bin index of a centroid coordinate
+     */
+    private static int bin(double x, double min, double scale){
+
+        return Math.min((int)((x-min)*scale), BINS-1);
+    }
+
+
+    /**
+     * sets a box to the empty box
+     */
+    private static void empty(double[] box, int b){
+
+        for(int j=0; j<D; j++){
+            box[b+j]= Double.MAX_VALUE;
+            box[b+D+j]= -Double.MAX_VALUE;
+        }
+    }
+
+
+    /**
+     * grows a box to contain another
+     */
+    private static void grow(double[] box, int b, double[] other, int o){
+
+        for(int j=0; j<D; j++){
+            box[b+j]= Math.min(box[b+j], other[o+j]);
+            box[b+D+j]= Math.max(box[b+D+j], other[o+D+j]);
+        }
+    }
+
+
+    /**
+     * @return surface area of a box
+     */
+    private static double area(double[] box, int b){
+
+        double dx= box[b+D]-box[b];
+        double dy= box[b+D+1]-box[b+1];
+        double dz= box[b+D+2]-box[b+2];
+
+        return 2.0*(dx*dy+dy*dz+dz*dx);
+    }
+
+
+    /**
+     * finds all triangles whose bounding box is passed through by a step,
+     * or comes within a walker radius of it. every triangle the step can
+     * cross is included.
+     *
+     * @param p start of step in substrate coords
+     * @param step step vector
+     * @param rad walker radius
+     * @param stack traversal stack, at least getDepth() long
+     * @param out space for candidates, at least size() long
+     *
+     * @return number of candidates found
+     */
+    public int findCandidates(double[] p, double[] step, double rad, int[] stack, SubstrateObject[] out){
+
+        if(tri.length==0){
+            return 0;
+        }
+
+        final double pad= rad+tol;
+
+        int found=0;
+        int top=0;
+
+        stack[top++]= 0;
+
+        while(top>0){
+
+            final int node= stack[--top];
+
+            if(!segmentHitsBox(node, p, step, pad)){
+                continue;
+            }
+
+            final int n= count[node];
+
+            if(n>0){
+                final int first= offset[node];
+
+                for(int i=0; i<n; i++){
+                    out[found++]= tri[first+i];
+                }
+            }
+            else{
+                // second child goes on the stack first so that the first is visited first
+                stack[top++]= offset[node];
+                stack[top++]= node+1;
+            }
+        }
+
+        return found;
+    }
+
+
+    /**
+     * slab test of the segment p to p+step against a node's box
+     *
+     * @param node node index
+     * @param p start of segment
+     * @param step segment vector
+     * @param pad amount to grow the box by on all sides
+     *
+     * @return true if the segment meets the padded box
+     */
+    private boolean segmentHitsBox(int node, double[] p, double[] step, double pad){
+
+        final int b= 2*D*node;
+
+        double tmin= 0.0;
+        double tmax= 1.0;
+
+        for(int j=0; j<D; j++){
+
+            final double lo= bounds[b+j]-pad;
+            final double hi= bounds[b+D+j]+pad;
+
+            if(step[j]==0.0){
+                if((p[j]<lo)||(p[j]>hi)){
+                    return false;
+                }
+                continue;
+            }
+
+            final double inv= 1.0/step[j];
+
+            double t1= (lo-p[j])*inv;
+            double t2= (hi-p[j])*inv;
+
+            if(t1>t2){
+                double tmp= t1;
+                t1= t2;
+                t2= tmp;
+            }
+
+            if(t1>tmin){
+                tmin= t1;
+            }
+            if(t2<tmax){
+                tmax= t2;
+            }
+
+            if(tmin>tmax){
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * @return number of triangles in the hierarchy
+     */
+    public final int size(){
+        return tri.length;
+    }
+
+
+    /**
+     * @return depth of the deepest leaf, and so the largest traversal
+     *         stack a query can need
+     */
+    public final int getDepth(){
+        return depth+1;
+    }
+
+
+    /**
+     * @return number of nodes in the hierarchy
+     */
+    public final int getNumNodes(){
+        return numNodes;
+    }
+}
@@ -4,13 +4,10 @@ import imaging.DW_Scheme;
 import imaging.RectGradSteTanScheme;
 import imaging.SimulableScheme;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -28,7 +25,9 @@ import numerics.MTRandom;
 
 import simulation.DiffusionSimulation;
 import simulation.SimulationParams;
+import simulation.TrajectoryReader;
 import simulation.dynamics.Walker;
+import simulation.dynamics.WalkerPool;
 import simulation.geometry.substrates.Substrate;
 import simulation.measurement.ScanFactory.ScanType;
 import tools.CL_Initializer;
@@ -63,47 +62,41 @@ public class AgnosticScan implements SyntheticScan {
     /** gyromagnetic ratio */
     private final double GAMMA= DW_Scheme.GAMMA;
     
+    /** one full turn of phase */
+    private static final double TWO_PI= 2*Math.PI;
+    
     /** number of measurements */
     private final int numMeas;
     
+    /** 
+     * index of this scan's first measurement in the walkers' phases. 
+     * non-zero when the scan is part of a scan bank.
+     */
+    private int measOffset=0;
+    
     /** array of walkers updated by simulation main loop */
     private final Walker[] walker;
     
+    /** walker pool, if the simulation keeps walkers in one */
+    private WalkerPool pool=null;
+    
+    /** cursor for reading walkers from the pool */
+    private Walker cursor=null;
+    
     /** the substrate that walkers are contained in */
     private final Substrate substrate;
     
+    /** gradient impulses for each timestep, if compiled */
+    private GradientImpulseTable impulses=null;
+    
+    /** running signal sums over batches of walkers (null if not batched) */
+    private SignalSums batchSums=null;
+    
     /** random number generator */
-    private final MTRandom twister=new MTRandom((1736401757<<32)|(CL_Initializer.seed));
+    private final MTRandom twister=getNoiseGenerator(CL_Initializer.seed);
 
     /** trajfile reader */
-    private DataInputStream trajReader=null;
-    
-    /** trajfile header - duration */
-    private double traj_dur;
-    
-    /** trajfile header - num walkers */
-    private int N_walkers;
-    
-    /** trajfile header - number of timesteps */
-    private double traj_tmax;
-    
-    /** trajfile header - time increment */
-    private double traj_dt;
-    
-    /** a little class that hold a line from a trajfile */
-    private final class TrajFileLine{
-    	
-    	private double t;
-    	private double i;
-    	private double[] r= new double[D];
-    	
-    }
-    
-    /** Array to store the final positions of the walkers*/
-    private TrajFileLine[] finalPosns = null;  
-    
-    /** String storing the trajfile name*/
-    private String trajFileName = null;
+    private TrajectoryReader trajReader=null;
     
     /**
      * constructor. needs scheme.
@@ -132,38 +125,7 @@ public class AgnosticScan implements SyntheticScan {
      */
     public AgnosticScan(SimulableScheme scheme, String trajfile){
     	
-    	this.scheme=scheme;
-    	
-    	numMeas= ((DW_Scheme)scheme).numMeasurements();
-    	
-    	this.walker=null;
-    	
-    	this.substrate=null;
-    	
-    	
-    	// open the trajfile
-    	FileInputStream fStream;
-    	try{
-    		fStream= new FileInputStream(trajfile);
-    	}
-    	catch(IOException ioe){
-    		throw new LoggedException(ioe);
-    	}
-    	
-    	this.trajReader= new DataInputStream(new BufferedInputStream(fStream, 1048576));
-    	
-    	// read the trajfile header
-    	try {
-    		
-            traj_dur = trajReader.readDouble();
-            N_walkers= (int)(trajReader.readDouble());
-            traj_tmax= (int)(trajReader.readDouble());
-            traj_dt= traj_dur/traj_tmax;
-            
-        } catch (IOException ioe) {
-            throw new LoggedException(ioe);
-        }
-    	
+    	this(scheme, trajfile, null);
     }
     
     /**
@@ -172,6 +134,7 @@ public class AgnosticScan implements SyntheticScan {
      * @param scheme simulable scheme to use for synthesis
      * @param trajfile trajectories to use
      * @param substrate the substrate to give info on the volume to generate signal
+     *        (null to count every walker)
      * 
      */
     public AgnosticScan(SimulableScheme scheme, String trajfile, Substrate substrate){
@@ -183,36 +146,8 @@ public class AgnosticScan implements SyntheticScan {
     	
     	this.walker=null;
     	
-    	
-    	
-    	// open the trajfile
-    	FileInputStream fStream;
-    	try{
-    		fStream= new FileInputStream(trajfile);
-    	}
-    	catch(IOException ioe){
-    		throw new LoggedException(ioe);
-    	}
-    	
-    	this.trajReader= new DataInputStream(new BufferedInputStream(fStream, 1048576));
-    	
-    	// read the trajfile header
-    	try {
-    		
-            traj_dur = trajReader.readDouble();
-            N_walkers= (int)(trajReader.readDouble());
-            traj_tmax= (int)(trajReader.readDouble());
-            traj_dt= traj_dur/traj_tmax;
-            
-        } catch (IOException ioe) {
-            throw new LoggedException(ioe);
-        }
-    	
-    	this.finalPosns = new TrajFileLine[N_walkers];
-    	for(int i = 0; i < N_walkers; i++) {
-    		this.finalPosns[i] = new TrajFileLine();
-    	}
-    	this.trajFileName = trajfile;
+    	// open the trajfile and read its header
+    	this.trajReader= new TrajectoryReader(trajfile);
     }
     
     
@@ -220,85 +155,218 @@ public class AgnosticScan implements SyntheticScan {
         // TODO Auto-generated method stub
         double[] signal=new double[numMeas];
         
-        double Sreal;        
-
-        int numIn=0;
-        int numExt=0;
-        
-        double noiseTerm;
-                
+        SignalSums sums= getSignalSums();
                 
         // now calculate the remainder of the signals
         logger.info("generating "+numMeas+" signals");
         for(int i=0; i<numMeas; i++){
+            signal[i]=sums.getCompartmentalSignal(i, intra, twister, CL_Initializer.SNR);
+        }
+        
+        return signal;
+    }
+    
+    
+    /**
+     * constructs the generator that noise is drawn from when signals are
+     * read out. Anything that reads out signals from signal sums needs
+     * the same generator to reproduce the scan's noise.
+     * 
+     * @param seed random seed
+     * 
+     * @return a new noise generator
+     */
+    public static MTRandom getNoiseGenerator(int seed){
+        return new MTRandom((1736401757<<32)|(seed));
+    }
+    
+    /**
+     * adds the first n walkers' contributions to the running signal 
+     * sums. Once this has been called, signals are read out from the
+     * running sums rather than the current walkers, so the walkers can 
+     * be reinitialised for the next batch.
+     * 
+     * @param n number of walkers in the batch
+     */
+    public void accumulateSignals(int n){
+        
+        if(batchSums==null){
+            batchSums= new SignalSums(numMeas);
+        }
+        
+        addWalkers(batchSums, n);
+    }
+    
+    /**
+     * discards the running signal sums, ready for a new set of batches.
+     */
+    public void resetSignalSums(){
+        batchSums= null;
+    }
+    
+    /**
+     * @return the running sums if walkers have been accumulated in 
+     *         batches, otherwise sums over the current walkers
+     */
+    public SignalSums getSignalSums(){
+        
+        if(batchSums!=null){
+            return batchSums;
+        }
+        
+        SignalSums sums= new SignalSums(numMeas);
+        
+        addWalkers(sums, numWalkers());
+        
+        return sums;
+    }
+    
+    /**
+     * adds the contributions of the first n walkers to a set of signal
+     * sums. walkers outside the voxel are left out of the signals, but
+     * not the compartmental signals.
+     * 
+     * @param sums the sums to add to
+     * @param n number of walkers
+     */
+    private final void addWalkers(SignalSums sums, int n){
+        
+        // walkers on the outside so each is bound once. every sum still
+        // adds its walkers in walker order, so the results don't change
+        for(int j=0; j<n; j++){
             
-            // reset the signal sums
-            Sreal=0.0;
-
-            numIn=0;
-            numExt=0;
+            Walker w= getWalker(j);
             
+            boolean inVoxel= substrate.voxelContains(w.r);
             
-            double min=Double.MAX_VALUE;
-            double max=-Double.MAX_VALUE;
-                        
-            for(int j=0; j<walker.length; j++){
+            for(int i=0; i<numMeas; i++){
                 
-                double phi=walker[j].getPhaseShift(i);
+                double phi= getPhaseShift(j, i);
+                double cosPhi= Math.cos(phi);
                 
-                if(phi<min){
-                    min=phi;
+                // compartmental signals count the walker's own compartment twice
+                sums.compIntra[i]+=cosPhi;
+                if(w.intracellular){
+                    sums.compIntra[i]+=cosPhi;
+                }
+                sums.compExtra[i]+=cosPhi;
+                if(!w.intracellular){
+                    sums.compExtra[i]+=cosPhi;
                 }
                 
-                if(phi>max){
-                    max=phi;
+                // if this walker isn't in the voxel, skip it
+                if(!inVoxel){
+                    continue;
                 }
                 
+                double M= Math.exp(w.getLogMagnetisation(measOffset+i));
+                double sinPhi= Math.sin(phi);
+                
                 // add to sum of signals 
-                Sreal+=Math.cos(phi);
-               
+                sums.total[i]+=M*cosPhi;
+                sums.totalImag[i]+=M*sinPhi;
+                
                 // check if the signals come from intra
                 // or extra cellular compartments and
                 // update the appropriate signal
-                if((substrate.intracellular(walker[j]))==intra){
-                    Sreal+=Math.cos(phi);
-                    
-                    numIn++;
+                if(w.intracellular){
+                    sums.intra[i]+=M*cosPhi;
+                    sums.intraImag[i]+=M*sinPhi;
+                    sums.numIn[i]++;
+                }
+                else{
+                    sums.extra[i]+=M*cosPhi;
+                    sums.extraImag[i]+=M*sinPhi;
+                    sums.numExt[i]++;
                 }
             }
+        }
+        
+        sums.numWalkers+=n;
+    }
 
-            
-            noiseTerm=0.0;
-            
-            double snr= CL_Initializer.SNR;
-            double noiseDev= 0.0;
-            
-            if(snr>0.0){
-                noiseDev=((double)walker.length)/snr;
-            }
-            
-            // add noise to net signal
-            if(snr>0.0){
-                noiseTerm=twister.nextGaussian()*noiseDev;
-            }
-            Sreal+=noiseTerm;
-
-            if(snr>0.0){
-                noiseTerm=twister.nextGaussian()*noiseDev;              
-            }
-            
-            // take modulus of real and imaginary parts to provide measured signal
-            signal[i]=Math.sqrt(Sreal*Sreal + noiseTerm*noiseTerm);
-            
+    /**
+     * compiles the scheme's gradient impulses for every timestep. 
+     * 
+     * @param tmax number of timesteps
+     * @param dt duration of a timestep
+     */
+    public void compileImpulseTable(int tmax, double dt){
+        impulses= GradientImpulseTable.compile(scheme, numMeas, tmax, dt);
+    }
+    
+    /**
+     * @return compiled gradient impulses, or null if not compiled
+     */
+    public GradientImpulseTable getImpulseTable(){
+        return impulses;
+    }
+    
+    /**
+     * tells the scan to read walkers from a pool rather than the
+     * walker array it was constructed with.
+     * 
+     * @param pool the simulation's walker pool
+     */
+    public void setWalkerPool(WalkerPool pool){
+        
+        if(pool.numMeas<measOffset+numMeas){
+            throw new LoggedException("walker pool has "+pool.numMeas+
+                    " measurements, scan needs "+(measOffset+numMeas));
         }
         
-        return signal;
+        this.pool=pool;
+        this.cursor=pool.getCursor(null, substrate, null);
     }
     
+    /**
+     * @return the number of walkers in the simulation
+     */
+    private final int numWalkers(){
+        return (pool!=null)?pool.N:walker.length;
+    }
     
-
+    /**
+     * returns a walker from the simulation. walkers in a pool are
+     * read through a cursor, which is only valid until the next call.
+     * 
+     * @param j walker index
+     * 
+     * @return the walker
+     */
+    private final Walker getWalker(int j){
+        return (pool!=null)?cursor.bind(j):walker[j];
+    }
+    
+    /**
+     * @param j walker index
+     * @param i measurement index
+     * 
+     * @return accumulated phase of walker j in measurement i
+     */
+    private final double getPhaseShift(int j, int i){
+        return (pool!=null)?pool.getPhaseShift(j, measOffset+i):walker[j].getPhaseShift(measOffset+i);
+    }
+    
+    /**
+     * places this scan's measurements after those of other scans in the
+     * walkers' phases, so that several scans can share one set of walkers.
+     * 
+     * @param offset index of this scan's first measurement in the walkers
+     * 
+     * @see ScanBank
+     */
+    void setMeasurementOffset(int offset){
+        this.measOffset=offset;
+    }
+    
+    /**
+     * @return index of this scan's first measurement in the walkers
+     */
+    protected final int getMeasurementOffset(){
+        return measOffset;
+    }
     
-
     /** 
      * number of measurements in the scan. same as length of gDirs array
      * 
@@ -331,7 +399,7 @@ public class AgnosticScan implements SyntheticScan {
         }
         
         // mod operation here is rare, but PI is correct, not 2PI (see mapToCircle() comment)
-        return (GAMMA*gradDotPos)%(2*Math.PI);
+        return mapToCircle(GAMMA*gradDotPos);
     }
 
     /**
@@ -359,7 +427,7 @@ public class AgnosticScan implements SyntheticScan {
         }
         
         // mod operation here is rare, but PI is correct, not 2PI (see mapToCircle() comment)
-        return (GAMMA*gradDotPos)%(2*Math.PI);
+        return mapToCircle(GAMMA*gradDotPos);
     }
 
     /** 
@@ -384,8 +452,14 @@ public class AgnosticScan implements SyntheticScan {
     	 * mapping numbers greater than PI but less than 2*PI. They were getting mapped to between
     	 * zero and PI rather than -PI and -0, which resulted in phases with the wrong sign.
     	 * 
+    	 * floating point % is slow and phases are almost always on the circle already, 
+    	 * where it returns its argument unchanged. Checking first gives identical results.
     	 */
-    	return rawPhase%(2*Math.PI);
+    	if(Math.abs(rawPhase)<TWO_PI){
+    		return rawPhase;
+    	}
+    	
+    	return rawPhase%TWO_PI;
     	
     }
     
@@ -403,12 +477,7 @@ public class AgnosticScan implements SyntheticScan {
         
         double[] signal=new double[numMeas];
         
-        double Sreal;
-        double SintReal;
-        double SextReal;
-        
-        int numIn;
-        int numExt;
+        SignalSums sums= getSignalSums();
         
         BufferedWriter phaseWriter= null;
         
@@ -423,81 +492,10 @@ public class AgnosticScan implements SyntheticScan {
         logger.info("generating "+numMeas+" signals");
         for(int i=0; i<numMeas; i++){
             
-            // reset the signal sums
-            Sreal=0.0;
-
-            SintReal=0.0;
-            
-            SextReal=0.0;
-            
-            numIn=0;
-            numExt=0;
-            
-            for(int j=0; j<walker.length; j++){
-                
-                // if this walker isn't in the voxel, skip it
-                if(!substrate.voxelContains(walker[j].r)){
-                    continue;
-                }
-                
-                double phi=walker[j].getPhaseShift(i);
-                double M= Math.exp(walker[j].getLogMagnetisation(i));
-                
-                /*try{
-                	phaseWriter.write(phi+",");
-                }
-                catch(IOException ioe){
-                	throw new LoggedException(ioe);
-                }*/
-                
-                // add to sum of signals 
-                Sreal+=M*Math.cos(phi);
-               
-                // check if the signals come from intra
-                // or extra cellular compartments and
-                // update the appropriate signal
-                if(substrate.intracellular(walker[j])){
-                    SintReal+=M*Math.cos(phi);
-                    
-                    numIn++;
-                }
-                else{
-                    SextReal+=M*Math.cos(phi);
-                    
-                    numExt++;
-                }
-            }
-
-            
-            double noiseTerm=0.0;
-            
-            double snr= CL_Initializer.SNR;
-            double noiseDev= 0.0;
-            
-            if(snr>0.0){
-                noiseDev=((double)walker.length)/snr;
-            }
-            
-            // add noise to net signal
-            if(snr>0.0){
-                noiseTerm=twister.nextGaussian()*noiseDev;
-            }
-            Sreal+=noiseTerm;
-
-            if(snr>0.0){
-                noiseTerm=twister.nextGaussian()*noiseDev;              
-            }
-            
-            // take modulus of real and imaginary parts to provide measured signal
-            if(snr>0.0){
-            	signal[i]=Math.sqrt(Sreal*Sreal + noiseTerm*noiseTerm);
-            }
-            else{
-            	signal[i]=Sreal;
-            }
+            signal[i]=sums.getSignal(i, twister, CL_Initializer.SNR);
             
-            double signalInt= SintReal;
-            double signalExt= SextReal;
+            double signalInt= sums.intra[i];
+            double signalExt= sums.extra[i];
 
             //double b= (GAMMA*delta[i]*G[i])*(GAMMA*delta[i]*G[i])*(DELTA[i]-delta[i]/3);
             double b= ((DW_Scheme)scheme).getB_Value(i);
@@ -505,7 +503,7 @@ public class AgnosticScan implements SyntheticScan {
 
             
             logger.info("signal = "+    signal[i]+"  intra= "+signalInt+
-                    " extra= "+signalExt+" ("+numIn+" in, "+numExt+" out)"+" free = "+Sfree);
+                    " extra= "+signalExt+" ("+sums.numIn[i]+" in, "+sums.numExt[i]+" out)"+" free = "+Sfree);
             
             /*try{
             	phaseWriter.write("\n");
@@ -544,227 +542,18 @@ public class AgnosticScan implements SyntheticScan {
      * TODO: with current trajfile format there is no information about inner&outer 
      * voxel dimensions. Need to add this to traj file header.
      * 
-     * Returns one signal for each line in the scheme file
+     * Returns one signal for each line in the scheme file. Walkers are read
+     * in parallel with -threads.
+     * 
+     * @see TrajectoryScan
      * 
      * @return array of signals
      */
     public double[] getSignalsFromTrajectories(){
     	
-    	// return array for signals
-    	double[] signal= new double[numMeas];
-    	
-    	// array of initial walker positions (N_w x D)
-    	double[][] r0 = new double[N_walkers][D];
-    	
-    	// array of phase shifts - one per walker per signal
-    	double[][] dphi= new double[numMeas][N_walkers];
-    	
-    	// storage for next line in trajfile
-    	TrajFileLine tfl= new TrajFileLine();
-    	
-    	double schemeDuration= scheme.getDuration();
-    	int scheme_tmax= (int)(Math.floor(schemeDuration/traj_dt));
-    	
-    	double tLast=0.0;
-    	
-    	BufferedWriter phaseWriter;
-    	
-        try{
-        	phaseWriter= new BufferedWriter(new FileWriter("phases_traj.csv")); 
-        }
-        catch(IOException ioe){
-        	throw new LoggedException(ioe);
-        }
-        
-    readFinalTrajPosns();
-        
-        
-    	// initial read initial positions and do first update
-    	for(int i=0; i<N_walkers; i++){
-    		readTrajFileLine(tfl);
-    		
-    		if(i!=tfl.i){
-    			throw new LoggedException("traj file reader and contents are out of sync. aborting.");
-    		}
-    		
-    		for(int j=0; j<D; j++){
-    			r0[i][j]=tfl.r[j];
-    		}
-            // if this walker isn't in the voxel, skip it
-        if(!(substrate == null)) { 
-	    		if(!substrate.voxelContains(tfl.r)){
-	                continue;
-	        }
-        }
-    		// set initial value of phase shifts
-    		for(int j=0; j<numMeas; j++){
-    			dphi[j][i]=getPhaseShift(tfl.r, r0[i], tfl.t, j, 0.0);						// accumulate raw phase shift
-    			dphi[j][i]=AgnosticScan.mapToCircle(dphi[j][i]);							// avoid rounding issues due to winding
-    		}
-    		
-    		tLast=tfl.t;
-    	}
-    	
-    	// accumulate phase sifts for all walkers across their trajectories
-    	//for(int t=1; t<traj_tmax; t++){
-    	for(int t=1; t<scheme_tmax; t++){
-        if((t%100)==0){
-        		System.err.print("\r"+100.0*(double)t/(double)(scheme_tmax)+"%     ");
-        }	
-    		for(int i=0; i<N_walkers; i++){
-    			
-    			readTrajFileLine(tfl);
-        		
-        		if(i!=tfl.i){
-        			throw new LoggedException("traj file reader and contents are out of sync. aborting.");
-        		}
-            // if this walker isn't in the voxel, skip it
-        		if(!(substrate == null)) { 
-	        		if(!substrate.voxelContains(finalPosns[i].r)){
-	                    continue;
-	            }
-        		}
-        		// accumulate phase shifts
-        		for(int j=0; j<numMeas; j++){
-        			dphi[j][i]+=getPhaseShift(tfl.r, r0[i], tfl.t, j, tLast);
-        			dphi[j][i]=AgnosticScan.mapToCircle(dphi[j][i]);
-        		}
-    			
-    		}
-    		
-    		// now we've read all the walkers in this timestep, update tLast for next time 
-    		tLast=tfl.t;
-    	}
-    	
-    	// finally, calculate signals from walker phase shifts
-    	for(int i=0; i<numMeas; i++){
-    		
-    		// reset signal
-    		signal[i]=0.0;
-
-    		for(int j=0; j<N_walkers; j++){
-    			
-                try{
-                	phaseWriter.write(dphi[i][j]+",");
-                }
-                catch(IOException ioe){
-                	throw new LoggedException(ioe);
-                }
-    			
-            if(!(substrate == null)) { 
-	        		if(!substrate.voxelContains(finalPosns[j].r)){
-	                    continue;
-	            }
-        		}
-    			// assume signal is symmetric
-    			signal[i]+= Math.cos(dphi[i][j]);
-    		}
-    		
-    		
-    		//signal[i]= Math.sqrt(signal[i]*signal[i]);
-    		
-    		double b= ((DW_Scheme)scheme).getB_Value(i);
-            double Sfree= Math.exp(-b*CL_Initializer.DIFF_CONST);
-            
-            logger.info("signal = "+    signal[i]+", free = "+Sfree);	
-
-            try{
-            	phaseWriter.write("\n");
-            }
-            catch(IOException ioe){
-            	throw new LoggedException(ioe);
-            }
-
-    	
-    	}
-
-        try{
-        	phaseWriter.flush();
-        	phaseWriter.close();
-        }
-        catch(IOException ioe){
-        	throw new LoggedException(ioe);
-        }
-
-    	
-    	// return the signals
-    	return signal;
-    	
-    }
-    
-    /** 
-     * reads one record from the trajfile into a TrajFileLine object
-     * 
-     * @param tfl space to store the variables
-     */
-    private final void readTrajFileLine(TrajFileLine tfl){
-    	
-    	try{
-    		
-    		tfl.t= trajReader.readDouble();
-    		tfl.i= trajReader.readDouble();
-    		for(int i=0; i<D; i++){
-    			tfl.r[i]= trajReader.readDouble();
-    		}
-    		
-    	}
-    	catch(IOException ioe){
-    		throw new LoggedException(ioe);
-    	}
-    	
-    }
-    
-    /**
-     * Read the final positions of walkers from traj file and then reset to head of file
-     * 
-     * Used to find final positions of walkers to scan properly excluding walkers who exceed substrate bounds
-     * 
-     */
-    private final void readFinalTrajPosns() {
-    		double schemeDuration= scheme.getDuration();
-    		int scheme_tmax= (int)(Math.floor(schemeDuration/traj_dt));
+    	TrajectoryScan trajScan= new TrajectoryScan(new SimulableScheme[] {scheme}, substrate);
     	
-    		long numByteToSkip = 5 * N_walkers * (scheme_tmax) * 8;
-    		long bytesSkipped = 0;
-    		try{
-    			bytesSkipped = trajReader.skip(numByteToSkip);
-    			while (bytesSkipped < numByteToSkip) {
-    				bytesSkipped = bytesSkipped + trajReader.skip(numByteToSkip - bytesSkipped);
-    			}
-    		}
-    		catch(IOException ioe) {
-    			throw new LoggedException(ioe);
-    		}
-    		
-    		for(int i = 0; i < N_walkers; i++) {
-    			readTrajFileLine(finalPosns[i]);
-    		}
-    		
-    		
-    		try{ 
-    			trajReader.close();
-    		}
-    		catch(IOException ioe) {
-    			throw new LoggedException(ioe);
-    		}
-    		
-        	// re-open the trajfile
-        	FileInputStream fStream;
-        	try{
-        		fStream= new FileInputStream(trajFileName);
-        	}
-        	catch(IOException ioe){
-        		throw new LoggedException(ioe);
-        	}
-        	
-        	this.trajReader= new DataInputStream(new BufferedInputStream(fStream, 1048576));
-        	try {
-			this.trajReader.skip(8*3);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-    		
-    		
+    	return trajScan.getSignals(trajReader, SimulationParams.sim_threads, null)[0];
     }
     
     
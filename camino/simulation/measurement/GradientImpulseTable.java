@@ -0,0 +1,294 @@
+package simulation.measurement;
+
+import imaging.DW_Scheme;
+import imaging.SimulableScheme;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import misc.LoggedException;
+
+import simulation.DiffusionSimulation;
+
+/**
+ * gradient impulses for every measurement in a scheme, compiled once
+ * per simulation. The impulse a walker sees depends only on the
+ * measurement and the timestep, not on the walker, so there's no need
+ * to ask the scheme for it every time a walker moves.
+ *
+ * Impulses are stored sparsely. For each timestep there's a row
+ * containing the measurements whose gradient is on during that step,
+ * with their impulse vectors. Measurements with zero impulse are left
+ * out, and walkers skip them entirely. This is exact: a zero impulse
+ * adds nothing to the phase.
+ *
+ * The table assumes the usual simulation timing, where timestep ti runs
+ * from (ti-1)*dt to ti*dt, with the first step running from 0 to 0.
+ * Callers check this with covers() and fall back to the scheme if it
+ * doesn't hold.
+ *
+ */
+public class GradientImpulseTable {
+
+    /** logging object */
+    private static final Logger logger= Logger.getLogger("simulation.measurement.GradientImpulseTable");
+
+    /** dimensionality of space */
+    private static final int D= DiffusionSimulation.D;
+
+    /** gyromagnetic ratio */
+    private static final double GAMMA= DW_Scheme.GAMMA;
+
+    /** largest number of non-zero impulses we're prepared to store */
+    private static final int MAX_ENTRIES= 1<<23;
+
+    /** number of timesteps covered */
+    private final int tmax;
+
+    /** end time of each timestep */
+    private final double[] t;
+
+    /** start time of each timestep */
+    private final double[] tLast;
+
+    /** start of each timestep's row in the entry arrays. length tmax+1 */
+    private final int[] rowStart;
+
+    /** measurement index of each entry */
+    private final int[] meas;
+
+    /** impulse vector of each entry, D values per entry */
+    private final double[] G;
+
+
+    /**
+     * constructor. use compile() to build a table from a scheme.
+     */
+    private GradientImpulseTable(int tmax, double[] t, double[] tLast, int[] rowStart, int[] meas, double[] G){
+
+        this.tmax= tmax;
+        this.t= t;
+        this.tLast= tLast;
+        this.rowStart= rowStart;
+        this.meas= meas;
+        this.G= G;
+    }
+
+
+    /**
+     * compiles the impulses for all measurements and timesteps of a
+     * simulation.
+     *
+     * @param scheme the scheme to compile
+     * @param numMeas number of measurements in the scheme
+     * @param tmax number of timesteps
+     * @param dt duration of a timestep
+     *
+     * @return the table, or null if it would be too big or the scheme's
+     *         impulses aren't D-dimensional
+     */
+    public static GradientImpulseTable compile(SimulableScheme scheme, int numMeas, int tmax, double dt){
+
+        double[] t= new double[tmax];
+        double[] tLast= new double[tmax];
+        int[] rowStart= new int[tmax+1];
+
+        int capacity= Math.max(16, Math.min(numMeas, MAX_ENTRIES));
+        int[] meas= new int[capacity];
+        double[] G= new double[D*capacity];
+
+        int entries=0;
+
+        for(int ti=0; ti<tmax; ti++){
+
+            // same arithmetic as the main loop and Walker.update()
+            t[ti]= ti*dt;
+            tLast[ti]= (ti==0)?0.0:(ti-1)*dt;
+
+            rowStart[ti]= entries;
+
+            for(int j=0; j<numMeas; j++){
+
+                double[] Gdt= scheme.getGradImpulse(j, t[ti], tLast[ti]);
+
+                if(Gdt.length!=D){
+                    logger.warning("scheme impulses have "+Gdt.length+" components. gradient impulse table not used.");
+                    return null;
+                }
+
+                if((Gdt[0]==0.0)&&(Gdt[1]==0.0)&&(Gdt[2]==0.0)){
+                    continue;
+                }
+
+                if(entries==meas.length){
+                    if(entries==MAX_ENTRIES){
+                        logger.warning("more than "+MAX_ENTRIES+" non-zero gradient impulses. gradient impulse table not used.");
+                        return null;
+                    }
+
+                    capacity= (int)Math.min(2L*capacity, MAX_ENTRIES);
+                    meas= Arrays.copyOf(meas, capacity);
+                    G= Arrays.copyOf(G, D*capacity);
+                }
+
+                meas[entries]= j;
+                for(int i=0; i<D; i++){
+                    G[D*entries+i]= Gdt[i];
+                }
+                entries++;
+            }
+        }
+        rowStart[tmax]= entries;
+
+        logger.info("gradient impulse table: "+entries+" non-zero impulses out of "
+                +((long)tmax*numMeas)+" ("+tmax+" timesteps, "+numMeas+" measurements)");
+
+        return new GradientImpulseTable(tmax, t, tLast, rowStart, Arrays.copyOf(meas, entries),
+                Arrays.copyOf(G, D*entries));
+    }
+
+
+    /**
+     * joins the tables of several scans that share walkers into one. 
+     * each scan's measurements are numbered from its offset in the 
+     * walkers' phases. the tables must have been compiled for the same
+     * timesteps.
+     *
+     * @param tables table for each scan
+     * @param offsets index of each scan's first measurement
+     *
+     * @return the joined table, or null if any scan has no table or the
+     *         joined table would be too big
+     */
+    public static GradientImpulseTable concatenate(GradientImpulseTable[] tables, int[] offsets){
+
+        long entries= 0;
+        for(int s=0; s<tables.length; s++){
+            if(tables[s]==null){
+                return null;
+            }
+            if((tables[s].tmax!=tables[0].tmax)||!Arrays.equals(tables[s].t, tables[0].t)){
+                throw new LoggedException("gradient impulse tables are for different timesteps");
+            }
+            entries+= tables[s].size();
+        }
+
+        if(entries>MAX_ENTRIES){
+            logger.warning("more than "+MAX_ENTRIES+" non-zero gradient impulses. gradient impulse table not used.");
+            return null;
+        }
+
+        int tmax= tables[0].tmax;
+
+        int[] rowStart= new int[tmax+1];
+        int[] meas= new int[(int)entries];
+        double[] G= new double[D*(int)entries];
+
+        int k= 0;
+        for(int ti=0; ti<tmax; ti++){
+            rowStart[ti]= k;
+
+            for(int s=0; s<tables.length; s++){
+                GradientImpulseTable table= tables[s];
+
+                for(int e=table.rowStart(ti); e<table.rowEnd(ti); e++, k++){
+                    meas[k]= offsets[s]+table.meas[e];
+                    System.arraycopy(table.G, D*e, G, D*k, D);
+                }
+            }
+        }
+        rowStart[tmax]= k;
+
+        return new GradientImpulseTable(tmax, tables[0].t, tables[0].tLast, rowStart, meas, G);
+    }
+
+
+    /**
+     * checks that a walker update matches the timing the table was
+     * compiled for.
+     *
+     * @param ti timestep index
+     * @param t end time of the step
+     * @param last start time of the step
+     *
+     * @return true if the table's impulses apply to this step
+     */
+    public final boolean covers(int ti, double t, double last){
+
+        return (ti>=0)&&(ti<tmax)&&(this.t[ti]==t)&&(tLast[ti]==last);
+    }
+
+
+    /**
+     * @param ti timestep index
+     *
+     * @return index of the first entry for this timestep
+     */
+    public final int rowStart(int ti){
+        return rowStart[ti];
+    }
+
+
+    /**
+     * @param ti timestep index
+     *
+     * @return index after the last entry for this timestep
+     */
+    public final int rowEnd(int ti){
+        return rowStart[ti+1];
+    }
+
+
+    /**
+     * @param k entry index
+     *
+     * @return the measurement the entry belongs to
+     */
+    public final int getMeasurement(int k){
+        return meas[k];
+    }
+
+
+    /**
+     * @param k entry index
+     * @param i component index
+     *
+     * @return component i of the entry's impulse vector
+     */
+    public final double getImpulse(int k, int i){
+        return G[D*k+i];
+    }
+
+
+    /**
+     * phase shift for a walker from a table entry. the same calculation
+     * as AgnosticScan.getPhaseShift(), so the results are identical.
+     *
+     * @param k entry index
+     * @param r current walker position
+     * @param r0 initial walker position
+     *
+     * @return phase increment
+     */
+    public final double getPhaseShift(int k, double[] r, double[] r0){
+
+        final int base= D*k;
+
+        double gradDotPos = 0.0;
+
+        for(int i=0; i<D; i++){
+            gradDotPos+= G[base+i]*(r[i]-r0[i]);
+        }
+
+        return AgnosticScan.mapToCircle(GAMMA*gradDotPos);
+    }
+
+
+    /**
+     * @return total number of non-zero impulses in the table
+     */
+    public final int size(){
+        return rowStart[tmax];
+    }
+
+}
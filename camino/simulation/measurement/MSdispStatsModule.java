@@ -16,6 +16,7 @@ import misc.LoggedException;
 import simulation.DiffusionSimulation;
 import simulation.SimulationParams;
 import simulation.dynamics.Walker;
+import simulation.dynamics.WalkerPool;
 import tools.CL_Initializer;
 
 /**
@@ -54,6 +55,18 @@ public class MSdispStatsModule extends StatisticsModule {
 
 		stats= new double[Ns];
 	}
+	
+	/**
+	 * constructor, takes walker pool
+	 */
+	public MSdispStatsModule(WalkerPool pool, int numMeas_in){
+
+		super(pool, numMeas_in);
+
+		Ns= 2*D;
+
+		stats= new double[Ns];
+	}
 
 	/**
 	 * overrides abstract runtime stats method. this is called at every update
@@ -71,25 +84,31 @@ public class MSdispStatsModule extends StatisticsModule {
 		for(int j=0; j<Ns; j++){
 			stats[j]=0.0;
 		}
-		// accumulate mean-squared displacements
-		for(int i=0; i<walker.length; i++){
-			for(int j=0; j<D; j++){
-				stats[j]+= (walker[i].r[j]- walker[i].r0[j])*(walker[i].r[j]- walker[i].r0[j]);
-			}
-			// Calculating the kurtosis here as well
-			for(int j=D; j<2*D; j++){
-				stats[j]+= (walker[i].r[j-D]- walker[i].r0[j-D])*(walker[i].r[j-D]- walker[i].r0[j-D])*(walker[i].r[j-D]- walker[i].r0[j-D])*(walker[i].r[j-D]- walker[i].r0[j-D]);
+		if(pool!=null){
+			// pooled displacements are contiguous along each axis
+			accumulatePoolMoments();
+		}
+		else{
+			// accumulate mean-squared displacements
+			for(int i=0; i<walker.length; i++){
+				for(int j=0; j<D; j++){
+					stats[j]+= (walker[i].r[j]- walker[i].r0[j])*(walker[i].r[j]- walker[i].r0[j]);
+				}
+				// Calculating the kurtosis here as well
+				for(int j=D; j<2*D; j++){
+					stats[j]+= (walker[i].r[j-D]- walker[i].r0[j-D])*(walker[i].r[j-D]- walker[i].r0[j-D])*(walker[i].r[j-D]- walker[i].r0[j-D])*(walker[i].r[j-D]- walker[i].r0[j-D]);
+				}
 			}
 		}
 
 		// divide by number of walkers to give mean squared displacement
 		for(int j=0; j<D; j++){
-			stats[j]/=(walker.length);
+			stats[j]/=(numWalkers());
 		}
 
 		// Now dividing by number of walkers and MSD to get kurtosis 
 		for (int j = D; j < 2*D; j++) {
-			stats[j]/=(walker.length*stats[j-D]*stats[j-D]);
+			stats[j]/=(numWalkers()*stats[j-D]*stats[j-D]);
 			stats[j]-=3;
 		}
 
@@ -103,6 +122,35 @@ public class MSdispStatsModule extends StatisticsModule {
 	}
 
 
+	/**
+	 * sums second and fourth powers of displacement along each axis
+	 * over all walkers in the pool. walkers are summed in the same 
+	 * order as the object layout so the results are identical.
+	 */
+	private final void accumulatePoolMoments(){
+
+		final int N= pool.N;
+		final double[] r= pool.r;
+		final double[] r0= pool.r0;
+
+		for(int j=0; j<D; j++){
+			double sum2=0.0;
+			double sum4=0.0;
+
+			for(int i=j*N; i<(j+1)*N; i++){
+				double d= r[i]-r0[i];
+				double d2= d*d;
+
+				sum2+= d2;
+				sum4+= d2*d*d;
+			}
+
+			stats[j]+= sum2;
+			stats[j+D]+= sum4;
+		}
+	}
+
+
 	/**
 	 * overrides the post simulation abstract method. in this instance 
 	 * we do nothing and the method returns null.
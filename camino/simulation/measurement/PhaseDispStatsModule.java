@@ -16,6 +16,7 @@ import misc.LoggedException;
 import simulation.DiffusionSimulation;
 import simulation.SimulationParams;
 import simulation.dynamics.Walker;
+import simulation.dynamics.WalkerPool;
 import tools.CL_Initializer;
 
 /**
@@ -52,11 +53,24 @@ public class PhaseDispStatsModule extends StatisticsModule {
 	
 		stats = new double[Ns];
 	}
+	
+	public PhaseDispStatsModule(WalkerPool pool, int numMeas_in) {
+		
+		super(pool, numMeas_in);
+		
+		
+		Ns = (numMeas + D) * pool.N;
+	
+		stats = new double[Ns];
+	}
 
 	/**
 	 * Override runtime stats method. Just do nothing since all we care about is final phase
 	 */
 	public double[] getRuntimeStats(double t) {
+		if(pool!=null) {
+			return getPoolStats();
+		}
 		int index;
 		for(int i = 0; i < walker.length; i++) {
 			for(int k = 0; k < D; k++) {
@@ -80,6 +94,33 @@ public class PhaseDispStatsModule extends StatisticsModule {
 		return stats;
 	}
 
+	/**
+	 * displacements and phases of pooled walkers, read an axis or 
+	 * measurement at a time.
+	 */
+	private double[] getPoolStats() {
+		final int N = pool.N;
+		final int stride = numMeas + D;
+		
+		for(int k = 0; k < D; k++) {
+			for(int i = 0; i < N; i++) {
+				stats[stride*i + k] = pool.r[k*N + i] - pool.r0[k*N + i];
+			}
+		}
+		
+		if(pool.numMeas == 0) {
+			return stats;
+		}
+		
+		for(int j = 0; j < numMeas; j++) {
+			for(int i = 0; i < N; i++) {
+				stats[stride*i + D + j] = pool.dPhi[j*N + i];
+			}
+		}
+		
+		return stats;
+	}
+
 	/**
 	 * Override post simulation stats, get the total phase accrued for each spin
 	 */
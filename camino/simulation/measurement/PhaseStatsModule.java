@@ -16,6 +16,7 @@ import misc.LoggedException;
 import simulation.DiffusionSimulation;
 import simulation.SimulationParams;
 import simulation.dynamics.Walker;
+import simulation.dynamics.WalkerPool;
 import tools.CL_Initializer;
 
 /**
@@ -51,11 +52,24 @@ public class PhaseStatsModule extends StatisticsModule {
 	
 		stats = new double[Ns];
 	}
+	
+	public PhaseStatsModule(WalkerPool pool, int numMeas_in) {
+		
+		super(pool, numMeas_in);
+		
+		
+		Ns = numMeas * pool.N;
+	
+		stats = new double[Ns];
+	}
 
 	/**
 	 * Override runtime stats method. Just do nothing since all we care about is final phase
 	 */
 	public double[] getRuntimeStats(double t) {
+		if(pool!=null) {
+			return getPoolStats();
+		}
 		for(int i = 0; i < walker.length; i++) {
 			double[] dphi = walker[i].dPhi;
 			for(int j = 0; j < numMeas; j++) {
@@ -72,6 +86,26 @@ public class PhaseStatsModule extends StatisticsModule {
 		return stats;
 	}
 
+	/**
+	 * phases of pooled walkers. phases are read a measurement at a time,
+	 * which is contiguous in the pool.
+	 */
+	private double[] getPoolStats() {
+		final int N = pool.N;
+		
+		if(pool.numMeas == 0) {
+			return stats;
+		}
+		
+		for(int j = 0; j < numMeas; j++) {
+			for(int i = 0; i < N; i++) {
+				stats[numMeas*i + j] = pool.dPhi[j*N + i];
+			}
+		}
+		
+		return stats;
+	}
+
 	/**
 	 * Override post simulation stats, get the total phase accrued for each spin
 	 */
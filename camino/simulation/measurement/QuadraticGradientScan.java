@@ -8,7 +8,9 @@ import java.util.logging.Logger;
 import imaging.DW_Scheme;
 import imaging.RectQuadraticGradSteTanScheme;
 import simulation.DiffusionSimulation;
+import misc.LoggedException;
 import simulation.dynamics.Walker;
+import simulation.dynamics.WalkerPool;
 import simulation.geometry.substrates.Substrate;
 import tools.CL_Initializer;
 
@@ -167,7 +169,7 @@ public class QuadraticGradientScan extends AgnosticScan {
                     continue;
                 }
                 
-                double phi=walker[j].getPhaseShift(i);
+                double phi=walker[j].getPhaseShift(getMeasurementOffset()+i);
                 
                 /*try{
                 	phaseWriter.write(phi+",");
@@ -246,4 +248,36 @@ public class QuadraticGradientScan extends AgnosticScan {
     }
 
     
+    /**
+     * phase shifts in quadratic gradients aren't linear in the
+     * displacement, so impulses can't be tabulated. does nothing.
+     */
+    public void compileImpulseTable(int tmax, double dt){
+    	logger.info("quadratic gradient scan: gradient impulses not tabulated");
+    }
+    
+    /**
+     * quadratic gradient scans keep per-walker initial phases alongside
+     * the walker array, so can't read from a pool.
+     */
+    public void setWalkerPool(WalkerPool pool){
+    	throw new LoggedException("quadratic gradient scans don't support walker pools");
+    }
+    
+    /**
+     * quadratic gradient scans read their signals straight from the
+     * walker array, so walkers can't be run in batches.
+     */
+    public void accumulateSignals(int n){
+    	throw new LoggedException("quadratic gradient scans don't support walker batches");
+    }
+    
+    /**
+     * quadratic gradient scans work out signals from their own initial
+     * phases, so have no signal sums to give out.
+     */
+    public SignalSums getSignalSums(){
+    	throw new LoggedException("quadratic gradient scans don't support partial signal output");
+    }
+    
 }
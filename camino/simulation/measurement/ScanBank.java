@@ -0,0 +1,236 @@
+package simulation.measurement;
+
+import java.util.logging.Logger;
+
+import numerics.MTRandom;
+
+import simulation.dynamics.Walker;
+import simulation.dynamics.WalkerPool;
+import simulation.measurement.ScanFactory.ScanType;
+import tools.CL_Initializer;
+
+/**
+ * several scans that share one set of walkers, so that any number of
+ * acquisition schemes can be synthesised from a single random walk.
+ *
+ * The bank looks like one scan whose measurements are those of each
+ * scan in turn. Walkers accumulate phases for all of them in the same
+ * arrays (the walker pool's phase tiles, if there is one), and each
+ * scan reads its own measurements back from its offset into those
+ * arrays. Signals come out scheme by scheme in the order given.
+ *
+ * Noise is drawn from a single generator across the whole bank, as it
+ * would be for one scan with all the measurements, so a bank's partial
+ * signals merge in the same way as a single scan's.
+ *
+ */
+public class ScanBank implements SyntheticScan {
+
+    /** logging object */
+    private static final Logger logger= Logger.getLogger("simulation.measurement.ScanBank");
+
+    /** the scans */
+    private final AgnosticScan[] scans;
+
+    /** index of each scan's first measurement */
+    private final int[] offsets;
+
+    /** total number of measurements */
+    private final int numMeas;
+
+    /** scan each measurement belongs to */
+    private final int[] owner;
+
+    /** index of each measurement within its scan */
+    private final int[] local;
+
+    /** gradient impulses of all the scans, if compiled */
+    private GradientImpulseTable impulses= null;
+
+    /** noise generator */
+    private final MTRandom twister= AgnosticScan.getNoiseGenerator(CL_Initializer.seed);
+
+
+    /**
+     * constructor. the scans must have been constructed over the same
+     * walkers.
+     *
+     * @param scans scans to run together
+     */
+    public ScanBank(AgnosticScan[] scans){
+
+        this.scans= scans;
+        this.offsets= new int[scans.length];
+
+        int n= 0;
+        for(int s=0; s<scans.length; s++){
+            offsets[s]= n;
+            scans[s].setMeasurementOffset(n);
+            n+= scans[s].getNumMeasurements();
+        }
+        this.numMeas= n;
+
+        this.owner= new int[numMeas];
+        this.local= new int[numMeas];
+        for(int s=0; s<scans.length; s++){
+            for(int i=0; i<scans[s].getNumMeasurements(); i++){
+                owner[offsets[s]+i]= s;
+                local[offsets[s]+i]= i;
+            }
+        }
+
+        logger.info("scan bank: "+scans.length+" schemes, "+numMeas+" measurements");
+    }
+
+
+    /**
+     * @return number of scans in the bank
+     */
+    public int getNumScans(){
+        return scans.length;
+    }
+
+
+    /**
+     * @return true if any of the scans has quadratic gradients
+     */
+    public boolean hasQuadraticGradients(){
+
+        for(int s=0; s<scans.length; s++){
+            if(scans[s] instanceof QuadraticGradientScan){
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    public double[] getSignals(){
+
+        double[] signal= new double[numMeas];
+
+        logger.info("generating "+numMeas+" signals");
+        for(int s=0; s<scans.length; s++){
+            // quadratic gradient scans have their own readout
+            if(scans[s] instanceof QuadraticGradientScan){
+                double[] S= scans[s].getSignals();
+                System.arraycopy(S, 0, signal, offsets[s], S.length);
+                continue;
+            }
+
+            SignalSums sums= scans[s].getSignalSums();
+
+            for(int i=0; i<sums.numMeas; i++){
+                signal[offsets[s]+i]= sums.getSignal(i, twister, CL_Initializer.SNR);
+            }
+        }
+
+        return signal;
+    }
+
+
+    public double[] getCompartmentalSignals(boolean intra){
+
+        double[] signal= new double[numMeas];
+
+        logger.info("generating "+numMeas+" signals");
+        for(int s=0; s<scans.length; s++){
+            SignalSums sums= scans[s].getSignalSums();
+
+            for(int i=0; i<sums.numMeas; i++){
+                signal[offsets[s]+i]= sums.getCompartmentalSignal(i, intra, twister, CL_Initializer.SNR);
+            }
+        }
+
+        return signal;
+    }
+
+
+    public double getPhaseShift(Walker walker, double t, int dir, double tLast){
+        return scans[owner[dir]].getPhaseShift(walker, t, local[dir], tLast);
+    }
+
+
+    public int getNumMeasurements(){
+        return numMeas;
+    }
+
+
+    /**
+     * updates each scan in turn
+     */
+    public void update(int t){
+
+        for(int s=0; s<scans.length; s++){
+            scans[s].update(t);
+        }
+    }
+
+
+    /**
+     * compiles each scan's impulses and joins them into one table. if
+     * any scan can't tabulate its impulses, none are tabulated.
+     */
+    public void compileImpulseTable(int tmax, double dt){
+
+        GradientImpulseTable[] tables= new GradientImpulseTable[scans.length];
+
+        for(int s=0; s<scans.length; s++){
+            scans[s].compileImpulseTable(tmax, dt);
+            tables[s]= scans[s].getImpulseTable();
+        }
+
+        impulses= GradientImpulseTable.concatenate(tables, offsets);
+    }
+
+
+    public GradientImpulseTable getImpulseTable(){
+        return impulses;
+    }
+
+
+    public void setWalkerPool(WalkerPool pool){
+
+        for(int s=0; s<scans.length; s++){
+            scans[s].setWalkerPool(pool);
+        }
+    }
+
+
+    public void accumulateSignals(int n){
+
+        for(int s=0; s<scans.length; s++){
+            scans[s].accumulateSignals(n);
+        }
+    }
+
+
+    public void resetSignalSums(){
+
+        for(int s=0; s<scans.length; s++){
+            scans[s].resetSignalSums();
+        }
+    }
+
+
+    /**
+     * @return the sums of all the scans, joined in order
+     */
+    public SignalSums getSignalSums(){
+
+        SignalSums[] parts= new SignalSums[scans.length];
+
+        for(int s=0; s<scans.length; s++){
+            parts[s]= scans[s].getSignalSums();
+        }
+
+        return SignalSums.concatenate(parts);
+    }
+
+
+    public ScanType getScanType(){
+        return ScanType.BANK;
+    }
+
+}
@@ -27,7 +27,9 @@ public class ScanFactory {
         /** Four-pulse sequence with two 180 pulses */
         TWICE_REFOCUSED,   
         /** independent of explicit form -- uses new scheme framework */
-        AGNOSTIC
+        AGNOSTIC,
+        /** several scans sharing one set of walkers */
+        BANK
     }
     
     
@@ -48,14 +50,59 @@ public class ScanFactory {
 																Substrate substrate, Walker[] walker){
 		
 
+		SyntheticScan scan;
+		
 		// everything with linear gradients is an agnostic scan, otherwise Quadratic.
 		if(scheme instanceof RectQuadraticGradSteTanScheme){
-			return new QuadraticGradientScan((RectQuadraticGradSteTanScheme)scheme, walker, substrate);
+			scan= new QuadraticGradientScan((RectQuadraticGradSteTanScheme)scheme, walker, substrate);
+		}
+		else{
+			scan= new AgnosticScan(scheme, walker, substrate);
+		}
+		
+		// impulses only depend on measurement and timestep, so work them out once
+		scan.compileImpulseTable(simParams.getTmax(), simParams.getDt());
+		
+	    return scan;
+		
+	}
+	
+	
+	/** 
+	 * factory method for several schemes run on the same walkers. a 
+	 * single scheme gets the usual scan, more than one get a scan bank
+	 * with a scan for each.
+	 * 
+	 * @param simParams simulation parameters object
+	 * @param schemes acquisition schemes
+	 * @param substrate the substrate
+	 * @param walker array of walkers
+	 * 
+	 * @return a new scan object for all the schemes
+	 */
+	public static final SyntheticScan getMeasurementModule(SimulationParams simParams, SimulableScheme[] schemes, 
+																Substrate substrate, Walker[] walker){
+		
+		if(schemes.length==1){
+			return getMeasurementModule(simParams, schemes[0], substrate, walker);
+		}
+		
+		AgnosticScan[] scans= new AgnosticScan[schemes.length];
+		
+		for(int s=0; s<schemes.length; s++){
+			if(schemes[s] instanceof RectQuadraticGradSteTanScheme){
+				scans[s]= new QuadraticGradientScan((RectQuadraticGradSteTanScheme)schemes[s], walker, substrate);
+			}
+			else{
+				scans[s]= new AgnosticScan(schemes[s], walker, substrate);
+			}
 		}
 		
+		SyntheticScan scan= new ScanBank(scans);
 		
-	    return new AgnosticScan(scheme, walker, substrate);
+		scan.compileImpulseTable(simParams.getTmax(), simParams.getDt());
 		
+		return scan;
 	}
 	
 	
@@ -0,0 +1,395 @@
+package simulation.measurement;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import misc.LoggedException;
+import numerics.MTRandom;
+
+import simulation.SimulationParams;
+
+/**
+ * running sums over walkers of the quantities a scan needs to read out
+ * its signals. The sums are built up walker by walker, in walker order,
+ * so the walkers don't all have to exist at once. Summing a simulation
+ * in batches gives exactly the same sums as summing it in one go.
+ *
+ * Sums from independent simulations of the same substrate and scheme
+ * (shards) can be written to file, added together and read out as if
+ * they came from one big simulation.
+ *
+ */
+public final class SignalSums {
+
+    /** identifies a partial signal file */
+    private static final int MAGIC= 0x43505347;
+
+    /** 
+     * partial signal file format version. version 1 files recorded each
+     * shard's walker seed, and their shards could have different substrates.
+     */
+    private static final int VERSION= 2;
+
+    /** number of measurements */
+    public final int numMeas;
+
+    /** net signal from walkers in the voxel, per measurement */
+    final double[] total;
+
+    /** imaginary part of the net signal */
+    final double[] totalImag;
+
+    /** signal from intracellular walkers in the voxel */
+    final double[] intra;
+
+    /** imaginary part of the intracellular signal */
+    final double[] intraImag;
+
+    /** signal from extracellular walkers in the voxel */
+    final double[] extra;
+
+    /** imaginary part of the extracellular signal */
+    final double[] extraImag;
+
+    /** number of intracellular walkers in the voxel */
+    final long[] numIn;
+
+    /** number of extracellular walkers in the voxel */
+    final long[] numExt;
+
+    /** compartmental signals weighted towards intracellular walkers */
+    final double[] compIntra;
+
+    /** compartmental signals weighted towards extracellular walkers */
+    final double[] compExtra;
+
+    /** number of walkers summed so far */
+    long numWalkers=0;
+
+
+    /**
+     * constructor. all sums start at zero.
+     *
+     * @param numMeas number of measurements
+     */
+    public SignalSums(int numMeas){
+
+        this.numMeas= numMeas;
+
+        total= new double[numMeas];
+        totalImag= new double[numMeas];
+        intra= new double[numMeas];
+        intraImag= new double[numMeas];
+        extra= new double[numMeas];
+        extraImag= new double[numMeas];
+        numIn= new long[numMeas];
+        numExt= new long[numMeas];
+        compIntra= new double[numMeas];
+        compExtra= new double[numMeas];
+    }
+
+
+    /**
+     * @return number of walkers summed
+     */
+    public long getNumWalkers(){
+        return numWalkers;
+    }
+
+
+    /**
+     * adds another set of sums to this one.
+     *
+     * @param other sums from a different set of walkers
+     */
+    public void add(SignalSums other){
+
+        if(other.numMeas!=numMeas){
+            throw new LoggedException("can't add signal sums with "+other.numMeas+
+                    " measurements to sums with "+numMeas);
+        }
+
+        for(int i=0; i<numMeas; i++){
+            total[i]+=other.total[i];
+            totalImag[i]+=other.totalImag[i];
+            intra[i]+=other.intra[i];
+            intraImag[i]+=other.intraImag[i];
+            extra[i]+=other.extra[i];
+            extraImag[i]+=other.extraImag[i];
+            numIn[i]+=other.numIn[i];
+            numExt[i]+=other.numExt[i];
+            compIntra[i]+=other.compIntra[i];
+            compExtra[i]+=other.compExtra[i];
+        }
+
+        numWalkers+=other.numWalkers;
+    }
+
+
+    /**
+     * joins the sums of several scans over the same walkers into one
+     * set, measurements of the first scan first.
+     *
+     * @param parts sums from each scan
+     *
+     * @return the joined sums
+     */
+    public static SignalSums concatenate(SignalSums[] parts){
+
+        int numMeas= 0;
+        for(int s=0; s<parts.length; s++){
+            if(parts[s].numWalkers!=parts[0].numWalkers){
+                throw new LoggedException("can't join signal sums over "+parts[s].numWalkers+
+                        " and "+parts[0].numWalkers+" walkers");
+            }
+            numMeas+= parts[s].numMeas;
+        }
+
+        SignalSums sums= new SignalSums(numMeas);
+
+        int offset= 0;
+        for(int s=0; s<parts.length; s++){
+            SignalSums part= parts[s];
+
+            System.arraycopy(part.total, 0, sums.total, offset, part.numMeas);
+            System.arraycopy(part.totalImag, 0, sums.totalImag, offset, part.numMeas);
+            System.arraycopy(part.intra, 0, sums.intra, offset, part.numMeas);
+            System.arraycopy(part.intraImag, 0, sums.intraImag, offset, part.numMeas);
+            System.arraycopy(part.extra, 0, sums.extra, offset, part.numMeas);
+            System.arraycopy(part.extraImag, 0, sums.extraImag, offset, part.numMeas);
+            System.arraycopy(part.numIn, 0, sums.numIn, offset, part.numMeas);
+            System.arraycopy(part.numExt, 0, sums.numExt, offset, part.numMeas);
+            System.arraycopy(part.compIntra, 0, sums.compIntra, offset, part.numMeas);
+            System.arraycopy(part.compExtra, 0, sums.compExtra, offset, part.numMeas);
+
+            offset+= part.numMeas;
+        }
+
+        sums.numWalkers= parts[0].numWalkers;
+
+        return sums;
+    }
+
+
+    /**
+     * reads out the net signal for a measurement. With a positive SNR,
+     * gaussian noise scaled by the number of walkers is added to the
+     * real and imaginary parts and the magnitude is returned. This is
+     * the noise model of AgnosticScan.getSignals().
+     *
+     * @param i measurement index
+     * @param twister noise generator
+     * @param snr signal to noise ratio (no noise if not positive)
+     *
+     * @return the signal
+     */
+    public double getSignal(int i, MTRandom twister, double snr){
+
+        double Sreal= total[i];
+
+        double noiseTerm=0.0;
+        double noiseDev= 0.0;
+
+        if(snr>0.0){
+            noiseDev=((double)numWalkers)/snr;
+        }
+
+        // add noise to net signal
+        if(snr>0.0){
+            noiseTerm=twister.nextGaussian()*noiseDev;
+        }
+        Sreal+=noiseTerm;
+
+        if(snr>0.0){
+            noiseTerm=twister.nextGaussian()*noiseDev;
+        }
+
+        // take modulus of real and imaginary parts to provide measured signal
+        if(snr>0.0){
+        	return Math.sqrt(Sreal*Sreal + noiseTerm*noiseTerm);
+        }
+
+        return Sreal;
+    }
+
+
+    /**
+     * reads out a compartmental signal for a measurement, with the noise
+     * model of AgnosticScan.getCompartmentalSignals().
+     *
+     * @param i measurement index
+     * @param intra true for the intracellular signal
+     * @param twister noise generator
+     * @param snr signal to noise ratio (no noise if not positive)
+     *
+     * @return the signal
+     */
+    public double getCompartmentalSignal(int i, boolean intra, MTRandom twister, double snr){
+
+        double Sreal=intra?compIntra[i]:compExtra[i];
+
+        double noiseTerm=0.0;
+        double noiseDev= 0.0;
+
+        if(snr>0.0){
+            noiseDev=((double)numWalkers)/snr;
+        }
+
+        // add noise to net signal
+        if(snr>0.0){
+            noiseTerm=twister.nextGaussian()*noiseDev;
+        }
+        Sreal+=noiseTerm;
+
+        if(snr>0.0){
+            noiseTerm=twister.nextGaussian()*noiseDev;
+        }
+
+        // take modulus of real and imaginary parts to provide measured signal
+        return Math.sqrt(Sreal*Sreal + noiseTerm*noiseTerm);
+    }
+
+
+    /**
+     * reads out one voxel's worth of signals in the layout the simulation
+     * outputs for the given compartmental signal flag. With all
+     * compartments, the intracellular, extracellular and net signals are
+     * concatenated in that order.
+     *
+     * @param twister noise generator
+     * @param snr signal to noise ratio
+     * @param compartmentSignal one of SimulationParams.NOCOMPS, INTRAONLY,
+     *        EXTRAONLY or ALLCOMPS
+     *
+     * @return the signals
+     */
+    public double[] getSignals(MTRandom twister, double snr, int compartmentSignal){
+
+        if(compartmentSignal==SimulationParams.INTRAONLY){
+            return getCompartmentalSignals(true, twister, snr);
+        }
+        else if(compartmentSignal==SimulationParams.EXTRAONLY){
+            return getCompartmentalSignals(false, twister, snr);
+        }
+        else if(compartmentSignal==SimulationParams.ALLCOMPS){
+            double[] S= new double[3*numMeas];
+
+            double[] Sin= getCompartmentalSignals(true, twister, snr);
+            double[] Sout= getCompartmentalSignals(false, twister, snr);
+
+            System.arraycopy(Sin, 0, S, 0, numMeas);
+            System.arraycopy(Sout, 0, S, numMeas, numMeas);
+            for(int i=0; i<numMeas; i++){
+                S[2*numMeas+i]= getSignal(i, twister, snr);
+            }
+
+            return S;
+        }
+
+        double[] S= new double[numMeas];
+        for(int i=0; i<numMeas; i++){
+            S[i]= getSignal(i, twister, snr);
+        }
+
+        return S;
+    }
+
+
+    /**
+     * @return compartmental signals for every measurement
+     */
+    private double[] getCompartmentalSignals(boolean intra, MTRandom twister, double snr){
+
+        double[] S= new double[numMeas];
+
+        for(int i=0; i<numMeas; i++){
+            S[i]= getCompartmentalSignal(i, intra, twister, snr);
+        }
+
+        return S;
+    }
+
+
+    /**
+     * writes the sums to a partial signal file. the header records the
+     * shard that produced them and the seed of the simulation, which is
+     * shared by all its shards.
+     *
+     * @param out output stream
+     * @param shard shard index
+     * @param seed random seed of the simulation (not the walker seed)
+     */
+    public void write(DataOutputStream out, int shard, int seed) throws IOException{
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(numMeas);
+        out.writeLong(numWalkers);
+        out.writeInt(shard);
+        out.writeInt(seed);
+
+        for(int i=0; i<numMeas; i++){
+            out.writeDouble(total[i]);
+            out.writeDouble(totalImag[i]);
+            out.writeDouble(intra[i]);
+            out.writeDouble(intraImag[i]);
+            out.writeDouble(extra[i]);
+            out.writeDouble(extraImag[i]);
+            out.writeLong(numIn[i]);
+            out.writeLong(numExt[i]);
+            out.writeDouble(compIntra[i]);
+            out.writeDouble(compExtra[i]);
+        }
+    }
+
+
+    /**
+     * reads sums from a partial signal file.
+     *
+     * @param in input stream
+     * @param header space for the shard index and seed from the header
+     *        (may be null)
+     *
+     * @return the sums
+     */
+    public static SignalSums read(DataInputStream in, int[] header) throws IOException{
+
+        if(in.readInt()!=MAGIC){
+            throw new LoggedException("not a partial signal file");
+        }
+
+        int version= in.readInt();
+        if(version!=VERSION){
+            throw new LoggedException("partial signal file version "+version+
+                    " not supported (expected "+VERSION+")");
+        }
+
+        SignalSums sums= new SignalSums(in.readInt());
+
+        sums.numWalkers= in.readLong();
+
+        int shard= in.readInt();
+        int seed= in.readInt();
+
+        if(header!=null){
+            header[0]= shard;
+            header[1]= seed;
+        }
+
+        for(int i=0; i<sums.numMeas; i++){
+            sums.total[i]= in.readDouble();
+            sums.totalImag[i]= in.readDouble();
+            sums.intra[i]= in.readDouble();
+            sums.intraImag[i]= in.readDouble();
+            sums.extra[i]= in.readDouble();
+            sums.extraImag[i]= in.readDouble();
+            sums.numIn[i]= in.readLong();
+            sums.numExt[i]= in.readLong();
+            sums.compIntra[i]= in.readDouble();
+            sums.compExtra[i]= in.readDouble();
+        }
+
+        return sums;
+    }
+}
@@ -10,6 +10,7 @@ import java.util.logging.Logger;
 import simulation.DiffusionSimulation;
 import simulation.dynamics.StickyWalker;
 import simulation.dynamics.Walker;
+import simulation.dynamics.WalkerPool;
 
 /**
  * derives statistical measures from the walkers directly,
@@ -38,6 +39,9 @@ public abstract class StatisticsModule {
     /** array of walkers to do the stats on */
     protected final Walker[] walker;
     
+    /** walker pool to do the stats on, if walkers are kept in one */
+    protected final WalkerPool pool;
+    
     /** space to store returned values */
     protected double[] stats;
     
@@ -51,6 +55,7 @@ public abstract class StatisticsModule {
      */
     public StatisticsModule(Walker[] walker){
         this.walker= walker;
+        this.pool= null;
         this.numMeas = 3;
         
         Ns=5;
@@ -59,12 +64,35 @@ public abstract class StatisticsModule {
     }
     public StatisticsModule(Walker[] walker, int numMeas_in){
         this.walker= walker;
+        this.pool= null;
+        this.numMeas = numMeas_in;
+        
+        Ns=5;
+        
+        stats= new double[Ns];
+    }
+    
+    /** constructor for walkers kept in a pool
+     * 
+     * @param pool walker pool from simulation
+     * @param numMeas_in number of measurements
+     */
+    public StatisticsModule(WalkerPool pool, int numMeas_in){
+        this.walker= null;
+        this.pool= pool;
         this.numMeas = numMeas_in;
         
         Ns=5;
         
         stats= new double[Ns];
     }
+    
+    /**
+     * @return number of walkers in the simulation
+     */
+    protected final int numWalkers(){
+        return (pool!=null)?pool.N:walker.length;
+    }
     public abstract double[] getRuntimeStats(double t);
         
     
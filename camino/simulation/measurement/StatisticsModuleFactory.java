@@ -4,6 +4,7 @@ import java.util.logging.Logger;
 
 import simulation.SimulationParams;
 import simulation.dynamics.Walker;
+import simulation.dynamics.WalkerPool;
 
 /**
  * constructs stats modules of a specified type from simulation 
@@ -81,5 +82,29 @@ public class StatisticsModuleFactory {
     
     }
     
+    /** factory method for walkers kept in a pool. sticky stats need walker objects */
+    public static final StatisticsModule getStatsModule(WalkerPool pool, int numMeas){
+        
+        if(SimulationParams.sim_StatsModType== StatsModuleType.MS_DISP){
+            
+            return new MSdispStatsModule(pool, numMeas);
+        }
+        else if(SimulationParams.sim_StatsModType== StatsModuleType.PHASE) {
+        	
+        		return new PhaseStatsModule(pool, numMeas);
+        }
+        else if(SimulationParams.sim_StatsModType== StatsModuleType.PHASE_DISP) {
+        	
+        		return new PhaseDispStatsModule(pool, numMeas);
+        }
+        else{
+            
+            logger.warning("statistics module type "+SimulationParams.sim_StatsModType+" not available for walker pool. returning mean-squared displacement type");
+            return new MSdispStatsModule(pool, numMeas);
+        }
+    
+    
+    }
+    
     
 }
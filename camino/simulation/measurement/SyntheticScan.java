@@ -7,6 +7,7 @@
 package simulation.measurement;
 
 import simulation.dynamics.Walker;
+import simulation.dynamics.WalkerPool;
 import simulation.measurement.ScanFactory.ScanType;
 
 
@@ -77,6 +78,56 @@ public interface SyntheticScan {
      */
     public void update(int t);    
 
+    /**
+     * compiles the scan's gradient impulses for every timestep of a
+     * simulation, so that walkers don't have to ask for them at each
+     * step.
+     * 
+     * @param tmax number of timesteps
+     * @param dt duration of a timestep
+     */
+    public void compileImpulseTable(int tmax, double dt);
+    
+    /**
+     * returns the compiled gradient impulses.
+     * 
+     * @return the impulse table, or null if there isn't one and phase 
+     *         shifts must come from getPhaseShift()
+     */
+    public GradientImpulseTable getImpulseTable();
+    
+    /**
+     * tells the scan to read walker phases and positions from a 
+     * walker pool instead of an array of walker objects.
+     * 
+     * @param pool the walker pool
+     */
+    public void setWalkerPool(WalkerPool pool);
+
+    /**
+     * adds the contributions of the first n walkers to running signal
+     * sums, so that the walkers can be discarded and reinitialised for
+     * the next batch. Once this has been called the signals are read
+     * out from the running sums.
+     *
+     * @param n number of walkers in the batch
+     */
+    public void accumulateSignals(int n);
+
+    /**
+     * discards any running signal sums, ready for a new set of batches.
+     */
+    public void resetSignalSums();
+
+    /**
+     * returns the signal sums the scan reads its signals out from, so
+     * that they can be saved and added to sums from other simulations.
+     *
+     * @return running sums if walkers were batched, otherwise sums over
+     *         the current walkers
+     */
+    public SignalSums getSignalSums();
+
     /**
      * returns the scan type
      */
@@ -0,0 +1,457 @@
+package simulation.measurement;
+
+import imaging.DW_Scheme;
+import imaging.SimulableScheme;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import misc.LoggedException;
+
+import simulation.DiffusionSimulation;
+import simulation.TrajectoryReader;
+import simulation.geometry.substrates.Substrate;
+import tools.CL_Initializer;
+
+/**
+ * synthesises signals from a trajectory file for any number of schemes
+ * in a single pass over the file.
+ *
+ * Trajectory files are time-major: each frame holds every walker's
+ * position at one time. The walkers are split into contiguous ranges
+ * and each range is run through every frame of a block on its own
+ * thread, reading just its own slice of each frame. A walker's phases
+ * are accumulated in the same order as a serial read of the file, so
+ * the signals don't depend on the number of threads.
+ *
+ * Each scheme accumulates phase up to the end of its own duration. The
+ * first frame at or after the end of a scheme gives the final positions
+ * used to decide which walkers are in the voxel, if there's a substrate.
+ *
+ * @see AgnosticScan#getSignalsFromTrajectories()
+ *
+ */
+public class TrajectoryScan {
+
+    /** logging object */
+    private static final Logger logger= Logger.getLogger("simulation.measurement.TrajectoryScan");
+
+    /** dimensionality of space */
+    private static final int D= DiffusionSimulation.D;
+
+    /** gyromagnetic ratio */
+    private static final double GAMMA= DW_Scheme.GAMMA;
+
+    /** number of walker ranges per thread, to even out the load */
+    private static final int RANGES_PER_THREAD= 4;
+
+    /** the schemes */
+    private final SimulableScheme[] schemes;
+
+    /** substrate for the voxel (null to count every walker) */
+    private final Substrate substrate;
+
+
+    /**
+     * constructor.
+     *
+     * @param schemes schemes to synthesise signals for
+     * @param substrate the substrate to give info on the volume to generate signal
+     *        (null to count every walker)
+     */
+    public TrajectoryScan(SimulableScheme[] schemes, Substrate substrate){
+
+        this.schemes= schemes;
+        this.substrate= substrate;
+    }
+
+
+    /**
+     * reads a trajectory file and calculates the signals for each
+     * scheme. The reader is closed afterwards.
+     *
+     * @param reader trajectory file
+     * @param numThreads number of threads to use (one or less for serial)
+     * @param phaseFile file to write the final phase of every walker to,
+     *        one line per measurement (null for none)
+     *
+     * @return signals for each scheme, one for each line of the scheme
+     */
+    public double[][] getSignals(TrajectoryReader reader, int numThreads, String phaseFile){
+
+        int N= reader.getNumWalkers();
+
+        SchemePhases[] phases= new SchemePhases[schemes.length];
+        for(int s=0; s<schemes.length; s++){
+            phases[s]= new SchemePhases(schemes[s], N, (int)(Math.floor(schemes[s].getDuration()/reader.getDt())));
+        }
+
+        // initial positions, walker by walker
+        double[] r0= new double[D*N];
+
+        int numRanges= (numThreads>1)?Math.min(numThreads*RANGES_PER_THREAD, N):1;
+
+        List<WalkerRange> ranges= new ArrayList<WalkerRange>(numRanges);
+        for(int b=0; b<numRanges; b++){
+            ranges.add(new WalkerRange(reader, phases, r0, (int)((long)b*N/numRanges), (int)((long)(b+1)*N/numRanges)));
+        }
+
+        ExecutorService executor= (numRanges>1)?Executors.newFixedThreadPool(numThreads):null;
+
+        logger.info("synthesising "+schemes.length+" schemes from trajectories of "+N+" walkers on "+
+                ((executor!=null)?numThreads:1)+" threads");
+
+        try{
+            boolean first= true;
+            double tLast= 0.0;
+
+            ByteBuffer block;
+            while((block= reader.nextBlock())!=null){
+
+                int numFrames= reader.getNumFrames(block);
+
+                // the first frame at or after the end of each scheme, if it's in this block
+                for(int s=0; s<phases.length; s++){
+                    phases[s].finalFrame= numFrames;
+                    if(!phases[s].done){
+                        for(int f=0; f<numFrames; f++){
+                            if(reader.getTimestep(block, f)>=phases[s].tmax){
+                                phases[s].finalFrame= f;
+                                break;
+                            }
+                        }
+                    }
+                }
+
+                System.err.print("\r"+100.0*(double)reader.getTimestep(block, 0)/(double)reader.getTmax()+"%     ");
+
+                for(WalkerRange range : ranges){
+                    range.set(block, numFrames, first, tLast);
+                }
+
+                if(executor!=null){
+                    invokeAll(executor, ranges);
+                }
+                else{
+                    ranges.get(0).call();
+                }
+
+                for(int s=0; s<phases.length; s++){
+                    if(!phases[s].done&&(phases[s].finalFrame<numFrames)){
+                        phases[s].setInVoxel(reader, block, phases[s].finalFrame);
+                    }
+                }
+
+                first= false;
+                tLast= reader.getTime(block, numFrames-1);
+            }
+
+            if(first){
+                throw new LoggedException("trajectory file contains no frames");
+            }
+        }
+        finally{
+            if(executor!=null){
+                executor.shutdownNow();
+            }
+
+            reader.close();
+        }
+
+        double[][] signals= new double[schemes.length][];
+
+        for(int s=0; s<schemes.length; s++){
+            if(!phases[s].done){
+                if(substrate!=null){
+                    throw new LoggedException("trajectories end before the end of the scheme. aborting.");
+                }
+                Arrays.fill(phases[s].inVoxel, true);
+            }
+
+            signals[s]= phases[s].getSignals();
+        }
+
+        if(phaseFile!=null){
+            writePhases(phaseFile, phases);
+        }
+
+        return signals;
+    }
+
+
+    /**
+     * runs the tasks on the executor and waits for all of them. an
+     * exception in any of them is rethrown here.
+     */
+    private static void invokeAll(ExecutorService executor, List<? extends Callable<Object>> tasks){
+
+        try{
+            for(Future<Object> future : executor.invokeAll(tasks)){
+                future.get();
+            }
+        }
+        catch(InterruptedException ie){
+            throw new LoggedException(ie);
+        }
+        catch(ExecutionException ee){
+            throw new LoggedException(ee.getCause());
+        }
+    }
+
+
+    /**
+     * writes the phase of every walker for every measurement, scheme by
+     * scheme.
+     */
+    private static void writePhases(String phaseFile, SchemePhases[] phases){
+
+        try{
+            BufferedWriter phaseWriter= new BufferedWriter(new FileWriter(phaseFile));
+
+            for(int s=0; s<phases.length; s++){
+                double[][] dphi= phases[s].dphi;
+
+                for(int i=0; i<dphi.length; i++){
+                    for(int j=0; j<dphi[i].length; j++){
+                        phaseWriter.write(dphi[i][j]+",");
+                    }
+                    phaseWriter.write("\n");
+                }
+            }
+
+            phaseWriter.close();
+        }
+        catch(IOException ioe){
+            throw new LoggedException(ioe);
+        }
+    }
+
+
+    /**
+     * phases of every walker for one scheme
+     */
+    private final class SchemePhases {
+
+        /** the scheme */
+        private final SimulableScheme scheme;
+
+        /** number of measurements */
+        private final int numMeas;
+
+        /** timestep at the end of the scheme */
+        private final int tmax;
+
+        /** phase of each walker for each measurement */
+        private final double[][] dphi;
+
+        /** is each walker in the voxel at the end of the scheme? */
+        private final boolean[] inVoxel;
+
+        /** have the final positions been read? */
+        private boolean done= false;
+
+        /** first frame in the current block at or after the end of the scheme */
+        private int finalFrame;
+
+
+        private SchemePhases(SimulableScheme scheme, int N, int tmax){
+
+            this.scheme= scheme;
+            this.numMeas= ((DW_Scheme)scheme).numMeasurements();
+            this.tmax= tmax;
+
+            this.dphi= new double[numMeas][N];
+            this.inVoxel= new boolean[N];
+        }
+
+
+        /**
+         * reads the final positions of the walkers and checks which are
+         * in the voxel
+         */
+        private void setInVoxel(TrajectoryReader reader, ByteBuffer block, int f){
+
+            if(substrate==null){
+                Arrays.fill(inVoxel, true);
+            }
+            else{
+                double[] r= new double[D];
+
+                for(int i=0; i<inVoxel.length; i++){
+                    reader.getPositions(block, f, i, i+1, r);
+                    inVoxel[i]= substrate.voxelContains(r);
+                }
+            }
+
+            done= true;
+        }
+
+
+        /**
+         * @return signal for each measurement from walkers in the voxel
+         */
+        private double[] getSignals(){
+
+            double[] signal= new double[numMeas];
+
+            for(int i=0; i<numMeas; i++){
+                for(int j=0; j<inVoxel.length; j++){
+                    if(!inVoxel[j]){
+                        continue;
+                    }
+                    // assume signal is symmetric
+                    signal[i]+= Math.cos(dphi[i][j]);
+                }
+
+                double b= ((DW_Scheme)scheme).getB_Value(i);
+                double Sfree= Math.exp(-b*CL_Initializer.DIFF_CONST);
+
+                logger.info("signal = "+signal[i]+", free = "+Sfree);
+            }
+
+            return signal;
+        }
+    }
+
+
+    /**
+     * a contiguous range of walkers to be run through a block of frames
+     * on a worker thread. the block is set before each range is handed
+     * to the executor.
+     */
+    private final class WalkerRange implements Callable<Object> {
+
+        /** trajectory file */
+        private final TrajectoryReader reader;
+
+        /** phases for each scheme */
+        private final SchemePhases[] phases;
+
+        /** initial positions of all walkers */
+        private final double[] r0;
+
+        /** index of first walker */
+        private final int start;
+
+        /** index after last walker */
+        private final int end;
+
+        /** positions of this range's walkers in the current frame */
+        private final double[] r;
+
+        /** current block of frames */
+        private ByteBuffer block;
+
+        /** number of frames in block */
+        private int numFrames;
+
+        /** is this the first block? */
+        private boolean first;
+
+        /** time of the frame before the block */
+        private double tLast;
+
+
+        private WalkerRange(TrajectoryReader reader, SchemePhases[] phases, double[] r0, int start, int end){
+
+            this.reader= reader;
+            this.phases= phases;
+            this.r0= r0;
+            this.start= start;
+            this.end= end;
+            this.r= new double[D*(end-start)];
+        }
+
+
+        private void set(ByteBuffer block, int numFrames, boolean first, double tLast){
+
+            this.block= block;
+            this.numFrames= numFrames;
+            this.first= first;
+            this.tLast= tLast;
+        }
+
+
+        public Object call(){
+
+            int f= 0;
+
+            if(first){
+                // initial positions and phases
+                reader.getPositions(block, 0, start, end, r);
+                System.arraycopy(r, 0, r0, D*start, r.length);
+
+                double time= reader.getTime(block, 0);
+
+                for(int s=0; s<phases.length; s++){
+                    accumulate(phases[s], time, 0.0);
+                }
+
+                tLast= time;
+                f= 1;
+            }
+
+            for(; f<numFrames; f++){
+
+                double time= reader.getTime(block, f);
+                boolean read= false;
+
+                for(int s=0; s<phases.length; s++){
+                    if(phases[s].done||(f>=phases[s].finalFrame)){
+                        continue;
+                    }
+
+                    if(!read){
+                        reader.getPositions(block, f, start, end, r);
+                        read= true;
+                    }
+
+                    accumulate(phases[s], time, tLast);
+                }
+
+                tLast= time;
+            }
+
+            return null;
+        }
+
+
+        /**
+         * adds the phase shift of each walker in the range since the last
+         * frame to its phases for every measurement in a scheme.
+         */
+        private void accumulate(SchemePhases scheme, double time, double last){
+
+            for(int j=0; j<scheme.numMeas; j++){
+
+                // gradient strength times duration in gradient pulse. the same for every walker
+                double[] Gdt= scheme.scheme.getGradImpulse(j, time, last);
+
+                double[] dphi= scheme.dphi[j];
+
+                for(int i=start; i<end; i++){
+                    int k= D*(i-start);
+
+                    double gradDotPos= 0.0;
+                    for(int d=0; d<Gdt.length; d++){
+                        gradDotPos+= Gdt[d]*(r[k+d]-r0[D*i+d]);
+                    }
+
+                    dphi[i]+= AgnosticScan.mapToCircle(GAMMA*gradDotPos);
+                    dphi[i]= AgnosticScan.mapToCircle(dphi[i]);
+                }
+            }
+        }
+    }
+}
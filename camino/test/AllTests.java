@@ -10,6 +10,11 @@ import tools.*;
 import tractography.*;
 import sphfunc.*;
 import models.compartments.*;
+import simulation.*;
+import simulation.dynamics.*;
+import simulation.geometry.*;
+import simulation.geometry.substrates.*;
+import simulation.measurement.*;
 
 
 public class AllTests extends TestCase {
@@ -26,6 +31,7 @@ public class AllTests extends TestCase {
     private static boolean testTractography = true;
     private static boolean testGreatCircleIntegrals = true;
     private static boolean testModels = true;
+    private static boolean testSimulation = true;
 
 
     public static Test suite() {
@@ -75,6 +81,7 @@ public class AllTests extends TestCase {
 	    suite.addTest(TestBinghamDistribution.suite());
 	    suite.addTest(TestBinghamFitter.suite());
 	    suite.addTest(TestComplex.suite());
+	    suite.addTest(TestCounterRandom.suite());
 	    suite.addTest(TestEigenSystem3D.suite());
 	    suite.addTest(GenTestMethods.suite());
 	    suite.addTest(TestRealMatrix.suite());
@@ -174,6 +181,22 @@ public class AllTests extends TestCase {
             
 	}
 
+	if(testSimulation){
+	    suite.addTest(TestPLYreader.suite());
+	    suite.addTest(TestSignalSums.suite());
+	    suite.addTest(TestInitialPositionFile.suite());
+	    suite.addTest(TestMeshCache.suite());
+	    suite.addTest(TestWalkerPool.suite());
+	    suite.addTest(TestGradientImpulseTable.suite());
+	    suite.addTest(TestSimulationCheckpoint.suite());
+	    suite.addTest(TestTrajectoryFile.suite());
+	    suite.addTest(TestSafeRadius.suite());
+	    suite.addTest(TestInstancedMeshSubstrate.suite());
+	    suite.addTest(TestDynamicSubVoxelMap.suite());
+	    suite.addTest(TestSquashyInflammationSubstrate.suite());
+	    suite.addTest(TestParallelCylinderIndex.suite());
+	}
+
 	return suite;
     }
 
@@ -196,6 +219,7 @@ public class AllTests extends TestCase {
 	    testTractography = false;
 	    testGreatCircleIntegrals = false;
 	    testModels = false;
+	    testSimulation = false;
             
 	    for (int i = 0; i < args.length; i++) {
 		if (args[i].equals("-apps")) {
@@ -234,6 +258,9 @@ public class AllTests extends TestCase {
 		if(args[i].equals("-models")) {
 		    testModels = true;
 		}
+		if(args[i].equals("-simulation")) {
+		    testSimulation = true;
+		}
 
 	    }
 
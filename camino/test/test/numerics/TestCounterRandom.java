@@ -0,0 +1,121 @@
+package numerics;
+
+import junit.framework.*;
+import junit.extensions.*;
+
+/**
+ * <dl>
+ * <dt>Purpose: Automated tests for <code>CounterRandom.java</code>.
+ * <BR><BR>
+ *
+ * <dt>Description:
+ * <dd> This class is used to perform tests on <code>CounterRandom</code> with JUnit 3.8.
+ *
+ * </dl>
+ *
+ * @see numerics.CounterRandom
+ * @see <A HREF="http://www.junit.org">Junit Homepage</A>
+ *
+ *
+ */
+public class TestCounterRandom extends TestCase {
+
+
+    public TestCounterRandom(String name) {
+	super(name);
+    }
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(suite());
+    }
+
+
+    public static Test suite() {
+	return new TestSuite(TestCounterRandom.class);
+    }
+
+
+    /**
+     * a stream is the same whenever it is visited, whatever was drawn from
+     * other streams in between
+     */
+    public void testReproducible() {
+
+	CounterRandom a= new CounterRandom(1234);
+	CounterRandom b= new CounterRandom(1234);
+
+	double[] first= new double[5];
+
+	a.setStream(17, 3);
+	for (int i = 0; i < first.length; i++) {
+	    first[i]= a.nextDouble();
+	}
+
+	b.setStream(2, 99);
+	b.nextDouble();
+	b.setStream(17, 3);
+
+	for (int i = 0; i < first.length; i++) {
+	    assertEquals(first[i], b.nextDouble(), 0.0);
+	    assertEquals(first[i], CounterRandom.uniform(1234, 17, 3, i+1), 0.0);
+	}
+
+	a.setStream(17, 3);
+	double[] bulk= new double[first.length];
+	a.nextDoubles(bulk, 0, bulk.length);
+
+	for (int i = 0; i < first.length; i++) {
+	    assertEquals(first[i], bulk[i], 0.0);
+	}
+
+	assertEquals(first.length, a.getCounter());
+    }
+
+
+    /**
+     * different seeds, walkers and timesteps give different streams
+     */
+    public void testDistinctStreams() {
+
+	double u= CounterRandom.uniform(1234, 0, 0, 1);
+
+	assertTrue(u!=CounterRandom.uniform(1235, 0, 0, 1));
+	assertTrue(u!=CounterRandom.uniform(1234, 1, 0, 1));
+	assertTrue(u!=CounterRandom.uniform(1234, 0, 1, 1));
+	assertTrue(CounterRandom.uniform(1234, 1, 0, 1)!=CounterRandom.uniform(1234, 0, 1, 1));
+    }
+
+
+    /**
+     * deviates are on [0,1) with roughly the right mean and variance,
+     * both within and across streams
+     */
+    public void testUniform() {
+
+	CounterRandom rng= new CounterRandom(5);
+
+	int n= 0;
+	double sum= 0.0, sumSq= 0.0;
+
+	for (int s = 0; s < 1000; s++) {
+	    rng.setStream(s, 7);
+
+	    for (int i = 0; i < 100; i++) {
+		double u= rng.nextDouble();
+
+		assertTrue(u>=0.0 && u<1.0);
+
+		sum+= u;
+		sumSq+= u*u;
+		n++;
+	    }
+	}
+
+	double mean= sum/n;
+	double var= sumSq/n-mean*mean;
+
+	assertEquals(0.5, mean, 0.005);
+	assertEquals(1.0/12.0, var, 0.002);
+    }
+
+}
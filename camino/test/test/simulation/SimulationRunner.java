@@ -0,0 +1,157 @@
+package simulation;
+
+import junit.framework.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <dl>
+ * <dt>Purpose: Runs camino commands in their own JVM for the simulation tests.
+ * <BR><BR>
+ *
+ * <dt>Description:
+ * <dd> Simulation settings live in static fields that keep their values
+ * from one run to the next, so tests that compare whole simulations run
+ * each one as a separate process on the test's classpath.
+ *
+ * </dl>
+ *
+ *
+ */
+public class SimulationRunner {
+
+    /** a small PGSE scheme with an unweighted measurement */
+    private static final String[] SCHEME= new String[] {
+	"VERSION: STEJSKALTANNER",
+	"0.0 0.0 0.0 0.0 0.03 0.01 0.045",
+	"1.0 0.0 0.0 0.05 0.03 0.01 0.045",
+	"0.0 1.0 0.0 0.05 0.03 0.01 0.045",
+	"0.0 0.0 1.0 0.08 0.03 0.01 0.045",
+	"0.57735026918962576 0.57735026918962576 0.57735026918962576 0.08 0.03 0.01 0.045"};
+
+
+    /**
+     * runs a camino command and returns what it wrote to standard
+     * output. the test fails if the command does.
+     *
+     * @param dir working directory
+     * @param command command name, as given to apps.EntryPoint
+     * @param args arguments
+     *
+     * @return standard output
+     */
+    public static byte[] run(File dir, String command, String[] args) throws IOException, InterruptedException {
+
+	List<String> cmd= new ArrayList<String>();
+	cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+	cmd.add("-cp");
+	cmd.add(System.getProperty("java.class.path"));
+	cmd.add("apps.EntryPoint");
+	cmd.add(command);
+	cmd.addAll(Arrays.asList(args));
+
+	File err= File.createTempFile("SimulationRunner", ".err");
+
+	try {
+	    ProcessBuilder pb= new ProcessBuilder(cmd);
+	    pb.directory(dir);
+	    pb.redirectError(err);
+
+	    Process p= pb.start();
+	    p.getOutputStream().close();
+
+	    byte[] out= readAll(p.getInputStream());
+
+	    int exit= p.waitFor();
+
+	    if (exit != 0) {
+		Assert.fail(command+" "+Arrays.asList(args)+" exited with "+exit+":\n"+new String(readAll(new FileInputStream(err))));
+	    }
+
+	    return out;
+	}
+	finally {
+	    err.delete();
+	}
+    }
+
+
+    /**
+     * writes the test scheme file
+     *
+     * @param f file to write
+     *
+     * @return number of measurements in the scheme
+     */
+    public static int writeScheme(File f) throws IOException {
+
+	FileWriter out= new FileWriter(f);
+	for (int i = 0; i < SCHEME.length; i++) {
+	    out.write(SCHEME[i]+"\n");
+	}
+	out.close();
+
+	return SCHEME.length-1;
+    }
+
+
+    /**
+     * makes an empty temporary directory
+     */
+    public static File tempDir(String prefix) throws IOException {
+
+	File dir= File.createTempFile(prefix, "");
+	dir.delete();
+	if (!dir.mkdir()) {
+	    throw new IOException("couldn't make directory "+dir);
+	}
+
+	return dir;
+    }
+
+
+    /**
+     * deletes a temporary directory and the files in it
+     */
+    public static void deleteDir(File dir) {
+
+	File[] files= dir.listFiles();
+	if (files != null) {
+	    for (int i = 0; i < files.length; i++) {
+		files[i].delete();
+	    }
+	}
+	dir.delete();
+    }
+
+
+    /**
+     * reads the whole of a file
+     */
+    public static byte[] readFile(File f) throws IOException {
+	return readAll(new FileInputStream(f));
+    }
+
+
+    private static byte[] readAll(InputStream in) throws IOException {
+
+	ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+	byte[] buf= new byte[8192];
+
+	for (int n= in.read(buf); n >= 0; n= in.read(buf)) {
+	    bytes.write(buf, 0, n);
+	}
+	in.close();
+
+	return bytes.toByteArray();
+    }
+
+}
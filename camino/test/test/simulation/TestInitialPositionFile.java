@@ -0,0 +1,235 @@
+package simulation;
+
+import junit.framework.*;
+import junit.extensions.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import misc.LoggedException;
+import numerics.MTRandom;
+
+/**
+ * <dl>
+ * <dt>Purpose: Automated tests for <code>InitialPositionFile.java</code>.
+ * <BR><BR>
+ *
+ * <dt>Description:
+ * <dd> This class is used to perform tests on <code>InitialPositionFile</code> with JUnit 3.8.
+ *
+ * </dl>
+ *
+ * @see simulation.InitialPositionFile
+ * @see <A HREF="http://www.junit.org">Junit Homepage</A>
+ *
+ *
+ */
+public class TestInitialPositionFile extends TestCase {
+
+    /** number of walkers in the test files */
+    private static final int N= 11;
+
+    /** batches the walkers are read in, adding up to N */
+    private static final int[] BATCHES= new int[] {4, 1, 5, 1};
+
+    /** positions in the text file */
+    private double[] pos;
+
+    /** text, float64 and float32 files */
+    private File text, float64, float32;
+
+
+    public TestInitialPositionFile(String name) {
+	super(name);
+    }
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(suite());
+    }
+
+
+    public static Test suite() {
+	return new TestSuite(TestInitialPositionFile.class);
+    }
+
+
+    /**
+     * writes the text file and converts it to both binary formats
+     */
+    protected void setUp() throws IOException {
+
+	MTRandom twister= new MTRandom(1234);
+
+	pos= new double[N*3];
+	for (int k = 0; k < pos.length; k++) {
+	    pos[k]= 1E-5*twister.nextDouble()-2E-6;
+	}
+
+	text= File.createTempFile("TestInitialPositionFile", ".txt");
+	float64= File.createTempFile("TestInitialPositionFile", ".dat");
+	float32= File.createTempFile("TestInitialPositionFile", ".dat");
+
+	FileWriter out= new FileWriter(text);
+	out.write(N+"\n");
+	for (int i = 0; i < N; i++) {
+	    out.write(pos[3*i]+" "+pos[3*i+1]+" "+pos[3*i+2]+"\n");
+	}
+	out.close();
+
+	InitialPositionFile.main(new String[] {text.getPath(), float64.getPath()});
+	InitialPositionFile.main(new String[] {text.getPath(), float32.getPath(), "float"});
+    }
+
+
+    protected void tearDown() {
+	text.delete();
+	float64.delete();
+	float32.delete();
+    }
+
+
+    /**
+     * headers of each format
+     */
+    public void testHeader() {
+
+	InitialPositionFile[] files= new InitialPositionFile[] {new InitialPositionFile(text.getPath()),
+								new InitialPositionFile(float64.getPath()),
+								new InitialPositionFile(float32.getPath())};
+
+	for (int f = 0; f < files.length; f++) {
+	    assertEquals(N, files[f].getNumWalkers());
+	    assertEquals(f > 0, files[f].isBinary());
+	    files[f].close();
+	}
+
+	assertEquals(24L+N*3*8, float64.length());
+	assertEquals(24L+N*3*4, float32.length());
+    }
+
+
+    /**
+     * reading in batches gives the positions written, exactly for text
+     * and doubles and to single precision for floats
+     */
+    public void testBatchedRead() {
+
+	assertPositions(readBatches(text), pos);
+	assertPositions(readBatches(float64), pos);
+
+	double[] single= new double[pos.length];
+	for (int k = 0; k < pos.length; k++) {
+	    single[k]= (float)pos[k];
+	}
+
+	assertPositions(readBatches(float32), single);
+    }
+
+
+    /**
+     * reading everything at once gives the same as reading in batches
+     */
+    public void testSingleRead() {
+
+	InitialPositionFile file= new InitialPositionFile(float64.getPath());
+
+	double[] read= new double[pos.length];
+	file.read(N, read);
+	file.close();
+
+	assertPositions(read, pos);
+    }
+
+
+    /**
+     * skipped walkers are passed over in every format
+     */
+    public void testSkip() {
+
+	File[] files= new File[] {text, float64};
+
+	for (int f = 0; f < files.length; f++) {
+	    InitialPositionFile file= new InitialPositionFile(files[f].getPath());
+
+	    file.skip(3);
+
+	    double[] read= new double[3*(N-3)];
+	    file.read(2, read);
+	    file.skip(0);
+
+	    double[] rest= new double[3*(N-5)];
+	    file.read(N-5, rest);
+	    System.arraycopy(rest, 0, read, 6, rest.length);
+
+	    file.close();
+
+	    double[] expected= new double[read.length];
+	    System.arraycopy(pos, 9, expected, 0, expected.length);
+
+	    assertPositions(read, expected);
+	}
+    }
+
+
+    /**
+     * there's no reading beyond the last walker
+     */
+    public void testReadPastEnd() {
+
+	File[] files= new File[] {text, float64, float32};
+
+	for (int f = 0; f < files.length; f++) {
+	    InitialPositionFile file= new InitialPositionFile(files[f].getPath());
+
+	    file.read(N-1, new double[3*N]);
+
+	    try {
+		file.read(2, new double[3*N]);
+		fail("read past the end of "+files[f]);
+	    }
+	    catch (LoggedException e) {
+		// expected
+	    }
+
+	    file.close();
+	}
+    }
+
+
+    /**
+     * reads the whole of a file in the test batches
+     */
+    private static double[] readBatches(File f) {
+
+	InitialPositionFile file= new InitialPositionFile(f.getPath());
+
+	double[] read= new double[N*3];
+	int start= 0;
+
+	for (int b = 0; b < BATCHES.length; b++) {
+	    double[] batch= new double[BATCHES[b]*3];
+	    file.read(BATCHES[b], batch);
+
+	    System.arraycopy(batch, 0, read, start*3, batch.length);
+	    start+= BATCHES[b];
+	}
+
+	assertEquals(N, start);
+
+	file.close();
+
+	return read;
+    }
+
+
+    private static void assertPositions(double[] read, double[] expected) {
+
+	assertEquals(expected.length, read.length);
+
+	for (int k = 0; k < expected.length; k++) {
+	    assertEquals("walker "+(k/3)+" component "+(k%3), expected[k], read[k], 0.0);
+	}
+    }
+
+}
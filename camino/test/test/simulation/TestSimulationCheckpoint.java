@@ -0,0 +1,131 @@
+package simulation;
+
+import junit.framework.*;
+import junit.extensions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <dl>
+ * <dt>Purpose: Automated tests for <code>SimulationCheckpoint.java</code>.
+ * <BR><BR>
+ *
+ * <dt>Description:
+ * <dd> This class is used to check with JUnit 3.8 that a simulation
+ * resumed from a checkpoint gives the same signals and runtime stats as
+ * one run straight through. Each simulation is run in its own JVM.
+ *
+ * </dl>
+ *
+ * @see simulation.SimulationCheckpoint
+ * @see <A HREF="http://www.junit.org">Junit Homepage</A>
+ *
+ *
+ */
+public class TestSimulationCheckpoint extends TestCase {
+
+    /** a small fixed-seed simulation of walkers among hexagonally packed cylinders */
+    private static final String[] SIMULATION= new String[] {"-walkers", "200", "-tmax", "100", "-voxels", "1",
+							   "-p", "0.1", "-initial", "uniform", "-substrate", "cylinder",
+							   "-packing", "hex", "-cylinderrad", "1E-6", "-cylindersep", "2.1E-6",
+							   "-seed", "7", "-schemefile", "test.scheme"};
+
+    /** working directory */
+    private File dir;
+
+
+    public TestSimulationCheckpoint(String name) {
+	super(name);
+    }
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(suite());
+    }
+
+
+    public static Test suite() {
+	return new TestSuite(TestSimulationCheckpoint.class);
+    }
+
+
+    protected void setUp() throws IOException {
+	dir= SimulationRunner.tempDir("TestSimulationCheckpoint");
+	SimulationRunner.writeScheme(new File(dir, "test.scheme"));
+    }
+
+
+    protected void tearDown() {
+	SimulationRunner.deleteDir(dir);
+    }
+
+
+    /**
+     * walker objects, restored with Walker.loadState()
+     */
+    public void testWalkerArray() throws Exception {
+	checkResume(new String[0]);
+    }
+
+
+    /**
+     * pooled walkers, restored with readPool()
+     */
+    public void testWalkerPool() throws Exception {
+	checkResume(new String[] {"-walkerpool"});
+    }
+
+
+    /**
+     * per-walker random streams
+     */
+    public void testThreaded() throws Exception {
+	checkResume(new String[] {"-threads", "2", "-walkerpool"});
+    }
+
+
+    /**
+     * runs the simulation straight through, then again writing a
+     * checkpoint part way, then resumes from the checkpoint. the
+     * checkpoint is only written at timestep 60, so the second run
+     * leaves it behind along with stats for the whole run, as an
+     * interrupted run would with stats written after the checkpoint.
+     *
+     * @param options options for all three runs
+     */
+    private void checkResume(String[] options) throws Exception {
+
+	byte[] straight= run(options, new String[] {"-statsfile", "straight.stats"});
+	byte[] checkpointed= run(options, new String[] {"-statsfile", "resumed.stats", "-checkpoint", "test.ckpt",
+							"-checkpointinterval", "60"});
+
+	File checkpoint= new File(dir, "test.ckpt");
+	assertTrue(checkpoint.exists());
+
+	byte[] stats= SimulationRunner.readFile(new File(dir, "straight.stats"));
+	assertTrue(stats.length > 0);
+
+	// checkpointing doesn't change anything
+	assertTrue(Arrays.equals(straight, checkpointed));
+	assertTrue(Arrays.equals(stats, SimulationRunner.readFile(new File(dir, "resumed.stats"))));
+
+	byte[] resumed= run(options, new String[] {"-statsfile", "resumed.stats", "-resume", "test.ckpt"});
+
+	assertTrue("resumed signals differ", Arrays.equals(straight, resumed));
+	assertTrue("resumed stats differ", Arrays.equals(stats, SimulationRunner.readFile(new File(dir, "resumed.stats"))));
+    }
+
+
+    private byte[] run(String[] options, String[] more) throws Exception {
+
+	List<String> args= new ArrayList<String>(Arrays.asList(SIMULATION));
+	args.addAll(Arrays.asList(options));
+	args.addAll(Arrays.asList(more));
+
+	return SimulationRunner.run(dir, "SyntheticData", args.toArray(new String[args.size()]));
+    }
+
+}
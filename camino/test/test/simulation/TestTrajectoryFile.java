@@ -0,0 +1,386 @@
+package simulation;
+
+import junit.framework.*;
+import junit.extensions.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import imaging.DW_Scheme;
+import imaging.SimulableScheme;
+import numerics.MTRandom;
+import simulation.dynamics.WalkerPool;
+import simulation.measurement.AgnosticScan;
+import simulation.measurement.TrajectoryScan;
+
+/**
+ * <dl>
+ * <dt>Purpose: Automated tests for <code>TrajectoryWriter.java</code>,
+ * <code>TrajectoryReader.java</code> and <code>TrajectoryScan.java</code>.
+ * <BR><BR>
+ *
+ * <dt>Description:
+ * <dd> This class is used to perform tests on trajectory files with
+ * JUnit 3.8. A fixed walk is written with every combination of layout
+ * options and read back, and the signals synthesised from each file
+ * are checked against the calculation that was used for legacy files.
+ *
+ * </dl>
+ *
+ * @see simulation.TrajectoryWriter
+ * @see simulation.TrajectoryReader
+ * @see simulation.measurement.TrajectoryScan
+ * @see <A HREF="http://www.junit.org">Junit Homepage</A>
+ *
+ *
+ */
+public class TestTrajectoryFile extends TestCase {
+
+    /** number of walkers */
+    private static final int N= 13;
+
+    /** number of timesteps. the walk carries on after the end of the scheme */
+    private static final int TMAX= 50;
+
+    /** duration of a timestep. a power of two, so the legacy header gives it back exactly */
+    private static final double DT= 1.0/1024.0;
+
+    /** the walk: positions of every walker, walker by walker, at the start of each timestep and at the end */
+    private double[][] walk;
+
+    /** the scheme */
+    private SimulableScheme scheme;
+
+    /** trajectory file */
+    private File file;
+
+
+    public TestTrajectoryFile(String name) {
+	super(name);
+    }
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(suite());
+    }
+
+
+    public static Test suite() {
+	return new TestSuite(TestTrajectoryFile.class);
+    }
+
+
+    protected void setUp() throws IOException {
+
+	MTRandom twister= new MTRandom(2718);
+
+	walk= new double[TMAX+1][3*N];
+	for (int k = 0; k < 3*N; k++) {
+	    walk[0][k]= 1E-5*twister.nextDouble();
+	}
+	for (int t = 1; t <= TMAX; t++) {
+	    for (int k = 0; k < 3*N; k++) {
+		walk[t][k]= walk[t-1][k]+1E-6*twister.nextGaussian();
+	    }
+	}
+
+	File f= File.createTempFile("TestTrajectoryFile", ".scheme");
+	SimulationRunner.writeScheme(f);
+	scheme= (SimulableScheme)DW_Scheme.readScheme(f.getPath());
+	f.delete();
+
+	file= File.createTempFile("TestTrajectoryFile", ".traj");
+    }
+
+
+    protected void tearDown() {
+
+	SimulationParams.sim_trajLegacy= false;
+	SimulationParams.sim_trajFloat= false;
+	SimulationParams.sim_trajCompress= false;
+	SimulationParams.sim_trajDecimation= 1;
+	SimulationParams.sim_trajWalkerStride= 1;
+
+	file.delete();
+    }
+
+
+    /**
+     * every combination of single precision, decimation, walker
+     * sampling and compression reads back as written, and gives the
+     * signals of the legacy calculation on the recorded frames
+     */
+    public void testRoundTrip() throws IOException {
+
+	for (int c = 0; c < 16; c++) {
+	    boolean single= (c&1)!=0;
+	    int decimation= ((c&2)!=0) ? 3 : 1;
+	    int stride= ((c&4)!=0) ? 4 : 1;
+	    boolean compress= (c&8)!=0;
+
+	    String name= (single?"float32 ":"float64 ")+"decimation "+decimation+" stride "+stride+(compress?" compressed":"");
+
+	    SimulationParams.sim_trajFloat= single;
+	    SimulationParams.sim_trajDecimation= decimation;
+	    SimulationParams.sim_trajWalkerStride= stride;
+	    SimulationParams.sim_trajCompress= compress;
+
+	    write();
+
+	    // the frames that should have been recorded
+	    List<Integer> timesteps= new ArrayList<Integer>();
+	    List<double[]> frames= new ArrayList<double[]>();
+	    int numRecorded= (N+stride-1)/stride;
+
+	    for (int t = 0; t <= TMAX; t++) {
+		if (t%decimation == 0 || t == TMAX) {
+		    double[] r= new double[3*numRecorded];
+		    for (int k = 0; k < numRecorded; k++) {
+			for (int j = 0; j < 3; j++) {
+			    double x= walk[t][3*k*stride+j];
+			    r[3*k+j]= single ? (double)(float)x : x;
+			}
+		    }
+		    timesteps.add(t);
+		    frames.add(r);
+		}
+	    }
+
+	    TrajectoryReader reader= new TrajectoryReader(file.getPath());
+
+	    assertEquals(name, numRecorded, reader.getNumWalkers());
+	    assertEquals(name, N, reader.getTotalWalkers());
+	    assertEquals(name, TMAX, reader.getTmax());
+	    assertEquals(name, DT, reader.getDt(), 0.0);
+	    assertEquals(name, decimation, reader.getDecimation());
+	    for (int k = 0; k < numRecorded; k++) {
+		assertEquals(name, k*stride, reader.getWalkerIndices()[k]);
+	    }
+
+	    // frame by frame
+	    double[] r= new double[3*numRecorded];
+	    for (int f = 0; f < frames.size(); f++) {
+		assertEquals(name, timesteps.get(f).intValue(), reader.readFrame(r));
+		assertEquals(name, timesteps.get(f)*DT, reader.getTime(), 0.0);
+		assertPositions(name, frames.get(f), r);
+	    }
+	    assertEquals(name, -1, reader.readFrame(r));
+
+	    // a block at a time, part of a frame at a time
+	    reader.rewind();
+	    int f= 0;
+	    ByteBuffer block;
+	    while ((block= reader.nextBlock()) != null) {
+		for (int b = 0; b < reader.getNumFrames(block); b++, f++) {
+		    assertEquals(name, timesteps.get(f).intValue(), reader.getTimestep(block, b));
+
+		    double[] part= new double[3*(numRecorded-1)];
+		    reader.getPositions(block, b, 1, numRecorded, part);
+
+		    double[] expected= new double[part.length];
+		    System.arraycopy(frames.get(f), 3, expected, 0, expected.length);
+		    assertPositions(name, expected, part);
+		}
+	    }
+	    assertEquals(name, frames.size(), f);
+
+	    reader.close();
+
+	    // signals, on one thread and several
+	    double[] expected= legacySignals(timesteps, frames, DT);
+
+	    assertSignals(name, expected, scan(1));
+	    assertSignals(name, expected, scan(3));
+	}
+    }
+
+
+    /**
+     * the same walk gives the same signals from a legacy file as from
+     * the new format, and both agree with the legacy calculation reading
+     * the legacy file directly
+     */
+    public void testLegacy() throws IOException {
+
+	SimulationParams.sim_trajLegacy= true;
+	write();
+
+	double[] expected= legacySignals(file);
+
+	TrajectoryReader reader= new TrajectoryReader(file.getPath());
+	assertEquals(N, reader.getNumWalkers());
+	assertEquals(TMAX, reader.getTmax());
+	assertEquals(DT, reader.getDt(), 0.0);
+
+	double[] r= new double[3*N];
+	for (int t = 0; t <= TMAX; t++) {
+	    assertEquals(t, reader.readFrame(r));
+	    assertPositions("legacy", walk[t], r);
+	}
+	reader.close();
+
+	assertSignals("legacy", expected, scan(1));
+	assertSignals("legacy", expected, scan(2));
+
+	SimulationParams.sim_trajLegacy= false;
+	SimulationParams.sim_trajCompress= true;
+	write();
+
+	assertSignals("compressed", expected, scan(1));
+
+	SimulationParams.sim_trajCompress= false;
+	write();
+
+	assertSignals("uncompressed", expected, scan(1));
+
+	// more than one scheme in a pass
+	double[][] both= new TrajectoryScan(new SimulableScheme[] {scheme, scheme}, null).getSignals(new TrajectoryReader(file.getPath()), 1, null);
+	assertSignals("first scheme", expected, both[0]);
+	assertSignals("second scheme", expected, both[1]);
+    }
+
+
+    /**
+     * writes the walk as the simulation does: a frame at the start of
+     * each recorded timestep and one at the end
+     */
+    private void write() {
+
+	TrajectoryWriter writer= new TrajectoryWriter(file.getPath(), N, TMAX, DT);
+	WalkerPool pool= new WalkerPool(N, 0);
+
+	for (int t = 0; t <= TMAX; t++) {
+	    if (t < TMAX && !writer.records(t)) {
+		continue;
+	    }
+
+	    for (int i = 0; i < N; i++) {
+		for (int j = 0; j < 3; j++) {
+		    pool.r[j*N+i]= walk[t][3*i+j];
+		}
+	    }
+
+	    writer.writeFrame(t, pool, null);
+	}
+
+	writer.close();
+    }
+
+
+    private double[] scan(int numThreads) {
+	return new TrajectoryScan(new SimulableScheme[] {scheme}, null).getSignals(new TrajectoryReader(file.getPath()), numThreads, null)[0];
+    }
+
+
+    /**
+     * reads a legacy file record by record, as the scan used to
+     */
+    private double[] legacySignals(File f) throws IOException {
+
+	DataInputStream in= new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+
+	double duration= in.readDouble();
+	int numWalkers= (int)in.readDouble();
+	int tmax= (int)in.readDouble();
+
+	assertEquals(N, numWalkers);
+	assertEquals(TMAX, tmax);
+
+	List<Integer> timesteps= new ArrayList<Integer>();
+	List<double[]> frames= new ArrayList<double[]>();
+
+	for (int t = 0; t <= tmax; t++) {
+	    double[] r= new double[3*numWalkers];
+
+	    for (int i = 0; i < numWalkers; i++) {
+		assertEquals(t*DT, in.readDouble(), 0.0);
+		assertEquals(i, (int)in.readDouble());
+		for (int j = 0; j < 3; j++) {
+		    r[3*i+j]= in.readDouble();
+		}
+	    }
+
+	    timesteps.add(t);
+	    frames.add(r);
+	}
+
+	in.close();
+
+	return legacySignals(timesteps, frames, duration/tmax);
+    }
+
+
+    /**
+     * the legacy calculation: each walker accumulates the phase shift
+     * since the last frame in every measurement, up to the end of the
+     * scheme, and the signal is the sum of the cosines of the phases.
+     */
+    private double[] legacySignals(List<Integer> timesteps, List<double[]> frames, double dt) {
+
+	int numMeas= ((DW_Scheme)scheme).numMeasurements();
+	int schemeTmax= (int)(Math.floor(scheme.getDuration()/dt));
+
+	double[] r0= frames.get(0);
+	int numWalkers= r0.length/3;
+
+	double[][] dphi= new double[numMeas][numWalkers];
+
+	double tLast= 0.0;
+
+	for (int f = 0; f < frames.size() && timesteps.get(f) < schemeTmax; f++) {
+	    double t= timesteps.get(f)*dt;
+	    double[] r= frames.get(f);
+
+	    for (int i = 0; i < numWalkers; i++) {
+		for (int j = 0; j < numMeas; j++) {
+		    double[] Gdt= scheme.getGradImpulse(j, t, tLast);
+
+		    double gradDotPos= 0.0;
+		    for (int d = 0; d < 3; d++) {
+			gradDotPos+= Gdt[d]*(r[3*i+d]-r0[3*i+d]);
+		    }
+
+		    dphi[j][i]+= AgnosticScan.mapToCircle(DW_Scheme.GAMMA*gradDotPos);
+		    dphi[j][i]= AgnosticScan.mapToCircle(dphi[j][i]);
+		}
+	    }
+
+	    tLast= t;
+	}
+
+	double[] signal= new double[numMeas];
+	for (int j = 0; j < numMeas; j++) {
+	    for (int i = 0; i < numWalkers; i++) {
+		signal[j]+= Math.cos(dphi[j][i]);
+	    }
+	}
+
+	return signal;
+    }
+
+
+    private static void assertPositions(String name, double[] expected, double[] r) {
+	for (int k = 0; k < expected.length; k++) {
+	    assertEquals(name+" position "+k, expected[k], r[k], 0.0);
+	}
+    }
+
+
+    private static void assertSignals(String name, double[] expected, double[] signals) {
+
+	assertEquals(name, expected.length, signals.length);
+
+	for (int j = 0; j < expected.length; j++) {
+	    assertEquals(name+" measurement "+j, expected[j], signals[j], 0.0);
+	}
+
+	// the walk has to weight the signals for the test to mean anything
+	assertTrue(name, signals[signals.length-1] < 0.99*signals[0]);
+    }
+
+}
@@ -0,0 +1,148 @@
+package simulation.dynamics;
+
+import junit.framework.*;
+import junit.extensions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import simulation.SimulationRunner;
+
+/**
+ * <dl>
+ * <dt>Purpose: Automated tests for <code>WalkerPool.java</code>.
+ * <BR><BR>
+ *
+ * <dt>Description:
+ * <dd> This class is used to check with JUnit 3.8 that simulations with
+ * pooled walkers give the same phases and signals as simulations with
+ * an array of <code>Walker</code> objects. Each simulation is run in
+ * its own JVM.
+ *
+ * </dl>
+ *
+ * @see simulation.dynamics.WalkerPool
+ * @see <A HREF="http://www.junit.org">Junit Homepage</A>
+ *
+ *
+ */
+public class TestWalkerPool extends TestCase {
+
+    /** a small fixed-seed simulation of walkers among hexagonally packed cylinders */
+    private static final String[] SIMULATION= new String[] {"-walkers", "200", "-tmax", "100", "-voxels", "1",
+							   "-p", "0.1", "-initial", "uniform", "-substrate", "cylinder",
+							   "-packing", "hex", "-cylinderrad", "1E-6", "-cylindersep", "2.1E-6",
+							   "-seed", "7"};
+
+    /** working directory */
+    private File dir;
+
+    /** number of measurements in the scheme */
+    private int numMeas;
+
+
+    public TestWalkerPool(String name) {
+	super(name);
+    }
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(suite());
+    }
+
+
+    public static Test suite() {
+	return new TestSuite(TestWalkerPool.class);
+    }
+
+
+    protected void setUp() throws IOException {
+	dir= SimulationRunner.tempDir("TestWalkerPool");
+	numMeas= SimulationRunner.writeScheme(new File(dir, "test.scheme"));
+    }
+
+
+    protected void tearDown() {
+	SimulationRunner.deleteDir(dir);
+    }
+
+
+    /**
+     * single-threaded, with the pool in one batch and in several
+     */
+    public void testSerial() throws Exception {
+
+	Run array= new Run("array", new String[0]);
+	Run pool= new Run("pool", new String[] {"-walkerpool"});
+	Run batched= new Run("batched", new String[] {"-walkerpool", "-walkerbatch", "70"});
+
+	assertEquals(4*numMeas, array.signals.length);
+
+	array.assertSame(pool);
+	array.assertSame(batched);
+    }
+
+
+    /**
+     * compartmental signals
+     */
+    public void testCompartments() throws Exception {
+
+	Run array= new Run("array", new String[] {"-compartmentsignal", "all"});
+	Run pool= new Run("pool", new String[] {"-compartmentsignal", "all", "-walkerpool"});
+
+	assertEquals(3*4*numMeas, array.signals.length);
+
+	array.assertSame(pool);
+    }
+
+
+    /**
+     * walkers updated on several threads
+     */
+    public void testThreaded() throws Exception {
+
+	Run array= new Run("array", new String[] {"-threads", "2"});
+	Run pool= new Run("pool", new String[] {"-threads", "2", "-walkerpool"});
+
+	array.assertSame(pool);
+    }
+
+
+    /**
+     * the signals and phases from one simulation
+     */
+    private final class Run {
+
+	/** signals output */
+	final byte[] signals;
+
+	/** phase of every walker at every timestep */
+	final byte[] phases;
+
+
+	Run(String name, String[] options) throws Exception {
+
+	    List<String> args= new ArrayList<String>(Arrays.asList(SIMULATION));
+	    args.add("-schemefile");
+	    args.add("test.scheme");
+	    args.add("-phasefile");
+	    args.add(name+".phases");
+	    args.addAll(Arrays.asList(options));
+
+	    signals= SimulationRunner.run(dir, "SyntheticData", args.toArray(new String[args.size()]));
+	    phases= SimulationRunner.readFile(new File(dir, name+".phases"));
+
+	    assertTrue(phases.length > 0);
+	}
+
+
+	void assertSame(Run other) {
+	    assertTrue("signals differ", Arrays.equals(signals, other.signals));
+	    assertTrue("phases differ", Arrays.equals(phases, other.phases));
+	}
+    }
+
+}
@@ -0,0 +1,273 @@
+package simulation.geometry;
+
+import junit.framework.*;
+import junit.extensions.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import simulation.geometry.elements.Triangle;
+import simulation.geometry.elements.TriangleMesh;
+
+/**
+ * <dl>
+ * <dt>Purpose: Automated tests for <code>PLYreader.java</code>.
+ * <BR><BR>
+ *
+ * <dt>Description:
+ * <dd> This class is used to perform tests on <code>PLYreader</code> with JUnit 3.8.
+ *
+ * </dl>
+ *
+ * @see simulation.geometry.PLYreader
+ * @see <A HREF="http://www.junit.org">Junit Homepage</A>
+ *
+ *
+ */
+public class TestPLYreader extends TestCase {
+
+    /** vertices of the test mesh */
+    private static final double[][] VERTS= new double[][]{{0.0, 0.0, 0.0}, {1.0, 0.0, 0.0}, {1.0, 1.0, 0.0},
+							    {0.0, 1.0, 0.0}, {0.5, 1.5, 0.0}, {0.0, 0.0, 1.0}};
+
+    /** faces of the test mesh: a triangle, a quad and a pentagon */
+    private static final int[][] FACES= new int[][]{{0, 1, 5}, {0, 1, 2, 3}, {0, 1, 2, 4, 3}};
+
+
+    public TestPLYreader(String name) {
+	super(name);
+    }
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(suite());
+    }
+
+
+    public static Test suite() {
+	return new TestSuite(TestPLYreader.class);
+    }
+
+
+    /**
+     * polygons are split into triangles in the same way as before, and
+     * triangles from the same polygon are marked coplanar
+     */
+    public void testAscii() throws IOException {
+
+	File f= writeAscii(false, false);
+
+	TriangleMesh mesh= PLYreader.readMesh(f.getPath(), 1.0, 0.25);
+
+	assertFalse(PLYreader.closedSurface);
+
+	// 1+2+5 triangles, one extra vertex at the centre of the pentagon
+	assertEquals(8, mesh.numTriangles());
+	assertEquals(7, mesh.numVertices());
+
+	assertFace(mesh, 0, 0, 1, 5);
+	assertFace(mesh, 1, 0, 1, 2);
+	assertFace(mesh, 2, 0, 2, 3);
+	assertFace(mesh, 3, 3, 0, 6);
+	assertFace(mesh, 7, 0, 1, 6);
+
+	double[] centre= new double[3];
+	for (int i = 0; i < FACES[2].length; i++) {
+	    for (int j = 0; j < 3; j++) {
+		centre[j]+= VERTS[FACES[2][i]][j];
+	    }
+	}
+	for (int j = 0; j < 3; j++) {
+	    assertEquals(centre[j]/5, mesh.getCoord(6, j), 0.0);
+	}
+
+	assertFalse(mesh.hasPermeabilities());
+	assertEquals(0.25, mesh.getPermeability(4), 0.0);
+
+	Triangle[] tri= mesh.getTriangles();
+	HashMap<Triangle, ArrayList<Triangle>> coplanarMap= mesh.getCoplanarMap(tri);
+
+	assertNull(coplanarMap.get(tri[0]));
+	assertEquals(1, coplanarMap.get(tri[1]).size());
+	assertSame(tri[2], coplanarMap.get(tri[1]).get(0));
+	assertEquals(4, coplanarMap.get(tri[5]).size());
+	assertFalse(coplanarMap.get(tri[5]).contains(tri[5]));
+    }
+
+
+    /**
+     * header comments and undeclared per-face permeabilities
+     */
+    public void testCommentsAndPermeability() throws IOException {
+
+	File f= writeAscii(true, true);
+
+	TriangleMesh mesh= PLYreader.readMesh(f.getPath(), 1.0, 0.25);
+
+	assertTrue(PLYreader.closedSurface);
+	assertTrue(mesh.hasPermeabilities());
+
+	assertEquals(0.1, mesh.getPermeability(0), 0.0);
+	assertEquals(0.2, mesh.getPermeability(2), 0.0);
+	assertEquals(0.3, mesh.getPermeability(7), 0.0);
+    }
+
+
+    /**
+     * a mesh written in binary reads back unchanged
+     */
+    public void testBinaryRoundTrip() throws IOException {
+
+	File f= writeAscii(true, true);
+	TriangleMesh mesh= PLYreader.readMesh(f.getPath(), 1.0, 0.0);
+
+	File g= tempFile();
+	PLYreader.writeBinaryPLYfile(mesh, true, g.getPath());
+
+	TriangleMesh copy= PLYreader.readMesh(g.getPath(), 1.0, 0.0);
+
+	assertTrue(PLYreader.closedSurface);
+	assertSameMesh(mesh, copy);
+
+	for (int t = 0; t < mesh.numTriangles(); t++) {
+	    assertEquals(mesh.getPermeability(t), copy.getPermeability(t), 0.0);
+	}
+    }
+
+
+    /**
+     * big-endian file with float coordinates, unsigned indices and
+     * properties and elements the reader has to skip
+     */
+    public void testBigEndian() throws IOException {
+
+	String header= "ply\nformat binary_big_endian 1.0\n"
+	    +"element vertex "+VERTS.length+"\n"
+	    +"property float x\nproperty float y\nproperty float z\nproperty uchar red\n"
+	    +"element face "+FACES.length+"\n"
+	    +"property uchar flags\nproperty list uchar uint vertex_indices\nproperty list uchar float texcoord\n"
+	    +"element edge 1\nproperty int vertex1\nproperty int vertex2\n"
+	    +"end_header\n";
+
+	ByteBuffer buf= ByteBuffer.allocate(4096).order(ByteOrder.BIG_ENDIAN);
+	buf.put(header.getBytes("US-ASCII"));
+
+	for (int i = 0; i < VERTS.length; i++) {
+	    for (int j = 0; j < 3; j++) {
+		buf.putFloat((float)VERTS[i][j]);
+	    }
+	    buf.put((byte)200);
+	}
+
+	for (int i = 0; i < FACES.length; i++) {
+	    buf.put((byte)7);
+	    buf.put((byte)FACES[i].length);
+	    for (int k = 0; k < FACES[i].length; k++) {
+		buf.putInt(FACES[i][k]);
+	    }
+	    buf.put((byte)2);
+	    buf.putFloat(0.5f);
+	    buf.putFloat(0.5f);
+	}
+
+	buf.putInt(0);
+	buf.putInt(1);
+
+	File f= tempFile();
+	FileOutputStream out= new FileOutputStream(f);
+	out.write(buf.array(), 0, buf.position());
+	out.close();
+
+	TriangleMesh binary= PLYreader.readMesh(f.getPath(), 1.0, 0.0);
+	TriangleMesh ascii= PLYreader.readMesh(writeAscii(false, false).getPath(), 1.0, 0.0);
+
+	assertSameMesh(ascii, binary);
+    }
+
+
+    /**
+     * writes the test mesh as an ascii file with a vertex property and
+     * an element that are not used
+     */
+    private static File writeAscii(boolean closed, boolean perms) throws IOException {
+
+	StringBuffer s= new StringBuffer();
+
+	s.append("ply\nformat ascii 1.0\n");
+	if (closed) {
+	    s.append("comment closed surface\n");
+	}
+	if (perms) {
+	    s.append("comment multiple permeabilities\n");
+	}
+	s.append("element vertex "+VERTS.length+"\nproperty float x\nproperty float y\nproperty float z\nproperty float nx\n");
+	s.append("element face "+FACES.length+"\nproperty list uchar int vertex_indices\n");
+	s.append("element edge 1\nproperty int vertex1\nproperty int vertex2\n");
+	s.append("end_header\n");
+
+	for (int i = 0; i < VERTS.length; i++) {
+	    s.append(VERTS[i][0]+" "+VERTS[i][1]+" "+VERTS[i][2]+" 1.0\n");
+	}
+
+	for (int i = 0; i < FACES.length; i++) {
+	    s.append(FACES[i].length);
+	    for (int k = 0; k < FACES[i].length; k++) {
+		s.append(" "+FACES[i][k]);
+	    }
+	    if (perms) {
+		s.append(" 0."+(i+1));
+	    }
+	    s.append("\r\n");
+	}
+
+	s.append("0 1\n");
+
+	File f= tempFile();
+	FileOutputStream out= new FileOutputStream(f);
+	out.write(s.toString().getBytes("US-ASCII"));
+	out.close();
+
+	return f;
+    }
+
+
+    private static File tempFile() throws IOException {
+
+	File f= File.createTempFile("testPLYreader", ".ply");
+	f.deleteOnExit();
+
+	return f;
+    }
+
+
+    private static void assertFace(TriangleMesh mesh, int t, int a, int b, int c) {
+
+	assertEquals(a, mesh.getVertexIndex(t, 0));
+	assertEquals(b, mesh.getVertexIndex(t, 1));
+	assertEquals(c, mesh.getVertexIndex(t, 2));
+    }
+
+
+    private static void assertSameMesh(TriangleMesh a, TriangleMesh b) {
+
+	assertEquals(a.numVertices(), b.numVertices());
+	assertEquals(a.numTriangles(), b.numTriangles());
+
+	for (int i = 0; i < a.numVertices(); i++) {
+	    for (int j = 0; j < 3; j++) {
+		assertEquals(a.getCoord(i, j), b.getCoord(i, j), 0.0);
+	    }
+	}
+
+	for (int t = 0; t < a.numTriangles(); t++) {
+	    for (int k = 0; k < 3; k++) {
+		assertEquals(a.getVertexIndex(t, k), b.getVertexIndex(t, k));
+	    }
+	}
+    }
+
+}
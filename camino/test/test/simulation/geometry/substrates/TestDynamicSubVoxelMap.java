@@ -0,0 +1,326 @@
+package simulation.geometry.substrates;
+
+import junit.framework.*;
+import junit.extensions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import misc.LoggedException;
+
+import simulation.geometry.elements.BasicCylinder;
+import simulation.geometry.elements.SubstrateObject;
+
+/**
+ * <dl>
+ * <dt>Purpose: Automated tests for <code>DynamicSubVoxelMap.java</code>.
+ * <BR><BR>
+ *
+ * <dt>Description:
+ * <dd> This class is used to check with JUnit 3.8 that a map changed by
+ * random insertions, removals and replacements holds the same objects
+ * in each subvoxel as a static map built from lists of the objects.
+ *
+ * </dl>
+ *
+ * @see simulation.geometry.substrates.DynamicSubVoxelMap
+ * @see <A HREF="http://www.junit.org">Junit Homepage</A>
+ *
+ *
+ */
+public class TestDynamicSubVoxelMap extends TestCase {
+
+    /** number of subvoxels */
+    private static final int NUM_SUBVOXELS= 60;
+
+    /** the first few subvoxels are crowded, so they outgrow their room */
+    private static final int CROWDED= 6;
+
+    /** largest number of subvoxels an object is in */
+    private static final int MAX_CELLS= 8;
+
+    /** number of changes made */
+    private static final int NUM_CHANGES= 5000;
+
+    /** orders objects by id */
+    private static final Comparator<SubstrateObject> BY_ID= new Comparator<SubstrateObject>() {
+	public int compare(SubstrateObject a, SubstrateObject b) {
+	    return a.getId()-b.getId();
+	}
+    };
+
+    private Random rng;
+
+
+    public TestDynamicSubVoxelMap(String name) {
+	super(name);
+    }
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(suite());
+    }
+
+
+    public static Test suite() {
+	return new TestSuite(TestDynamicSubVoxelMap.class);
+    }
+
+
+    protected void setUp() {
+	rng= new Random(36558013);
+    }
+
+
+    /**
+     * random insertions, removals and replacements, compared with a map
+     * rebuilt from lists after each one
+     */
+    public void testRandomChanges() {
+
+	DynamicSubVoxelMap map= new DynamicSubVoxelMap(NUM_SUBVOXELS);
+
+	// the objects that should be in the map, and their subvoxels
+	List<SubstrateObject> present= new ArrayList<SubstrateObject>();
+	IdentityHashMap<SubstrateObject, int[]> cells= new IdentityHashMap<SubstrateObject, int[]>();
+
+	int inserted= 0;
+	int removed= 0;
+	int replaced= 0;
+
+	for (int t = 0; t < NUM_CHANGES; t++) {
+
+	    int version= map.version;
+
+	    double u= rng.nextDouble();
+
+	    if ((present.size() == 0) || (u < 0.4)) {
+		SubstrateObject obj= newObject();
+		int[] c= randomCells();
+
+		map.insert(obj, c);
+
+		present.add(obj);
+		cells.put(obj, c);
+		inserted++;
+	    }
+	    else if (u < 0.7) {
+		SubstrateObject obj= present.remove(rng.nextInt(present.size()));
+
+		map.remove(obj);
+
+		cells.remove(obj);
+		assertEquals(-1, obj.getId());
+		removed++;
+	    }
+	    else {
+		int i= rng.nextInt(present.size());
+		SubstrateObject obj= present.get(i);
+
+		// half the time the object is replaced by itself
+		SubstrateObject replacement= rng.nextBoolean() ? obj : newObject();
+		int[] c= movedCells(cells.get(obj));
+
+		int id= obj.getId();
+
+		map.replace(obj, replacement, c);
+
+		assertEquals(id, replacement.getId());
+		if (replacement != obj) {
+		    assertEquals(-1, obj.getId());
+		}
+
+		cells.remove(obj);
+		present.set(i, replacement);
+		cells.put(replacement, c);
+		replaced++;
+	    }
+
+	    assertTrue(map.version > version);
+
+	    assertSameAsLists(map, present, cells);
+	}
+
+	assertTrue(inserted > 0);
+	assertTrue(removed > 0);
+	assertTrue(replaced > 0);
+    }
+
+
+    /**
+     * ids of removed objects are given to new ones, and removed objects
+     * aren't in the map
+     */
+    public void testIds() {
+
+	DynamicSubVoxelMap map= new DynamicSubVoxelMap(NUM_SUBVOXELS);
+
+	SubstrateObject a= newObject();
+	SubstrateObject b= newObject();
+	SubstrateObject c= newObject();
+
+	map.insert(a, new int[] {3, 1, 2});
+	map.insert(b, new int[] {2});
+
+	assertEquals(0, a.getId());
+	assertEquals(1, b.getId());
+	assertTrue(Arrays.equals(new int[] {1, 2, 3}, map.getCells(a)));
+
+	map.remove(a);
+
+	try {
+	    map.getCells(a);
+	    fail("removed object still in the map");
+	}
+	catch (LoggedException e) {
+	    // expected
+	}
+
+	map.insert(c, new int[] {4});
+
+	assertEquals(0, c.getId());
+	assertEquals(2, map.numObjectIds());
+	assertEquals(2, map.numEntries());
+    }
+
+
+    /**
+     * checks the map holds the same objects in each subvoxel as a static
+     * map built from lists, in any order
+     */
+    private static void assertSameAsLists(DynamicSubVoxelMap map, List<SubstrateObject> present,
+					  IdentityHashMap<SubstrateObject, int[]> cells) {
+
+	List<SubstrateObject>[] lists= newLists(NUM_SUBVOXELS);
+
+	int numEntries= 0;
+
+	for (int i = 0; i < present.size(); i++) {
+	    SubstrateObject obj= present.get(i);
+	    int[] c= cells.get(obj);
+
+	    for (int k = 0; k < c.length; k++) {
+		if (lists[c[k]] == null) {
+		    lists[c[k]]= new ArrayList<SubstrateObject>();
+		}
+		lists[c[k]].add(obj);
+	    }
+	    numEntries+= c.length;
+
+	    int[] sorted= c.clone();
+	    Arrays.sort(sorted);
+	    assertTrue(Arrays.equals(sorted, map.getCells(obj)));
+
+	    assertTrue(obj.getId() < map.numObjectIds());
+	}
+
+	SubVoxelMap rebuilt= SubVoxelMap.fromLists(lists);
+
+	assertEquals(NUM_SUBVOXELS, map.numSubVoxels());
+	assertEquals(rebuilt.numEntries(), map.numEntries());
+	assertEquals(numEntries, map.numEntries());
+
+	for (int s = 0; s < NUM_SUBVOXELS; s++) {
+	    assertEquals(rebuilt.size(s), map.size(s));
+	    assertEquals(rebuilt.isEmpty(s), map.isEmpty(s));
+
+	    SubstrateObject[] a= new SubstrateObject[map.size(s)];
+	    SubstrateObject[] b= new SubstrateObject[rebuilt.size(s)];
+	    for (int k = 0; k < a.length; k++) {
+		a[k]= map.get(s, k);
+		b[k]= rebuilt.get(s, k);
+	    }
+	    Arrays.sort(a, BY_ID);
+	    Arrays.sort(b, BY_ID);
+
+	    for (int k = 0; k < a.length; k++) {
+		assertSame(b[k], a[k]);
+	    }
+	}
+    }
+
+
+    private SubstrateObject newObject() {
+
+	double[] P= new double[] {rng.nextDouble(), rng.nextDouble(), 0.0};
+
+	return new BasicCylinder(P, 0.01+0.1*rng.nextDouble(), 0.0);
+    }
+
+
+    /**
+     * between one and MAX_CELLS different subvoxels, half the time from
+     * the crowded ones
+     */
+    private int[] randomCells() {
+
+	int range= rng.nextBoolean() ? CROWDED : NUM_SUBVOXELS;
+	int num= 1+rng.nextInt(Math.min(MAX_CELLS, range));
+
+	boolean[] used= new boolean[range];
+	int[] c= new int[num];
+
+	for (int k = 0; k < num; k++) {
+	    int i;
+	    do {
+		i= rng.nextInt(range);
+	    } while (used[i]);
+
+	    used[i]= true;
+	    c[k]= i;
+	}
+
+	return c;
+    }
+
+
+    /**
+     * new subvoxels for a replaced object. half the time it keeps most of
+     * its old ones, as a growing cylinder does.
+     */
+    private int[] movedCells(int[] old) {
+
+	if (rng.nextBoolean()) {
+	    return randomCells();
+	}
+
+	boolean[] used= new boolean[NUM_SUBVOXELS];
+	List<Integer> c= new ArrayList<Integer>();
+
+	for (int k = 0; k < old.length; k++) {
+	    if ((old.length == 1) || (rng.nextDouble() < 0.8)) {
+		c.add(old[k]);
+		used[old[k]]= true;
+	    }
+	}
+
+	int more= rng.nextInt(3);
+	for (int k = 0; k < more; k++) {
+	    int i= rng.nextInt(NUM_SUBVOXELS);
+	    if (!used[i]) {
+		c.add(i);
+		used[i]= true;
+	    }
+	}
+
+	int[] cells= new int[c.size()];
+	for (int k = 0; k < cells.length; k++) {
+	    cells[k]= c.get(k);
+	}
+
+	return cells;
+    }
+
+
+    /**
+     * empty subvoxel lists for SubVoxelMap.fromLists()
+     */
+    @SuppressWarnings("unchecked")
+    private static List<SubstrateObject>[] newLists(int numSubVoxels) {
+	return (List<SubstrateObject>[])new List<?>[numSubVoxels];
+    }
+
+}
@@ -0,0 +1,328 @@
+package simulation.geometry.substrates;
+
+import junit.framework.*;
+import junit.extensions.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import simulation.SimulationParams;
+import simulation.dynamics.Walker;
+import simulation.dynamics.WalkerPool;
+import simulation.dynamics.StepGeneratorFactory.StepType;
+import simulation.geometry.substrates.SubstrateFactory.SubstrateType;
+
+/**
+ * <dl>
+ * <dt>Purpose: Automated tests for <code>InstancedMeshSubstrate.java</code>.
+ * <BR><BR>
+ *
+ * <dt>Description:
+ * <dd> This class is used to check with JUnit 3.8 that rotated and
+ * translated instances of a mesh find the same crossings, and put the
+ * same points inside, as the same copies baked into a single PLY file
+ * on a mesh substrate.
+ *
+ * </dl>
+ *
+ * @see simulation.geometry.substrates.InstancedMeshSubstrate
+ * @see <A HREF="http://www.junit.org">Junit Homepage</A>
+ *
+ *
+ */
+public class TestInstancedMeshSubstrate extends TestCase {
+
+    /** dimensionality of space */
+    private static final int D= 3;
+
+    /** the mesh is a box of these sides, away from the origin of its PLY file */
+    private static final double[] SIDES= new double[] {1E-6, 2E-6, 3E-6};
+
+    /** bottom left corner of the box in its PLY file */
+    private static final double[] CORNER= new double[] {0.2E-6, -0.4E-6, 0.1E-6};
+
+    /** faces of the box, as quads */
+    private static final int[][] FACES= new int[][] {{0, 3, 2, 1}, {4, 5, 6, 7}, {0, 1, 5, 4},
+						    {2, 3, 7, 6}, {1, 2, 6, 5}, {0, 4, 7, 3}};
+
+    /** placements, far enough apart not to overlap: translation, then rotation axis and angle (no axis for translation only) */
+    private static final double[][] PLACEMENTS= new double[][] {{0.0, 0.0, 0.0},
+								 {8E-6, 0.0, 0.0, 0.0, 0.0, 1.0, 0.7},
+								 {0.0, 8E-6, 1E-6, 1.0, 1.0, 0.0, 2.1},
+								 {8E-6, 8E-6, -1E-6, -0.3, 0.8, 0.5, 4.0}};
+
+    /** steps tested */
+    private static final int NUM_STEPS= 20000;
+
+    /** step length */
+    private static final double STEP= 0.5E-6;
+
+    /** working directory */
+    private File dir;
+
+
+    public TestInstancedMeshSubstrate(String name) {
+	super(name);
+    }
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(suite());
+    }
+
+
+    public static Test suite() {
+	return new TestSuite(TestInstancedMeshSubstrate.class);
+    }
+
+
+    protected void setUp() throws IOException {
+
+	dir= File.createTempFile("TestInstancedMeshSubstrate", "");
+	dir.delete();
+	dir.mkdir();
+
+	// the same padding around the copies on both substrates
+	SimulationParams.sim_mesh_sep= new double[] {18E-6, 18E-6, 18E-6};
+	SimulationParams.sim_mesh_bvh= false;
+	SimulationParams.sim_mesh_cache= null;
+    }
+
+
+    protected void tearDown() {
+
+	SimulationParams.sim_plyfile= null;
+	SimulationParams.sim_plyfiles= null;
+	SimulationParams.sim_instance_file= null;
+	SimulationParams.sim_mesh_sep= null;
+
+	File[] files= dir.listFiles();
+	for (int i = 0; i < files.length; i++) {
+	    files[i].delete();
+	}
+	dir.delete();
+    }
+
+
+    /**
+     * random steps over the substrate cross the same planes, and random
+     * points are inside the same cells
+     */
+    public void testSameAsBaked() throws Exception {
+
+	double[][] rot= new double[PLACEMENTS.length][];
+	for (int k = 0; k < PLACEMENTS.length; k++) {
+	    rot[k]= rotation(PLACEMENTS[k]);
+	}
+
+	File box= new File(dir, "box.ply");
+	writeBoxes(box, new double[][] {{0.0, 0.0, 0.0}}, new double[][] {rotation(PLACEMENTS[0])});
+
+	double[][] trans= new double[PLACEMENTS.length][];
+	for (int k = 0; k < PLACEMENTS.length; k++) {
+	    trans[k]= new double[] {PLACEMENTS[k][0], PLACEMENTS[k][1], PLACEMENTS[k][2]};
+	}
+
+	File baked= new File(dir, "baked.ply");
+	writeBoxes(baked, trans, rot);
+
+	File placements= new File(dir, "instances.txt");
+	writePlacements(placements);
+
+	SimulationParams.sim_plyfile= baked.getPath();
+	MeshSubstrate bakedSubs= new MeshSubstrate(makeParams(SubstrateType.TRI_PLY_MESH));
+
+	SimulationParams.sim_plyfile= null;
+	SimulationParams.sim_plyfiles= new String[] {box.getPath()};
+	SimulationParams.sim_instance_file= placements.getPath();
+	InstancedMeshSubstrate instSubs= new InstancedMeshSubstrate(makeParams(SubstrateType.TRI_PLY_INSTANCED));
+
+	double[] L= instSubs.getSubstrateSize();
+	double[] bakedL= bakedSubs.getSubstrateSize();
+	for (int i = 0; i < D; i++) {
+	    assertEquals(bakedL[i], L[i], 1E-12*L[i]);
+	    assertEquals(bakedSubs.substrateBottomLeft[i], instSubs.substrateBottomLeft[i], 1E-12*L[i]);
+	}
+
+	assertTrue(instSubs.crossingsSwitchCompartment());
+
+	Walker bakedWalker= new WalkerPool(1, 0).getCursor(null, bakedSubs, null).bind(0);
+	Walker instWalker= new WalkerPool(1, 0).getCursor(null, instSubs, null).bind(0);
+
+	Random rng= new Random(7);
+
+	double[] offset= new double[D];
+	double[] step= new double[D];
+	double[] bakedNormal= new double[D];
+	double[] instNormal= new double[D];
+	double[] bakedD= new double[1];
+	double[] instD= new double[1];
+	boolean[] in= new boolean[1];
+	double[] p= new double[1];
+
+	int crossings= 0;
+	int inside= 0;
+
+	for (int s = 0; s < NUM_STEPS; s++) {
+
+	    double cosPhi= 2.0*rng.nextDouble()-1.0;
+	    double sinPhi= Math.sqrt(1.0-cosPhi*cosPhi);
+	    double theta= 2.0*Math.PI*rng.nextDouble();
+
+	    step[0]= STEP*Math.cos(theta)*sinPhi;
+	    step[1]= STEP*Math.sin(theta)*sinPhi;
+	    step[2]= STEP*cosPhi;
+
+	    for (int i = 0; i < D; i++) {
+		bakedWalker.r[i]= L[i]*rng.nextDouble();
+		instWalker.r[i]= bakedWalker.r[i];
+	    }
+
+	    boolean bakedCrosses= bakedSubs.crossesMembrane(bakedWalker, offset, step, bakedNormal, bakedD,
+							    false, STEP, in, p, false, null);
+	    boolean instCrosses= instSubs.crossesMembrane(instWalker, offset, step, instNormal, instD,
+							  false, STEP, in, p, false, null);
+
+	    assertEquals("step "+s, bakedCrosses, instCrosses);
+
+	    if (bakedCrosses) {
+		crossings++;
+
+		for (int i = 0; i < D; i++) {
+		    assertEquals("step "+s, bakedNormal[i], instNormal[i], 1E-9);
+		}
+		assertEquals("step "+s, bakedD[0], instD[0], 1E-9*STEP);
+	    }
+
+	    boolean bakedInside= bakedSubs.intracellular(bakedWalker);
+	    assertEquals("point "+s, bakedInside, instSubs.intracellular(instWalker));
+
+	    if (bakedInside) {
+		inside++;
+	    }
+	}
+
+	// the steps met the boxes, and the points found them
+	assertTrue(crossings > NUM_STEPS/1000);
+	assertTrue(inside > NUM_STEPS/1000);
+    }
+
+
+    private static SimulationParams makeParams(SubstrateType type) {
+
+	return new SimulationParams(1, 10, 0.0, SimulationParams.UNIFORM, type, StepType.FIXEDLENGTH, 1.0, 1.0);
+    }
+
+
+    /**
+     * rotation matrix of a placement, row by row (Rodrigues' formula)
+     */
+    private static double[] rotation(double[] placement) {
+
+	if (placement.length == D) {
+	    return new double[] {1.0, 0.0, 0.0, 0.0, 1.0, 0.0, 0.0, 0.0, 1.0};
+	}
+
+	double len= Math.sqrt(placement[3]*placement[3]+placement[4]*placement[4]+placement[5]*placement[5]);
+
+	double x= placement[3]/len;
+	double y= placement[4]/len;
+	double z= placement[5]/len;
+
+	double c= Math.cos(placement[6]);
+	double s= Math.sin(placement[6]);
+	double C= 1.0-c;
+
+	return new double[] {c+x*x*C, x*y*C-z*s, x*z*C+y*s,
+			     y*x*C+z*s, c+y*y*C, y*z*C-x*s,
+			     z*x*C-y*s, z*y*C+x*s, c+z*z*C};
+    }
+
+
+    /**
+     * writes the placement file, with the first instance as a
+     * translation, the second and third by axis and angle and the last
+     * as a matrix
+     */
+    private static void writePlacements(File f) throws IOException {
+
+	StringBuffer s= new StringBuffer();
+
+	s.append("# mesh tx ty tz [rotation]\n\n");
+
+	for (int k = 0; k < PLACEMENTS.length; k++) {
+	    s.append("0 "+PLACEMENTS[k][0]+" "+PLACEMENTS[k][1]+" "+PLACEMENTS[k][2]);
+
+	    if (k == PLACEMENTS.length-1) {
+		double[] R= rotation(PLACEMENTS[k]);
+		for (int e = 0; e < R.length; e++) {
+		    s.append(" "+R[e]);
+		}
+	    }
+	    else {
+		for (int e = D; e < PLACEMENTS[k].length; e++) {
+		    s.append(" "+PLACEMENTS[k][e]);
+		}
+	    }
+	    s.append("\n");
+	}
+
+	write(f, s.toString());
+    }
+
+
+    /**
+     * writes copies of the box into one closed PLY file. vertex x of
+     * copy k is at rot[k].x+trans[k].
+     */
+    private static void writeBoxes(File f, double[][] trans, double[][] rot) throws IOException {
+
+	final int copies= trans.length;
+
+	StringBuffer s= new StringBuffer();
+
+	s.append("ply\nformat ascii 1.0\ncomment closed surface\n");
+	s.append("element vertex "+(8*copies)+"\nproperty double x\nproperty double y\nproperty double z\n");
+	s.append("element face "+(FACES.length*copies)+"\nproperty list uchar int vertex_indices\n");
+	s.append("end_header\n");
+
+	for (int k = 0; k < copies; k++) {
+	    for (int v = 0; v < 8; v++) {
+		double[] x= new double[] {CORNER[0]+((v&1)^((v>>1)&1))*SIDES[0],
+					  CORNER[1]+((v>>1)&1)*SIDES[1],
+					  CORNER[2]+((v>>2)&1)*SIDES[2]};
+
+		for (int i = 0; i < D; i++) {
+		    double y= trans[k][i];
+		    for (int j = 0; j < D; j++) {
+			y+= rot[k][D*i+j]*x[j];
+		    }
+		    s.append((i > 0 ? " " : "")+y);
+		}
+		s.append("\n");
+	    }
+	}
+
+	for (int k = 0; k < copies; k++) {
+	    for (int i = 0; i < FACES.length; i++) {
+		s.append(FACES[i].length);
+		for (int v = 0; v < FACES[i].length; v++) {
+		    s.append(" "+(8*k+FACES[i][v]));
+		}
+		s.append("\n");
+	    }
+	}
+
+	write(f, s.toString());
+    }
+
+
+    private static void write(File f, String s) throws IOException {
+
+	FileOutputStream out= new FileOutputStream(f);
+	out.write(s.getBytes("US-ASCII"));
+	out.close();
+    }
+
+}
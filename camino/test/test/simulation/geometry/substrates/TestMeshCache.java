@@ -0,0 +1,255 @@
+package simulation.geometry.substrates;
+
+import junit.framework.*;
+import junit.extensions.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import simulation.SimulationParams;
+import simulation.dynamics.StepGeneratorFactory.StepType;
+import simulation.geometry.elements.Triangle;
+import simulation.geometry.elements.TriangleMesh;
+import simulation.geometry.substrates.SubstrateFactory.SubstrateType;
+
+/**
+ * <dl>
+ * <dt>Purpose: Automated tests for <code>MeshCache.java</code>.
+ * <BR><BR>
+ *
+ * <dt>Description:
+ * <dd> This class is used to perform tests on <code>MeshCache</code> with JUnit 3.8.
+ *
+ * </dl>
+ *
+ * @see simulation.geometry.substrates.MeshCache
+ * @see <A HREF="http://www.junit.org">Junit Homepage</A>
+ *
+ *
+ */
+public class TestMeshCache extends TestCase {
+
+    /** subvoxel grid MeshSubstrate uses */
+    private static final int[] GRID= new int[] {12, 12, 12};
+
+    /** side of the test cube */
+    private static final double SIDE= 1E-5;
+
+    /** faces of the cube, as quads */
+    private static final int[][] FACES= new int[][] {{0, 3, 2, 1}, {4, 5, 6, 7}, {0, 1, 5, 4},
+						    {2, 3, 7, 6}, {1, 2, 6, 5}, {0, 4, 7, 3}};
+
+    /** cache directory */
+    private File dir;
+
+    /** the PLY file */
+    private File ply;
+
+
+    public TestMeshCache(String name) {
+	super(name);
+    }
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(suite());
+    }
+
+
+    public static Test suite() {
+	return new TestSuite(TestMeshCache.class);
+    }
+
+
+    protected void setUp() throws IOException {
+
+	dir= File.createTempFile("TestMeshCache", "");
+	dir.delete();
+	dir.mkdir();
+
+	ply= new File(dir, "cube.ply");
+	writeCube(ply, 0.0);
+
+	SimulationParams.sim_plyfile= ply.getPath();
+	SimulationParams.sim_mesh_sep= null;
+	SimulationParams.sim_mesh_bvh= false;
+    }
+
+
+    protected void tearDown() {
+
+	SimulationParams.sim_plyfile= null;
+	SimulationParams.sim_mesh_cache= null;
+
+	File[] files= dir.listFiles();
+	for (int i = 0; i < files.length; i++) {
+	    files[i].delete();
+	}
+	dir.delete();
+    }
+
+
+    /**
+     * a substrate read from the cache is the same as one built from
+     * the PLY file
+     */
+    public void testHit() {
+
+	SimulationParams.sim_mesh_cache= null;
+	MeshSubstrate cold= makeSubstrate();
+
+	// the first run with a cache misses and writes it, the second hits
+	SimulationParams.sim_mesh_cache= dir.getPath();
+	MeshSubstrate first= makeSubstrate();
+
+	File f= MeshCache.file(dir.getPath(), ply.getPath(), MeshCache.key(ply.getPath(), 1.0, null, GRID));
+	assertTrue(f.exists());
+	long modified= f.lastModified();
+
+	assertNotNull(MeshCache.read(f, MeshCache.key(ply.getPath(), 1.0, null, GRID), 0.0));
+
+	MeshSubstrate hit= makeSubstrate();
+
+	assertEquals(modified, f.lastModified());
+
+	assertSameSubstrate(cold, first);
+	assertSameSubstrate(cold, hit);
+    }
+
+
+    /**
+     * changing the PLY file or the grid changes the key, and a file
+     * made with a different key isn't used
+     */
+    public void testMiss() throws IOException {
+
+	SimulationParams.sim_mesh_cache= dir.getPath();
+	makeSubstrate();
+
+	byte[] key= MeshCache.key(ply.getPath(), 1.0, null, GRID);
+	File f= MeshCache.file(dir.getPath(), ply.getPath(), key);
+
+	// a different grid
+	byte[] gridKey= MeshCache.key(ply.getPath(), 1.0, null, new int[] {10, 10, 10});
+	assertFalse(Arrays.equals(key, gridKey));
+	assertFalse(f.equals(MeshCache.file(dir.getPath(), ply.getPath(), gridKey)));
+	assertNull(MeshCache.read(f, gridKey, 0.0));
+
+	// a different mesh in the same file
+	writeCube(ply, 0.1*SIDE);
+
+	byte[] plyKey= MeshCache.key(ply.getPath(), 1.0, null, GRID);
+	assertFalse(Arrays.equals(key, plyKey));
+	assertNull(MeshCache.read(f, plyKey, 0.0));
+
+	MeshSubstrate changed= makeSubstrate();
+	assertTrue(MeshCache.file(dir.getPath(), ply.getPath(), plyKey).exists());
+
+	SimulationParams.sim_mesh_cache= null;
+	assertSameSubstrate(makeSubstrate(), changed);
+
+	// and the old mesh's cache is still there
+	assertNotNull(MeshCache.read(f, key, 0.0));
+    }
+
+
+    private static MeshSubstrate makeSubstrate() {
+
+	SimulationParams params= new SimulationParams(1, 10, 0.0, SimulationParams.UNIFORM, SubstrateType.TRI_PLY_MESH,
+						      StepType.FIXEDLENGTH, 1.0, 1.0);
+
+	return new MeshSubstrate(params);
+    }
+
+
+    /**
+     * writes a closed cube with a corner out of place
+     *
+     * @param f file to write
+     * @param shift displacement of the last vertex in x
+     */
+    private static void writeCube(File f, double shift) throws IOException {
+
+	StringBuffer s= new StringBuffer();
+
+	s.append("ply\nformat ascii 1.0\ncomment closed surface\n");
+	s.append("element vertex 8\nproperty double x\nproperty double y\nproperty double z\n");
+	s.append("element face "+FACES.length+"\nproperty list uchar int vertex_indices\n");
+	s.append("end_header\n");
+
+	for (int i = 0; i < 8; i++) {
+	    double x= ((i&1)^((i>>1)&1))*SIDE-SIDE/2;
+	    double y= ((i>>1)&1)*SIDE-SIDE/2;
+	    double z= ((i>>2)&1)*SIDE-SIDE/2;
+
+	    if (i == 7) {
+		x+= shift;
+	    }
+
+	    s.append(x+" "+y+" "+z+"\n");
+	}
+
+	for (int i = 0; i < FACES.length; i++) {
+	    s.append(FACES[i].length);
+	    for (int k = 0; k < FACES[i].length; k++) {
+		s.append(" "+FACES[i][k]);
+	    }
+	    s.append("\n");
+	}
+
+	FileOutputStream out= new FileOutputStream(f);
+	out.write(s.toString().getBytes("US-ASCII"));
+	out.close();
+    }
+
+
+    /**
+     * checks two substrates have the same mesh, dimensions and subvoxel
+     * map
+     */
+    private static void assertSameSubstrate(MeshSubstrate a, MeshSubstrate b) {
+
+	assertTrue(Arrays.equals(a.substrateBottomLeft, b.substrateBottomLeft));
+	assertTrue(Arrays.equals(a.L, b.L));
+
+	assertEquals(a.subsObj.length, b.subsObj.length);
+
+	TriangleMesh meshA= ((Triangle)a.subsObj[0]).getMesh();
+	TriangleMesh meshB= ((Triangle)b.subsObj[0]).getMesh();
+
+	assertNotSame(meshA, meshB);
+
+	assertTrue(Arrays.equals(meshA.getVertexArray(), meshB.getVertexArray()));
+	assertTrue(Arrays.equals(meshA.getFaceArray(), meshB.getFaceArray()));
+	assertTrue(Arrays.equals(meshA.getNormalArray(), meshB.getNormalArray()));
+	assertTrue(Arrays.equals(meshA.getPlaneArray(), meshB.getPlaneArray()));
+	assertTrue(Arrays.equals(meshA.getDotArray(), meshB.getDotArray()));
+	assertTrue(Arrays.equals(meshA.getPermeabilityArray(), meshB.getPermeabilityArray()));
+	assertTrue(Arrays.equals(meshA.getPolygonArray(), meshB.getPolygonArray()));
+
+	for (int t = 0; t < a.subsObj.length; t++) {
+	    assertEquals(t, ((Triangle)a.subsObj[t]).getIndex());
+	    assertEquals(t, ((Triangle)b.subsObj[t]).getIndex());
+	}
+
+	SubVoxelMap mapA= a.voxToObjects;
+	SubVoxelMap mapB= b.voxToObjects;
+
+	assertEquals(mapA.numSubVoxels(), mapB.numSubVoxels());
+	assertEquals(mapA.numEntries(), mapB.numEntries());
+
+	for (int c = 0; c < mapA.numSubVoxels(); c++) {
+	    assertEquals(mapA.size(c), mapB.size(c));
+
+	    for (int k = 0; k < mapA.size(c); k++) {
+		assertEquals(((Triangle)mapA.get(c, k)).getIndex(), ((Triangle)mapB.get(c, k)).getIndex());
+	    }
+	}
+
+	// both know the mesh is a closed surface
+	assertTrue(a.crossingsSwitchCompartment());
+	assertTrue(b.crossingsSwitchCompartment());
+    }
+
+}
@@ -0,0 +1,363 @@
+package simulation.geometry.substrates;
+
+import junit.framework.*;
+import junit.extensions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import simulation.dynamics.exceptions.StepRejectedException;
+import simulation.dynamics.exceptions.TooDamnCloseException;
+import simulation.geometry.elements.BasicCylinder;
+
+/**
+ * <dl>
+ * <dt>Purpose: Automated tests for <code>ParallelCylinderIndex.java</code>.
+ * <BR><BR>
+ *
+ * <dt>Description:
+ * <dd> This class is used to check with JUnit 3.8 that the index finds
+ * the same crossings, distances and rejected steps as testing every
+ * cylinder in turn with BasicCylinder.crosses(), and puts the same points
+ * inside. The cylinders are a random packing with copies across the
+ * edges of the substrate, as on the distributed radius substrate, and
+ * steps start inside, outside and on the edges of the grid.
+ *
+ * </dl>
+ *
+ * @see simulation.geometry.substrates.ParallelCylinderIndex
+ * @see <A HREF="http://www.junit.org">Junit Homepage</A>
+ *
+ *
+ */
+public class TestParallelCylinderIndex extends TestCase {
+
+    /** dimensionality of space */
+    private static final int D= 3;
+
+    /** substrate size */
+    private static final double L= 5E-6;
+
+    /** number of cylinders in the substrate, before copies */
+    private static final int NUM_CYLINDERS= 60;
+
+    /** number of steps tested */
+    private static final int NUM_STEPS= 40000;
+
+    /** largest step length */
+    private static final double STEP= 1E-6;
+
+    /** walker radius */
+    private static final double WALKER_RAD= 2E-8;
+
+    private Random rng;
+
+    private BasicCylinder[] cylinder;
+
+    private ParallelCylinderIndex index;
+
+
+    public TestParallelCylinderIndex(String name) {
+	super(name);
+    }
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(suite());
+    }
+
+
+    public static Test suite() {
+	return new TestSuite(TestParallelCylinderIndex.class);
+    }
+
+
+    protected void setUp() {
+
+	rng= new Random(2027);
+
+	List<BasicCylinder> cyls= new ArrayList<BasicCylinder>();
+
+	for (int k = 0; k < NUM_CYLINDERS; k++) {
+	    double r= L*(0.02+0.08*rng.nextDouble());
+	    double p= rng.nextDouble();
+	    double x= L*rng.nextDouble();
+	    double y= L*rng.nextDouble();
+
+	    // copies across the edges the cylinder straddles
+	    for (int i = -1; i <= 1; i++) {
+		for (int j = -1; j <= 1; j++) {
+		    double cx= x+i*L;
+		    double cy= y+j*L;
+
+		    if ((cx+r < 0.0) || (cx-r > L) || (cy+r < 0.0) || (cy-r > L)) {
+			continue;
+		    }
+
+		    cyls.add(new BasicCylinder(new double[] {cx, cy, 0.0}, r, p));
+		}
+	    }
+	}
+
+	cylinder= cyls.toArray(new BasicCylinder[cyls.size()]);
+
+	assertTrue(ParallelCylinderIndex.isIndexable(cylinder));
+
+	index= new ParallelCylinderIndex(cylinder);
+
+	assertEquals(cylinder.length, index.size());
+    }
+
+
+    /**
+     * random steps find the same crossings as a linear scan, both fresh
+     * and from a membrane the walker has just reached
+     */
+    public void testSameAsLinearScan() throws Exception {
+
+	ParallelCylinderIndex.Crossing hit= new ParallelCylinderIndex.Crossing();
+	Crossing scan= new Crossing();
+
+	double[] pos= new double[D];
+	double[] step= new double[D];
+
+	int crossings= 0;
+	int rejected= 0;
+	int skipped= 0;
+	int edges= 0;
+
+	for (int s = 0; s < NUM_STEPS; s++) {
+
+	    double walkerRad= rng.nextBoolean() ? WALKER_RAD : 0.0;
+
+	    randomStep(step);
+
+	    if (s%10 == 0) {
+		// end the step right by a membrane
+		BasicCylinder cyl= cylinder[rng.nextInt(cylinder.length)];
+		double theta= 2.0*Math.PI*rng.nextDouble();
+		double dr= 2.0*WALKER_RAD*(rng.nextDouble()-0.5);
+
+		if (rng.nextBoolean()) {
+		    // head on along an axis, stopping just short of the
+		    // cylinder's bounding square, so only the walker radius
+		    // brings it into the step's cells
+		    theta= 0.5*Math.PI*rng.nextInt(4);
+		    dr= WALKER_RAD*rng.nextDouble();
+		    walkerRad= WALKER_RAD;
+
+		    double len= STEP*rng.nextDouble();
+		    step[0]= -len*Math.cos(theta);
+		    step[1]= -len*Math.sin(theta);
+		    step[2]= 0.0;
+		}
+
+		pos[0]= cyl.getPosition()[0]+(cyl.getRadius()+dr)*Math.cos(theta)-step[0];
+		pos[1]= cyl.getPosition()[1]+(cyl.getRadius()+dr)*Math.sin(theta)-step[1];
+		pos[2]= L*rng.nextDouble();
+	    }
+	    else {
+		// some steps start beyond the edges of the grid
+		for (int i = 0; i < D; i++) {
+		    pos[i]= -0.3*L+1.6*L*rng.nextDouble();
+		}
+	    }
+
+	    if ((pos[0] < 0.0) || (pos[0] > L) || (pos[1] < 0.0) || (pos[1] > L)) {
+		edges++;
+	    }
+
+	    boolean found= compare("step "+s, pos, step, -1, false, walkerRad, hit, scan);
+
+	    if (!found) {
+		if (scan.rejected) {
+		    rejected++;
+		}
+		continue;
+	    }
+
+	    crossings++;
+
+	    // move to the membrane and step again, skipping it
+	    int skip= scan.index;
+	    boolean skipIn= scan.in;
+
+	    for (int i = 0; i < D; i++) {
+		pos[i]+= scan.dist*step[i];
+	    }
+
+	    randomStep(step);
+
+	    compare("skip step "+s, pos, step, skip, skipIn, walkerRad, hit, scan);
+	    skipped++;
+	}
+
+	// the steps met the cylinders, some from outside the grid, and some were too close
+	assertTrue(crossings > NUM_STEPS/10);
+	assertTrue(skipped > NUM_STEPS/10);
+	assertTrue(rejected > 0);
+	assertTrue(edges > NUM_STEPS/10);
+    }
+
+
+    /**
+     * random points are inside the same cylinders
+     */
+    public void testInside() {
+
+	double[] Q= new double[D];
+
+	int inside= 0;
+
+	for (int s = 0; s < NUM_STEPS; s++) {
+	    for (int i = 0; i < D; i++) {
+		Q[i]= -0.3*L+1.6*L*rng.nextDouble();
+	    }
+
+	    boolean scanInside= false;
+	    for (int k = 0; k < cylinder.length; k++) {
+		if (cylinder[k].inside(Q)) {
+		    scanInside= true;
+		}
+	    }
+
+	    assertEquals("point "+s, scanInside, index.inside(Q));
+
+	    if (scanInside) {
+		inside++;
+	    }
+	}
+
+	assertTrue(inside > NUM_STEPS/10);
+    }
+
+
+    /**
+     * checks the index against a linear scan for one step
+     *
+     * @return true if a membrane is crossed
+     */
+    private boolean compare(String msg, double[] pos, double[] step, int skip, boolean skipIn,
+			    double walkerRad, ParallelCylinderIndex.Crossing hit, Crossing scan) {
+
+	scan(pos, step, skip, skipIn, walkerRad, scan);
+
+	boolean crosses;
+	try {
+	    crosses= index.crosses(pos, step, skip, skipIn, walkerRad, hit);
+	}
+	catch (StepRejectedException sre) {
+	    assertTrue(msg, scan.rejected);
+	    return false;
+	}
+
+	assertFalse(msg, scan.rejected);
+	assertEquals(msg, scan.count > 0, crosses);
+	assertEquals(msg, scan.count, hit.count);
+
+	if (!crosses) {
+	    return false;
+	}
+
+	assertEquals(msg, scan.index, hit.index);
+	assertEquals(msg, scan.dist, hit.dist, 0.0);
+	assertEquals(msg, scan.second, hit.second, 0.0);
+	for (int i = 0; i < D; i++) {
+	    assertEquals(msg, scan.normal[i], hit.normal[i], 0.0);
+	}
+	assertEquals(msg, scan.d, hit.d, 0.0);
+	assertEquals(msg, scan.in, hit.in);
+	assertEquals(msg, scan.p, hit.p, 0.0);
+
+	return true;
+    }
+
+
+    /**
+     * tests every cylinder, as CylinderSubstrate does with its subvoxel
+     * candidates
+     */
+    private void scan(double[] pos, double[] step, int skip, boolean skipIn, double walkerRad, Crossing scan) {
+
+	scan.count= 0;
+	scan.index= -1;
+	scan.dist= Double.MAX_VALUE;
+	scan.second= Double.MAX_VALUE;
+	scan.rejected= false;
+
+	double[] normal= new double[D];
+	double[] d= new double[1];
+	double[] intDist= new double[1];
+	boolean[] intIn= new boolean[1];
+	double[] intP= new double[1];
+
+	for (int k = 0; k < cylinder.length; k++) {
+
+	    boolean skipCurrent= (k == skip);
+	    intIn[0]= skipCurrent ? skipIn : cylinder[k].inside(pos);
+
+	    boolean crosses;
+	    try {
+		crosses= cylinder[k].crosses(pos, step, normal, d, skipCurrent, STEP, intDist, intIn, intP, walkerRad);
+	    }
+	    catch (TooDamnCloseException tdce) {
+		scan.rejected= true;
+		continue;
+	    }
+
+	    if (!crosses) {
+		continue;
+	    }
+
+	    scan.count++;
+
+	    if (intDist[0] < scan.dist) {
+		scan.second= scan.dist;
+		scan.dist= intDist[0];
+		scan.index= k;
+		System.arraycopy(normal, 0, scan.normal, 0, D);
+		scan.d= d[0];
+		scan.in= intIn[0];
+		scan.p= intP[0];
+	    }
+	    else if (intDist[0] < scan.second) {
+		scan.second= intDist[0];
+	    }
+	}
+    }
+
+
+    /**
+     * isotropic step of random length, up to STEP
+     */
+    private void randomStep(double[] step) {
+
+	double len= STEP*rng.nextDouble();
+
+	double cosPhi= 2.0*rng.nextDouble()-1.0;
+	double sinPhi= Math.sqrt(1.0-cosPhi*cosPhi);
+	double theta= 2.0*Math.PI*rng.nextDouble();
+
+	step[0]= len*Math.cos(theta)*sinPhi;
+	step[1]= len*Math.sin(theta)*sinPhi;
+	step[2]= len*cosPhi;
+    }
+
+
+    /**
+     * the nearest crossing found by the linear scan
+     */
+    private static class Crossing {
+
+	int count;
+	int index;
+	double dist;
+	double second;
+	final double[] normal= new double[D];
+	double d;
+	boolean in;
+	double p;
+	boolean rejected;
+    }
+
+}
@@ -0,0 +1,122 @@
+package simulation.geometry.substrates;
+
+import junit.framework.*;
+import junit.extensions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import simulation.SimulationRunner;
+
+/**
+ * <dl>
+ * <dt>Purpose: Automated tests for safe radii in <code>Substrate.java</code>.
+ * <BR><BR>
+ *
+ * <dt>Description:
+ * <dd> This class is used to check with JUnit 3.8 that skipping barrier
+ * checks inside a walker's safe radius doesn't change the signals. Each
+ * substrate is simulated with and without <code>-nosaferadius</code> in
+ * its own JVM and the outputs must be identical.
+ *
+ * </dl>
+ *
+ * @see simulation.geometry.substrates.Substrate#hasSafeRadius()
+ * @see <A HREF="http://www.junit.org">Junit Homepage</A>
+ *
+ *
+ */
+public class TestSafeRadius extends TestCase {
+
+    /** working directory */
+    private File dir;
+
+
+    public TestSafeRadius(String name) {
+	super(name);
+    }
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(suite());
+    }
+
+
+    public static Test suite() {
+	return new TestSuite(TestSafeRadius.class);
+    }
+
+
+    protected void setUp() throws IOException {
+	dir= SimulationRunner.tempDir("TestSafeRadius");
+	SimulationRunner.writeScheme(new File(dir, "test.scheme"));
+    }
+
+
+    protected void tearDown() {
+	SimulationRunner.deleteDir(dir);
+    }
+
+
+    /**
+     * the default substrate, a single permeable sphere
+     */
+    public void testSphere() throws Exception {
+	checkSafeRadius(new String[] {"-substrate", "regsphere", "-p", "0.05"});
+    }
+
+
+    /**
+     * hexagonally packed cylinders
+     */
+    public void testHexCylinders() throws Exception {
+	checkSafeRadius(new String[] {"-substrate", "cylinder", "-packing", "hex", "-cylinderrad", "1E-6",
+				      "-cylindersep", "2.1E-6", "-p", "0.2"});
+    }
+
+
+    /**
+     * square packed cylinders
+     */
+    public void testSquareCylinders() throws Exception {
+	checkSafeRadius(new String[] {"-substrate", "cylinder", "-packing", "square", "-cylinderrad", "1E-6",
+				      "-cylindersep", "2.1E-6", "-p", "0.2"});
+    }
+
+
+    /**
+     * free diffusion
+     */
+    public void testEmpty() throws Exception {
+	checkSafeRadius(new String[] {"-substrate", "empty"});
+    }
+
+
+    /**
+     * runs a simulation with and without safe radii and checks the
+     * signals are the same
+     */
+    private void checkSafeRadius(String[] substrate) throws Exception {
+
+	byte[] checked= simulate(substrate, new String[0]);
+	byte[] unchecked= simulate(substrate, new String[] {"-nosaferadius"});
+
+	assertTrue(checked.length > 0);
+	assertTrue(Arrays.equals(checked, unchecked));
+    }
+
+
+    private byte[] simulate(String[] substrate, String[] extra) throws IOException, InterruptedException {
+
+	List<String> args= new ArrayList<String>();
+	args.addAll(Arrays.asList(new String[] {"-walkers", "1000", "-tmax", "500", "-voxels", "1",
+						"-initial", "uniform", "-seed", "7", "-schemefile", "test.scheme"}));
+	args.addAll(Arrays.asList(substrate));
+	args.addAll(Arrays.asList(extra));
+
+	return SimulationRunner.run(dir, "SyntheticData", args.toArray(new String[args.size()]));
+    }
+
+}
@@ -0,0 +1,204 @@
+package simulation.geometry.substrates;
+
+import junit.framework.*;
+import junit.extensions.*;
+
+import java.util.Arrays;
+
+import simulation.DiffusionSimulation;
+import simulation.SimulationParams;
+import simulation.dynamics.StepGeneratorFactory;
+import simulation.dynamics.StepGeneratorFactory.StepType;
+import simulation.geometry.elements.SquashyCylinder;
+import simulation.geometry.elements.SubstrateObject;
+import simulation.geometry.substrates.SubstrateFactory.SubstrateType;
+import tools.CL_Initializer;
+
+/**
+ * <dl>
+ * <dt>Purpose: Automated tests for <code>SquashyInflammationSubstrate.java</code>.
+ * <BR><BR>
+ *
+ * <dt>Description:
+ * <dd> This class is used to check with JUnit 3.8 that the cylinders
+ * can be grown by init() once per voxel, and that the subvoxel map
+ * holds the grown cylinders in the subvoxels they now reach.
+ *
+ * </dl>
+ *
+ * @see simulation.geometry.substrates.SquashyInflammationSubstrate
+ * @see <A HREF="http://www.junit.org">Junit Homepage</A>
+ *
+ *
+ */
+public class TestSquashyInflammationSubstrate extends TestCase {
+
+    /** number of voxels, ie calls to init() */
+    private static final int NUM_VOXELS= 8;
+
+    /** number of times the cylinders grow */
+    private static final int NUM_INCREMENTS= 4;
+
+    /** settings changed by the test */
+    private int numVoxels;
+    private int numIncrements;
+    private int numCylinders;
+    private double substrateSize;
+
+
+    public TestSquashyInflammationSubstrate(String name) {
+	super(name);
+    }
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(suite());
+    }
+
+
+    public static Test suite() {
+	return new TestSuite(TestSquashyInflammationSubstrate.class);
+    }
+
+
+    protected void setUp() {
+
+	numVoxels= CL_Initializer.numVoxels;
+	numIncrements= SimulationParams.sim_inflamm_increments;
+	numCylinders= SimulationParams.sim_cyl_dist_size;
+	substrateSize= SimulationParams.sim_L;
+
+	CL_Initializer.numVoxels= NUM_VOXELS;
+	SimulationParams.sim_inflamm_increments= NUM_INCREMENTS;
+	SimulationParams.sim_cyl_dist_size= 20;
+	SimulationParams.sim_L= 2E-5;
+    }
+
+
+    protected void tearDown() {
+
+	CL_Initializer.numVoxels= numVoxels;
+	SimulationParams.sim_inflamm_increments= numIncrements;
+	SimulationParams.sim_cyl_dist_size= numCylinders;
+	SimulationParams.sim_L= substrateSize;
+
+	DiffusionSimulation.calls= -1;
+    }
+
+
+    /**
+     * calls init() for every voxel, as the simulation does, checking
+     * the map after each call
+     */
+    public void testRepeatedIncrements() {
+
+	SimulationParams params= new SimulationParams(1, 10, 0.0, SimulationParams.UNIFORM, SubstrateType.CYL_1_INFLAM,
+						      StepType.FIXEDLENGTH, 1.0, 1.0);
+	params.setStepParams(StepGeneratorFactory.getStepParamsArray(StepType.FIXEDLENGTH, params));
+
+	SquashyInflammationSubstrate subs= new SquashyInflammationSubstrate(params);
+
+	// clones at the edges make more cylinders than were asked for
+	assertTrue(subs.cylinder.length > SimulationParams.sim_cyl_dist_size);
+
+	double[] initialRadius= radii(subs.cylinder);
+
+	for (int v = 0; v < NUM_VOXELS; v++) {
+	    DiffusionSimulation.calls= v;
+
+	    double[] before= radii(subs.cylinder);
+
+	    subs.init();
+
+	    double[] after= radii(subs.cylinder);
+	    for (int i = 0; i < after.length; i++) {
+		assertTrue(after[i] >= before[i]);
+	    }
+
+	    assertMapIsCurrent(subs);
+	}
+
+	// the cylinders have grown
+	double[] finalRadius= radii(subs.cylinder);
+	boolean grown= false;
+	for (int i = 0; i < finalRadius.length; i++) {
+	    if (finalRadius[i] > initialRadius[i]) {
+		grown= true;
+	    }
+	}
+	assertTrue(grown);
+    }
+
+
+    /**
+     * checks the map holds only the current cylinders, each in the
+     * subvoxels its bounding square overlaps
+     */
+    private static void assertMapIsCurrent(SquashyInflammationSubstrate subs) {
+
+	DynamicSubVoxelMap map= (DynamicSubVoxelMap)subs.voxToObjects;
+
+	int numEntries= 0;
+
+	for (int i = 0; i < subs.cylinder.length; i++) {
+	    SquashyCylinder cyl= subs.cylinder[i];
+
+	    assertEquals(i, cyl.getId());
+	    assertTrue(Arrays.equals(cells(subs, cyl.getPosition(), cyl.getRadius()), map.getCells(cyl)));
+
+	    numEntries+= map.getCells(cyl).length;
+	}
+
+	assertEquals(numEntries, map.numEntries());
+
+	for (int c = 0; c < map.numSubVoxels(); c++) {
+	    for (int k = 0; k < map.size(c); k++) {
+		SubstrateObject obj= map.get(c, k);
+
+		assertSame(subs.cylinder[obj.getId()], obj);
+	    }
+	}
+    }
+
+
+    /**
+     * subvoxels overlapped by the bounding square of a cylinder, in
+     * increasing order
+     */
+    private static int[] cells(Substrate subs, double[] pos, double r) {
+
+	int[] min= new int[3];
+	int[] max= new int[3];
+
+	for (int i = 0; i < 3; i++) {
+	    min[i]= (int)Math.max(Math.floor((pos[i]-r)/subs.s[i]), 0);
+	    max[i]= (int)Math.min(Math.floor((pos[i]+r)/subs.s[i]), subs.n[i]-1);
+	}
+
+	int[] cells= new int[(max[0]-min[0]+1)*(max[1]-min[1]+1)*(max[2]-min[2]+1)];
+	int count= 0;
+
+	for (int i = min[0]; i <= max[0]; i++) {
+	    for (int j = min[1]; j <= max[1]; j++) {
+		for (int k = min[2]; k <= max[2]; k++) {
+		    cells[count++]= subs.getSubVoxelIndex(i, j, k);
+		}
+	    }
+	}
+
+	Arrays.sort(cells);
+
+	return cells;
+    }
+
+
+    private static double[] radii(SquashyCylinder[] cylinder) {
+
+	double[] r= new double[cylinder.length];
+	for (int i = 0; i < r.length; i++) {
+	    r[i]= cylinder[i].getRadius();
+	}
+
+	return r;
+    }
+
+}
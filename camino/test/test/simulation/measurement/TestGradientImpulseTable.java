@@ -0,0 +1,215 @@
+package simulation.measurement;
+
+import junit.framework.*;
+import junit.extensions.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import imaging.DW_Scheme;
+import imaging.SimulableScheme;
+import numerics.MTRandom;
+import simulation.SimulationParams;
+import simulation.SimulationRunner;
+import simulation.dynamics.FixedLengthStepGenerator;
+import simulation.dynamics.StepGeneratorFactory;
+import simulation.dynamics.StepGeneratorFactory.StepType;
+import simulation.dynamics.Walker;
+import simulation.geometry.substrates.EmptySubstrate;
+import simulation.geometry.substrates.SubstrateFactory.SubstrateType;
+
+/**
+ * <dl>
+ * <dt>Purpose: Automated tests for <code>GradientImpulseTable.java</code>.
+ * <BR><BR>
+ *
+ * <dt>Description:
+ * <dd> This class is used to check with JUnit 3.8 that walkers
+ * accumulate the same phases from a compiled table of gradient impulses
+ * as they do by asking the scheme at every step.
+ *
+ * </dl>
+ *
+ * @see simulation.measurement.GradientImpulseTable
+ * @see <A HREF="http://www.junit.org">Junit Homepage</A>
+ *
+ *
+ */
+public class TestGradientImpulseTable extends TestCase {
+
+    /** number of walkers */
+    private static final int N= 50;
+
+    /** number of timesteps */
+    private static final int TMAX= 200;
+
+    /** the scheme */
+    private SimulableScheme scheme;
+
+    /** number of measurements */
+    private int numMeas;
+
+    /** simulation parameters for the scheme */
+    private SimulationParams params;
+
+
+    public TestGradientImpulseTable(String name) {
+	super(name);
+    }
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(suite());
+    }
+
+
+    public static Test suite() {
+	return new TestSuite(TestGradientImpulseTable.class);
+    }
+
+
+    protected void setUp() throws IOException {
+
+	File f= File.createTempFile("TestGradientImpulseTable", ".scheme");
+	numMeas= SimulationRunner.writeScheme(f);
+	scheme= (SimulableScheme)DW_Scheme.readScheme(f.getPath());
+	f.delete();
+
+	params= new SimulationParams(N, TMAX, 0.0, SimulationParams.UNIFORM, SubstrateType.EMPTY,
+				     StepType.FIXEDLENGTH, 1.0, scheme);
+	params.setStepParams(StepGeneratorFactory.getStepParamsArray(StepType.FIXEDLENGTH, params));
+    }
+
+
+    /**
+     * every non-zero impulse of the scheme is in the table, and nothing
+     * else is
+     */
+    public void testEntries() {
+
+	double dt= params.getDt();
+
+	GradientImpulseTable table= GradientImpulseTable.compile(scheme, numMeas, TMAX, dt);
+	assertNotNull(table);
+
+	int nonZero= 0;
+
+	for (int ti = 0; ti < TMAX; ti++) {
+	    double t= ti*dt;
+	    double last= (ti == 0) ? 0.0 : (ti-1)*dt;
+
+	    assertTrue(table.covers(ti, t, last));
+
+	    int k= table.rowStart(ti);
+
+	    for (int j = 0; j < numMeas; j++) {
+		double[] Gdt= scheme.getGradImpulse(j, t, last);
+
+		if (Gdt[0] == 0.0 && Gdt[1] == 0.0 && Gdt[2] == 0.0) {
+		    continue;
+		}
+
+		assertTrue(k < table.rowEnd(ti));
+		assertEquals(j, table.getMeasurement(k));
+		for (int i = 0; i < 3; i++) {
+		    assertEquals(Gdt[i], table.getImpulse(k, i), 0.0);
+		}
+
+		k++;
+		nonZero++;
+	    }
+
+	    assertEquals(table.rowEnd(ti), k);
+	}
+
+	assertEquals(nonZero, table.size());
+	assertTrue(nonZero > 0);
+
+	// other timings aren't covered
+	assertFalse(table.covers(1, 1.5*dt, 0.5*dt));
+	assertFalse(table.covers(TMAX, TMAX*dt, (TMAX-1)*dt));
+    }
+
+
+    /**
+     * walkers with the same steps end up with the same phases and
+     * signals with and without the table
+     */
+    public void testWalkerPhases() {
+
+	Walker[] tabled= new Walker[N];
+	Walker[] plain= new Walker[N];
+
+	AgnosticScan tabledScan= simulate(tabled, true);
+	AgnosticScan plainScan= simulate(plain, false);
+
+	assertNotNull(tabledScan.getImpulseTable());
+	assertNull(plainScan.getImpulseTable());
+
+	double maxPhase= 0.0;
+
+	for (int i = 0; i < N; i++) {
+	    for (int j = 0; j < 3; j++) {
+		assertEquals(plain[i].r[j], tabled[i].r[j], 0.0);
+	    }
+
+	    for (int m = 0; m < numMeas; m++) {
+		assertEquals("walker "+i+" measurement "+m, plain[i].getPhaseShift(m), tabled[i].getPhaseShift(m), 0.0);
+		maxPhase= Math.max(maxPhase, Math.abs(plain[i].getPhaseShift(m)));
+	    }
+	}
+
+	// the walk has to weight the signals for the test to mean anything
+	assertTrue(maxPhase > 0.1);
+
+	double[] tabledSignals= tabledScan.getSignals();
+	double[] plainSignals= plainScan.getSignals();
+
+	assertEquals(numMeas, plainSignals.length);
+	for (int m = 0; m < numMeas; m++) {
+	    assertEquals(plainSignals[m], tabledSignals[m], 0.0);
+	}
+    }
+
+
+    /**
+     * runs a small free diffusion simulation. every run starts in the
+     * same place and takes the same steps.
+     *
+     * @param walker array to fill with the walkers
+     * @param compile compile the scheme's impulses?
+     *
+     * @return the scan
+     */
+    private AgnosticScan simulate(Walker[] walker, boolean compile) {
+
+	EmptySubstrate substrate= new EmptySubstrate(params);
+	FixedLengthStepGenerator stepGen= new FixedLengthStepGenerator(params);
+
+	AgnosticScan scan= new AgnosticScan(scheme, walker, substrate);
+	if (compile) {
+	    scan.compileImpulseTable(TMAX, params.getDt());
+	}
+
+	MTRandom twister= new MTRandom(4321);
+	for (int i = 0; i < N; i++) {
+	    double[] r0= new double[3];
+	    for (int j = 0; j < 3; j++) {
+		r0[j]= 1E-5*twister.nextDouble();
+	    }
+
+	    walker[i]= new Walker(r0, stepGen, substrate, scan);
+	}
+
+	// the main loop of DiffusionSimulation
+	double dt= params.getDt();
+	for (int t = 0; t < TMAX; t++) {
+	    for (int i = 0; i < N; i++) {
+		walker[i].update(t*dt, t, i, false);
+	    }
+	    scan.update(t);
+	}
+
+	return scan;
+    }
+
+}
@@ -0,0 +1,284 @@
+package simulation.measurement;
+
+import junit.framework.*;
+import junit.extensions.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import apps.MergeShards;
+import data.OutputManager;
+import misc.LoggedException;
+import numerics.MTRandom;
+import simulation.SimulationParams;
+import tools.CL_Initializer;
+
+/**
+ * <dl>
+ * <dt>Purpose: Automated tests for <code>SignalSums.java</code> and <code>MergeShards.java</code>.
+ * <BR><BR>
+ *
+ * <dt>Description:
+ * <dd> This class is used to perform tests on <code>SignalSums</code> and
+ * the merging of partial signal files with JUnit 3.8.
+ *
+ * </dl>
+ *
+ * @see simulation.measurement.SignalSums
+ * @see apps.MergeShards
+ * @see <A HREF="http://www.junit.org">Junit Homepage</A>
+ *
+ *
+ */
+public class TestSignalSums extends TestCase {
+
+    /** number of measurements in the test sums */
+    private static final int NUM_MEAS= 5;
+
+    /** seed the shards were run with */
+    private static final int SEED= 5;
+
+    /** temporary files made by a test */
+    private File[] files;
+
+
+    public TestSignalSums(String name) {
+	super(name);
+    }
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(suite());
+    }
+
+
+    public static Test suite() {
+	return new TestSuite(TestSignalSums.class);
+    }
+
+
+    protected void setUp() throws IOException {
+	files= new File[4];
+	for (int i = 0; i < files.length; i++) {
+	    files[i]= File.createTempFile("TestSignalSums", ".dat");
+	    files[i].deleteOnExit();
+	}
+    }
+
+
+    /**
+     * MergeShards sets these from its command line, so put them back
+     * for the other tests
+     */
+    protected void tearDown() {
+	OutputManager.outputFile= null;
+	OutputManager.outputDataType= "double";
+	CL_Initializer.SNR= -1;
+	CL_Initializer.numVoxels= 0;
+	CL_Initializer.seed= 36558013;
+	SimulationParams.sim_compartmentSignal= SimulationParams.NOCOMPS;
+
+	for (int i = 0; i < files.length; i++) {
+	    files[i].delete();
+	}
+    }
+
+
+    /**
+     * sums are read back exactly as they were written, with the shard
+     * and seed from the header
+     */
+    public void testWriteRead() throws IOException {
+
+	SignalSums sums= makeSums(1, 300);
+	write(sums, files[0], 3, SEED);
+
+	int[] header= new int[2];
+	DataInputStream in= new DataInputStream(new FileInputStream(files[0]));
+	SignalSums read= SignalSums.read(in, header);
+	in.close();
+
+	assertEquals(3, header[0]);
+	assertEquals(SEED, header[1]);
+	assertEquals(sums.getNumWalkers(), read.getNumWalkers());
+	assertEquals(NUM_MEAS, read.numMeas);
+
+	for (int i = 0; i < NUM_MEAS; i++) {
+	    assertEquals(sums.total[i], read.total[i], 0.0);
+	    assertEquals(sums.totalImag[i], read.totalImag[i], 0.0);
+	    assertEquals(sums.intra[i], read.intra[i], 0.0);
+	    assertEquals(sums.intraImag[i], read.intraImag[i], 0.0);
+	    assertEquals(sums.extra[i], read.extra[i], 0.0);
+	    assertEquals(sums.extraImag[i], read.extraImag[i], 0.0);
+	    assertEquals(sums.numIn[i], read.numIn[i]);
+	    assertEquals(sums.numExt[i], read.numExt[i]);
+	    assertEquals(sums.compIntra[i], read.compIntra[i], 0.0);
+	    assertEquals(sums.compExtra[i], read.compExtra[i], 0.0);
+	}
+    }
+
+
+    /**
+     * merging two shards gives the signals of their combined sums, noise
+     * and all, for every voxel
+     */
+    public void testMergeTwoShards() throws IOException {
+
+	SignalSums shard0= makeSums(1, 300);
+	SignalSums shard1= makeSums(2, 500);
+
+	write(shard0, files[0], 0, SEED);
+	write(shard1, files[1], 1, SEED);
+
+	new MergeShards(new String[] {"-shardfiles", files[0].getPath(), files[1].getPath(),
+				      "-seed", Integer.toString(SEED), "-snr", "20", "-voxels", "2",
+				      "-compartmentsignal", "all", "-outputfile", files[2].getPath(),
+				      "-outputdatatype", "double"}).execute(new OutputManager());
+
+	SignalSums combined= makeSums(1, 300);
+	combined.add(makeSums(2, 500));
+	assertEquals(800, combined.getNumWalkers());
+
+	MTRandom twister= AgnosticScan.getNoiseGenerator(SEED);
+	double[][] expected= new double[2][];
+	for (int v = 0; v < expected.length; v++) {
+	    expected[v]= combined.getSignals(twister, 20.0, SimulationParams.ALLCOMPS);
+	}
+
+	assertSignals(expected, files[2]);
+    }
+
+
+    /**
+     * shard 0 on its own reads out as it would have without sharding
+     */
+    public void testMergeOneShard() throws IOException {
+
+	SignalSums shard0= makeSums(3, 400);
+	write(shard0, files[0], 0, SEED);
+
+	new MergeShards(new String[] {"-shardfiles", files[0].getPath(), "-seed", Integer.toString(SEED),
+				      "-snr", "10", "-outputfile", files[2].getPath(),
+				      "-outputdatatype", "double"}).execute(new OutputManager());
+
+	double[][] expected= new double[][] {makeSums(3, 400).getSignals(AgnosticScan.getNoiseGenerator(SEED),
+									 10.0, SimulationParams.NOCOMPS)};
+
+	assertSignals(expected, files[2]);
+    }
+
+
+    /**
+     * the same shard twice would count its walkers twice
+     */
+    public void testDuplicateShard() throws IOException {
+
+	write(makeSums(1, 300), files[0], 1, SEED);
+	write(makeSums(2, 500), files[1], 1, SEED);
+
+	MergeShards merge= new MergeShards(new String[] {"-shardfiles", files[0].getPath(), files[1].getPath(),
+							 "-seed", Integer.toString(SEED), "-outputfile", files[2].getPath()});
+
+	try {
+	    merge.execute(new OutputManager());
+	    fail("duplicate shard was merged");
+	}
+	catch (LoggedException e) {
+	    assertTrue(e.getMessage().indexOf("shard 1") >= 0);
+	}
+    }
+
+
+    /**
+     * shards run with different seeds simulated different substrates
+     */
+    public void testSeedMismatch() throws IOException {
+
+	write(makeSums(1, 300), files[0], 0, SEED);
+	write(makeSums(2, 500), files[1], 1, SEED+1);
+
+	MergeShards merge= new MergeShards(new String[] {"-shardfiles", files[0].getPath(), files[1].getPath(),
+							 "-seed", Integer.toString(SEED), "-outputfile", files[2].getPath()});
+
+	try {
+	    merge.execute(new OutputManager());
+	    fail("shards with different seeds were merged");
+	}
+	catch (LoggedException e) {
+	    assertTrue(e.getMessage().indexOf("seed") >= 0);
+	}
+    }
+
+
+    /**
+     * makes sums over some walkers with arbitrary but repeatable contents
+     *
+     * @param seed random seed for the contents
+     * @param numWalkers number of walkers
+     */
+    private static SignalSums makeSums(int seed, long numWalkers) {
+
+	MTRandom twister= new MTRandom(seed);
+	SignalSums sums= new SignalSums(NUM_MEAS);
+
+	for (int i = 0; i < NUM_MEAS; i++) {
+	    sums.numIn[i]= twister.nextInt((int)numWalkers);
+	    sums.numExt[i]= numWalkers-sums.numIn[i];
+
+	    sums.intra[i]= twister.nextDouble()*sums.numIn[i];
+	    sums.extra[i]= twister.nextDouble()*sums.numExt[i];
+	    sums.intraImag[i]= twister.nextGaussian();
+	    sums.extraImag[i]= twister.nextGaussian();
+	    sums.total[i]= sums.intra[i]+sums.extra[i];
+	    sums.totalImag[i]= sums.intraImag[i]+sums.extraImag[i];
+	    sums.compIntra[i]= sums.intra[i]+0.25*sums.extra[i];
+	    sums.compExtra[i]= sums.extra[i]+0.25*sums.intra[i];
+	}
+
+	sums.numWalkers= numWalkers;
+
+	return sums;
+    }
+
+
+    /**
+     * writes sums to a partial signal file
+     */
+    private static void write(SignalSums sums, File file, int shard, int seed) throws IOException {
+
+	DataOutputStream out= new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+	sums.write(out, shard, seed);
+	out.close();
+    }
+
+
+    /**
+     * checks a file of big-endian doubles holds exactly the expected signals
+     * and nothing else
+     */
+    private static void assertSignals(double[][] expected, File file) throws IOException {
+
+	int numValues= 0;
+	for (int v = 0; v < expected.length; v++) {
+	    numValues+= expected[v].length;
+	}
+
+	assertEquals(8L*numValues, file.length());
+
+	DataInputStream in= new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+	for (int v = 0; v < expected.length; v++) {
+	    for (int i = 0; i < expected[v].length; i++) {
+		assertEquals("voxel "+v+" value "+i, expected[v][i], in.readDouble(), 0.0);
+	    }
+	}
+
+	in.close();
+    }
+
+}
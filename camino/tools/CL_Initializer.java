@@ -1,5 +1,6 @@
 package tools;
 
+import java.util.ArrayList;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.StringTokenizer;
@@ -250,6 +251,11 @@ public class CL_Initializer {
 	 */
 	public static int seed = 36558013;
 
+	/**
+	 * Separation between the walker seeds of successive shards of a simulation. 
+	 */
+	public static final int SHARD_SEED_STRIDE = 1000003;
+
 	/**
 	 * Name of file containing voxel classification. Used in classified model
 	 * fit.
@@ -307,6 +313,12 @@ public class CL_Initializer {
 	 */
 	public static String schemeFile = null;
 
+	/**
+	 * Further scheme files to synthesise from the same walkers or 
+	 * trajectories as the main scheme (-schemefiles).
+	 */
+	public static String[] schemeFiles = new String[0];
+
 
 	
 	/**
@@ -822,6 +834,15 @@ public class CL_Initializer {
 				markAsParsed(i);
 				markAsParsed(i + 1);
 			}
+			if (args[i].equals("-schemefiles")) {
+				int t = 0;
+				while (t + i + 1 < args.length && !args[t + i + 1].startsWith("-")) {
+					t++;
+				}
+				schemeFiles = new String[t];
+				System.arraycopy(args, i + 1, schemeFiles, 0, t);
+				markAsParsed(i, t + 1);
+			}
 			if (args[i].equals("-voxclassmap")) {
 				voxelClassMap = args[i + 1];
 				markAsParsed(i);
@@ -1098,6 +1119,90 @@ public class CL_Initializer {
 				brownianSimulation = true;
 				markAsParsed(i, 2);
 			}
+			if (args[i].equals("-threads")) {
+				SimulationParams.sim_threads = Integer.parseInt(args[i + 1]);
+				if (SimulationParams.sim_threads < 1) {
+					throw new LoggedException("number of simulation threads must be at least 1");
+				}
+				brownianSimulation = true;
+				markAsParsed(i, 2);
+			}
+			if (args[i].equalsIgnoreCase("-walkermajor")) {
+				SimulationParams.sim_walker_major = true;
+				brownianSimulation = true;
+				markAsParsed(i);
+			}
+			if (args[i].equalsIgnoreCase("-walkertile")) {
+				SimulationParams.sim_walker_tile = Integer.parseInt(args[i + 1]);
+				if (SimulationParams.sim_walker_tile < 1) {
+					throw new LoggedException("walker tile size must be at least 1");
+				}
+				SimulationParams.sim_walker_major = true;
+				brownianSimulation = true;
+				markAsParsed(i, 2);
+			}
+			if (args[i].equalsIgnoreCase("-walkerbatch")) {
+				SimulationParams.sim_walker_batch = Integer.parseInt(args[i + 1]);
+				if (SimulationParams.sim_walker_batch < 1) {
+					throw new LoggedException("walker batch size must be at least 1");
+				}
+				brownianSimulation = true;
+				markAsParsed(i, 2);
+			}
+			if (args[i].equalsIgnoreCase("-checkpoint")) {
+				SimulationParams.sim_checkpointFile = args[i + 1];
+				brownianSimulation = true;
+				markAsParsed(i, 2);
+			}
+			if (args[i].equalsIgnoreCase("-checkpointinterval")) {
+				SimulationParams.sim_checkpointInterval = Integer.parseInt(args[i + 1]);
+				if (SimulationParams.sim_checkpointInterval < 1) {
+					throw new LoggedException("checkpoint interval must be at least 1 timestep");
+				}
+				brownianSimulation = true;
+				markAsParsed(i, 2);
+			}
+			if (args[i].equalsIgnoreCase("-resume")) {
+				SimulationParams.sim_resumeFile = args[i + 1];
+				brownianSimulation = true;
+				markAsParsed(i, 2);
+			}
+			if (args[i].equalsIgnoreCase("-shard")) {
+				SimulationParams.sim_shard = Integer.parseInt(args[i + 1]);
+				if (SimulationParams.sim_shard < 0) {
+					throw new LoggedException("shard index must not be negative");
+				}
+				brownianSimulation = true;
+				markAsParsed(i, 2);
+			}
+			if (args[i].equalsIgnoreCase("-partialfile")) {
+				SimulationParams.sim_partialFile = args[i + 1];
+				brownianSimulation = true;
+				markAsParsed(i, 2);
+			}
+			if (args[i].equalsIgnoreCase("-walkerpool")) {
+				SimulationParams.sim_walker_pool = true;
+				brownianSimulation = true;
+				markAsParsed(i);
+			}
+			if (args[i].equalsIgnoreCase("-nosaferadius")) {
+				SimulationParams.sim_safe_radius = false;
+				brownianSimulation = true;
+				markAsParsed(i);
+			}
+			if (args[i].equalsIgnoreCase("-nocylinderindex")) {
+				SimulationParams.sim_cylinder_index = false;
+				brownianSimulation = true;
+				markAsParsed(i);
+			}
+			if (args[i].equalsIgnoreCase("-compartmentcheck")) {
+				SimulationParams.sim_compartment_check = Integer.parseInt(args[i + 1]);
+				if (SimulationParams.sim_compartment_check < 0) {
+					throw new LoggedException("compartment check interval must not be negative");
+				}
+				brownianSimulation = true;
+				markAsParsed(i, 2);
+			}
 			if (args[i].equals("-p")) {
 				SimulationParams.sim_p = Double.parseDouble(args[i + 1]);
 				brownianSimulation = true;
@@ -1191,6 +1296,37 @@ public class CL_Initializer {
 				brownianSimulation = true;
 				markAsParsed(i, 2);
 			}
+			if (args[i].equalsIgnoreCase("-trajlegacy")) {
+				SimulationParams.sim_trajLegacy = true;
+				brownianSimulation = true;
+				markAsParsed(i);
+			}
+			if (args[i].equalsIgnoreCase("-trajfloat")) {
+				SimulationParams.sim_trajFloat = true;
+				brownianSimulation = true;
+				markAsParsed(i);
+			}
+			if (args[i].equalsIgnoreCase("-trajcompress")) {
+				SimulationParams.sim_trajCompress = true;
+				brownianSimulation = true;
+				markAsParsed(i);
+			}
+			if (args[i].equalsIgnoreCase("-trajdecimate")) {
+				SimulationParams.sim_trajDecimation = Integer.parseInt(args[i + 1]);
+				if (SimulationParams.sim_trajDecimation < 1) {
+					throw new LoggedException("trajectory decimation must be at least 1");
+				}
+				brownianSimulation = true;
+				markAsParsed(i, 2);
+			}
+			if (args[i].equalsIgnoreCase("-trajsample")) {
+				SimulationParams.sim_trajWalkerStride = Integer.parseInt(args[i + 1]);
+				if (SimulationParams.sim_trajWalkerStride < 1) {
+					throw new LoggedException("trajectory walker sampling interval must be at least 1");
+				}
+				brownianSimulation = true;
+				markAsParsed(i, 2);
+			}
 			if (args[i].equalsIgnoreCase("-separateruns")) {
 				SimulationParams.sim_separate_runs = true;
 				brownianSimulation = true;
@@ -1220,6 +1356,9 @@ public class CL_Initializer {
 				} else if (args[i + 1].equalsIgnoreCase("ply")) {
 					SimulationParams.sim_geomType = SubstrateType.TRI_PLY_MESH;
 					markAsParsed(i + 1);
+				} else if (args[i + 1].equalsIgnoreCase("instancedmesh")) {
+					SimulationParams.sim_geomType = SubstrateType.TRI_PLY_INSTANCED;
+					markAsParsed(i + 1);
 				} else if (args[i + 1].equalsIgnoreCase("percolation")) {
 					SimulationParams.sim_geomType = SubstrateType.CYL_1_PERC;
 					markAsParsed(i + 1);
@@ -1260,6 +1399,10 @@ public class CL_Initializer {
 				} else if (args[i + 1].equalsIgnoreCase("hex")) {
 					SimulationParams.sim_cyl_pack = ParallelCylinderSubstrate.HEX;
 					markAsParsed(i + 1);
+				} else if (args[i + 1].equalsIgnoreCase("grow")) {
+					// distributed radius cylinders only
+					SimulationParams.sim_cyl_dist_grow = true;
+					markAsParsed(i + 1);
 				} else {
 					logger
 							.warning("cylinder packing '"
@@ -1314,6 +1457,25 @@ public class CL_Initializer {
 				markAsParsed(i, 4);
 				
 			}
+			if(args[i].equals("-meshaccel")){
+				if(args[i+1].equalsIgnoreCase("grid")){
+					SimulationParams.sim_mesh_bvh= false;
+				}
+				else if(args[i+1].equalsIgnoreCase("bvh")){
+					SimulationParams.sim_mesh_bvh= true;
+				}
+				else{
+					throw new LoggedException("unknown mesh acceleration structure '"+args[i+1]+"'. use grid or bvh");
+				}
+				
+				brownianSimulation= true;
+				markAsParsed(i, 2);
+			}
+			if(args[i].equals("-meshcache")){
+				SimulationParams.sim_mesh_cache= args[i+1];
+				brownianSimulation= true;
+				markAsParsed(i, 2);
+			}
 			if(args[i].equals("-cylindertype")){
 				// these are the only ones anyone actually uses...
 				if(args[i+1].equalsIgnoreCase("basic")){
@@ -1364,6 +1526,16 @@ public class CL_Initializer {
 				brownianSimulation = true;
 				markAsParsed(i, 2);
 			}
+			if (args[i].equalsIgnoreCase("-plyfiles")) {
+				SimulationParams.sim_plyfiles = args[i + 1].split(",");
+				brownianSimulation = true;
+				markAsParsed(i, 2);
+			}
+			if (args[i].equalsIgnoreCase("-instancefile")) {
+				SimulationParams.sim_instance_file = args[i + 1];
+				brownianSimulation = true;
+				markAsParsed(i, 2);
+			}
 			if (args[i].equals("-steptype")) {
 				if (args[i + 1].equals("fixedlength")) {
 					SimulationParams.sim_stepType = StepType.FIXEDLENGTH;
@@ -1474,9 +1646,9 @@ public class CL_Initializer {
             }
             if (args[i].equals("-initfile")) {
     				SimulationParams.initFile = new String(args[i + 1]);
-    				String suffix = SimulationParams.initFile
-    						.substring(SimulationParams.initFile.length() - 4);
-    				if (!suffix.equalsIgnoreCase(".dat")) {
+    				// used as given if the file exists, so binary files needn't end in .dat
+    				if (!SimulationParams.initFile.toLowerCase().endsWith(".dat")
+    						&& !new File(SimulationParams.initFile).exists()) {
     					SimulationParams.initFile += ".dat";
     				}            		
             		markAsParsed(i, 2);
@@ -1678,6 +1850,44 @@ public class CL_Initializer {
 		}
 	}
 
+	/**
+	 * Gets the schemes to synthesise from simulation: the main scheme, if
+	 * there is one, followed by any from -schemefiles. Call 
+	 * initImagingScheme before this method.
+	 * 
+	 * @return the schemes, in order
+	 */
+	public static SimulableScheme[] getSimulableSchemes() {
+
+		ArrayList<DW_Scheme> schemes = new ArrayList<DW_Scheme>();
+
+		if (imPars != null) {
+			schemes.add(imPars);
+		}
+		for (int i = 0; i < schemeFiles.length; i++) {
+			schemes.add(DW_Scheme.readScheme(schemeFiles[i]));
+		}
+
+		if (schemes.isEmpty()) {
+			throw new LoggedException("no scheme specified. use -schemefile <file> or -schemefiles <file> [<file> ...]");
+		}
+
+		SimulableScheme[] simSchemes = new SimulableScheme[schemes.size()];
+
+		for (int s = 0; s < simSchemes.length; s++) {
+			if (!(schemes.get(s) instanceof SimulableScheme)) {
+				logger.severe("The scheme file provided doesn't contain enough information to generate measurements from simulation");
+				logger.severe("Simulation-based data synthesis requires gradent strength, pulse durations and timings to be specified");
+				logger.severe("Compatible scheme file formats include STEJSKALTANNER, TRSE, and genwave");
+
+				throw new LoggedException("Specified schemefile is not compatible with data synthesis from simulation. Scheme must be Simulable");
+			}
+			simSchemes[s] = (SimulableScheme) schemes.get(s);
+		}
+
+		return simSchemes;
+	}
+
 	/**
 	 * Initializes the reconstruction direction set for maximum entropy
 	 * deconvolution.
@@ -2110,6 +2320,19 @@ public class CL_Initializer {
     }
 
 
+    /**
+     * Seed for the random numbers that place and move walkers. Each shard
+     * of a split simulation gets its own, so the shards are independent
+     * sets of walkers in the same substrate. The substrate, scheme and
+     * noise always use seed. Shard 0 and unsharded runs use seed.
+     *
+     * @return the walker seed
+     */
+    public static int walkerSeed() {
+        return seed + SHARD_SEED_STRIDE * Math.max(SimulationParams.sim_shard, 0);
+    }
+
+
     public static void initDataSynthesizerFromSimulation() {
 
         // if we've set up one or more diffusion simulation
@@ -2119,6 +2342,12 @@ public class CL_Initializer {
 
         SimulableScheme simScheme = null;
 
+        // all the schemes, if there's more than one
+        SimulableScheme[] simSchemes = null;
+        
+        if (SimulationParams.sim_shard > 0) {
+            logger.info("shard " + SimulationParams.sim_shard + " using walker seed " + walkerSeed());
+        }
         
         if (SimulationParams.trajectories) {
             simParams = new SimulationParams(
@@ -2154,6 +2383,26 @@ public class CL_Initializer {
             	
               	throw new LoggedException("Scheme file not compatible with simulation");
             }
+            
+            if (schemeFiles.length > 0) {
+            	simSchemes = getSimulableSchemes();
+            	
+            	// the timestep has to cover the longest scheme
+            	for (int s = 0; s < simSchemes.length; s++) {
+            		if (simSchemes[s].getDuration() > simScheme.getDuration()) {
+            			simScheme = simSchemes[s];
+            		}
+            	}
+            	
+                simParams = new SimulationParams(
+                        SimulationParams.sim_N_walkers,
+                        SimulationParams.sim_tmax, SimulationParams.sim_p,
+                        SimulationParams.sim_initial,
+                        SimulationParams.sim_geomType,
+                        SimulationParams.sim_stepType,
+                        SimulationParams.sim_voxelSize,
+                        simScheme);
+            }
         
 
         }
@@ -2164,6 +2413,10 @@ public class CL_Initializer {
         
         if (bootstrap > 0) {
             
+            if (simSchemes != null) {
+            	throw new LoggedException("bootstrapping simulated data doesn't support more than one scheme");
+            }
+            
             int tmpVoxels = numVoxels;
             
             
@@ -2196,7 +2449,12 @@ public class CL_Initializer {
             else {
                 
                 // if we've got this far, the scheme object is simulable
-                data = new DiffusionSimulation(simParams, simScheme);
+                if (simSchemes != null) {
+                	data = new DiffusionSimulation(simParams, simSchemes);
+                }
+                else {
+                	data = new DiffusionSimulation(simParams, simScheme);
+                }
             }
         }
         
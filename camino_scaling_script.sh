@@ -0,0 +1,23 @@
+export CAMINO_HEAP_SIZE=24000
+
+# Thread scaling of the walker-parallel main loop on the PLY workload.
+# Signals must be identical for every thread count with a fixed seed.
+
+n_t=10000  # Number of time steps
+walkers=10000
+max_threads=${1:-$(nproc)}
+
+threads=1
+while [ $threads -le $max_threads ]
+do
+    SECONDS=0
+    camino/bin/datasynth -walkers $walkers -tmax $n_t -voxels 1 -p 0.0 -schemefile results/pgse.scheme -initial file -initfile results/init_pos_$walkers.dat -substrate ply -plyfile neuron-model.ply -voxelsizefrac 1.0 -threads $threads > results/camino_signals_w${walkers}_t${n_t}_threads${threads}.bfloat
+    echo $SECONDS > results/camino_runtime_w${walkers}_t${n_t}_threads${threads}.txt
+
+    if ! cmp -s results/camino_signals_w${walkers}_t${n_t}_threads1.bfloat results/camino_signals_w${walkers}_t${n_t}_threads${threads}.bfloat
+    then
+        echo "signals with $threads threads differ from single-threaded run" >&2
+    fi
+
+    threads=$((threads*2))
+done